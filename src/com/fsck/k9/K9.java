@@ -339,6 +339,15 @@ public class K9 extends Application {
      */
     public static final int MAX_ATTACHMENT_DOWNLOAD_SIZE = (128 * 1024 * 1024);
 
+    /**
+     * The maximum number of characters of viewable text (plain text and HTML, each) stored in the
+     * database for a message. Anything beyond that is dropped when the message is saved, a notice
+     * is displayed instead and the message is marked with
+     * {@link com.fsck.k9.mail.Flag#X_VIEWABLE_TRUNCATED}.
+     * Both columns have to fit into a single {@code CursorWindow} (2 MB) to be read back.
+     */
+    public static int MAX_STORED_VIEWABLE_LENGTH = 384 * 1024;
+
 
     /* How many times should K-9 try to deliver a message before giving up
      * until the app is killed and restarted
@@ -346,6 +355,12 @@ public class K9 extends Application {
 
     public static int MAX_SEND_ATTEMPTS = 5;
 
+    /**
+     * Minimum time (in millis) between two change notifications for an account's messages.
+     * Changes made to the local store within this window are delivered as a single notification.
+     */
+    public static final int CONTENT_CHANGE_NOTIFICATION_WINDOW = 300;
+
     /**
      * Max time (in millis) the wake lock will be held for when background sync is happening
      */
@@ -353,6 +368,23 @@ public class K9 extends Application {
 
     public static final int MANUAL_WAKE_LOCK_TIMEOUT = 120000;
 
+    /**
+     * Maximum number of accounts that are checked for new mail at the same time.
+     */
+    public static final int MAX_CONCURRENT_ACCOUNT_CHECKS = 4;
+
+    /**
+     * Messages aren't prefetched for viewing while the device isn't charging and the battery
+     * level is at or below this percentage.
+     */
+    public static final int PREFETCH_MIN_BATTERY_PERCENT = 20;
+
+    /**
+     * Maximum number of accounts on the same server that are checked for new mail at the same
+     * time.
+     */
+    public static final int MAX_CONCURRENT_CHECKS_PER_SERVER = 2;
+
     public static final int PUSH_WAKE_LOCK_TIMEOUT = 60000;
 
     public static final int MAIL_SERVICE_WAKE_LOCK_TIMEOUT = 60000;
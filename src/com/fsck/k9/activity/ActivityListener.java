@@ -20,6 +20,8 @@ public class ActivityListener extends MessagingListener {
     private String mSendingAccountDescription = null;
     private int mFolderCompleted = 0;
     private int mFolderTotal = 0;
+    private int mAccountsCompleted = 0;
+    private int mAccountsTotal = 0;
     private String mProcessingAccountDescription = null;
     private String mProcessingCommandTitle = null;
 
@@ -37,8 +39,14 @@ public class ActivityListener extends MessagingListener {
                 || mSendingAccountDescription != null
                 || mLoadingHeaderFolderName != null
                 || mProcessingAccountDescription != null) {
-            progress = (mFolderTotal > 0 ?
-                        context.getString(R.string.folder_progress, mFolderCompleted, mFolderTotal) : "");
+            if (mFolderTotal > 0) {
+                progress = context.getString(R.string.folder_progress, mFolderCompleted, mFolderTotal);
+            } else if (mAccountsTotal > 1) {
+                // Several accounts are checked at once; show how far the whole check has come
+                progress = context.getString(R.string.folder_progress, mAccountsCompleted, mAccountsTotal);
+            } else {
+                progress = "";
+            }
 
             if (mLoadingFolderName != null || mLoadingHeaderFolderName != null) {
                 String displayName = mLoadingFolderName;
@@ -156,6 +164,20 @@ public class ActivityListener extends MessagingListener {
 
     }
 
+    @Override
+    public void checkMailProgress(Context context, int completed, int total) {
+        mAccountsCompleted = completed;
+        mAccountsTotal = total;
+        informUserOfStatus();
+    }
+
+    @Override
+    public void checkMailFinished(Context context, Account account) {
+        mAccountsCompleted = 0;
+        mAccountsTotal = 0;
+        informUserOfStatus();
+    }
+
     @Override
     public void sendPendingMessagesStarted(Account account) {
         mSendingAccountDescription = account.getDescription();
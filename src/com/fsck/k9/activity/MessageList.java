@@ -1,5 +1,6 @@
 package com.fsck.k9.activity;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
@@ -37,6 +38,7 @@ import com.fsck.k9.activity.misc.SwipeGestureDetector.OnSwipeGestureListener;
 import com.fsck.k9.activity.setup.AccountSettings;
 import com.fsck.k9.activity.setup.FolderSettings;
 import com.fsck.k9.activity.setup.Prefs;
+import com.fsck.k9.controller.MessagingController;
 import com.fsck.k9.crypto.PgpData;
 import com.fsck.k9.fragment.MessageListFragment;
 import com.fsck.k9.fragment.MessageViewFragment;
@@ -1515,6 +1517,37 @@ public class MessageList extends K9FragmentActivity implements MessageListFragme
         invalidateOptionsMenu();
     }
 
+    @Override
+    public void messageBodyAvailable(MessageReference messageReference) {
+        if (mMessageListFragment == null) {
+            return;
+        }
+
+        // Prepare the messages the user can swipe to, the one in the last direction first
+        MessageReference next = mMessageListFragment.getNextMessage(messageReference);
+        MessageReference previous = mMessageListFragment.getPreviousMessage(messageReference);
+
+        List<MessageReference> messageReferences = new ArrayList<MessageReference>(2);
+        if (mLastDirection == PREVIOUS) {
+            addIfNotNull(messageReferences, previous);
+            addIfNotNull(messageReferences, next);
+        } else {
+            addIfNotNull(messageReferences, next);
+            addIfNotNull(messageReferences, previous);
+        }
+
+        if (!messageReferences.isEmpty()) {
+            MessagingController.getInstance(getApplication())
+                    .prefetchMessagesForView(messageReferences);
+        }
+    }
+
+    private static void addIfNotNull(List<MessageReference> list, MessageReference reference) {
+        if (reference != null) {
+            list.add(reference);
+        }
+    }
+
     @Override
     public void disableDeleteAction() {
         mMenu.findItem(R.id.delete).setEnabled(false);
@@ -1,11 +1,18 @@
 package com.fsck.k9.activity.misc;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -21,11 +28,13 @@ import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.support.v4.util.LruCache;
+import android.util.Log;
 import android.widget.QuickContactBadge;
+import com.fsck.k9.K9;
+import com.fsck.k9.cache.DiskLruCache;
 import com.fsck.k9.helper.Contacts;
 import com.fsck.k9.helper.StringUtils;
 import com.fsck.k9.mail.Address;
@@ -46,6 +55,48 @@ public class ContactPictureLoader {
      */
     private static final String FALLBACK_CONTACT_LETTER = "?";
 
+    /**
+     * Name of the directory (inside the app's cache directory) that holds the scaled contact
+     * pictures.
+     */
+    private static final String DISK_CACHE_DIRECTORY = "contact_pictures";
+
+    /**
+     * Maximum size of the scaled contact pictures stored on disk. A picture takes a few KiB.
+     */
+    private static final long DISK_CACHE_SIZE = 2 * 1024 * 1024;
+
+    /**
+     * Number of threads loading contact pictures.
+     */
+    private static final int LOADER_THREADS = 2;
+
+    /**
+     * Maximum number of pictures waiting to be loaded. When this limit is reached the oldest
+     * request is dropped.
+     */
+    private static final int MAX_QUEUED_REQUESTS = 32;
+
+    /**
+     * Loads the contact pictures.
+     *
+     * <p>
+     * The most recent request is handled first, because that's the one most likely to still be
+     * on screen when the user flings through a list. Requests that are superseded are cancelled
+     * by {@link #cancelPotentialWork(Address, QuickContactBadge)}.
+     * </p>
+     */
+    private static final ThreadPoolExecutor LOADER_EXECUTOR;
+
+    static {
+        LOADER_EXECUTOR = new ThreadPoolExecutor(LOADER_THREADS, LOADER_THREADS, 10,
+                TimeUnit.SECONDS, new LifoBlockingDeque(MAX_QUEUED_REQUESTS),
+                new DropOldestPolicy());
+        LOADER_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private static DiskLruCache sDiskCache;
+
 
     private ContentResolver mContentResolver;
     private Resources mResources;
@@ -59,6 +110,12 @@ public class ContactPictureLoader {
      */
     private final LruCache<Address, Bitmap> mBitmapCache;
 
+    /**
+     * Scaled contact pictures, so they don't have to be decoded and scaled again after the app
+     * has been restarted.
+     */
+    private final DiskLruCache mDiskCache;
+
     /**
      * @see <a href="http://developer.android.com/design/style/color.html">Color palette used</a>
      */
@@ -95,6 +152,8 @@ public class ContactPictureLoader {
 
         mDefaultBackgroundColor = defaultBackgroundColor;
 
+        mDiskCache = getDiskCache(appContext);
+
         ActivityManager activityManager =
                 (ActivityManager) appContext.getSystemService(Context.ACTIVITY_SERVICE);
         int memClass = activityManager.getMemoryClass();
@@ -156,6 +215,14 @@ public class ContactPictureLoader {
         }
     }
 
+    private static synchronized DiskLruCache getDiskCache(Context context) {
+        if (sDiskCache == null) {
+            File directory = new File(context.getCacheDir(), DISK_CACHE_DIRECTORY);
+            sDiskCache = new DiskLruCache(directory, DISK_CACHE_SIZE);
+        }
+        return sDiskCache;
+    }
+
     private int calcUnknownContactColor(Address address) {
         if (mDefaultBackgroundColor != 0) {
             return mDefaultBackgroundColor;
@@ -236,7 +303,7 @@ public class ContactPictureLoader {
     private boolean cancelPotentialWork(Address address, QuickContactBadge badge) {
         final ContactPictureRetrievalTask task = getContactPictureRetrievalTask(badge);
 
-        if (task != null && address != null) {
+        if (task != null && address != null && !task.isCancelled()) {
             if (!address.equals(task.getAddress())) {
                 // Cancel previous task
                 task.cancel(true);
@@ -246,7 +313,8 @@ public class ContactPictureLoader {
             }
         }
 
-        // No task associated with the QuickContactBadge, or an existing task was cancelled
+        // No task associated with the QuickContactBadge, or an existing task was cancelled, e.g.
+        // because it was dropped from the queue
         return true;
     }
 
@@ -275,13 +343,14 @@ public class ContactPictureLoader {
             mAddress = new Address(address);
         }
 
-        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
         public void exec(Void... args) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-                executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, args);
-            } else {
-                execute(args);
-            }
+            executeOnExecutor(new Executor() {
+                @Override
+                public void execute(Runnable runnable) {
+                    LOADER_EXECUTOR.execute(new LoaderRequest(runnable,
+                            ContactPictureRetrievalTask.this));
+                }
+            }, args);
         }
 
         public Address getAddress() {
@@ -290,30 +359,25 @@ public class ContactPictureLoader {
 
         @Override
         protected Bitmap doInBackground(Void... args) {
+            // Another badge might have requested the same picture in the meantime
+            Bitmap bitmap = getBitmapFromCache(mAddress);
+            if (bitmap != null) {
+                return bitmap;
+            }
+
             final String email = mAddress.getAddress();
-            final Uri photoUri = mContactsHelper.getPhotoUri(email);
-            Bitmap bitmap = null;
-            if (photoUri != null) {
-                try {
-                    InputStream stream = mContentResolver.openInputStream(photoUri);
-                    if (stream != null) {
-                        try {
-                            Bitmap tempBitmap = BitmapFactory.decodeStream(stream);
-                            if (tempBitmap != null) {
-                                bitmap = Bitmap.createScaledBitmap(tempBitmap, mPictureSizeInPx,
-                                        mPictureSizeInPx, true);
-                                if (tempBitmap != bitmap) {
-                                    tempBitmap.recycle();
-                                }
-                            }
-                        } finally {
-                            try { stream.close(); } catch (IOException e) { /* ignore */ }
-                        }
+            final Contacts.Photo photo = mContactsHelper.getPhoto(email);
+            if (photo != null && !isCancelled()) {
+                String diskCacheKey = email.toLowerCase(Locale.US) + "|" + photo.version + "|" +
+                        mPictureSizeInPx;
+
+                bitmap = loadFromDiskCache(diskCacheKey);
+                if (bitmap == null && !isCancelled()) {
+                    bitmap = loadPhoto(photo);
+                    if (bitmap != null) {
+                        saveToDiskCache(diskCacheKey, bitmap);
                     }
-                } catch (FileNotFoundException e) {
-                    /* ignore */
                 }
-
             }
 
             if (bitmap == null) {
@@ -326,6 +390,54 @@ public class ContactPictureLoader {
             return bitmap;
         }
 
+        private Bitmap loadPhoto(Contacts.Photo photo) {
+            Bitmap bitmap = null;
+            try {
+                InputStream stream = mContentResolver.openInputStream(photo.uri);
+                if (stream != null) {
+                    try {
+                        Bitmap tempBitmap = BitmapFactory.decodeStream(stream);
+                        if (tempBitmap != null) {
+                            bitmap = Bitmap.createScaledBitmap(tempBitmap, mPictureSizeInPx,
+                                    mPictureSizeInPx, true);
+                            if (tempBitmap != bitmap) {
+                                tempBitmap.recycle();
+                            }
+                        }
+                    } finally {
+                        try { stream.close(); } catch (IOException e) { /* ignore */ }
+                    }
+                }
+            } catch (FileNotFoundException e) {
+                /* ignore */
+            }
+
+            return bitmap;
+        }
+
+        private Bitmap loadFromDiskCache(String key) {
+            File file = mDiskCache.get(key);
+            if (file == null) {
+                return null;
+            }
+
+            // Returns null if the file was evicted in the meantime
+            return BitmapFactory.decodeFile(file.getPath());
+        }
+
+        private void saveToDiskCache(String key, Bitmap bitmap) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (!bitmap.compress(Bitmap.CompressFormat.PNG, 100, out)) {
+                return;
+            }
+
+            try {
+                mDiskCache.put(key, out.toByteArray());
+            } catch (IOException e) {
+                Log.w(K9.LOG_TAG, "Couldn't store contact picture in cache", e);
+            }
+        }
+
         @Override
         protected void onPostExecute(Bitmap bitmap) {
             if (mQuickContactBadgeReference != null) {
@@ -337,6 +449,67 @@ public class ContactPictureLoader {
         }
     }
 
+    /**
+     * A bounded queue that hands out the most recently added element first.
+     */
+    private static class LifoBlockingDeque extends LinkedBlockingDeque<Runnable> {
+        private static final long serialVersionUID = 1L;
+
+        LifoBlockingDeque(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        public boolean offer(Runnable runnable) {
+            return offerFirst(runnable);
+        }
+    }
+
+    /**
+     * A request waiting in the queue of {@link #LOADER_EXECUTOR}.
+     *
+     * <p>
+     * Keeps a reference to the task, so it can be cancelled properly when the request is dropped.
+     * </p>
+     */
+    private static class LoaderRequest implements Runnable {
+        private final Runnable mRunnable;
+        private final ContactPictureRetrievalTask mTask;
+
+        LoaderRequest(Runnable runnable, ContactPictureRetrievalTask task) {
+            mRunnable = runnable;
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            mRunnable.run();
+        }
+    }
+
+    /**
+     * Makes room for a new request by dropping the oldest one waiting in the queue.
+     *
+     * <p>
+     * The task of the dropped request is cancelled. Its badge keeps displaying the fallback
+     * picture until it is bound again, which then starts a new request (see
+     * {@link ContactPictureLoader#cancelPotentialWork(Address, QuickContactBadge)}).
+     * </p>
+     */
+    private static class DropOldestPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            LinkedBlockingDeque<Runnable> queue = (LinkedBlockingDeque<Runnable>) executor.getQueue();
+            Runnable oldest = queue.pollLast();
+            if (oldest instanceof LoaderRequest) {
+                ((LoaderRequest) oldest).mTask.cancel(false);
+            }
+            if (executor.isShutdown() || !queue.offerFirst(runnable)) {
+                throw new RejectedExecutionException();
+            }
+        }
+    }
+
     /**
      * {@code Drawable} subclass that stores a reference to the {@link ContactPictureRetrievalTask}
      * that is trying to load the contact picture.
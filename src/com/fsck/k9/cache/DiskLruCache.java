@@ -0,0 +1,224 @@
+package com.fsck.k9.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A size-bounded cache of small files in a directory.
+ *
+ * <p>
+ * Entries are identified by arbitrary string keys. The file names are derived from a hash of
+ * the key. Reading an entry updates the file's modification time. When the total size of all
+ * entries exceeds the limit, the entries with the oldest modification times are deleted. So
+ * eviction is only approximately least-recently-used, depending on the resolution of the file
+ * system's timestamps.
+ * </p>
+ *
+ * <p>
+ * Entries are written to a temporary file first and then renamed, so readers never see partial
+ * entries, even if the process is killed while writing.
+ * </p>
+ *
+ * <p>
+ * This class is thread-safe. All methods do I/O and should not be called on the main thread.
+ * </p>
+ */
+public class DiskLruCache {
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final Comparator<File> OLDEST_FIRST = new Comparator<File>() {
+        @Override
+        public int compare(File lhs, File rhs) {
+            long lhsModified = lhs.lastModified();
+            long rhsModified = rhs.lastModified();
+            return (lhsModified < rhsModified) ? -1 : ((lhsModified == rhsModified) ? 0 : 1);
+        }
+    };
+
+
+    private final File mDirectory;
+    private final long mMaxSize;
+
+    /**
+     * The total size of all entries. {@code -1} until the directory has been scanned.
+     */
+    private long mSize = -1;
+    private int mTempFileCounter;
+
+
+    /**
+     * @param directory
+     *         The directory the entries are stored in. It is created if necessary. All files in
+     *         this directory are considered to belong to the cache.
+     * @param maxSize
+     *         The maximum total size of all entries in bytes.
+     */
+    public DiskLruCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Get the file holding the entry for {@code key}.
+     *
+     * @return The file, or {@code null} if there's no entry for {@code key}.
+     */
+    public synchronized File get(String key) {
+        File file = getFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Store an entry, replacing an existing entry for the same key.
+     *
+     * @throws IOException
+     *         If the entry couldn't be written. The cache is left unchanged in that case.
+     */
+    public void put(String key, byte[] data) throws IOException {
+        File file = getFile(key);
+
+        // Write the data outside of the lock, only the bookkeeping is synchronized
+        File tempFile;
+        synchronized (this) {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Couldn't create cache directory " + mDirectory);
+            }
+            // Scan the directory before our temporary file exists, see ensureSizeKnown()
+            ensureSizeKnown();
+            tempFile = new File(mDirectory, file.getName() + "-" + (mTempFileCounter++) +
+                    TEMP_SUFFIX);
+        }
+
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            out.write(data);
+        } catch (IOException e) {
+            out.close();
+            tempFile.delete();
+            throw e;
+        }
+        out.close();
+
+        synchronized (this) {
+            long oldLength = file.length();
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+                throw new IOException("Couldn't rename " + tempFile + " to " + file);
+            }
+
+            mSize += data.length - oldLength;
+            trimToSize();
+        }
+    }
+
+    public synchronized void remove(String key) {
+        File file = getFile(key);
+        long length = file.length();
+        if (file.delete() && mSize != -1) {
+            mSize -= length;
+        }
+    }
+
+    /**
+     * Delete all entries.
+     */
+    public synchronized void clear() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mSize = 0;
+    }
+
+    /**
+     * @return The total size of all entries in bytes.
+     */
+    public synchronized long size() {
+        ensureSizeKnown();
+        return mSize;
+    }
+
+    private void ensureSizeKnown() {
+        if (mSize != -1) {
+            return;
+        }
+
+        long size = 0;
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(TEMP_SUFFIX)) {
+                    // Left over from a write that didn't complete
+                    file.delete();
+                } else {
+                    size += file.length();
+                }
+            }
+        }
+        mSize = size;
+    }
+
+    private void trimToSize() {
+        if (mSize <= mMaxSize) {
+            return;
+        }
+
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        // Make some room so we don't have to do this again with the next entry
+        long targetSize = mMaxSize - mMaxSize / 4;
+
+        Arrays.sort(files, OLDEST_FIRST);
+        for (File file : files) {
+            if (mSize <= targetSize) {
+                break;
+            }
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                continue;
+            }
+
+            long length = file.length();
+            if (file.delete()) {
+                mSize -= length;
+            }
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(mDirectory, hash(key));
+    }
+
+    private static String hash(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(key.getBytes("UTF-8"));
+
+            StringBuilder name = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16));
+                name.append(Character.forDigit(b & 0xF, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
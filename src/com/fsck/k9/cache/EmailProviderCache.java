@@ -10,17 +10,49 @@ import android.net.Uri;
 import android.support.v4.content.LocalBroadcastManager;
 
 import com.fsck.k9.fragment.MessageListFragment;
+import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.store.LocalStore;
 import com.fsck.k9.mail.store.LocalStore.LocalFolder;
 import com.fsck.k9.mail.store.LocalStore.LocalMessage;
 import com.fsck.k9.provider.EmailProvider;
 
 /**
  * Cache to bridge the time needed to write (user-initiated) changes to the database.
+ *
+ * <p>
+ * {@link EmailProviderCacheCursor} consults this cache for every row, so lookups need to be
+ * cheap. Entries are spread over a number of independently locked stripes, keyed by primitive
+ * message/thread IDs, and flag values are stored as bitsets (see {@link LongStateTable}).
+ * </p>
  */
 public class EmailProviderCache {
     public static final String ACTION_CACHE_UPDATED = "EmailProviderCache.ACTION_CACHE_UPDATED";
 
+    /**
+     * Broadcast sent when {@link LocalStore} changed flags of individual messages.
+     *
+     * <p>
+     * The new values are already available via {@link EmailProviderCacheCursor} for unthreaded
+     * cursors. Receivers only need to re-query if the change affects their selection or sort
+     * order.
+     * </p>
+     *
+     * @see #EXTRA_ACCOUNT_UUID
+     * @see #EXTRA_FLAGS
+     * @see #EXTRA_MESSAGE_IDS
+     */
+    public static final String ACTION_MESSAGES_CHANGED = "EmailProviderCache.ACTION_MESSAGES_CHANGED";
+    public static final String EXTRA_ACCOUNT_UUID = "accountUuid";
+    /**
+     * Names of the changed {@link Flag}s ({@code String[]}).
+     */
+    public static final String EXTRA_FLAGS = "flags";
+    /**
+     * Database IDs of the changed messages ({@code long[]}).
+     */
+    public static final String EXTRA_MESSAGE_IDS = "messageIds";
+
     private static Context sContext;
     private static Map<String, EmailProviderCache> sInstances =
             new HashMap<String, EmailProviderCache>();
@@ -41,119 +73,259 @@ public class EmailProviderCache {
     }
 
 
+    /**
+     * Flags that can be cached. The position in this array is the bit used in
+     * {@link LongStateTable}.
+     */
+    private static final Flag[] CACHED_FLAGS = {
+        Flag.SEEN, Flag.FLAGGED, Flag.ANSWERED, Flag.FORWARDED
+    };
+
+    /**
+     * Number of independently locked stripes. Must be a power of two.
+     */
+    private static final int STRIPE_COUNT = 8;
+
+    /**
+     * Number of message/thread entries per stripe the cache is designed for.
+     *
+     * <p>
+     * Values that haven't been written to the database yet are never evicted, they are removed as
+     * soon as {@link LocalStore} confirmed the write. Exceeding this number, e.g. by a bulk
+     * change of thousands of messages, makes all cursors re-query instead of being patched.
+     * Recorded changes (see {@link #recordMessageChanges(List, Flag, boolean)}) are evicted.
+     * </p>
+     */
+    private static final int STRIPE_CAPACITY = 512;
+
+
+    /**
+     * Get the bit used to cache the value of the given database column.
+     *
+     * @return The bit index or {@code -1} if values of this column can't be cached.
+     */
+    public static int getBitForColumn(String columnName) {
+        for (int i = 0; i < CACHED_FLAGS.length; i++) {
+            if (LocalStore.getColumnNameForFlag(CACHED_FLAGS[i]).equals(columnName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return {@code true} if values of {@code flag} can be stored in this cache.
+     */
+    public static boolean isCachedFlag(Flag flag) {
+        for (Flag cachedFlag : CACHED_FLAGS) {
+            if (cachedFlag == flag) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int getBitForFlag(Flag flag) {
+        for (int i = 0; i < CACHED_FLAGS.length; i++) {
+            if (CACHED_FLAGS[i] == flag) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Flag must be a special column flag");
+    }
+
+    private static int getStripeIndex(long id) {
+        return (int) (id ^ (id >>> 32)) & (STRIPE_COUNT - 1);
+    }
+
+
     private String mAccountUuid;
-    private Map<Long, Map<String, String>> mMessageCache = new HashMap<Long, Map<String, String>>();
-    private Map<Long, Map<String, String>> mThreadCache = new HashMap<Long, Map<String, String>>();
-    private Map<Long, Long> mHiddenMessageCache = new HashMap<Long, Long>();
+    private final LongStateTable[] mMessageCache = new LongStateTable[STRIPE_COUNT];
+    private final LongStateTable[] mThreadCache = new LongStateTable[STRIPE_COUNT];
+    private final LongStateTable[] mHiddenMessageCache = new LongStateTable[STRIPE_COUNT];
+
+    /**
+     * Flag values written by {@link LocalStore} that cursors created before the write don't know
+     * about yet. Only valid until the next full re-query, see {@link #clearMessageChanges()}.
+     */
+    private final LongStateTable[] mChangedMessageCache = new LongStateTable[STRIPE_COUNT];
 
 
     private EmailProviderCache(String accountUuid) {
         mAccountUuid = accountUuid;
-    }
 
-    public String getValueForMessage(Long messageId, String columnName) {
-        synchronized (mMessageCache) {
-            Map<String, String> map = mMessageCache.get(messageId);
-            return (map == null) ? null : map.get(columnName);
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mMessageCache[i] = new LongStateTable(STRIPE_CAPACITY, false);
+            mThreadCache[i] = new LongStateTable(STRIPE_CAPACITY, false);
+            mHiddenMessageCache[i] = new LongStateTable(STRIPE_CAPACITY, false);
+            mChangedMessageCache[i] = new LongStateTable(STRIPE_CAPACITY);
         }
     }
 
-    public String getValueForThread(Long threadRootId, String columnName) {
-        synchronized (mThreadCache) {
-            Map<String, String> map = mThreadCache.get(threadRootId);
-            return (map == null) ? null : map.get(columnName);
+    /**
+     * Get the cached value of a flag for a message.
+     *
+     * @param bit
+     *         The bit returned by {@link #getBitForColumn(String)}.
+     *
+     * @return {@code 1} or {@code 0} if a value is cached. {@code -1} otherwise.
+     */
+    public int getValueForMessage(long messageId, int bit) {
+        LongStateTable stripe = mMessageCache[getStripeIndex(messageId)];
+        synchronized (stripe) {
+            return stripe.getBit(messageId, bit);
         }
     }
 
-    public void setValueForMessages(List<Long> messageIds, String columnName, String value) {
-        synchronized (mMessageCache) {
-            for (Long messageId : messageIds) {
-                Map<String, String> map = mMessageCache.get(messageId);
-                if (map == null) {
-                    map = new HashMap<String, String>();
-                    mMessageCache.put(messageId, map);
-                }
-                map.put(columnName, value);
-            }
+    /**
+     * Get the cached value of a flag for a thread.
+     *
+     * @param bit
+     *         The bit returned by {@link #getBitForColumn(String)}.
+     *
+     * @return {@code 1} or {@code 0} if a value is cached. {@code -1} otherwise.
+     */
+    public int getValueForThread(long threadRootId, int bit) {
+        LongStateTable stripe = mThreadCache[getStripeIndex(threadRootId)];
+        synchronized (stripe) {
+            return stripe.getBit(threadRootId, bit);
         }
-
-        notifyChange();
     }
 
-    public void setValueForThreads(List<Long> threadRootIds, String columnName, String value) {
-        synchronized (mThreadCache) {
-            for (Long threadRootId : threadRootIds) {
-                Map<String, String> map = mThreadCache.get(threadRootId);
-                if (map == null) {
-                    map = new HashMap<String, String>();
-                    mThreadCache.put(threadRootId, map);
-                }
-                map.put(columnName, value);
-            }
+    /**
+     * Get the flag value of a message as last written by {@link LocalStore}.
+     *
+     * @param bit
+     *         The bit returned by {@link #getBitForColumn(String)}.
+     *
+     * @return {@code 1} or {@code 0} if a value is known. {@code -1} otherwise.
+     */
+    public int getChangedValueForMessage(long messageId, int bit) {
+        LongStateTable stripe = mChangedMessageCache[getStripeIndex(messageId)];
+        synchronized (stripe) {
+            return stripe.getBit(messageId, bit);
         }
+    }
 
-        notifyChange();
+    /**
+     * Record flag values {@link LocalStore} has written to the database.
+     *
+     * @return {@code false} if older changes had to be evicted. In that case existing cursors can
+     *         no longer be patched and need to be re-queried.
+     */
+    public boolean recordMessageChanges(List<Long> messageIds, Flag flag, boolean newState) {
+        return !setBit(mChangedMessageCache, messageIds, getBitForFlag(flag), newState);
     }
 
-    public void removeValueForMessages(List<Long> messageIds, String columnName) {
-        synchronized (mMessageCache) {
-            for (Long messageId : messageIds) {
-                Map<String, String> map = mMessageCache.get(messageId);
-                if (map != null) {
-                    map.remove(columnName);
-                    if (map.size() == 0) {
-                        mMessageCache.remove(messageId);
-                    }
-                }
+    /**
+     * Forget all recorded changes. Called right before all cursors are told to re-query.
+     */
+    public void clearMessageChanges() {
+        for (LongStateTable stripe : mChangedMessageCache) {
+            synchronized (stripe) {
+                stripe.clear();
             }
         }
     }
 
-    public void removeValueForThreads(List<Long> threadRootIds, String columnName) {
-        synchronized (mThreadCache) {
-            for (Long threadRootId : threadRootIds) {
-                Map<String, String> map = mThreadCache.get(threadRootId);
-                if (map != null) {
-                    map.remove(columnName);
-                    if (map.size() == 0) {
-                        mThreadCache.remove(threadRootId);
-                    }
-                }
-            }
+    /**
+     * Tell all interested parties that flags of individual messages have changed.
+     *
+     * @see #ACTION_MESSAGES_CHANGED
+     */
+    public void notifyMessagesChanged(long[] messageIds, Flag[] flags) {
+        String[] flagNames = new String[flags.length];
+        for (int i = 0; i < flags.length; i++) {
+            flagNames[i] = flags[i].name();
         }
+
+        Intent intent = new Intent(ACTION_MESSAGES_CHANGED);
+        intent.putExtra(EXTRA_ACCOUNT_UUID, mAccountUuid);
+        intent.putExtra(EXTRA_FLAGS, flagNames);
+        intent.putExtra(EXTRA_MESSAGE_IDS, messageIds);
+        LocalBroadcastManager.getInstance(sContext).sendBroadcast(intent);
+    }
+
+    public void setFlagForMessages(List<Long> messageIds, Flag flag, boolean newState) {
+        boolean overCapacity = setBit(mMessageCache, messageIds, getBitForFlag(flag), newState);
+        notifyChange(overCapacity);
+    }
+
+    public void setFlagForThreads(List<Long> threadRootIds, Flag flag, boolean newState) {
+        boolean overCapacity = setBit(mThreadCache, threadRootIds, getBitForFlag(flag), newState);
+        notifyChange(overCapacity);
+    }
+
+    /**
+     * Remove cached flag values once {@link LocalStore} confirmed the database write.
+     */
+    public void removeFlagForMessages(List<Long> messageIds, Flag flag) {
+        clearBit(mMessageCache, messageIds, getBitForFlag(flag));
+    }
+
+    /**
+     * Remove cached flag values once {@link LocalStore} confirmed the database write.
+     */
+    public void removeFlagForThreads(List<Long> threadRootIds, Flag flag) {
+        clearBit(mThreadCache, threadRootIds, getBitForFlag(flag));
     }
 
     public void hideMessages(List<Message> messages) {
-        synchronized (mHiddenMessageCache) {
-            for (Message message : messages) {
-                LocalMessage localMessage = (LocalMessage) message;
-                long messageId = localMessage.getId();
-                long folderId = ((LocalFolder) localMessage.getFolder()).getId();
-                mHiddenMessageCache.put(messageId, folderId);
+        boolean overCapacity = false;
+        for (Message message : messages) {
+            LocalMessage localMessage = (LocalMessage) message;
+            long messageId = localMessage.getId();
+            long folderId = ((LocalFolder) localMessage.getFolder()).getId();
+
+            LongStateTable stripe = mHiddenMessageCache[getStripeIndex(messageId)];
+            synchronized (stripe) {
+                overCapacity |= stripe.putPayload(messageId, folderId);
             }
         }
 
-        notifyChange();
+        notifyChange(overCapacity);
     }
 
-    public boolean isMessageHidden(Long messageId, long folderId) {
-        synchronized (mHiddenMessageCache) {
-            Long hiddenInFolder = mHiddenMessageCache.get(messageId);
-            return (hiddenInFolder != null && hiddenInFolder.longValue() == folderId);
+    public boolean isMessageHidden(long messageId, long folderId) {
+        LongStateTable stripe = mHiddenMessageCache[getStripeIndex(messageId)];
+        synchronized (stripe) {
+            return stripe.containsPayload(messageId, folderId);
         }
     }
 
     public void unhideMessages(Message[] messages) {
-        synchronized (mHiddenMessageCache) {
-            for (Message message : messages) {
-                LocalMessage localMessage = (LocalMessage) message;
-                long messageId = localMessage.getId();
-                long folderId = ((LocalFolder) localMessage.getFolder()).getId();
-                Long hiddenInFolder = mHiddenMessageCache.get(messageId);
-
-                if (hiddenInFolder != null && hiddenInFolder.longValue() == folderId) {
-                    mHiddenMessageCache.remove(messageId);
-                }
+        for (Message message : messages) {
+            LocalMessage localMessage = (LocalMessage) message;
+            long messageId = localMessage.getId();
+            long folderId = ((LocalFolder) localMessage.getFolder()).getId();
+
+            LongStateTable stripe = mHiddenMessageCache[getStripeIndex(messageId)];
+            synchronized (stripe) {
+                stripe.removePayload(messageId, folderId);
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if a stripe is over capacity. Evicting stripes have evicted entries.
+     */
+    private static boolean setBit(LongStateTable[] stripes, List<Long> ids, int bit,
+            boolean value) {
+        boolean evicted = false;
+        for (Long id : ids) {
+            LongStateTable stripe = stripes[getStripeIndex(id)];
+            synchronized (stripe) {
+                evicted |= stripe.setBit(id, bit, value);
+            }
+        }
+        return evicted;
+    }
+
+    private static void clearBit(LongStateTable[] stripes, List<Long> ids, int bit) {
+        for (Long id : ids) {
+            LongStateTable stripe = stripes[getStripeIndex(id)];
+            synchronized (stripe) {
+                stripe.clearBit(id, bit);
             }
         }
     }
@@ -168,12 +340,26 @@ public class EmailProviderCache {
      * {@link LocalBroadcastManager} to send a {@link #ACTION_CACHE_UPDATED} broadcast. This way
      * {@code MessageListFragment} can update the view without reloading the cursor.
      * </p>
+     *
+     * @param overCapacity
+     *         {@code true} if more values are cached than the cache is designed for. Cursors
+     *         are only re-queried then, and the recorded changes that would be used to patch
+     *         them are dropped.
      */
-    private void notifyChange() {
+    private void notifyChange(boolean overCapacity) {
+        if (overCapacity) {
+            clearMessageChanges();
+            sContext.getContentResolver().notifyChange(getMessagesUri(), null);
+            return;
+        }
+
         LocalBroadcastManager.getInstance(sContext).sendBroadcast(new Intent(ACTION_CACHE_UPDATED));
 
-        Uri uri = Uri.withAppendedPath(EmailProvider.CONTENT_URI, "account/" + mAccountUuid +
+        sContext.getContentResolver().notifyChange(getMessagesUri(), null);
+    }
+
+    private Uri getMessagesUri() {
+        return Uri.withAppendedPath(EmailProvider.CONTENT_URI, "account/" + mAccountUuid +
                 "/messages");
-        sContext.getContentResolver().notifyChange(uri, null);
     }
 }
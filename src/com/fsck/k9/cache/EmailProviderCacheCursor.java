@@ -20,6 +20,18 @@ public class EmailProviderCacheCursor extends CursorWrapper {
     private int mFolderIdColumn;
     private int mThreadRootColumn;
 
+    /**
+     * Maps column indices to the bits used by {@link EmailProviderCache}. {@code -1} for columns
+     * that are never cached.
+     */
+    private int[] mColumnBits;
+
+    /**
+     * {@code true} if the rows of this cursor represent single messages (as opposed to aggregated
+     * threads), so flag changes recorded for individual messages can be applied.
+     */
+    private boolean mApplyMessageChanges;
+
     /**
      * The cursor's current position.
      *
@@ -28,10 +40,12 @@ public class EmailProviderCacheCursor extends CursorWrapper {
     private int mPosition;
 
 
-    public EmailProviderCacheCursor(String accountUuid, Cursor cursor, Context context) {
+    public EmailProviderCacheCursor(String accountUuid, Cursor cursor, Context context,
+            boolean applyMessageChanges) {
         super(cursor);
 
         mCache = EmailProviderCache.getCache(accountUuid, context);
+        mApplyMessageChanges = applyMessageChanges;
 
         mMessageIdColumn = cursor.getColumnIndex(MessageColumns.ID);
         mFolderIdColumn = cursor.getColumnIndex(MessageColumns.FOLDER_ID);
@@ -43,6 +57,12 @@ public class EmailProviderCacheCursor extends CursorWrapper {
                     ", " + ThreadColumns.ROOT);
         }
 
+        String[] columnNames = cursor.getColumnNames();
+        mColumnBits = new int[columnNames.length];
+        for (int i = 0; i < columnNames.length; i++) {
+            mColumnBits[i] = EmailProviderCache.getBitForColumn(columnNames[i]);
+        }
+
         while (cursor.moveToNext()) {
             long messageId = cursor.getLong(mMessageIdColumn);
             long folderId = cursor.getLong(mFolderIdColumn);
@@ -58,19 +78,28 @@ public class EmailProviderCacheCursor extends CursorWrapper {
 
     @Override
     public int getInt(int columnIndex) {
-        long messageId = getLong(mMessageIdColumn);
-        long threadRootId = getLong(mThreadRootColumn);
+        int bit = mColumnBits[columnIndex];
+        if (bit == -1) {
+            return super.getInt(columnIndex);
+        }
 
-        String columnName = getColumnName(columnIndex);
-        String value = mCache.getValueForMessage(messageId, columnName);
+        long messageId = getLong(mMessageIdColumn);
+        int value = mCache.getValueForMessage(messageId, bit);
+        if (value != -1) {
+            return value;
+        }
 
-        if (value != null) {
-            return Integer.valueOf(value);
+        long threadRootId = getLong(mThreadRootColumn);
+        value = mCache.getValueForThread(threadRootId, bit);
+        if (value != -1) {
+            return value;
         }
 
-        value = mCache.getValueForThread(threadRootId, columnName);
-        if (value != null) {
-            return Integer.valueOf(value);
+        if (mApplyMessageChanges) {
+            value = mCache.getChangedValueForMessage(messageId, bit);
+            if (value != -1) {
+                return value;
+            }
         }
 
         return super.getInt(columnIndex);
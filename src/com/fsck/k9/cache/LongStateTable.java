@@ -0,0 +1,277 @@
+package com.fsck.k9.cache;
+
+/**
+ * Open-addressing hash table that maps primitive {@code long} keys to a small amount of state.
+ *
+ * <p>
+ * Every entry holds a pair of bitsets ({@code mask} and {@code bits}) and a {@code long}
+ * payload. This avoids boxing message/thread IDs and the per-entry {@code HashMap} allocations
+ * of a {@code Map<Long, Map<String, String>>}.
+ * </p>
+ *
+ * <p>
+ * The table can be bounded. Every write stamps the entry with a sequence number. When an evicting
+ * table grows beyond its capacity the entries with the oldest stamps are evicted. A
+ * non-evicting table keeps all entries and only reports that it is over capacity, for entries
+ * that must not get lost.
+ * </p>
+ *
+ * <p><strong>Note:</strong> This class is not thread-safe.</p>
+ */
+class LongStateTable {
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private final int mCapacity;
+    private final boolean mEvict;
+    private long[] mKeys;
+    private int[] mMasks;
+    private int[] mBits;
+    private long[] mPayloads;
+    private long[] mStamps;
+    private boolean[] mUsed;
+    private int mSize;
+    private long mNextStamp;
+
+
+    /**
+     * Create an evicting table.
+     *
+     * @param capacity
+     *         The maximum number of entries kept in this table.
+     */
+    LongStateTable(int capacity) {
+        this(capacity, true);
+    }
+
+    /**
+     * @param capacity
+     *         The number of entries above which the table is over capacity.
+     * @param evict
+     *         {@code true} to evict the oldest entries when the table is over capacity.
+     *         {@code false} to keep them.
+     */
+    LongStateTable(int capacity, boolean evict) {
+        if (capacity < 4) {
+            throw new IllegalArgumentException("capacity must be at least 4");
+        }
+        mCapacity = capacity;
+        mEvict = evict;
+        allocate(16);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Get the state of the bit {@code bit} for {@code key}.
+     *
+     * @return {@code 1} or {@code 0} if the bit was set for {@code key}. {@code -1} otherwise.
+     */
+    int getBit(long key, int bit) {
+        int index = find(key);
+        if (index < 0 || (mMasks[index] & (1 << bit)) == 0) {
+            return -1;
+        }
+        return ((mBits[index] & (1 << bit)) != 0) ? 1 : 0;
+    }
+
+    /**
+     * @return {@code true} if the table is over capacity. An evicting table has evicted other
+     *         entries to make room for this one.
+     */
+    boolean setBit(long key, int bit, boolean value) {
+        int index = findOrInsert(key);
+        mMasks[index] |= (1 << bit);
+        if (value) {
+            mBits[index] |= (1 << bit);
+        } else {
+            mBits[index] &= ~(1 << bit);
+        }
+        mStamps[index] = mNextStamp++;
+        return evictIfNecessary();
+    }
+
+    /**
+     * Clear bit {@code bit} for {@code key}. The entry is removed once no bit is set anymore.
+     */
+    void clearBit(long key, int bit) {
+        int index = find(key);
+        if (index < 0) {
+            return;
+        }
+        mMasks[index] &= ~(1 << bit);
+        if (mMasks[index] == 0) {
+            removeAt(index);
+        }
+    }
+
+    boolean containsPayload(long key, long payload) {
+        int index = find(key);
+        return index >= 0 && mMasks[index] != 0 && mPayloads[index] == payload;
+    }
+
+    /**
+     * Store {@code payload} for {@code key}. Entries used this way have all bits of their mask set.
+     *
+     * @return {@code true} if the table is over capacity. An evicting table has evicted other
+     *         entries to make room for this one.
+     */
+    boolean putPayload(long key, long payload) {
+        int index = findOrInsert(key);
+        mMasks[index] = -1;
+        mPayloads[index] = payload;
+        mStamps[index] = mNextStamp++;
+        return evictIfNecessary();
+    }
+
+    void removePayload(long key, long payload) {
+        int index = find(key);
+        if (index >= 0 && mPayloads[index] == payload) {
+            removeAt(index);
+        }
+    }
+
+    void clear() {
+        allocate(16);
+    }
+
+    private int find(long key) {
+        int mask = mKeys.length - 1;
+        int index = hash(key) & mask;
+        while (mUsed[index]) {
+            if (mKeys[index] == key) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int findOrInsert(long key) {
+        int index = find(key);
+        if (index >= 0) {
+            return index;
+        }
+
+        if (mSize + 1 > mKeys.length * LOAD_FACTOR) {
+            rehash(mKeys.length * 2);
+        }
+
+        int mask = mKeys.length - 1;
+        index = hash(key) & mask;
+        while (mUsed[index]) {
+            index = (index + 1) & mask;
+        }
+        mUsed[index] = true;
+        mKeys[index] = key;
+        mMasks[index] = 0;
+        mBits[index] = 0;
+        mPayloads[index] = 0;
+        mSize++;
+        return index;
+    }
+
+    /**
+     * Remove the entry at {@code index} using backward-shift deletion so lookups don't need
+     * tombstones.
+     */
+    private void removeAt(int index) {
+        int mask = mKeys.length - 1;
+        int hole = index;
+        int next = (hole + 1) & mask;
+        while (mUsed[next]) {
+            int home = hash(mKeys[next]) & mask;
+            // Move the entry into the hole if its home slot isn't between the hole and its slot
+            boolean movable = (hole <= next) ? (home <= hole || home > next) :
+                    (home <= hole && home > next);
+            if (movable) {
+                copySlot(next, hole);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        mUsed[hole] = false;
+        mSize--;
+    }
+
+    private void copySlot(int from, int to) {
+        mKeys[to] = mKeys[from];
+        mMasks[to] = mMasks[from];
+        mBits[to] = mBits[from];
+        mPayloads[to] = mPayloads[from];
+        mStamps[to] = mStamps[from];
+        mUsed[to] = true;
+    }
+
+    /**
+     * Evict the oldest quarter of the entries once an evicting table exceeds its capacity.
+     *
+     * <p>
+     * Only the last {@code keep} writes can have a stamp of at least {@code mNextStamp - keep},
+     * so dropping everything older removes at least {@code size - keep} entries in a single pass.
+     * </p>
+     */
+    private boolean evictIfNecessary() {
+        if (mSize <= mCapacity) {
+            return false;
+        } else if (!mEvict) {
+            return true;
+        }
+
+        long threshold = mNextStamp - (mCapacity - mCapacity / 4);
+        long[] keys = mKeys;
+        long[] stamps = mStamps;
+        boolean[] used = mUsed;
+        int[] masks = mMasks;
+        int[] bits = mBits;
+        long[] payloads = mPayloads;
+
+        allocate(mKeys.length);
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i] && stamps[i] >= threshold) {
+                int index = findOrInsert(keys[i]);
+                mMasks[index] = masks[i];
+                mBits[index] = bits[i];
+                mPayloads[index] = payloads[i];
+                mStamps[index] = stamps[i];
+            }
+        }
+        return true;
+    }
+
+    private void rehash(int newLength) {
+        long[] keys = mKeys;
+        int[] masks = mMasks;
+        int[] bits = mBits;
+        long[] payloads = mPayloads;
+        long[] stamps = mStamps;
+        boolean[] used = mUsed;
+
+        allocate(newLength);
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+                int index = findOrInsert(keys[i]);
+                mMasks[index] = masks[i];
+                mBits[index] = bits[i];
+                mPayloads[index] = payloads[i];
+                mStamps[index] = stamps[i];
+            }
+        }
+    }
+
+    private void allocate(int length) {
+        mKeys = new long[length];
+        mMasks = new int[length];
+        mBits = new int[length];
+        mPayloads = new long[length];
+        mStamps = new long[length];
+        mUsed = new boolean[length];
+        mSize = 0;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
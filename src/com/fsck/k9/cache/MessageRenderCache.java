@@ -0,0 +1,208 @@
+package com.fsck.k9.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.fsck.k9.K9;
+import com.fsck.k9.provider.MessageHtmlProvider;
+
+/**
+ * Caches the HTML documents displayed by the message view.
+ *
+ * <p>
+ * Displaying a message means decoding its body, scanning it for external images and wrapping it
+ * in a document with the styles for the current display settings. The finished document is
+ * stored on disk, so re-opening the message only has to load the file. Each entry records the
+ * hash of the display settings it was rendered with and is ignored when those have changed.
+ * </p>
+ *
+ * <p>
+ * {@link com.fsck.k9.mail.store.LocalStore} removes the entry of a message whenever its body
+ * changes or the message is deleted.
+ * </p>
+ */
+public class MessageRenderCache {
+    private static final String DIRECTORY = "rendered_messages";
+    private static final long MAX_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Documents larger than this (in bytes) are not cached.
+     */
+    private static final int MAX_DOCUMENT_SIZE = 512 * 1024;
+
+    /**
+     * Every cached document starts with a comment holding the settings hash and whether the
+     * document references external images.
+     */
+    private static final String INFO_START = "<!--k9render ";
+    private static final String INFO_END = "-->";
+    private static final int MAX_INFO_LENGTH = 64;
+
+    private static MessageRenderCache sInstance;
+
+
+    public static synchronized MessageRenderCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new MessageRenderCache(new File(context.getCacheDir(), DIRECTORY));
+        }
+        return sInstance;
+    }
+
+
+    /**
+     * A cached document.
+     */
+    public static class Entry {
+        /**
+         * The file holding the document. It can be displayed as is.
+         */
+        public final File file;
+
+        public final boolean hasExternalImages;
+
+        Entry(File file, boolean hasExternalImages) {
+            this.file = file;
+            this.hasExternalImages = hasExternalImages;
+        }
+    }
+
+
+    private final DiskLruCache mCache;
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+
+    /**
+     * Incremented whenever entries are removed. Documents that were rendered before are not
+     * stored, they might show an outdated body.
+     */
+    private int mGeneration;
+
+
+    private MessageRenderCache(File directory) {
+        mCache = new DiskLruCache(directory, MAX_SIZE);
+    }
+
+    /**
+     * Get the document of a message.
+     *
+     * @param settingsHash
+     *         The hash of the current display settings.
+     *
+     * @return The document, or {@code null} if it isn't cached or was rendered with other
+     *         display settings.
+     */
+    public Entry get(String accountUuid, long messageId, int settingsHash) {
+        File file = mCache.get(getKey(accountUuid, messageId));
+        if (file == null) {
+            return null;
+        }
+
+        String info;
+        try {
+            info = readInfo(file);
+        } catch (IOException e) {
+            return null;
+        }
+
+        // Format: <settings hash> <1 if the document references external images, 0 otherwise>
+        String[] fields = (info != null) ? info.split(" ") : null;
+        if (fields == null || fields.length != 2 ||
+                !fields[0].equals(Integer.toString(settingsHash))) {
+            return null;
+        }
+
+        return new Entry(file, "1".equals(fields[1]));
+    }
+
+    /**
+     * Store the document of a message. The document is written in a background thread.
+     *
+     * @param settingsHash
+     *         The hash of the display settings the document was rendered with.
+     */
+    public void putInBackground(final String accountUuid, final long messageId,
+            final int settingsHash, final boolean hasExternalImages,
+            final MessageHtmlProvider.Document document) {
+        final int generation = getGeneration();
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ByteArrayOutputStream data = new ByteArrayOutputStream();
+                    Writer out = new OutputStreamWriter(data, "UTF-8");
+                    out.write(INFO_START + settingsHash + " " + (hasExternalImages ? 1 : 0) +
+                            INFO_END);
+                    document.writeTo(out);
+                    out.close();
+
+                    if (data.size() <= MAX_DOCUMENT_SIZE) {
+                        put(generation, getKey(accountUuid, messageId), data.toByteArray());
+                    }
+                } catch (IOException e) {
+                    Log.w(K9.LOG_TAG, "Couldn't cache message " + messageId, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Remove the document of a message.
+     */
+    public synchronized void remove(String accountUuid, long messageId) {
+        mGeneration++;
+        mCache.remove(getKey(accountUuid, messageId));
+    }
+
+    /**
+     * Remove all documents. Used when message IDs might be reused.
+     */
+    public synchronized void clear() {
+        mGeneration++;
+        mCache.clear();
+    }
+
+    private synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    private synchronized void put(int generation, String key, byte[] data) throws IOException {
+        if (generation == mGeneration) {
+            mCache.put(key, data);
+        }
+    }
+
+    private static String getKey(String accountUuid, long messageId) {
+        return accountUuid + "/" + messageId;
+    }
+
+    private static String readInfo(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[MAX_INFO_LENGTH];
+            int length = 0;
+            int count;
+            while (length < buffer.length &&
+                    (count = in.read(buffer, length, buffer.length - length)) != -1) {
+                length += count;
+            }
+
+            String start = new String(buffer, 0, length, "US-ASCII");
+            int end = start.indexOf(INFO_END);
+            if (!start.startsWith(INFO_START) || end == -1) {
+                return null;
+            }
+            return start.substring(INFO_START.length(), end);
+        } finally {
+            in.close();
+        }
+    }
+}
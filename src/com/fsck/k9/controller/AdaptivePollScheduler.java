@@ -0,0 +1,285 @@
+package com.fsck.k9.controller;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.K9;
+import com.fsck.k9.Preferences;
+
+/**
+ * Adapts the poll interval of each folder to the rate at which new messages arrive.
+ *
+ * <p>
+ * Every time a folder has been synchronized the number of new messages is used to update an
+ * exponentially weighted moving average of the folder's arrival rate. The poll interval of a
+ * folder is then chosen so that about {@link #TARGET_MESSAGES_PER_POLL} new messages are expected
+ * per poll. The interval is kept between the check interval configured for the account and
+ * {@link #MAX_INTERVAL_FACTOR} times that. A folder is never polled more often than the user
+ * asked for.
+ * </p>
+ *
+ * <p>
+ * To reduce the number of wakeups, folders that would become due shortly after a wakeup (within
+ * {@link #ALIGNMENT_FRACTION} of their interval) are checked together with the folders that are
+ * due now, as long as the check interval of the account has passed.
+ * </p>
+ */
+public class AdaptivePollScheduler {
+    private static final String ARRIVAL_RATE_KEY = ".arrivalRate";
+    private static final String LAST_SYNC_KEY = ".lastSyncFinished";
+
+    /**
+     * Weight of the newest sample in the moving average of the arrival rate.
+     */
+    private static final double SMOOTHING = 0.3;
+
+    private static final double TARGET_MESSAGES_PER_POLL = 1.0;
+
+    private static final double MAX_INTERVAL_FACTOR = 4.0;
+
+    private static final double ALIGNMENT_FRACTION = 0.25;
+
+    private static final long MINUTE = 60 * 1000;
+
+    /**
+     * Don't compute a rate from syncs that happened in quick succession, e.g. when the user
+     * pressed "refresh" repeatedly.
+     */
+    private static final long MIN_SAMPLE_PERIOD = MINUTE;
+
+
+    private static AdaptivePollScheduler sInstance;
+
+    public static synchronized AdaptivePollScheduler getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AdaptivePollScheduler(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+
+    private final Context mContext;
+
+    /**
+     * Arrival rate (new messages per minute) by folder preference ID. A negative value means
+     * the rate is unknown.
+     */
+    private final Map<String, Double> mArrivalRates = new HashMap<String, Double>();
+
+    /**
+     * Names of the polled folders by account UUID. Unknown for an account until it has been
+     * checked for the first time after the app was started.
+     */
+    private final Map<String, Set<String>> mPolledFolders = new HashMap<String, Set<String>>();
+
+
+    private AdaptivePollScheduler(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Update the arrival rate of a folder after it has been synchronized.
+     *
+     * @param newMessages
+     *         Number of new messages found during the synchronization.
+     */
+    public synchronized void folderSynchronized(Account account, String folderName,
+            int newMessages) {
+
+        String id = getFolderId(account, folderName);
+        SharedPreferences prefs = getPreferences();
+
+        long now = System.currentTimeMillis();
+        long lastSync = prefs.getLong(id + LAST_SYNC_KEY, -1);
+
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putLong(id + LAST_SYNC_KEY, now);
+
+        if (lastSync != -1 && now - lastSync >= MIN_SAMPLE_PERIOD) {
+            double sample = newMessages / ((double) (now - lastSync) / MINUTE);
+            double rate = getArrivalRate(id);
+            rate = (rate < 0) ? sample : SMOOTHING * sample + (1 - SMOOTHING) * rate;
+
+            mArrivalRates.put(id, rate);
+            editor.putFloat(id + ARRIVAL_RATE_KEY, (float) rate);
+
+            if (K9.DEBUG) {
+                Log.v(K9.LOG_TAG, "Arrival rate for " + account.getDescription() + ":" +
+                        folderName + " is now " + rate + " messages/minute");
+            }
+        }
+
+        editor.commit();
+    }
+
+    /**
+     * Forget what was learned about a folder, e.g. because it has been deleted.
+     */
+    public synchronized void forgetFolder(Account account, String folderName) {
+        String id = getFolderId(account, folderName);
+        mArrivalRates.remove(id);
+
+        Set<String> polledFolders = mPolledFolders.get(account.getUuid());
+        if (polledFolders != null) {
+            polledFolders.remove(folderName);
+        }
+
+        SharedPreferences.Editor editor = getPreferences().edit();
+        editor.remove(id + ARRIVAL_RATE_KEY);
+        editor.remove(id + LAST_SYNC_KEY);
+        editor.commit();
+    }
+
+    /**
+     * Set the folders of an account that are polled.
+     *
+     * <p>
+     * What was learned about folders that are no longer polled, e.g. because their sync class was
+     * changed, is forgotten.
+     * </p>
+     */
+    public synchronized void setPolledFolders(Account account, Set<String> folderNames) {
+        Set<String> previousFolderNames = mPolledFolders.put(account.getUuid(),
+                new HashSet<String>(folderNames));
+        if (!folderNames.equals(previousFolderNames)) {
+            forgetOtherFolders(account, folderNames);
+        }
+    }
+
+    /**
+     * Get the poll interval for a folder.
+     *
+     * @return The interval in milliseconds or {@code -1} if the account isn't polled.
+     */
+    public synchronized long getFolderInterval(Account account, String folderName) {
+        long accountInterval = account.getAutomaticCheckIntervalMinutes() * MINUTE;
+        if (accountInterval <= 0) {
+            return -1;
+        }
+
+        double rate = getArrivalRate(getFolderId(account, folderName));
+        if (rate < 0) {
+            return accountInterval;
+        }
+
+        long minInterval = accountInterval;
+        long maxInterval = (long) (accountInterval * MAX_INTERVAL_FACTOR);
+
+        // A rate of 0 means we should poll as rarely as allowed
+        long interval = (rate == 0) ? maxInterval :
+                (long) (TARGET_MESSAGES_PER_POLL / rate * MINUTE);
+
+        return Math.min(maxInterval, Math.max(minInterval, interval));
+    }
+
+    /**
+     * Check whether a folder should be polled now.
+     *
+     * <p>
+     * A folder is considered due if its next poll would happen within
+     * {@link #ALIGNMENT_FRACTION} of its interval. That way folders (and accounts) with similar
+     * schedules share a single wakeup.
+     * </p>
+     *
+     * @param lastChecked
+     *         Time of the last successful synchronization of the folder.
+     */
+    public boolean isFolderDue(Account account, String folderName, long lastChecked) {
+        long interval = getFolderInterval(account, folderName);
+        if (interval <= 0) {
+            return false;
+        }
+
+        long accountInterval = account.getAutomaticCheckIntervalMinutes() * MINUTE;
+        long slack = (long) (interval * ALIGNMENT_FRACTION);
+        return lastChecked + Math.max(accountInterval, interval - slack) <=
+                System.currentTimeMillis();
+    }
+
+    /**
+     * Get the shortest poll interval of all polled folders of an account.
+     *
+     * @return The interval in milliseconds or {@code -1} if the account isn't polled. The check
+     *         interval of the account if its polled folders aren't known yet.
+     */
+    public synchronized long getShortestInterval(Account account) {
+        long accountInterval = account.getAutomaticCheckIntervalMinutes() * MINUTE;
+        if (accountInterval <= 0) {
+            return -1;
+        }
+
+        Set<String> polledFolders = mPolledFolders.get(account.getUuid());
+        if (polledFolders == null) {
+            return accountInterval;
+        }
+
+        long shortestInterval = -1;
+        for (String folderName : polledFolders) {
+            long interval = getFolderInterval(account, folderName);
+            if (shortestInterval == -1 || interval < shortestInterval) {
+                shortestInterval = interval;
+            }
+        }
+
+        return (shortestInterval == -1) ? accountInterval : shortestInterval;
+    }
+
+    /**
+     * Remove the stored values of all folders of an account except the given ones.
+     */
+    private void forgetOtherFolders(Account account, Set<String> folderNames) {
+        String prefix = account.getUuid() + ".";
+        SharedPreferences prefs = getPreferences();
+        SharedPreferences.Editor editor = prefs.edit();
+        boolean changed = false;
+        for (String key : prefs.getAll().keySet()) {
+            String suffix;
+            if (key.endsWith(LAST_SYNC_KEY)) {
+                suffix = LAST_SYNC_KEY;
+            } else if (key.endsWith(ARRIVAL_RATE_KEY)) {
+                suffix = ARRIVAL_RATE_KEY;
+            } else {
+                continue;
+            }
+
+            if (!key.startsWith(prefix)) {
+                continue;
+            }
+
+            String folderName = key.substring(prefix.length(), key.length() - suffix.length());
+            if (!folderNames.contains(folderName)) {
+                mArrivalRates.remove(prefix + folderName);
+                editor.remove(key);
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            editor.commit();
+        }
+    }
+
+    private double getArrivalRate(String id) {
+        Double rate = mArrivalRates.get(id);
+        if (rate == null) {
+            rate = (double) getPreferences().getFloat(id + ARRIVAL_RATE_KEY, -1);
+            mArrivalRates.put(id, rate);
+        }
+        return rate;
+    }
+
+    private SharedPreferences getPreferences() {
+        return Preferences.getPreferences(mContext).getPreferences();
+    }
+
+    private static String getFolderId(Account account, String folderName) {
+        return account.getUuid() + "." + folderName;
+    }
+}
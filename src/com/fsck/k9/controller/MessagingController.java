@@ -2,6 +2,7 @@ package com.fsck.k9.controller;
 
 import java.io.CharArrayWriter;
 import java.io.PrintWriter;
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -27,14 +28,18 @@ import android.app.PendingIntent;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.database.Cursor;
+import android.net.ConnectivityManager;
 import android.net.Uri;
+import android.os.BatteryManager;
 import android.os.Build;
 import android.os.PowerManager;
 import android.os.Process;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
+import android.support.v4.net.ConnectivityManagerCompat;
 import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
 import android.text.style.TextAppearanceSpan;
@@ -58,8 +63,10 @@ import com.fsck.k9.activity.setup.AccountSetupCheckSettings.CheckDirection;
 import com.fsck.k9.activity.setup.AccountSetupIncoming;
 import com.fsck.k9.activity.setup.AccountSetupOutgoing;
 import com.fsck.k9.cache.EmailProviderCache;
+import com.fsck.k9.cache.MessageRenderCache;
 import com.fsck.k9.helper.Contacts;
 import com.fsck.k9.helper.NotificationBuilder;
+import com.fsck.k9.helper.Utility;
 import com.fsck.k9.helper.power.TracingPowerManager;
 import com.fsck.k9.helper.power.TracingPowerManager.TracingWakeLock;
 import com.fsck.k9.mail.Address;
@@ -95,6 +102,7 @@ import com.fsck.k9.search.SearchAccount;
 import com.fsck.k9.search.SearchSpecification;
 import com.fsck.k9.search.SqlQueryBuilder;
 import com.fsck.k9.service.NotificationActionService;
+import com.fsck.k9.view.MessageWebView;
 
 
 /**
@@ -195,6 +203,65 @@ public class MessagingController implements Runnable {
 
     private final ExecutorService threadPool = Executors.newCachedThreadPool();
 
+    /**
+     * Runs the per-account part of {@link #checkMail(Context, Account, boolean, boolean, MessagingListener)}.
+     * The number of threads is the global budget of accounts checked at the same time.
+     */
+    private final ExecutorService mCheckMailExecutor = Executors.newFixedThreadPool(
+            K9.MAX_CONCURRENT_ACCOUNT_CHECKS, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "CheckMail-" + mCount.incrementAndGet());
+                }
+            });
+
+    /**
+     * Incremented by every call to {@link #prefetchMessagesForView(List)}. Prefetch work of
+     * older calls is skipped.
+     */
+    private final AtomicInteger mPrefetchGeneration = new AtomicInteger();
+
+    /**
+     * Renders the messages prepared by {@link #prefetchMessagesForView(List)}. Only the most
+     * recent request waits in the queue, older ones are dropped.
+     */
+    private final ThreadPoolExecutor mPrefetchExecutor = new ThreadPoolExecutor(1, 1, 0,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "MessagePrefetch");
+                }
+            });
+
+    /**
+     * Account checks per server (key: host name) that are running or waiting for one of them to
+     * finish. Only servers with running checks have an entry.
+     */
+    private final Map<String, ServerChecks> mServerChecks = new HashMap<String, ServerChecks>();
+
+    /**
+     * Held while a remote folder is in use (key: account UUID and folder name). The stores hand
+     * out the same folder instance to every caller, so it must only be used by one thread at a
+     * time.
+     */
+    private final ConcurrentHashMap<String, Object> mFolderLocks =
+            new ConcurrentHashMap<String, Object>();
+
+    /**
+     * Held while the pending commands of an account are processed (key: account UUID). A
+     * thread holding a folder lock must never acquire this lock.
+     */
+    private final ConcurrentHashMap<String, Object> mPendingCommandLocks =
+            new ConcurrentHashMap<String, Object>();
+
     private MessagingListener checkMailListener = null;
 
     private MemorizingListener memorizingListener = new MemorizingListener();
@@ -353,9 +420,7 @@ public class MessagingController implements Runnable {
 
         EmailProviderCache cache = EmailProviderCache.getCache(account.getUuid(),
                 mApplication.getApplicationContext());
-        String columnName = LocalStore.getColumnNameForFlag(flag);
-        String value = Integer.toString((newState) ? 1 : 0);
-        cache.setValueForMessages(messageIds, columnName, value);
+        cache.setFlagForMessages(messageIds, flag, newState);
     }
 
     private void removeFlagFromCache(final Account account, final List<Long> messageIds,
@@ -363,8 +428,7 @@ public class MessagingController implements Runnable {
 
         EmailProviderCache cache = EmailProviderCache.getCache(account.getUuid(),
                 mApplication.getApplicationContext());
-        String columnName = LocalStore.getColumnNameForFlag(flag);
-        cache.removeValueForMessages(messageIds, columnName);
+        cache.removeFlagForMessages(messageIds, flag);
     }
 
     private void setFlagForThreadsInCache(final Account account, final List<Long> threadRootIds,
@@ -372,9 +436,7 @@ public class MessagingController implements Runnable {
 
         EmailProviderCache cache = EmailProviderCache.getCache(account.getUuid(),
                 mApplication.getApplicationContext());
-        String columnName = LocalStore.getColumnNameForFlag(flag);
-        String value = Integer.toString((newState) ? 1 : 0);
-        cache.setValueForThreads(threadRootIds, columnName, value);
+        cache.setFlagForThreads(threadRootIds, flag, newState);
     }
 
     private void removeFlagForThreadsFromCache(final Account account, final List<Long> messageIds,
@@ -382,8 +444,7 @@ public class MessagingController implements Runnable {
 
         EmailProviderCache cache = EmailProviderCache.getCache(account.getUuid(),
                 mApplication.getApplicationContext());
-        String columnName = LocalStore.getColumnNameForFlag(flag);
-        cache.removeValueForThreads(messageIds, columnName);
+        cache.removeFlagForThreads(messageIds, flag);
     }
 
 
@@ -790,35 +851,37 @@ public class MessagingController implements Runnable {
                 throw new MessagingException("Could not get store");
             }
 
-            Folder remoteFolder = remoteStore.getFolder(folderName);
-            LocalFolder localFolder = localStore.getFolder(folderName);
-            if (remoteFolder == null || localFolder == null) {
-                throw new MessagingException("Folder not found");
-            }
+            synchronized (getFolderLock(acct, folderName)) {
+                Folder remoteFolder = remoteStore.getFolder(folderName);
+                LocalFolder localFolder = localStore.getFolder(folderName);
+                if (remoteFolder == null || localFolder == null) {
+                    throw new MessagingException("Folder not found");
+                }
 
-            List<Message> messages = remoteFolder.search(query, requiredFlags, forbiddenFlags);
+                List<Message> messages = remoteFolder.search(query, requiredFlags, forbiddenFlags);
 
-            if (K9.DEBUG) {
-                Log.i("Remote Search", "Remote search got " + messages.size() + " results");
-            }
+                if (K9.DEBUG) {
+                    Log.i("Remote Search", "Remote search got " + messages.size() + " results");
+                }
 
-            // There's no need to fetch messages already completely downloaded
-            List<Message> remoteMessages = localFolder.extractNewMessages(messages);
-            messages.clear();
+                // There's no need to fetch messages already completely downloaded
+                List<Message> remoteMessages = localFolder.extractNewMessages(messages);
+                messages.clear();
 
-            if (listener != null) {
-                listener.remoteSearchServerQueryComplete(acct, folderName, remoteMessages.size());
-            }
+                if (listener != null) {
+                    listener.remoteSearchServerQueryComplete(acct, folderName, remoteMessages.size());
+                }
 
-            Collections.sort(remoteMessages, new UidReverseComparator());
+                Collections.sort(remoteMessages, new UidReverseComparator());
 
-            int resultLimit = acct.getRemoteSearchNumResults();
-            if (resultLimit > 0 && remoteMessages.size() > resultLimit) {
-                extraResults = remoteMessages.subList(resultLimit, remoteMessages.size());
-                remoteMessages = remoteMessages.subList(0, resultLimit);
-            }
+                int resultLimit = acct.getRemoteSearchNumResults();
+                if (resultLimit > 0 && remoteMessages.size() > resultLimit) {
+                    extraResults = remoteMessages.subList(resultLimit, remoteMessages.size());
+                    remoteMessages = remoteMessages.subList(0, resultLimit);
+                }
 
-            loadSearchResultsSynchronous(remoteMessages, localFolder, remoteFolder, listener);
+                loadSearchResultsSynchronous(remoteMessages, localFolder, remoteFolder, listener);
+            }
 
 
         } catch (Exception e) {
@@ -854,13 +917,15 @@ public class MessagingController implements Runnable {
                         throw new MessagingException("Could not get store");
                     }
 
-                    Folder remoteFolder = remoteStore.getFolder(folderName);
-                    LocalFolder localFolder = localStore.getFolder(folderName);
-                    if (remoteFolder == null || localFolder == null) {
-                        throw new MessagingException("Folder not found");
-                    }
+                    synchronized (getFolderLock(account, folderName)) {
+                        Folder remoteFolder = remoteStore.getFolder(folderName);
+                        LocalFolder localFolder = localStore.getFolder(folderName);
+                        if (remoteFolder == null || localFolder == null) {
+                            throw new MessagingException("Folder not found");
+                        }
 
-                    loadSearchResultsSynchronous(messages, localFolder, remoteFolder, listener);
+                        loadSearchResultsSynchronous(messages, localFolder, remoteFolder, listener);
+                    }
                 } catch (MessagingException e) {
                     Log.e(K9.LOG_TAG, "Exception in loadSearchResults: " + e);
                     addErrorMessage(account, null, e);
@@ -947,9 +1012,6 @@ public class MessagingController implements Runnable {
      * @param providedRemoteFolder TODO
      */
     private void synchronizeMailboxSynchronous(final Account account, final String folder, final MessagingListener listener, Folder providedRemoteFolder) {
-        Folder remoteFolder = null;
-        LocalFolder tLocalFolder = null;
-
         if (K9.DEBUG)
             Log.i(K9.LOG_TAG, "Synchronizing folder " + account.getDescription() + ":" + folder);
 
@@ -968,19 +1030,53 @@ public class MessagingController implements Runnable {
         }
 
         Exception commandException = null;
+        if (K9.DEBUG)
+            Log.d(K9.LOG_TAG, "SYNC: About to process pending commands for account " + account.getDescription());
+
         try {
-            if (K9.DEBUG)
-                Log.d(K9.LOG_TAG, "SYNC: About to process pending commands for account " + account.getDescription());
+            processPendingCommandsSynchronous(account);
+        } catch (Exception e) {
+            addErrorMessage(account, null, e);
 
-            try {
-                processPendingCommandsSynchronous(account);
-            } catch (Exception e) {
-                addErrorMessage(account, null, e);
+            Log.e(K9.LOG_TAG, "Failure processing command, but allow message sync attempt", e);
+            commandException = e;
+        }
+
+        // Mail checks run outside of the command thread, so make sure the same folder is never
+        // synchronized twice at the same time. Pending commands lock the folders they use
+        // themselves, so they are processed before this folder is locked.
+        synchronized (getFolderLock(account, folder)) {
+            synchronizeMailboxSynchronousLocked(account, folder, listener, providedRemoteFolder,
+                    commandException);
+        }
+    }
+
+    private Object getFolderLock(Account account, String folder) {
+        return getLock(mFolderLocks, account.getUuid() + ":" + folder);
+    }
+
+    private Object getPendingCommandsLock(Account account) {
+        return getLock(mPendingCommandLocks, account.getUuid());
+    }
 
-                Log.e(K9.LOG_TAG, "Failure processing command, but allow message sync attempt", e);
-                commandException = e;
+    private static Object getLock(ConcurrentHashMap<String, Object> locks, String key) {
+        Object lock = locks.get(key);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = locks.putIfAbsent(key, newLock);
+            if (lock == null) {
+                lock = newLock;
             }
+        }
+        return lock;
+    }
 
+    private void synchronizeMailboxSynchronousLocked(final Account account, final String folder,
+            final MessagingListener listener, Folder providedRemoteFolder,
+            Exception commandException) {
+        Folder remoteFolder = null;
+        LocalFolder tLocalFolder = null;
+        try {
             /*
              * Get the message list from the local store and create an index of
              * the uids within the list.
@@ -1151,6 +1247,9 @@ public class MessagingController implements Runnable {
             localFolder.setLastChecked(System.currentTimeMillis());
             localFolder.setStatus(null);
 
+            AdaptivePollScheduler.getInstance(mApplication).folderSynchronized(account, folder,
+                    newMessages);
+
             if (K9.DEBUG)
                 Log.d(K9.LOG_TAG, "Done synchronizing folder " + account.getDescription() + ":" + folder +
                       " @ " + new Date() + " with " + newMessages + " new messages");
@@ -1952,6 +2051,15 @@ public class MessagingController implements Runnable {
     }
 
     private void processPendingCommandsSynchronous(Account account) throws MessagingException {
+        // Mail checks process pending commands outside of the command thread. Make sure the
+        // commands of an account are only executed once, e.g. messages are only uploaded once.
+        synchronized (getPendingCommandsLock(account)) {
+            processPendingCommandsSynchronousLocked(account);
+        }
+    }
+
+    private void processPendingCommandsSynchronousLocked(Account account)
+            throws MessagingException {
         LocalStore localStore = account.getLocalStore();
         ArrayList<PendingCommand> commands = localStore.getPendingCommands();
 
@@ -1984,25 +2092,7 @@ public class MessagingController implements Runnable {
                  * other command processes. This maintains the order of the commands.
                  */
                 try {
-                    if (PENDING_COMMAND_APPEND.equals(command.command)) {
-                        processPendingAppend(command, account);
-                    } else if (PENDING_COMMAND_SET_FLAG_BULK.equals(command.command)) {
-                        processPendingSetFlag(command, account);
-                    } else if (PENDING_COMMAND_SET_FLAG.equals(command.command)) {
-                        processPendingSetFlagOld(command, account);
-                    } else if (PENDING_COMMAND_MARK_ALL_AS_READ.equals(command.command)) {
-                        processPendingMarkAllAsRead(command, account);
-                    } else if (PENDING_COMMAND_MOVE_OR_COPY_BULK.equals(command.command)) {
-                        processPendingMoveOrCopyOld2(command, account);
-                    } else if (PENDING_COMMAND_MOVE_OR_COPY_BULK_NEW.equals(command.command)) {
-                        processPendingMoveOrCopy(command, account);
-                    } else if (PENDING_COMMAND_MOVE_OR_COPY.equals(command.command)) {
-                        processPendingMoveOrCopyOld(command, account);
-                    } else if (PENDING_COMMAND_EMPTY_TRASH.equals(command.command)) {
-                        processPendingEmptyTrash(command, account);
-                    } else if (PENDING_COMMAND_EXPUNGE.equals(command.command)) {
-                        processPendingExpunge(command, account);
-                    }
+                    processPendingCommandWithFolderLocks(command, account);
                     localStore.removePendingCommand(command);
                     if (K9.DEBUG)
                         Log.d(K9.LOG_TAG, "Done processing pending command '" + command + "'");
@@ -2034,6 +2124,66 @@ public class MessagingController implements Runnable {
         }
     }
 
+    /**
+     * Process a pending command while holding the locks of the remote folders it uses.
+     */
+    private void processPendingCommandWithFolderLocks(PendingCommand command, Account account)
+            throws MessagingException {
+        String folder = null;
+        String otherFolder = null;
+        if (PENDING_COMMAND_EMPTY_TRASH.equals(command.command)) {
+            folder = account.getTrashFolderName();
+        } else if (command.arguments.length > 0) {
+            folder = command.arguments[0];
+            if (PENDING_COMMAND_MOVE_OR_COPY.equals(command.command)) {
+                otherFolder = command.arguments[2];
+            } else if (PENDING_COMMAND_MOVE_OR_COPY_BULK.equals(command.command) ||
+                    PENDING_COMMAND_MOVE_OR_COPY_BULK_NEW.equals(command.command)) {
+                otherFolder = command.arguments[1];
+            }
+        }
+
+        if (folder == null) {
+            processPendingCommand(command, account);
+            return;
+        }
+
+        // Only one thread at a time processes the pending commands of an account, so taking two
+        // folder locks can't deadlock.
+        synchronized (getFolderLock(account, folder)) {
+            if (otherFolder == null) {
+                processPendingCommand(command, account);
+            } else {
+                synchronized (getFolderLock(account, otherFolder)) {
+                    processPendingCommand(command, account);
+                }
+            }
+        }
+    }
+
+    private void processPendingCommand(PendingCommand command, Account account)
+            throws MessagingException {
+        if (PENDING_COMMAND_APPEND.equals(command.command)) {
+            processPendingAppend(command, account);
+        } else if (PENDING_COMMAND_SET_FLAG_BULK.equals(command.command)) {
+            processPendingSetFlag(command, account);
+        } else if (PENDING_COMMAND_SET_FLAG.equals(command.command)) {
+            processPendingSetFlagOld(command, account);
+        } else if (PENDING_COMMAND_MARK_ALL_AS_READ.equals(command.command)) {
+            processPendingMarkAllAsRead(command, account);
+        } else if (PENDING_COMMAND_MOVE_OR_COPY_BULK.equals(command.command)) {
+            processPendingMoveOrCopyOld2(command, account);
+        } else if (PENDING_COMMAND_MOVE_OR_COPY_BULK_NEW.equals(command.command)) {
+            processPendingMoveOrCopy(command, account);
+        } else if (PENDING_COMMAND_MOVE_OR_COPY.equals(command.command)) {
+            processPendingMoveOrCopyOld(command, account);
+        } else if (PENDING_COMMAND_EMPTY_TRASH.equals(command.command)) {
+            processPendingEmptyTrash(command, account);
+        } else if (PENDING_COMMAND_EXPUNGE.equals(command.command)) {
+            processPendingExpunge(command, account);
+        }
+    }
+
     /**
      * Process a pending append message command. This command uploads a local message to the
      * server, first checking to be sure that the server message is not newer than
@@ -2988,7 +3138,6 @@ public class MessagingController implements Runnable {
     public boolean loadMessageForViewRemoteSynchronous(final Account account, final String folder,
             final String uid, final MessagingListener listener, final boolean force,
             final boolean loadPartialFromSearch) {
-        Folder remoteFolder = null;
         LocalFolder localFolder = null;
         try {
             LocalStore localStore = account.getLocalStore();
@@ -3033,20 +3182,11 @@ public class MessagingController implements Runnable {
                  * At this point the message is not available, so we need to download it
                  * fully if possible.
                  */
+                downloadMessageForView(account, localFolder, uid);
 
-                Store remoteStore = account.getRemoteStore();
-                remoteFolder = remoteStore.getFolder(folder);
-                remoteFolder.open(Folder.OPEN_MODE_RW);
-
-                // Get the remote message and fully download it
-                Message remoteMessage = remoteFolder.getMessage(uid);
+                // Load the stored message into memory
                 FetchProfile fp = new FetchProfile();
                 fp.add(FetchProfile.Item.BODY);
-
-                remoteFolder.fetch(new Message[] { remoteMessage }, fp, null);
-
-                // Store the message locally and load the stored message into memory
-                localFolder.appendMessages(new Message[] { remoteMessage });
                 if (loadPartialFromSearch) {
                     fp.add(FetchProfile.Item.BODY);
                 }
@@ -3081,11 +3221,49 @@ public class MessagingController implements Runnable {
             addErrorMessage(account, null, e);
             return false;
         } finally {
-            closeFolder(remoteFolder);
             closeFolder(localFolder);
         }
     }
 
+    /**
+     * Download the complete message from the server and store it in the local folder.
+     */
+    private void downloadMessageForView(Account account, LocalFolder localFolder, String uid)
+            throws MessagingException {
+        synchronized (getFolderLock(account, localFolder.getName())) {
+            downloadMessageForViewLocked(account, localFolder, uid);
+        }
+    }
+
+    private void downloadMessageForViewLocked(Account account, LocalFolder localFolder,
+            String uid) throws MessagingException {
+        // The message might have been downloaded by someone else while waiting for the lock,
+        // e.g. by prefetching while the user opened it
+        LocalMessage localMessage = localFolder.getMessage(uid);
+        if (localMessage != null && localMessage.isSet(Flag.X_DOWNLOADED_FULL)) {
+            return;
+        }
+
+        Folder remoteFolder = null;
+        try {
+            Store remoteStore = account.getRemoteStore();
+            remoteFolder = remoteStore.getFolder(localFolder.getName());
+            remoteFolder.open(Folder.OPEN_MODE_RW);
+
+            // Get the remote message and fully download it
+            Message remoteMessage = remoteFolder.getMessage(uid);
+            FetchProfile fp = new FetchProfile();
+            fp.add(FetchProfile.Item.BODY);
+
+            remoteFolder.fetch(new Message[] { remoteMessage }, fp, null);
+
+            localFolder.appendMessages(new Message[] { remoteMessage });
+            localFolder.getMessage(uid).setFlag(Flag.X_DOWNLOADED_FULL, true);
+        } finally {
+            closeFolder(remoteFolder);
+        }
+    }
+
     public void loadMessageForView(final Account account, final String folder, final String uid,
                                    final MessagingListener listener) {
         for (MessagingListener l : getListeners(listener)) {
@@ -3150,6 +3328,168 @@ public class MessagingController implements Runnable {
         });
     }
 
+    /**
+     * Prepare messages the user is likely to view next, e.g. the neighbours of the displayed
+     * message in the message list.
+     *
+     * <p>
+     * The messages are rendered one at a time in a low priority background thread and stored in
+     * the {@link MessageRenderCache}. Bodies that haven't been downloaded yet are first fetched
+     * by a background command, like {@link #loadMessageForView(Account, String, String,
+     * MessagingListener)} would. This only happens on unmetered networks and not beyond the
+     * account's maximum auto download size. Nothing is done while the battery is low. Messages
+     * aren't marked as read and no listeners are notified.
+     * </p>
+     *
+     * <p>
+     * A new request replaces the previous one. Work that hasn't been started yet is dropped.
+     * </p>
+     *
+     * @param messageReferences
+     *         The messages, most likely one first.
+     */
+    public void prefetchMessagesForView(final List<MessageReference> messageReferences) {
+        final int generation = mPrefetchGeneration.incrementAndGet();
+        mPrefetchExecutor.getQueue().clear();
+        mPrefetchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (isBatteryLow()) {
+                    if (K9.DEBUG) {
+                        Log.d(K9.LOG_TAG, "Battery is low, not prefetching messages");
+                    }
+                    return;
+                }
+
+                boolean downloadAllowed = !isActiveNetworkMetered();
+                Preferences prefs = Preferences.getPreferences(mApplication);
+                for (MessageReference messageReference : messageReferences) {
+                    Account account = prefs.getAccount(messageReference.accountUuid);
+                    if (account == null) {
+                        continue;
+                    }
+
+                    prefetchMessageForView(account, messageReference.folderName,
+                            messageReference.uid, downloadAllowed, generation);
+                }
+            }
+        });
+    }
+
+    /**
+     * Render a message into the {@link MessageRenderCache}. If its body has to be downloaded
+     * first, a background command is queued that downloads it and then renders the message.
+     */
+    private void prefetchMessageForView(final Account account, final String folder,
+            final String uid, boolean downloadAllowed, final int generation) {
+        LocalFolder localFolder = null;
+        try {
+            LocalStore localStore = account.getLocalStore();
+            localFolder = localStore.getFolder(folder);
+            localFolder.open(Folder.OPEN_MODE_RW);
+
+            LocalMessage message = localFolder.getMessage(uid);
+            if (message == null || message.getId() == 0) {
+                return;
+            }
+
+            if (!message.isSet(Flag.X_DOWNLOADED_FULL) &&
+                    !message.isSet(Flag.X_DOWNLOADED_PARTIAL)) {
+                int maxDownloadSize = account.getMaximumAutoDownloadMessageSize();
+                if (downloadAllowed && !uid.startsWith(K9.LOCAL_UID_PREFIX) &&
+                        (maxDownloadSize == 0 || message.getSize() <= maxDownloadSize)) {
+                    queuePrefetchDownload(account, folder, uid, generation);
+                }
+                return;
+            }
+
+            MessageRenderCache renderCache = MessageRenderCache.getInstance(mApplication);
+            int displaySettingsHash = MessageWebView.getDisplaySettingsHash();
+            if (renderCache.get(account.getUuid(), message.getId(), displaySettingsHash) != null) {
+                return;
+            }
+
+            FetchProfile fp = new FetchProfile();
+            fp.add(FetchProfile.Item.ENVELOPE);
+            fp.add(FetchProfile.Item.BODY);
+            localFolder.fetch(new Message[] { message }, fp, null);
+
+            String text = message.getTextForDisplay();
+            if (text != null) {
+                renderCache.putInBackground(account.getUuid(), message.getId(),
+                        displaySettingsHash, Utility.hasExternalImages(text),
+                        MessageWebView.createDocument(text));
+            }
+        } catch (Exception e) {
+            Log.w(K9.LOG_TAG, "Couldn't prefetch message " + uid, e);
+        } finally {
+            closeFolder(localFolder);
+        }
+    }
+
+    /**
+     * Download a message for {@link #prefetchMessagesForView(List)}. The download runs as a
+     * background command, like all other remote operations, and is skipped if the user has
+     * moved on to other messages in the meantime.
+     */
+    private void queuePrefetchDownload(final Account account, final String folder,
+            final String uid, final int generation) {
+        putBackground("prefetchMessageForView", null, new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mPrefetchGeneration.get()) {
+                    return;
+                }
+
+                LocalFolder localFolder = null;
+                try {
+                    LocalStore localStore = account.getLocalStore();
+                    localFolder = localStore.getFolder(folder);
+                    localFolder.open(Folder.OPEN_MODE_RW);
+                    downloadMessageForView(account, localFolder, uid);
+                } catch (Exception e) {
+                    Log.w(K9.LOG_TAG, "Couldn't prefetch message " + uid, e);
+                    return;
+                } finally {
+                    closeFolder(localFolder);
+                }
+
+                mPrefetchExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mPrefetchGeneration.get()) {
+                            prefetchMessageForView(account, folder, uid, false, generation);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private boolean isBatteryLow() {
+        // ACTION_BATTERY_CHANGED is sticky, so this returns the current state right away
+        Intent battery = mApplication.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) {
+            return false;
+        }
+
+        int plugged = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0);
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        if (plugged != 0 || level < 0 || scale <= 0) {
+            return false;
+        }
+
+        return level * 100 / scale <= K9.PREFETCH_MIN_BATTERY_PERCENT;
+    }
+
+    private boolean isActiveNetworkMetered() {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) mApplication.getSystemService(Context.CONNECTIVITY_SERVICE);
+        return ConnectivityManagerCompat.isActiveNetworkMetered(connectivityManager);
+    }
+
     /**
      * Mark the provided message as read if not disabled by the account setting.
      *
@@ -3212,7 +3552,6 @@ public class MessagingController implements Runnable {
         put("loadAttachment", listener, new Runnable() {
             @Override
             public void run() {
-                Folder remoteFolder = null;
                 LocalFolder localFolder = null;
                 try {
                     LocalStore localStore = account.getLocalStore();
@@ -3221,17 +3560,26 @@ public class MessagingController implements Runnable {
                     for (Part attachment : attachments) {
                         attachment.setBody(null);
                     }
-                    Store remoteStore = account.getRemoteStore();
-                    localFolder = localStore.getFolder(message.getFolder().getName());
-                    remoteFolder = remoteStore.getFolder(message.getFolder().getName());
-                    remoteFolder.open(Folder.OPEN_MODE_RW);
-
-                    //FIXME: This is an ugly hack that won't be needed once the Message objects have been united.
-                    Message remoteMessage = remoteFolder.getMessage(message.getUid());
-                    remoteMessage.setBody(message.getBody());
-                    remoteFolder.fetchPart(remoteMessage, part, null);
-
-                    localFolder.updateMessage((LocalMessage)message);
+                    // The remote folder is shared with synchronization, so it has to be closed
+                    // before the lock is released
+                    synchronized (getFolderLock(account, message.getFolder().getName())) {
+                        Folder remoteFolder = null;
+                        try {
+                            Store remoteStore = account.getRemoteStore();
+                            localFolder = localStore.getFolder(message.getFolder().getName());
+                            remoteFolder = remoteStore.getFolder(message.getFolder().getName());
+                            remoteFolder.open(Folder.OPEN_MODE_RW);
+
+                            //FIXME: This is an ugly hack that won't be needed once the Message objects have been united.
+                            Message remoteMessage = remoteFolder.getMessage(message.getUid());
+                            remoteMessage.setBody(message.getBody());
+                            remoteFolder.fetchPart(remoteMessage, part, null);
+
+                            localFolder.updateMessage((LocalMessage)message);
+                        } finally {
+                            closeFolder(remoteFolder);
+                        }
+                    }
                     for (MessagingListener l : getListeners(listener)) {
                         l.loadAttachmentFinished(account, message, part, tag);
                     }
@@ -3247,7 +3595,6 @@ public class MessagingController implements Runnable {
 
                 } finally {
                     closeFolder(localFolder);
-                    closeFolder(remoteFolder);
                 }
             }
         });
@@ -3492,6 +3839,7 @@ public class MessagingController implements Runnable {
      */
     public void sendPendingMessagesSynchronous(final Account account) {
         Folder localFolder = null;
+        Transport transport = null;
         Exception lastFailure = null;
         try {
             Store localStore = account.getLocalStore();
@@ -3522,7 +3870,9 @@ public class MessagingController implements Runnable {
             if (K9.DEBUG)
                 Log.i(K9.LOG_TAG, "Scanning folder '" + account.getOutboxFolderName() + "' (" + ((LocalFolder)localFolder).getId() + ") for messages to send");
 
-            Transport transport = Transport.getInstance(account);
+            // Send all messages over the same connection
+            transport = Transport.getInstance(account);
+            transport.setKeepConnectionOpen(true);
             for (Message message : localMessages) {
                 if (message.isSet(Flag.DELETED)) {
                     message.destroy();
@@ -3636,6 +3986,9 @@ public class MessagingController implements Runnable {
             addErrorMessage(account, null, e);
 
         } finally {
+            if (transport != null) {
+                transport.close();
+            }
             if (lastFailure == null) {
                 cancelNotification(K9.SEND_FAILED_NOTIFICATION - account.getAccountNumber());
             }
@@ -4170,7 +4523,7 @@ public class MessagingController implements Runnable {
 
                 // When we empty trash, we need to actually synchronize the folder
                 // or local deletes will never get cleaned up
-                synchronizeFolder(account, remoteFolder, true, 0, null);
+                synchronizeMailbox(account, remoteFolder.getName(), null, null);
                 compact(account, null);
 
 
@@ -4328,6 +4681,22 @@ public class MessagingController implements Runnable {
         for (MessagingListener l : getListeners()) {
             l.checkMailStarted(context, account);
         }
+        final Runnable finalizeSync = new Runnable() {
+            @Override
+            public void run() {
+
+                if (K9.DEBUG)
+                    Log.i(K9.LOG_TAG, "Finished mail sync");
+
+                if (wakeLock != null) {
+                    wakeLock.release();
+                }
+                for (MessagingListener l : getListeners()) {
+                    l.checkMailFinished(context, account);
+                }
+
+            }
+        };
         putBackground("checkMail", listener, new Runnable() {
             @Override
             public void run() {
@@ -4345,35 +4714,142 @@ public class MessagingController implements Runnable {
                         accounts = prefs.getAvailableAccounts();
                     }
 
-                    for (final Account account : accounts) {
-                        checkMailForAccount(context, account, ignoreLastCheckedTime, prefs, listener);
-                    }
-
+                    checkAccountsInParallel(context, accounts, ignoreLastCheckedTime, prefs,
+                            listener, finalizeSync);
+                    return;
                 } catch (Exception e) {
                     Log.e(K9.LOG_TAG, "Unable to synchronize mail", e);
                     addErrorMessage(account, null, e);
                 }
-                putBackground("finalize sync", null, new Runnable() {
-                    @Override
-                    public void run() {
+                putBackground("finalize sync", null, finalizeSync);
+            }
+        });
+    }
 
-                        if (K9.DEBUG)
-                            Log.i(K9.LOG_TAG, "Finished mail sync");
+    /**
+     * Check all {@code accounts} on {@link #mCheckMailExecutor}.
+     *
+     * <p>
+     * Accounts are checked concurrently, but no more than
+     * {@link K9#MAX_CONCURRENT_CHECKS_PER_SERVER} accounts of the same server at a time. Once the
+     * last account has been checked {@code finalizeSync} is put on the command queue.
+     * </p>
+     *
+     * <p>
+     * Progress is reported through {@link MessagingListener#checkMailProgress(Context, int, int)}.
+     * Those calls are serialized, so listeners see one stream of steadily increasing values.
+     * </p>
+     */
+    private void checkAccountsInParallel(final Context context, Collection<Account> accounts,
+            final boolean ignoreLastCheckedTime, final Preferences prefs,
+            final MessagingListener listener, final Runnable finalizeSync) {
 
-                        if (wakeLock != null) {
-                            wakeLock.release();
-                        }
-                        for (MessagingListener l : getListeners()) {
-                            l.checkMailFinished(context, account);
+        final int total = accounts.size();
+        if (total == 0) {
+            putBackground("finalize sync", null, finalizeSync);
+            return;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(total);
+        final Object progressLock = new Object();
+        final int[] completed = new int[1];
+
+        for (final Account account : accounts) {
+            final String server = getCheckServer(account);
+            submitServerCheck(server, new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    try {
+                        checkMailForAccount(context, account, ignoreLastCheckedTime, prefs,
+                                listener);
+                    } catch (Exception e) {
+                        Log.e(K9.LOG_TAG, "Unable to synchronize account " + account.getName(), e);
+                        addErrorMessage(account, null, e);
+                    } finally {
+                        synchronized (progressLock) {
+                            completed[0]++;
+                            for (MessagingListener l : getListeners(listener)) {
+                                l.checkMailProgress(context, completed[0], total);
+                            }
                         }
 
+                        serverCheckFinished(server);
+
+                        if (remaining.decrementAndGet() == 0) {
+                            putBackground("finalize sync", null, finalizeSync);
+                        }
                     }
                 }
-                             );
+            });
+        }
+    }
+
+    /**
+     * Get the key that decides which accounts count against the same
+     * {@link K9#MAX_CONCURRENT_CHECKS_PER_SERVER} limit.
+     */
+    private static String getCheckServer(Account account) {
+        String server;
+        try {
+            server = new URI(account.getStoreUri()).getHost();
+        } catch (Exception e) {
+            server = null;
+        }
+        if (server == null) {
+            // Unknown server; don't let this account share a limit with others
+            server = account.getUuid();
+        }
+        return server;
+    }
+
+    /**
+     * Run {@code check} on {@link #mCheckMailExecutor} if fewer than
+     * {@link K9#MAX_CONCURRENT_CHECKS_PER_SERVER} checks of {@code server} are running. Otherwise
+     * it's queued until {@link #serverCheckFinished(String)} is called for one of them.
+     *
+     * <p>
+     * Checks waiting for their server never occupy one of the executor's threads, so accounts of
+     * other servers can use them.
+     * </p>
+     */
+    private void submitServerCheck(String server, Runnable check) {
+        synchronized (mServerChecks) {
+            ServerChecks checks = mServerChecks.get(server);
+            if (checks == null) {
+                checks = new ServerChecks();
+                mServerChecks.put(server, checks);
             }
-        });
+
+            if (checks.running < K9.MAX_CONCURRENT_CHECKS_PER_SERVER) {
+                checks.running++;
+                mCheckMailExecutor.execute(check);
+            } else {
+                checks.waiting.add(check);
+            }
+        }
     }
 
+    /**
+     * Called by a check submitted through {@link #submitServerCheck(String, Runnable)} when it's
+     * done. Starts the next waiting check of the same server, if any.
+     */
+    private void serverCheckFinished(String server) {
+        synchronized (mServerChecks) {
+            ServerChecks checks = mServerChecks.get(server);
+            Runnable next = checks.waiting.poll();
+            if (next != null) {
+                mCheckMailExecutor.execute(next);
+            } else if (--checks.running == 0) {
+                mServerChecks.remove(server);
+            }
+        }
+    }
+
+    private static class ServerChecks {
+        public int running;
+        public final LinkedList<Runnable> waiting = new LinkedList<Runnable>();
+    }
 
 
     private void checkMailForAccount(final Context context, final Account account,
@@ -4404,6 +4880,9 @@ public class MessagingController implements Runnable {
             Account.FolderMode aDisplayMode = account.getFolderDisplayMode();
             Account.FolderMode aSyncMode = account.getFolderSyncMode();
 
+            AdaptivePollScheduler pollScheduler = AdaptivePollScheduler.getInstance(mApplication);
+            Set<String> polledFolders = new HashSet<String>();
+
             Store localStore = account.getLocalStore();
             for (final Folder folder : localStore.getPersonalNamespaces(false)) {
                 folder.open(Folder.OPEN_MODE_RW);
@@ -4433,8 +4912,11 @@ public class MessagingController implements Runnable {
 
                     continue;
                 }
-                synchronizeFolder(account, folder, ignoreLastCheckedTime, accountInterval, listener);
+                polledFolders.add(folder.getName());
+                synchronizeFolder(account, folder, ignoreLastCheckedTime, listener);
             }
+
+            pollScheduler.setPolledFolders(account, polledFolders);
         } catch (MessagingException e) {
             Log.e(K9.LOG_TAG, "Unable to synchronize account " + account.getName(), e);
             addErrorMessage(account, null, e);
@@ -4466,7 +4948,6 @@ public class MessagingController implements Runnable {
         final Account account,
         final Folder folder,
         final boolean ignoreLastCheckedTime,
-        final long accountInterval,
         final MessagingListener listener) {
 
 
@@ -4474,53 +4955,47 @@ public class MessagingController implements Runnable {
             Log.v(K9.LOG_TAG, "Folder " + folder.getName() + " was last synced @ " +
                   new Date(folder.getLastChecked()));
 
-        if (!ignoreLastCheckedTime && folder.getLastChecked() >
-                (System.currentTimeMillis() - accountInterval)) {
+        final AdaptivePollScheduler pollScheduler = AdaptivePollScheduler.getInstance(mApplication);
+        if (!ignoreLastCheckedTime &&
+                !pollScheduler.isFolderDue(account, folder.getName(), folder.getLastChecked())) {
             if (K9.DEBUG)
                 Log.v(K9.LOG_TAG, "Not syncing folder " + folder.getName()
                       + ", previously synced @ " + new Date(folder.getLastChecked())
-                      + " which would be too recent for the account period");
+                      + " which would be too recent for the folder's poll interval");
 
             return;
         }
-        putBackground("sync" + folder.getName(), null, new Runnable() {
-            @Override
-            public void run() {
-                LocalFolder tLocalFolder = null;
-                try {
-                    // In case multiple Commands get enqueued, don't run more than
-                    // once
-                    final LocalStore localStore = account.getLocalStore();
-                    tLocalFolder = localStore.getFolder(folder.getName());
-                    tLocalFolder.open(Folder.OPEN_MODE_RW);
-
-                    if (!ignoreLastCheckedTime && tLocalFolder.getLastChecked() >
-                    (System.currentTimeMillis() - accountInterval)) {
-                        if (K9.DEBUG)
-                            Log.v(K9.LOG_TAG, "Not running Command for folder " + folder.getName()
-                                  + ", previously synced @ " + new Date(folder.getLastChecked())
-                                  + " which would be too recent for the account period");
-                        return;
-                    }
-                    notifyFetchingMail(account, folder);
-                    try {
-                        synchronizeMailboxSynchronous(account, folder.getName(), listener, null);
-                    } finally {
-                        notifyFetchingMailCancel(account);
-                    }
-                } catch (Exception e) {
+        // Runs on the account's check mail thread. Folders of one account are synchronized one
+        // after another, different accounts concurrently.
+        LocalFolder tLocalFolder = null;
+        try {
+            final LocalStore localStore = account.getLocalStore();
+            tLocalFolder = localStore.getFolder(folder.getName());
+            tLocalFolder.open(Folder.OPEN_MODE_RW);
 
-                    Log.e(K9.LOG_TAG, "Exception while processing folder " +
-                          account.getDescription() + ":" + folder.getName(), e);
-                    addErrorMessage(account, null, e);
-                } finally {
-                    closeFolder(tLocalFolder);
-                }
+            // The folder might have been synchronized by someone else in the meantime
+            if (!ignoreLastCheckedTime && !pollScheduler.isFolderDue(account,
+                    folder.getName(), tLocalFolder.getLastChecked())) {
+                if (K9.DEBUG)
+                    Log.v(K9.LOG_TAG, "Not synchronizing folder " + folder.getName()
+                          + ", previously synced @ " + new Date(folder.getLastChecked())
+                          + " which would be too recent for the folder's poll interval");
+                return;
             }
-        }
-                     );
-
+            notifyFetchingMail(account, folder);
+            try {
+                synchronizeMailboxSynchronous(account, folder.getName(), listener, null);
+            } finally {
+                notifyFetchingMailCancel(account);
+            }
+        } catch (Exception e) {
 
+            Log.e(K9.LOG_TAG, "Exception while processing folder " +
+                  account.getDescription() + ":" + folder.getName(), e);
+            addErrorMessage(account, null, e);
+        } finally {
+            closeFolder(tLocalFolder);
+        }
     }
 
 
@@ -5325,17 +5800,21 @@ public class MessagingController implements Runnable {
             public void run() {
                 LocalFolder localFolder = null;
                 try {
-                    LocalStore localStore = account.getLocalStore();
-                    localFolder = localStore.getFolder(remoteFolder.getName());
-                    localFolder.open(Folder.OPEN_MODE_RW);
+                    int newCount;
+                    int unreadMessageCount;
+                    synchronized (getFolderLock(account, remoteFolder.getName())) {
+                        LocalStore localStore = account.getLocalStore();
+                        localFolder = localStore.getFolder(remoteFolder.getName());
+                        localFolder.open(Folder.OPEN_MODE_RW);
 
-                    account.setRingNotified(false);
-                    int newCount = downloadMessages(account, remoteFolder, localFolder, messages, flagSyncOnly);
+                        account.setRingNotified(false);
+                        newCount = downloadMessages(account, remoteFolder, localFolder, messages, flagSyncOnly);
 
-                    int unreadMessageCount = localFolder.getUnreadMessageCount();
+                        unreadMessageCount = localFolder.getUnreadMessageCount();
 
-                    localFolder.setLastPush(System.currentTimeMillis());
-                    localFolder.setStatus(null);
+                        localFolder.setLastPush(System.currentTimeMillis());
+                        localFolder.setStatus(null);
+                    }
 
                     if (K9.DEBUG)
                         Log.i(K9.LOG_TAG, "messagesArrived newCount = " + newCount + ", unread count = " + unreadMessageCount);
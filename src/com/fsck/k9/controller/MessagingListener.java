@@ -105,6 +105,16 @@ public class MessagingListener {
 
     public void checkMailStarted(Context context, Account account) {}
 
+    /**
+     * Called whenever another account has been checked during a mail check.
+     *
+     * <p>
+     * Accounts are checked concurrently, but calls to this method are not. {@code completed}
+     * increases by one with every call until it reaches {@code total}.
+     * </p>
+     */
+    public void checkMailProgress(Context context, int completed, int total) {}
+
     public void checkMailFinished(Context context, Account account) {}
 
     public void checkMailFailed(Context context, Account account, String reason) {}
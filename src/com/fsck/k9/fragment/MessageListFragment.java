@@ -11,7 +11,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import android.app.Activity;
 import android.content.BroadcastReceiver;
@@ -30,6 +33,7 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Parcelable;
+import android.os.Process;
 import android.support.v4.app.DialogFragment;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.app.LoaderManager.LoaderCallbacks;
@@ -37,11 +41,7 @@ import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v4.content.LocalBroadcastManager;
 import android.support.v4.widget.CursorAdapter;
-import android.text.Spannable;
-import android.text.SpannableStringBuilder;
 import android.text.format.DateUtils;
-import android.text.style.AbsoluteSizeSpan;
-import android.text.style.ForegroundColorSpan;
 import android.util.Log;
 import android.util.TypedValue;
 import android.view.ContextMenu;
@@ -80,6 +80,7 @@ import com.fsck.k9.cache.EmailProviderCache;
 import com.fsck.k9.controller.MessagingController;
 import com.fsck.k9.fragment.ConfirmationDialogFragment.ConfirmationDialogFragmentListener;
 import com.fsck.k9.helper.ContactPicture;
+import com.fsck.k9.helper.Contacts;
 import com.fsck.k9.helper.MergeCursorWithUniqueId;
 import com.fsck.k9.helper.MessageHelper;
 import com.fsck.k9.helper.StringUtils;
@@ -433,6 +434,11 @@ public class MessageListFragment extends SherlockFragment implements OnItemClick
     /* package visibility for faster inner class access */
     MessageHelper mMessageHelper;
 
+    /**
+     * Precomputed data for the rows of the message list. Shared with the loaders.
+     */
+    private MessageListRowCache mRowCache;
+
     private ActionModeCallback mActionModeCallback = new ActionModeCallback();
 
 
@@ -462,6 +468,8 @@ public class MessageListFragment extends SherlockFragment implements OnItemClick
     private LocalBroadcastManager mLocalBroadcastManager;
     private BroadcastReceiver mCacheBroadcastReceiver;
     private IntentFilter mCacheIntentFilter;
+    private BroadcastReceiver mMessagesChangedReceiver;
+    private IntentFilter mMessagesChangedIntentFilter;
 
     /**
      * Stores the unique ID of the message the context menu was opened for.
@@ -844,6 +852,14 @@ public class MessageListFragment extends SherlockFragment implements OnItemClick
 
         mMessageHelper = MessageHelper.getInstance(getActivity());
 
+        //TODO: make this part of the theme
+        int previewColor = (K9.getK9Theme() == K9.Theme.LIGHT) ?
+                Color.rgb(105, 105, 105) :
+                Color.rgb(160, 160, 160);
+        mRowCache = new MessageListRowCache(getActivity(), mMessageHelper, mPreviewLines > 0,
+                K9.messageListSenderAboveSubject(), mFontSizes.getMessageListSender(),
+                mFontSizes.getMessageListSubject(), previewColor);
+
         initializeMessageList();
 
         // This needs to be done before initializing the cursor loader below
@@ -1005,6 +1021,99 @@ public class MessageListFragment extends SherlockFragment implements OnItemClick
         };
 
         mCacheIntentFilter = new IntentFilter(EmailProviderCache.ACTION_CACHE_UPDATED);
+
+        mMessagesChangedReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                onMessagesChanged(intent);
+            }
+        };
+
+        mMessagesChangedIntentFilter =
+                new IntentFilter(EmailProviderCache.ACTION_MESSAGES_CHANGED);
+    }
+
+    /**
+     * Handle row-level flag changes published by {@code LocalStore}.
+     *
+     * <p>
+     * Unthreaded cursors already return the new flag values (see
+     * {@link com.fsck.k9.cache.EmailProviderCacheCursor}), so we only have to redraw the visible
+     * rows. We only re-query if the changed flags affect the selection, the sort order, or the
+     * aggregated values of a threaded list.
+     * </p>
+     */
+    private void onMessagesChanged(Intent intent) {
+        if (mCursorValid == null) {
+            return;
+        }
+
+        String accountUuid = intent.getStringExtra(EmailProviderCache.EXTRA_ACCOUNT_UUID);
+        String[] flagNames = intent.getStringArrayExtra(EmailProviderCache.EXTRA_FLAGS);
+        long[] messageIds = intent.getLongArrayExtra(EmailProviderCache.EXTRA_MESSAGE_IDS);
+
+        for (int i = 0; i < mAccountUuids.length; i++) {
+            if (!mAccountUuids[i].equals(accountUuid)) {
+                continue;
+            }
+
+            if (isRequeryNeededForFlagChange(flagNames)) {
+                Loader<Cursor> loader = getLoaderManager().getLoader(i);
+                if (loader != null) {
+                    loader.onContentChanged();
+                }
+            } else if (isAnyMessageVisible(accountUuid, messageIds)) {
+                mAdapter.notifyDataSetChanged();
+            }
+        }
+    }
+
+    private boolean isRequeryNeededForFlagChange(String[] flagNames) {
+        boolean threadedCursor = mThreadedList && getThreadId(mSearch) == null;
+        if (threadedCursor) {
+            return true;
+        }
+
+        for (String flagName : flagNames) {
+            Flag flag = Flag.valueOf(flagName);
+            if ((flag == Flag.SEEN && mSortType == SortType.SORT_UNREAD) ||
+                    (flag == Flag.FLAGGED && mSortType == SortType.SORT_FLAGGED)) {
+                return true;
+            }
+
+            for (ConditionsTreeNode node : mSearch.getLeafSet()) {
+                Searchfield field = node.mCondition.field;
+                if (field == Searchfield.FLAG ||
+                        (flag == Flag.SEEN && field == Searchfield.READ) ||
+                        (flag == Flag.FLAGGED && field == Searchfield.FLAGGED)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private boolean isAnyMessageVisible(String accountUuid, long[] messageIds) {
+        int headerCount = mListView.getHeaderViewsCount();
+        int first = Math.max(0, mListView.getFirstVisiblePosition() - headerCount);
+        int last = Math.min(mAdapter.getCount() - 1, mListView.getLastVisiblePosition() - headerCount);
+
+        for (int position = first; position <= last; position++) {
+            Cursor cursor = (Cursor) mAdapter.getItem(position);
+            if (cursor == null || !accountUuid.equals(cursor.getString(ACCOUNT_UUID_COLUMN))) {
+                continue;
+            }
+
+            long messageId = cursor.getLong(ID_COLUMN);
+            for (long changedMessageId : messageIds) {
+                if (changedMessageId == messageId) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
     }
 
     private FolderInfoHolder getFolder(String folder, Account account) {
@@ -1053,6 +1162,7 @@ public class MessageListFragment extends SherlockFragment implements OnItemClick
         super.onPause();
 
         mLocalBroadcastManager.unregisterReceiver(mCacheBroadcastReceiver);
+        mLocalBroadcastManager.unregisterReceiver(mMessagesChangedReceiver);
         mListener.onPause(getActivity());
         mController.removeListener(mListener);
     }
@@ -1069,8 +1179,11 @@ public class MessageListFragment extends SherlockFragment implements OnItemClick
         Context appContext = getActivity().getApplicationContext();
 
         mSenderAboveSubject = K9.messageListSenderAboveSubject();
+        mRowCache.setSenderAboveSubject(mSenderAboveSubject);
 
         if (!mLoaderJustInitialized) {
+            // Identities, contacts or display settings might have changed in the meantime
+            mRowCache.clear();
             restartLoader();
         } else {
             mLoaderJustInitialized = false;
@@ -1090,6 +1203,8 @@ public class MessageListFragment extends SherlockFragment implements OnItemClick
         }
 
         mLocalBroadcastManager.registerReceiver(mCacheBroadcastReceiver, mCacheIntentFilter);
+        mLocalBroadcastManager.registerReceiver(mMessagesChangedReceiver,
+                mMessagesChangedIntentFilter);
         mListener.onResume(getActivity());
         mController.addListener(mListener);
 
@@ -1819,16 +1934,6 @@ public class MessageListFragment extends SherlockFragment implements OnItemClick
             mForwardedAnsweredIcon = getResources().getDrawable(R.drawable.ic_email_forwarded_answered_small);
         }
 
-        private String recipientSigil(boolean toMe, boolean ccMe) {
-            if (toMe) {
-                return getString(R.string.messagelist_sent_to_me_sigil);
-            } else if (ccMe) {
-                return getString(R.string.messagelist_sent_cc_me_sigil);
-            } else {
-                return "";
-            }
-        }
-
         @Override
         public View newView(Context context, Cursor cursor, ViewGroup parent) {
             View view = mInflater.inflate(R.layout.message_list_item, parent, false);
@@ -1900,41 +2005,14 @@ public class MessageListFragment extends SherlockFragment implements OnItemClick
         public void bindView(View view, Context context, Cursor cursor) {
             Account account = getAccountFromCursor(cursor);
 
-            String fromList = cursor.getString(SENDER_LIST_COLUMN);
-            String toList = cursor.getString(TO_LIST_COLUMN);
-            String ccList = cursor.getString(CC_LIST_COLUMN);
-            Address[] fromAddrs = Address.unpack(fromList);
-            Address[] toAddrs = Address.unpack(toList);
-            Address[] ccAddrs = Address.unpack(ccList);
+            int threadCount = (mThreadedList) ? cursor.getInt(THREAD_COUNT_COLUMN) : 0;
 
-            boolean fromMe = mMessageHelper.toMe(account, fromAddrs);
-            boolean toMe = mMessageHelper.toMe(account, toAddrs);
-            boolean ccMe = mMessageHelper.toMe(account, ccAddrs);
+            MessageListRowCache.Row row = getRow(mRowCache, account, cursor, threadCount);
+            Address counterpartyAddress = row.counterpartyAddress;
+            String subject = row.subject;
 
-            CharSequence displayName = mMessageHelper.getDisplayName(account, fromAddrs, toAddrs);
             CharSequence displayDate = DateUtils.getRelativeTimeSpanString(context, cursor.getLong(DATE_COLUMN));
 
-            Address counterpartyAddress = null;
-            if (fromMe) {
-                if (toAddrs.length > 0) {
-                    counterpartyAddress = toAddrs[0];
-                } else if (ccAddrs.length > 0) {
-                    counterpartyAddress = ccAddrs[0];
-                }
-            } else if (fromAddrs.length > 0) {
-                counterpartyAddress = fromAddrs[0];
-            }
-
-            int threadCount = (mThreadedList) ? cursor.getInt(THREAD_COUNT_COLUMN) : 0;
-
-            String subject = cursor.getString(SUBJECT_COLUMN);
-            if (StringUtils.isNullOrEmpty(subject)) {
-                subject = getString(R.string.general_no_subject);
-            } else if (threadCount > 1) {
-                // If this is a thread, strip the RE/FW from the subject.  "Be like Outlook."
-                subject = Utility.stripSubject(subject);
-            }
-
             boolean read = (cursor.getInt(READ_COLUMN) == 1);
             boolean flagged = (cursor.getInt(FLAGGED_COLUMN) == 1);
             boolean answered = (cursor.getInt(ANSWERED_COLUMN) == 1);
@@ -2018,41 +2096,7 @@ public class MessageListFragment extends SherlockFragment implements OnItemClick
                 holder.threadCount.setVisibility(View.GONE);
             }
 
-            CharSequence beforePreviewText = (mSenderAboveSubject) ? subject : displayName;
-
-            String sigil = recipientSigil(toMe, ccMe);
-
-            SpannableStringBuilder messageStringBuilder = new SpannableStringBuilder(sigil)
-                    .append(beforePreviewText);
-
-            if (mPreviewLines > 0) {
-                String preview = cursor.getString(PREVIEW_COLUMN);
-                if (preview != null) {
-                    messageStringBuilder.append(" ").append(preview);
-                }
-            }
-
-            holder.preview.setText(messageStringBuilder, TextView.BufferType.SPANNABLE);
-
-            Spannable str = (Spannable)holder.preview.getText();
-
-            // Create a span section for the sender, and assign the correct font size and weight
-            int fontSize = (mSenderAboveSubject) ?
-                    mFontSizes.getMessageListSubject():
-                    mFontSizes.getMessageListSender();
-
-            AbsoluteSizeSpan span = new AbsoluteSizeSpan(fontSize, true);
-            str.setSpan(span, 0, beforePreviewText.length() + sigil.length(),
-                    Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-
-            //TODO: make this part of the theme
-            int color = (K9.getK9Theme() == K9.Theme.LIGHT) ?
-                    Color.rgb(105, 105, 105) :
-                    Color.rgb(160, 160, 160);
-
-            // Set span (color) for preview message
-            str.setSpan(new ForegroundColorSpan(color), beforePreviewText.length() + sigil.length(),
-                    str.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            holder.preview.setText(row.previewText);
 
             Drawable statusHolder = null;
             if (forwarded && answered) {
@@ -2071,11 +2115,8 @@ public class MessageListFragment extends SherlockFragment implements OnItemClick
                             null, // top
                             hasAttachments ? mAttachmentIcon : null, // right
                             null); // bottom
-
-                    holder.from.setText(displayName);
-                } else {
-                    holder.from.setText(new SpannableStringBuilder(sigil).append(displayName));
                 }
+                holder.from.setText(row.senderText);
             }
 
             if (holder.subject != null ) {
@@ -3036,6 +3077,30 @@ public class MessageListFragment extends SherlockFragment implements OnItemClick
         return true;
     }
 
+    /**
+     * @return The message before the given one in the list, or {@code null} if there is none.
+     */
+    public MessageReference getPreviousMessage(MessageReference messageReference) {
+        int position = getPosition(messageReference);
+        if (position <= 0) {
+            return null;
+        }
+
+        return getReferenceForPosition(position - 1);
+    }
+
+    /**
+     * @return The message after the given one in the list, or {@code null} if there is none.
+     */
+    public MessageReference getNextMessage(MessageReference messageReference) {
+        int position = getPosition(messageReference);
+        if (position < 0 || position == mAdapter.getCount() - 1) {
+            return null;
+        }
+
+        return getReferenceForPosition(position + 1);
+    }
+
     public boolean isFirst(MessageReference messageReference) {
         return mAdapter.isEmpty() || messageReference.equals(getReferenceForPosition(0));
     }
@@ -3338,8 +3403,192 @@ public class MessageListFragment extends SherlockFragment implements OnItemClick
 
         String sortOrder = buildSortOrder();
 
-        return new CursorLoader(getActivity(), uri, projection, selection, selectionArgs,
-                sortOrder);
+        return new MessageListLoader(getActivity(), uri, projection, selection, selectionArgs,
+                sortOrder, account, mRowCache, mThreadedList);
+    }
+
+    /**
+     * Get the precomputed data for the message at the current position of {@code cursor}.
+     */
+    static MessageListRowCache.Row getRow(MessageListRowCache rowCache, Account account,
+            Cursor cursor, int threadCount) {
+        return rowCache.getRow(account, cursor.getLong(ID_COLUMN),
+                cursor.getString(SENDER_LIST_COLUMN), cursor.getString(TO_LIST_COLUMN),
+                cursor.getString(CC_LIST_COLUMN), cursor.getString(SUBJECT_COLUMN),
+                cursor.getString(PREVIEW_COLUMN), threadCount);
+    }
+
+    /**
+     * A {@link CursorLoader} that also builds the {@link MessageListRowCache.Row}s for the first
+     * rows of the result, so the message list can be displayed and scrolled without doing that
+     * work on the main thread.
+     *
+     * <p>
+     * The rows that are visible right away are built before the cursor is delivered. The columns
+     * of the following rows are copied out of the cursor, and those rows are built by a
+     * low-priority thread afterwards. The cursor itself is only used by the loader thread until
+     * it is delivered.
+     * </p>
+     */
+    static class MessageListLoader extends CursorLoader {
+        /**
+         * Number of rows to prepare before the cursor is delivered. A bit more than fits on a
+         * large screen.
+         */
+        private static final int PREPARED_ROWS = 50;
+
+        /**
+         * Number of rows to prepare in total. Rows beyond {@link #PREPARED_ROWS} are prepared
+         * after the cursor has been delivered.
+         */
+        private static final int MAX_PREPARED_ROWS = 300;
+
+        private static final ExecutorService ROW_EXECUTOR =
+                Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "MessageListRows");
+                    }
+                });
+
+        private final Account mAccount;
+        private final MessageListRowCache mRowCache;
+        private final boolean mThreadedList;
+
+        /**
+         * Preparation of the rows of the last cursor that didn't fit on the screen.
+         */
+        private Future<?> mRowPreparation;
+
+        MessageListLoader(Context context, Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder, Account account,
+                MessageListRowCache rowCache, boolean threadedList) {
+            super(context, uri, projection, selection, selectionArgs, sortOrder);
+            mAccount = account;
+            mRowCache = rowCache;
+            mThreadedList = threadedList;
+        }
+
+        @Override
+        public Cursor loadInBackground() {
+            Cursor cursor = super.loadInBackground();
+            if (cursor == null) {
+                return null;
+            }
+
+            cancelRowPreparation();
+
+            List<RowColumns> remainingRows = null;
+            try {
+                List<RowColumns> rows = readRows(cursor, 0, PREPARED_ROWS);
+                prepareRows(rows);
+
+                remainingRows = readRows(cursor, PREPARED_ROWS, MAX_PREPARED_ROWS);
+            } catch (RuntimeException e) {
+                // Rows that couldn't be prepared are built when they are displayed
+                Log.w(K9.LOG_TAG, "Couldn't prepare message list rows", e);
+            }
+            cursor.moveToPosition(-1);
+
+            if (remainingRows != null && !remainingRows.isEmpty()) {
+                prepareRowsInBackground(remainingRows);
+            }
+
+            return cursor;
+        }
+
+        @Override
+        protected void onReset() {
+            super.onReset();
+            cancelRowPreparation();
+        }
+
+        private synchronized void cancelRowPreparation() {
+            if (mRowPreparation != null) {
+                mRowPreparation.cancel(true);
+                mRowPreparation = null;
+            }
+        }
+
+        private synchronized void prepareRowsInBackground(final List<RowColumns> rows) {
+            mRowPreparation = ROW_EXECUTOR.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        prepareRows(rows);
+                    } catch (RuntimeException e) {
+                        Log.w(K9.LOG_TAG, "Couldn't prepare message list rows", e);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Copy the columns needed to build the rows {@code start} to {@code end} (exclusive).
+         */
+        private List<RowColumns> readRows(Cursor cursor, int start, int end) {
+            List<RowColumns> rows = new ArrayList<RowColumns>();
+            for (int i = start; i < end && cursor.moveToPosition(i); i++) {
+                rows.add(new RowColumns(cursor, mThreadedList));
+            }
+            return rows;
+        }
+
+        /**
+         * Build the rows, looking up the contacts of their senders and recipients with as few
+         * queries as possible first.
+         */
+        private void prepareRows(List<RowColumns> rows) {
+            if (K9.showContactName()) {
+                Set<String> addresses = new HashSet<String>();
+                for (RowColumns row : rows) {
+                    for (Address address : Address.unpack(row.senderList)) {
+                        addresses.add(address.getAddress());
+                    }
+                    for (Address address : Address.unpack(row.toList)) {
+                        addresses.add(address.getAddress());
+                    }
+                }
+                Contacts.getInstance(getContext()).loadContactsForAddresses(addresses);
+            }
+
+            for (RowColumns row : rows) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                mRowCache.getRow(mAccount, row.id, row.senderList, row.toList, row.ccList,
+                        row.subject, row.preview, row.threadCount);
+            }
+        }
+    }
+
+    /**
+     * The columns of a message list row that {@link MessageListRowCache} builds a row from.
+     */
+    static class RowColumns {
+        final long id;
+        final String senderList;
+        final String toList;
+        final String ccList;
+        final String subject;
+        final String preview;
+        final int threadCount;
+
+        RowColumns(Cursor cursor, boolean threadedList) {
+            id = cursor.getLong(ID_COLUMN);
+            senderList = cursor.getString(SENDER_LIST_COLUMN);
+            toList = cursor.getString(TO_LIST_COLUMN);
+            ccList = cursor.getString(CC_LIST_COLUMN);
+            subject = cursor.getString(SUBJECT_COLUMN);
+            preview = cursor.getString(PREVIEW_COLUMN);
+            threadCount = (threadedList) ? cursor.getInt(THREAD_COUNT_COLUMN) : 0;
+        }
     }
 
     private String getThreadId(LocalSearch search) {
@@ -0,0 +1,280 @@
+package com.fsck.k9.fragment;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.support.v4.util.LruCache;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.SpannedString;
+import android.text.TextUtils;
+import android.text.style.AbsoluteSizeSpan;
+import android.text.style.ForegroundColorSpan;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.R;
+import com.fsck.k9.helper.Contacts;
+import com.fsck.k9.helper.MessageHelper;
+import com.fsck.k9.helper.StringUtils;
+import com.fsck.k9.helper.Utility;
+import com.fsck.k9.mail.Address;
+
+/**
+ * Caches everything the message list needs to display a row that is expensive to compute.
+ *
+ * <p>
+ * Unpacking the address lists, looking up contact names and building the spanned texts for a row
+ * takes too long to be done every time a row is bound while the user flings through the list.
+ * {@link Row}s are created in the background by the loader for the first rows of a freshly
+ * loaded cursor, see {@code MessageListFragment.MessageListLoader}. Only rows beyond those are
+ * built by {@code bindView()}. Afterwards binding a row only copies fields.
+ * </p>
+ *
+ * <p>
+ * Rows are keyed by account and message ID. A cached row is only used if the columns it was
+ * built from haven't changed. All rows are dropped when the contacts change (see
+ * {@link Contacts#getContactsGeneration()}). Identities and display settings can only be
+ * changed on other screens, so the message list clears the cache when it is resumed.
+ * </p>
+ *
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ */
+class MessageListRowCache {
+    /**
+     * Maximum number of rows cached per account.
+     */
+    private static final int MAX_ROWS_PER_ACCOUNT = 400;
+
+
+    /**
+     * The precomputed data of one message list row.
+     */
+    static class Row {
+        private final String mSenderList;
+        private final String mToList;
+        private final String mCcList;
+        private final String mRawSubject;
+        private final String mRawPreview;
+        private final int mThreadCount;
+
+        /**
+         * The address to show the contact picture for. May be {@code null}.
+         */
+        public final Address counterpartyAddress;
+
+        public final CharSequence displayName;
+
+        /**
+         * The subject, or a placeholder if the message doesn't have one.
+         */
+        public final String subject;
+
+        /**
+         * The text of the sender line. The recipient sigil followed by the display name, or just
+         * the display name if the sender is displayed above the subject.
+         */
+        public final CharSequence senderText;
+
+        /**
+         * The text of the preview line, including the sender or subject in front of it and the
+         * spans for font size and color.
+         */
+        public final CharSequence previewText;
+
+        Row(String senderList, String toList, String ccList, String rawSubject,
+                String rawPreview, int threadCount, Address counterpartyAddress,
+                CharSequence displayName, String subject, CharSequence senderText,
+                CharSequence previewText) {
+            mSenderList = senderList;
+            mToList = toList;
+            mCcList = ccList;
+            mRawSubject = rawSubject;
+            mRawPreview = rawPreview;
+            mThreadCount = threadCount;
+            this.counterpartyAddress = counterpartyAddress;
+            this.displayName = displayName;
+            this.subject = subject;
+            this.senderText = senderText;
+            this.previewText = previewText;
+        }
+
+        boolean isBuiltFrom(String senderList, String toList, String ccList, String rawSubject,
+                String rawPreview, int threadCount) {
+            return mThreadCount == threadCount &&
+                    TextUtils.equals(mSenderList, senderList) &&
+                    TextUtils.equals(mRawSubject, rawSubject) &&
+                    TextUtils.equals(mRawPreview, rawPreview) &&
+                    TextUtils.equals(mToList, toList) &&
+                    TextUtils.equals(mCcList, ccList);
+        }
+    }
+
+
+    private final MessageHelper mMessageHelper;
+    private final Contacts mContacts;
+    private final String mNoSubject;
+    private final String mToMeSigil;
+    private final String mCcMeSigil;
+    private final boolean mShowPreview;
+    private final int mSenderFontSize;
+    private final int mSubjectFontSize;
+    private final int mPreviewColor;
+
+    private final Map<String, LruCache<Long, Row>> mRows = new HashMap<String, LruCache<Long, Row>>();
+    private boolean mSenderAboveSubject;
+
+    /**
+     * The value of {@link Contacts#getContactsGeneration()} the cached rows were built with.
+     */
+    private int mContactsGeneration;
+
+
+    /**
+     * @param senderFontSize
+     *         Font size of the sender in the preview line (dip).
+     * @param subjectFontSize
+     *         Font size of the subject in the preview line (dip).
+     * @param previewColor
+     *         Text color of the message preview.
+     */
+    MessageListRowCache(Context context, MessageHelper messageHelper, boolean showPreview,
+            boolean senderAboveSubject, int senderFontSize, int subjectFontSize,
+            int previewColor) {
+        mMessageHelper = messageHelper;
+        mContacts = Contacts.getInstance(context);
+        mContactsGeneration = mContacts.getContactsGeneration();
+        mNoSubject = context.getString(R.string.general_no_subject);
+        mToMeSigil = context.getString(R.string.messagelist_sent_to_me_sigil);
+        mCcMeSigil = context.getString(R.string.messagelist_sent_cc_me_sigil);
+        mShowPreview = showPreview;
+        mSenderAboveSubject = senderAboveSubject;
+        mSenderFontSize = senderFontSize;
+        mSubjectFontSize = subjectFontSize;
+        mPreviewColor = previewColor;
+    }
+
+    /**
+     * Change whether the sender is displayed above the subject. Cached rows are dropped if the
+     * value changes.
+     */
+    public synchronized void setSenderAboveSubject(boolean senderAboveSubject) {
+        if (mSenderAboveSubject != senderAboveSubject) {
+            mSenderAboveSubject = senderAboveSubject;
+            mRows.clear();
+        }
+    }
+
+    public synchronized void clear() {
+        mRows.clear();
+    }
+
+    /**
+     * Get the row for a message, building it if necessary.
+     *
+     * @param threadCount
+     *         The number of messages in the thread, {@code 0} if the list isn't threaded.
+     */
+    public Row getRow(Account account, long messageId, String senderList, String toList,
+            String ccList, String rawSubject, String rawPreview, int threadCount) {
+        int contactsGeneration = mContacts.getContactsGeneration();
+
+        LruCache<Long, Row> rows;
+        boolean senderAboveSubject;
+        synchronized (this) {
+            if (contactsGeneration != mContactsGeneration) {
+                // Contact names might have changed
+                mContactsGeneration = contactsGeneration;
+                mRows.clear();
+            }
+            rows = getRowsForAccount(account.getUuid());
+            senderAboveSubject = mSenderAboveSubject;
+        }
+
+        Row row = rows.get(messageId);
+        if (row != null &&
+                row.isBuiltFrom(senderList, toList, ccList, rawSubject, rawPreview, threadCount)) {
+            return row;
+        }
+
+        row = buildRow(account, senderList, toList, ccList, rawSubject, rawPreview, threadCount,
+                senderAboveSubject);
+
+        // Don't cache a row that might contain outdated contact names
+        if (mContacts.getContactsGeneration() == contactsGeneration) {
+            rows.put(messageId, row);
+        }
+        return row;
+    }
+
+    private LruCache<Long, Row> getRowsForAccount(String accountUuid) {
+        LruCache<Long, Row> rows = mRows.get(accountUuid);
+        if (rows == null) {
+            rows = new LruCache<Long, Row>(MAX_ROWS_PER_ACCOUNT);
+            mRows.put(accountUuid, rows);
+        }
+        return rows;
+    }
+
+    private Row buildRow(Account account, String senderList, String toList, String ccList,
+            String rawSubject, String rawPreview, int threadCount, boolean senderAboveSubject) {
+        Address[] fromAddrs = Address.unpack(senderList);
+        Address[] toAddrs = Address.unpack(toList);
+        Address[] ccAddrs = Address.unpack(ccList);
+
+        boolean fromMe = mMessageHelper.toMe(account, fromAddrs);
+        boolean toMe = mMessageHelper.toMe(account, toAddrs);
+        boolean ccMe = mMessageHelper.toMe(account, ccAddrs);
+
+        CharSequence displayName = mMessageHelper.getDisplayName(account, fromAddrs, toAddrs);
+
+        Address counterpartyAddress = null;
+        if (fromMe) {
+            if (toAddrs.length > 0) {
+                counterpartyAddress = toAddrs[0];
+            } else if (ccAddrs.length > 0) {
+                counterpartyAddress = ccAddrs[0];
+            }
+        } else if (fromAddrs.length > 0) {
+            counterpartyAddress = fromAddrs[0];
+        }
+
+        String subject;
+        if (StringUtils.isNullOrEmpty(rawSubject)) {
+            subject = mNoSubject;
+        } else if (threadCount > 1) {
+            // If this is a thread, strip the RE/FW from the subject.  "Be like Outlook."
+            subject = Utility.stripSubject(rawSubject);
+        } else {
+            subject = rawSubject;
+        }
+
+        String sigil = (toMe) ? mToMeSigil : (ccMe) ? mCcMeSigil : "";
+
+        CharSequence senderText = (senderAboveSubject) ? displayName :
+                new SpannedString(new SpannableStringBuilder(sigil).append(displayName));
+
+        CharSequence beforePreviewText = (senderAboveSubject) ? subject : displayName;
+        SpannableStringBuilder previewText = new SpannableStringBuilder(sigil)
+                .append(beforePreviewText);
+        int beforePreviewLength = previewText.length();
+        if (mShowPreview && rawPreview != null) {
+            previewText.append(" ").append(rawPreview);
+        }
+
+        // Create a span section for the sender, and assign the correct font size and weight
+        int fontSize = (senderAboveSubject) ? mSubjectFontSize : mSenderFontSize;
+        previewText.setSpan(new AbsoluteSizeSpan(fontSize, true), 0, beforePreviewLength,
+                Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+        // Set span (color) for preview message
+        previewText.setSpan(new ForegroundColorSpan(mPreviewColor), beforePreviewLength,
+                previewText.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+        return new Row(senderList, toList, ccList, rawSubject, rawPreview, threadCount,
+                counterpartyAddress, displayName, subject, senderText,
+                new SpannedString(previewText));
+    }
+}
@@ -492,7 +492,7 @@ public class MessageViewFragment extends SherlockFragment implements OnClickList
     }
 
     private void onDownloadRemainder() {
-        if (mMessage.isSet(Flag.X_DOWNLOADED_FULL)) {
+        if (mMessage.isSet(Flag.X_DOWNLOADED_FULL) || mMessage.isSet(Flag.X_VIEWABLE_TRUNCATED)) {
             return;
         }
         mMessageView.downloadRemainderButton().setEnabled(false);
@@ -600,6 +600,7 @@ public class MessageViewFragment extends SherlockFragment implements OnClickList
                         mMessageView.setMessage(account, (LocalMessage) message, mPgpData,
                                 mController, mListener);
                         mFragmentListener.updateMenu();
+                        mFragmentListener.messageBodyAvailable(mMessageReference);
 
                     } catch (MessagingException e) {
                         Log.v(K9.LOG_TAG, "loadMessageForViewBodyAvailable", e);
@@ -863,6 +864,7 @@ public class MessageViewFragment extends SherlockFragment implements OnClickList
         public void showNextMessageOrReturn();
         public void messageHeaderViewAvailable(MessageHeader messageHeaderView);
         public void updateMenu();
+        public void messageBodyAvailable(MessageReference messageReference);
     }
 
     public boolean isInitialized() {
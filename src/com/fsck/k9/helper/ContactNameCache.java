@@ -0,0 +1,253 @@
+package com.fsck.k9.helper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.fsck.k9.K9;
+
+/**
+ * Caches which contact an email address belongs to.
+ *
+ * <p>
+ * Looking up a contact is an IPC call to the contacts provider. The message list, the message
+ * view and notifications look up the same few addresses over and over again, so the results
+ * (including the fact that an address doesn't belong to any contact) are kept in an LRU cache.
+ * The cache is cleared whenever the contacts provider reports a change.
+ * </p>
+ *
+ * <p>
+ * {@link #resolve(Collection)} looks up all addresses that aren't cached yet with a single query.
+ * </p>
+ *
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ */
+class ContactNameCache {
+    private static final int MAX_ENTRIES = 500;
+
+    /**
+     * Maximum number of addresses looked up with one query. SQLite doesn't allow more than 999
+     * arguments.
+     */
+    private static final int MAX_ADDRESSES_PER_QUERY = 250;
+
+    private static final String[] PROJECTION = {
+            ContactsContract.Contacts.DISPLAY_NAME,
+            ContactsContract.CommonDataKinds.Email.DATA,
+            ContactsContract.CommonDataKinds.Email.CONTACT_ID
+    };
+    private static final int NAME_INDEX = 0;
+    private static final int EMAIL_INDEX = 1;
+    private static final int CONTACT_ID_INDEX = 2;
+
+    private static ContactNameCache sInstance;
+
+
+    static synchronized ContactNameCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ContactNameCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+
+    /**
+     * What is known about an email address.
+     */
+    static class Entry {
+        static final Entry NOT_A_CONTACT = new Entry(-1, null);
+
+        /**
+         * The ID of the contact the address belongs to, {@code -1} if it doesn't belong to a
+         * contact.
+         */
+        final long contactId;
+
+        /**
+         * The display name of the contact. May be {@code null}.
+         */
+        final String name;
+
+        Entry(long contactId, String name) {
+            this.contactId = contactId;
+            this.name = name;
+        }
+
+        boolean isContact() {
+            return contactId != -1;
+        }
+    }
+
+
+    private final ContentResolver mContentResolver;
+    private final LruCache<String, Entry> mEntries = new LruCache<String, Entry>(MAX_ENTRIES);
+
+    /**
+     * Incremented every time the cache is cleared. Results of queries that were started before
+     * are not added to the cache.
+     */
+    private int mGeneration;
+
+
+    private ContactNameCache(Context context) {
+        mContentResolver = context.getContentResolver();
+        mContentResolver.registerContentObserver(ContactsContract.Contacts.CONTENT_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        clear();
+                    }
+                });
+    }
+
+    synchronized void clear() {
+        mGeneration++;
+        mEntries.evictAll();
+    }
+
+    /**
+     * Get the cached information about an address, looking it up if necessary.
+     */
+    Entry get(String address) {
+        Entry entry = mEntries.get(address);
+        if (entry != null) {
+            return entry;
+        }
+
+        int generation = getGeneration();
+
+        entry = Entry.NOT_A_CONTACT;
+        Uri uri = Uri.withAppendedPath(ContactsContract.CommonDataKinds.Email.CONTENT_LOOKUP_URI,
+                Uri.encode(address));
+        Cursor cursor = mContentResolver.query(uri, PROJECTION, null, null, Contacts.SORT_ORDER);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    entry = new Entry(cursor.getLong(CONTACT_ID_INDEX),
+                            cursor.getString(NAME_INDEX));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        put(generation, address, entry);
+        return entry;
+    }
+
+    /**
+     * Make sure all addresses in {@code addresses} are cached, using as few queries as possible.
+     */
+    void resolve(Collection<String> addresses) {
+        // Group the addresses that aren't cached by how they are matched against the database
+        Map<String, List<String>> missing = new HashMap<String, List<String>>();
+        for (String address : addresses) {
+            if (address == null || mEntries.get(address) != null) {
+                continue;
+            }
+
+            String key = address.toUpperCase(Locale.US);
+            List<String> variants = missing.get(key);
+            if (variants == null) {
+                variants = new ArrayList<String>(1);
+                missing.put(key, variants);
+            }
+            if (!variants.contains(address)) {
+                variants.add(address);
+            }
+        }
+
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        int generation = getGeneration();
+
+        List<String> keys = new ArrayList<String>(missing.keySet());
+        for (int start = 0; start < keys.size(); start += MAX_ADDRESSES_PER_QUERY) {
+            List<String> batch = keys.subList(start,
+                    Math.min(start + MAX_ADDRESSES_PER_QUERY, keys.size()));
+            try {
+                resolveBatch(generation, batch, missing);
+            } catch (RuntimeException e) {
+                // The addresses will be looked up one by one when they are needed
+                Log.w(K9.LOG_TAG, "Couldn't look up contacts", e);
+                return;
+            }
+        }
+    }
+
+    private void resolveBatch(int generation, List<String> keys,
+            Map<String, List<String>> variantsByKey) {
+        // Like the lookup URI, match addresses case-insensitively
+        StringBuilder selection = new StringBuilder();
+        selection.append("UPPER(").append(ContactsContract.CommonDataKinds.Email.DATA)
+                .append(") IN (");
+        for (int i = 0; i < keys.size(); i++) {
+            selection.append((i == 0) ? "UPPER(?)" : ",UPPER(?)");
+        }
+        selection.append(')');
+
+        Map<String, Entry> found = new HashMap<String, Entry>();
+        Cursor cursor = mContentResolver.query(ContactsContract.CommonDataKinds.Email.CONTENT_URI,
+                PROJECTION, selection.toString(), keys.toArray(new String[keys.size()]),
+                Contacts.SORT_ORDER);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                String email = cursor.getString(EMAIL_INDEX);
+                if (email == null) {
+                    continue;
+                }
+
+                // Rows are sorted like the results of the lookup URI, the first one wins
+                String key = email.toUpperCase(Locale.US);
+                if (!found.containsKey(key)) {
+                    found.put(key, new Entry(cursor.getLong(CONTACT_ID_INDEX),
+                            cursor.getString(NAME_INDEX)));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        for (String key : keys) {
+            Entry entry = found.get(key);
+            if (entry == null) {
+                entry = Entry.NOT_A_CONTACT;
+            }
+            for (String address : variantsByKey.get(key)) {
+                put(generation, address, entry);
+            }
+        }
+    }
+
+    /**
+     * @return A number that changes every time the contacts change.
+     */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    private synchronized void put(int generation, String address, Entry entry) {
+        if (generation == mGeneration) {
+            mEntries.put(address, entry);
+        }
+    }
+}
@@ -14,6 +14,7 @@ import com.fsck.k9.K9;
 import com.fsck.k9.mail.Address;
 
 import java.util.ArrayList;
+import java.util.Collection;
 
 /**
  * Helper class to access the contacts stored on the device.
@@ -78,6 +79,7 @@ public class Contacts {
     protected Context mContext;
     protected ContentResolver mContentResolver;
     protected Boolean mHasContactPicker;
+    private ContactNameCache mNameCache;
 
     /**
      * Constructor
@@ -87,6 +89,7 @@ public class Contacts {
     protected Contacts(Context context) {
         mContext = context;
         mContentResolver = context.getContentResolver();
+        mNameCache = ContactNameCache.getInstance(context);
     }
 
     /**
@@ -140,18 +143,34 @@ public class Contacts {
      *         <tt>false</tt>, otherwise.
      */
     public boolean isInContacts(final String emailAddress) {
-        boolean result = false;
-
-        final Cursor c = getContactByAddress(emailAddress);
+        return mNameCache.get(emailAddress).isContact();
+    }
 
-        if (c != null) {
-            if (c.getCount() > 0) {
-                result = true;
-            }
-            c.close();
-        }
+    /**
+     * Look up the contacts for many email addresses at once.
+     *
+     * <p>
+     * This uses as few queries as possible. Afterwards {@link #getNameForAddress(String)} and
+     * {@link #isInContacts(String)} can answer from the cache for these addresses. Call this
+     * from a background thread before displaying lists of addresses.
+     * </p>
+     *
+     * @param addresses The email addresses to look up. May contain {@code null} values.
+     */
+    public void loadContactsForAddresses(Collection<String> addresses) {
+        mNameCache.resolve(addresses);
+    }
 
-        return result;
+    /**
+     * Get a number that changes every time the contacts change.
+     *
+     * <p>
+     * Caches of data derived from contact names can compare it to the value they saw when they
+     * were filled to find out whether they are stale.
+     * </p>
+     */
+    public int getContactsGeneration() {
+        return mNameCache.getGeneration();
     }
 
     /**
@@ -198,18 +217,7 @@ public class Contacts {
             return null;
         }
 
-        final Cursor c = getContactByAddress(address);
-
-        String name = null;
-        if (c != null) {
-            if (c.getCount() > 0) {
-                c.moveToFirst();
-                name = getName(c);
-            }
-            c.close();
-        }
-
-        return name;
+        return mNameCache.get(address).name;
     }
 
     /**
@@ -322,6 +330,26 @@ public class Contacts {
         return null;
     }
 
+    /**
+     * A contact picture.
+     */
+    public static class Photo {
+        /**
+         * URI to the picture.
+         */
+        public final Uri uri;
+
+        /**
+         * A value that changes whenever the picture changes.
+         */
+        public final String version;
+
+        Photo(Uri uri, String version) {
+            this.uri = uri;
+            this.version = version;
+        }
+    }
+
     /**
      * Get URI to the picture of the contact with the supplied email address.
      *
@@ -333,26 +361,32 @@ public class Contacts {
      *         no such contact could be found or the contact doesn't have a picture.
      */
     public Uri getPhotoUri(String address) {
-        Long contactId;
+        Photo photo = getPhoto(address);
+        return (photo != null) ? photo.uri : null;
+    }
+
+    /**
+     * Get the picture of the contact with the supplied email address.
+     *
+     * @param address
+     *         An email address. The contact database is searched for a contact with this email
+     *         address.
+     *
+     * @return The picture of the contact with the supplied email address. {@code null} if no such
+     *         contact could be found or the contact doesn't have a picture.
+     */
+    public Photo getPhoto(String address) {
+        long contactId;
         try {
-            final Cursor c = getContactByAddress(address);
-            if (c == null) {
+            ContactNameCache.Entry entry = mNameCache.get(address);
+            if (!entry.isContact()) {
                 return null;
             }
-
-            try {
-                if (!c.moveToFirst()) {
-                    return null;
-                }
-
-                contactId = c.getLong(CONTACT_ID_INDEX);
-            } finally {
-                c.close();
-            }
+            contactId = entry.contactId;
 
             Cursor cur = mContentResolver.query(
                     ContactsContract.Data.CONTENT_URI,
-                    null,
+                    new String[] { ContactsContract.Data._ID, ContactsContract.Data.DATA_VERSION },
                     ContactsContract.Data.CONTACT_ID + "=" + contactId + " AND "
                             + ContactsContract.Data.MIMETYPE + "='"
                             + ContactsContract.CommonDataKinds.Photo.CONTENT_ITEM_TYPE + "'", null,
@@ -360,14 +394,19 @@ public class Contacts {
             if (cur == null) {
                 return null;
             }
-            if (!cur.moveToFirst()) {
+            String version;
+            try {
+                if (!cur.moveToFirst()) {
+                    return null; // no photo
+                }
+                // Ok, they have a photo
+                version = cur.getLong(0) + "." + cur.getInt(1);
+            } finally {
                 cur.close();
-                return null; // no photo
             }
-            // Ok, they have a photo
-            cur.close();
             Uri person = ContentUris.withAppendedId(ContactsContract.Contacts.CONTENT_URI, contactId);
-            return Uri.withAppendedPath(person, ContactsContract.Contacts.Photo.CONTENT_DIRECTORY);
+            Uri uri = Uri.withAppendedPath(person, ContactsContract.Contacts.Photo.CONTENT_DIRECTORY);
+            return new Photo(uri, version);
         } catch (Exception e) {
             Log.e(K9.LOG_TAG, "Couldn't fetch photo for contact with email " + address, e);
             return null;
@@ -0,0 +1,533 @@
+package com.fsck.k9.helper;
+
+/**
+ * Replaces the emoji of Japanese carriers with images.
+ *
+ * <p>
+ * The emoji are mapped to the supplementary private use area {@code U+FE000} to {@code U+FEE1C}
+ * by the decoders of those carriers' charsets. In a {@code String} they are stored as surrogate
+ * pairs with a high surrogate between {@code U+DBB8} and {@code U+DBBB}. The image tags are
+ * looked up in a two level table: the high surrogate selects a page, the low surrogate the tag
+ * within that page. Pages are only created for high surrogates that are actually used.
+ * </p>
+ */
+class EmojiConverter {
+    private static final int FIRST_CODE_POINT = 0xFE000;
+    private static final int LAST_CODE_POINT = 0xFEE1C;
+
+    private static final char FIRST_HIGH_SURROGATE = Character.toChars(FIRST_CODE_POINT)[0];
+    private static final char LAST_HIGH_SURROGATE = Character.toChars(LAST_CODE_POINT)[0];
+    private static final int PAGE_SIZE =
+            Character.MAX_LOW_SURROGATE - Character.MIN_LOW_SURROGATE + 1;
+
+    /**
+     * The {@code <img>} tags, indexed by high surrogate and then by low surrogate.
+     */
+    private static final String[][] TAGS =
+            new String[LAST_HIGH_SURROGATE - FIRST_HIGH_SURROGATE + 1][];
+
+    static {
+        // Derived from http://code.google.com/p/emoji4unicode/source/browse/trunk/data/emoji4unicode.xml
+        // XXX: This doesn't cover all the characters.  More emoticons are wanted.
+        add(0xFE000, "sun");
+        add(0xFE001, "cloud");
+        add(0xFE002, "rain");
+        add(0xFE003, "snow");
+        add(0xFE004, "thunder");
+        add(0xFE005, "typhoon");
+        add(0xFE006, "mist");
+        add(0xFE007, "sprinkle");
+        add(0xFE008, "night");
+        add(0xFE009, "sun");
+        add(0xFE00A, "sun");
+        add(0xFE00C, "sun");
+        add(0xFE010, "night");
+        add(0xFE011, "newmoon");
+        add(0xFE012, "moon1");
+        add(0xFE013, "moon2");
+        add(0xFE014, "moon3");
+        add(0xFE015, "fullmoon");
+        add(0xFE016, "moon2");
+        add(0xFE018, "soon");
+        add(0xFE019, "on");
+        add(0xFE01A, "end");
+        add(0xFE01B, "sandclock");
+        add(0xFE01C, "sandclock");
+        add(0xFE01D, "watch");
+        add(0xFE01E, "clock");
+        add(0xFE01F, "clock");
+        add(0xFE020, "clock");
+        add(0xFE021, "clock");
+        add(0xFE022, "clock");
+        add(0xFE023, "clock");
+        add(0xFE024, "clock");
+        add(0xFE025, "clock");
+        add(0xFE026, "clock");
+        add(0xFE027, "clock");
+        add(0xFE028, "clock");
+        add(0xFE029, "clock");
+        add(0xFE02A, "clock");
+        add(0xFE02B, "aries");
+        add(0xFE02C, "taurus");
+        add(0xFE02D, "gemini");
+        add(0xFE02E, "cancer");
+        add(0xFE02F, "leo");
+        add(0xFE030, "virgo");
+        add(0xFE031, "libra");
+        add(0xFE032, "scorpius");
+        add(0xFE033, "sagittarius");
+        add(0xFE034, "capricornus");
+        add(0xFE035, "aquarius");
+        add(0xFE036, "pisces");
+        add(0xFE038, "wave");
+        add(0xFE03B, "night");
+        add(0xFE03C, "clover");
+        add(0xFE03D, "tulip");
+        add(0xFE03E, "bud");
+        add(0xFE03F, "maple");
+        add(0xFE040, "cherryblossom");
+        add(0xFE042, "maple");
+        add(0xFE04E, "clover");
+        add(0xFE04F, "cherry");
+        add(0xFE050, "banana");
+        add(0xFE051, "apple");
+        add(0xFE05B, "apple");
+        add(0xFE190, "eye");
+        add(0xFE191, "ear");
+        add(0xFE193, "kissmark");
+        add(0xFE194, "bleah");
+        add(0xFE195, "rouge");
+        add(0xFE198, "hairsalon");
+        add(0xFE19A, "shadow");
+        add(0xFE19B, "happy01");
+        add(0xFE19C, "happy01");
+        add(0xFE19D, "happy01");
+        add(0xFE19E, "happy01");
+        add(0xFE1B7, "dog");
+        add(0xFE1B8, "cat");
+        add(0xFE1B9, "snail");
+        add(0xFE1BA, "chick");
+        add(0xFE1BB, "chick");
+        add(0xFE1BC, "penguin");
+        add(0xFE1BD, "fish");
+        add(0xFE1BE, "horse");
+        add(0xFE1BF, "pig");
+        add(0xFE1C8, "chick");
+        add(0xFE1C9, "fish");
+        add(0xFE1CF, "aries");
+        add(0xFE1D0, "dog");
+        add(0xFE1D8, "dog");
+        add(0xFE1D9, "fish");
+        add(0xFE1DB, "foot");
+        add(0xFE1DD, "chick");
+        add(0xFE1E0, "pig");
+        add(0xFE1E3, "cancer");
+        add(0xFE320, "angry");
+        add(0xFE321, "sad");
+        add(0xFE322, "wobbly");
+        add(0xFE323, "despair");
+        add(0xFE324, "wobbly");
+        add(0xFE325, "coldsweats02");
+        add(0xFE326, "gawk");
+        add(0xFE327, "lovely");
+        add(0xFE328, "smile");
+        add(0xFE329, "bleah");
+        add(0xFE32A, "bleah");
+        add(0xFE32B, "delicious");
+        add(0xFE32C, "lovely");
+        add(0xFE32D, "lovely");
+        add(0xFE32F, "happy02");
+        add(0xFE330, "happy01");
+        add(0xFE331, "coldsweats01");
+        add(0xFE332, "happy02");
+        add(0xFE333, "smile");
+        add(0xFE334, "happy02");
+        add(0xFE335, "delicious");
+        add(0xFE336, "happy01");
+        add(0xFE337, "happy01");
+        add(0xFE338, "coldsweats01");
+        add(0xFE339, "weep");
+        add(0xFE33A, "crying");
+        add(0xFE33B, "shock");
+        add(0xFE33C, "bearing");
+        add(0xFE33D, "pout");
+        add(0xFE33E, "confident");
+        add(0xFE33F, "sad");
+        add(0xFE340, "think");
+        add(0xFE341, "shock");
+        add(0xFE342, "sleepy");
+        add(0xFE343, "catface");
+        add(0xFE344, "coldsweats02");
+        add(0xFE345, "coldsweats02");
+        add(0xFE346, "bearing");
+        add(0xFE347, "wink");
+        add(0xFE348, "happy01");
+        add(0xFE349, "smile");
+        add(0xFE34A, "happy02");
+        add(0xFE34B, "lovely");
+        add(0xFE34C, "lovely");
+        add(0xFE34D, "weep");
+        add(0xFE34E, "pout");
+        add(0xFE34F, "smile");
+        add(0xFE350, "sad");
+        add(0xFE351, "ng");
+        add(0xFE352, "ok");
+        add(0xFE357, "paper");
+        add(0xFE359, "sad");
+        add(0xFE35A, "angry");
+        add(0xFE4B0, "house");
+        add(0xFE4B1, "house");
+        add(0xFE4B2, "building");
+        add(0xFE4B3, "postoffice");
+        add(0xFE4B4, "hospital");
+        add(0xFE4B5, "bank");
+        add(0xFE4B6, "atm");
+        add(0xFE4B7, "hotel");
+        add(0xFE4B9, "24hours");
+        add(0xFE4BA, "school");
+        add(0xFE4C1, "ship");
+        add(0xFE4C2, "bottle");
+        add(0xFE4C3, "fuji");
+        add(0xFE4C9, "wrench");
+        add(0xFE4CC, "shoe");
+        add(0xFE4CD, "shoe");
+        add(0xFE4CE, "eyeglass");
+        add(0xFE4CF, "t-shirt");
+        add(0xFE4D0, "denim");
+        add(0xFE4D1, "crown");
+        add(0xFE4D2, "crown");
+        add(0xFE4D6, "boutique");
+        add(0xFE4D7, "boutique");
+        add(0xFE4DB, "t-shirt");
+        add(0xFE4DC, "moneybag");
+        add(0xFE4DD, "dollar");
+        add(0xFE4E0, "dollar");
+        add(0xFE4E2, "yen");
+        add(0xFE4E3, "dollar");
+        add(0xFE4EF, "camera");
+        add(0xFE4F0, "bag");
+        add(0xFE4F1, "pouch");
+        add(0xFE4F2, "bell");
+        add(0xFE4F3, "door");
+        add(0xFE4F9, "movie");
+        add(0xFE4FB, "flair");
+        add(0xFE4FD, "sign05");
+        add(0xFE4FF, "book");
+        add(0xFE500, "book");
+        add(0xFE501, "book");
+        add(0xFE502, "book");
+        add(0xFE503, "book");
+        add(0xFE505, "spa");
+        add(0xFE506, "toilet");
+        add(0xFE507, "toilet");
+        add(0xFE508, "toilet");
+        add(0xFE50F, "ribbon");
+        add(0xFE510, "present");
+        add(0xFE511, "birthday");
+        add(0xFE512, "xmas");
+        add(0xFE522, "pocketbell");
+        add(0xFE523, "telephone");
+        add(0xFE524, "telephone");
+        add(0xFE525, "mobilephone");
+        add(0xFE526, "phoneto");
+        add(0xFE527, "memo");
+        add(0xFE528, "faxto");
+        add(0xFE529, "mail");
+        add(0xFE52A, "mailto");
+        add(0xFE52B, "mailto");
+        add(0xFE52C, "postoffice");
+        add(0xFE52D, "postoffice");
+        add(0xFE52E, "postoffice");
+        add(0xFE535, "present");
+        add(0xFE536, "pen");
+        add(0xFE537, "chair");
+        add(0xFE538, "pc");
+        add(0xFE539, "pencil");
+        add(0xFE53A, "clip");
+        add(0xFE53B, "bag");
+        add(0xFE53E, "hairsalon");
+        add(0xFE540, "memo");
+        add(0xFE541, "memo");
+        add(0xFE545, "book");
+        add(0xFE546, "book");
+        add(0xFE547, "book");
+        add(0xFE548, "memo");
+        add(0xFE54D, "book");
+        add(0xFE54F, "book");
+        add(0xFE552, "memo");
+        add(0xFE553, "foot");
+        add(0xFE7D0, "sports");
+        add(0xFE7D1, "baseball");
+        add(0xFE7D2, "golf");
+        add(0xFE7D3, "tennis");
+        add(0xFE7D4, "soccer");
+        add(0xFE7D5, "ski");
+        add(0xFE7D6, "basketball");
+        add(0xFE7D7, "motorsports");
+        add(0xFE7D8, "snowboard");
+        add(0xFE7D9, "run");
+        add(0xFE7DA, "snowboard");
+        add(0xFE7DC, "horse");
+        add(0xFE7DF, "train");
+        add(0xFE7E0, "subway");
+        add(0xFE7E1, "subway");
+        add(0xFE7E2, "bullettrain");
+        add(0xFE7E3, "bullettrain");
+        add(0xFE7E4, "car");
+        add(0xFE7E5, "rvcar");
+        add(0xFE7E6, "bus");
+        add(0xFE7E8, "ship");
+        add(0xFE7E9, "airplane");
+        add(0xFE7EA, "yacht");
+        add(0xFE7EB, "bicycle");
+        add(0xFE7EE, "yacht");
+        add(0xFE7EF, "car");
+        add(0xFE7F0, "run");
+        add(0xFE7F5, "gasstation");
+        add(0xFE7F6, "parking");
+        add(0xFE7F7, "signaler");
+        add(0xFE7FA, "spa");
+        add(0xFE7FC, "carouselpony");
+        add(0xFE7FF, "fish");
+        add(0xFE800, "karaoke");
+        add(0xFE801, "movie");
+        add(0xFE802, "movie");
+        add(0xFE803, "music");
+        add(0xFE804, "art");
+        add(0xFE805, "drama");
+        add(0xFE806, "event");
+        add(0xFE807, "ticket");
+        add(0xFE808, "slate");
+        add(0xFE809, "drama");
+        add(0xFE80A, "game");
+        add(0xFE813, "note");
+        add(0xFE814, "notes");
+        add(0xFE81A, "notes");
+        add(0xFE81C, "tv");
+        add(0xFE81D, "cd");
+        add(0xFE81E, "cd");
+        add(0xFE823, "kissmark");
+        add(0xFE824, "loveletter");
+        add(0xFE825, "ring");
+        add(0xFE826, "ring");
+        add(0xFE827, "kissmark");
+        add(0xFE829, "heart02");
+        add(0xFE82B, "freedial");
+        add(0xFE82C, "sharp");
+        add(0xFE82D, "mobaq");
+        add(0xFE82E, "one");
+        add(0xFE82F, "two");
+        add(0xFE830, "three");
+        add(0xFE831, "four");
+        add(0xFE832, "five");
+        add(0xFE833, "six");
+        add(0xFE834, "seven");
+        add(0xFE835, "eight");
+        add(0xFE836, "nine");
+        add(0xFE837, "zero");
+        add(0xFE960, "fastfood");
+        add(0xFE961, "riceball");
+        add(0xFE962, "cake");
+        add(0xFE963, "noodle");
+        add(0xFE964, "bread");
+        add(0xFE96A, "noodle");
+        add(0xFE973, "typhoon");
+        add(0xFE980, "restaurant");
+        add(0xFE981, "cafe");
+        add(0xFE982, "bar");
+        add(0xFE983, "beer");
+        add(0xFE984, "japanesetea");
+        add(0xFE985, "bottle");
+        add(0xFE986, "wine");
+        add(0xFE987, "beer");
+        add(0xFE988, "bar");
+        add(0xFEAF0, "upwardright");
+        add(0xFEAF1, "downwardright");
+        add(0xFEAF2, "upwardleft");
+        add(0xFEAF3, "downwardleft");
+        add(0xFEAF4, "up");
+        add(0xFEAF5, "down");
+        add(0xFEAF6, "leftright");
+        add(0xFEAF7, "updown");
+        add(0xFEB04, "sign01");
+        add(0xFEB05, "sign02");
+        add(0xFEB06, "sign03");
+        add(0xFEB07, "sign04");
+        add(0xFEB08, "sign05");
+        add(0xFEB0B, "sign01");
+        add(0xFEB0C, "heart01");
+        add(0xFEB0D, "heart02");
+        add(0xFEB0E, "heart03");
+        add(0xFEB0F, "heart04");
+        add(0xFEB10, "heart01");
+        add(0xFEB11, "heart02");
+        add(0xFEB12, "heart01");
+        add(0xFEB13, "heart01");
+        add(0xFEB14, "heart01");
+        add(0xFEB15, "heart01");
+        add(0xFEB16, "heart01");
+        add(0xFEB17, "heart01");
+        add(0xFEB18, "heart02");
+        add(0xFEB19, "cute");
+        add(0xFEB1A, "heart");
+        add(0xFEB1B, "spade");
+        add(0xFEB1C, "diamond");
+        add(0xFEB1D, "club");
+        add(0xFEB1E, "smoking");
+        add(0xFEB1F, "nosmoking");
+        add(0xFEB20, "wheelchair");
+        add(0xFEB21, "free");
+        add(0xFEB22, "flag");
+        add(0xFEB23, "danger");
+        add(0xFEB26, "ng");
+        add(0xFEB27, "ok");
+        add(0xFEB28, "ng");
+        add(0xFEB29, "copyright");
+        add(0xFEB2A, "tm");
+        add(0xFEB2B, "secret");
+        add(0xFEB2C, "recycle");
+        add(0xFEB2D, "r-mark");
+        add(0xFEB2E, "ban");
+        add(0xFEB2F, "empty");
+        add(0xFEB30, "pass");
+        add(0xFEB31, "full");
+        add(0xFEB36, "new");
+        add(0xFEB44, "fullmoon");
+        add(0xFEB48, "ban");
+        add(0xFEB55, "cute");
+        add(0xFEB56, "flair");
+        add(0xFEB57, "annoy");
+        add(0xFEB58, "bomb");
+        add(0xFEB59, "sleepy");
+        add(0xFEB5A, "impact");
+        add(0xFEB5B, "sweat01");
+        add(0xFEB5C, "sweat02");
+        add(0xFEB5D, "dash");
+        add(0xFEB5F, "sad");
+        add(0xFEB60, "shine");
+        add(0xFEB61, "cute");
+        add(0xFEB62, "cute");
+        add(0xFEB63, "newmoon");
+        add(0xFEB64, "newmoon");
+        add(0xFEB65, "newmoon");
+        add(0xFEB66, "newmoon");
+        add(0xFEB67, "newmoon");
+        add(0xFEB77, "shine");
+        add(0xFEB81, "id");
+        add(0xFEB82, "key");
+        add(0xFEB83, "enter");
+        add(0xFEB84, "clear");
+        add(0xFEB85, "search");
+        add(0xFEB86, "key");
+        add(0xFEB87, "key");
+        add(0xFEB8A, "key");
+        add(0xFEB8D, "search");
+        add(0xFEB90, "key");
+        add(0xFEB91, "recycle");
+        add(0xFEB92, "mail");
+        add(0xFEB93, "rock");
+        add(0xFEB94, "scissors");
+        add(0xFEB95, "paper");
+        add(0xFEB96, "punch");
+        add(0xFEB97, "good");
+        add(0xFEB9D, "paper");
+        add(0xFEB9F, "ok");
+        add(0xFEBA0, "down");
+        add(0xFEBA1, "paper");
+        add(0xFEE10, "info01");
+        add(0xFEE11, "info02");
+        add(0xFEE12, "by-d");
+        add(0xFEE13, "d-point");
+        add(0xFEE14, "appli01");
+        add(0xFEE15, "appli02");
+        add(0xFEE1C, "movie");
+    }
+
+    private static void add(int codePoint, String emoji) {
+        char[] surrogates = Character.toChars(codePoint);
+        int pageIndex = surrogates[0] - FIRST_HIGH_SURROGATE;
+        String[] page = TAGS[pageIndex];
+        if (page == null) {
+            page = new String[PAGE_SIZE];
+            TAGS[pageIndex] = page;
+        }
+        page[surrogates[1] - Character.MIN_LOW_SURROGATE] =
+                "<img src=\"file:///android_asset/emoticons/" + emoji + ".gif\" alt=\"" +
+                emoji + "\" />";
+    }
+
+
+    /**
+     * Replace the emoji in a piece of HTML with {@code <img>} tags.
+     *
+     * @return The converted HTML, or {@code html} itself if it doesn't contain any known emoji.
+     */
+    static String convert(String html) {
+        int length = html.length();
+        int i = findHighSurrogate(html, 0, length);
+        if (i == length) {
+            return html;
+        }
+
+        StringBuilder buff = null;
+        int copied = 0;
+        for (; i < length; i = findHighSurrogate(html, i + 1, length)) {
+            String tag = getTag(html, i);
+            if (tag == null) {
+                continue;
+            }
+
+            if (buff == null) {
+                buff = new StringBuilder(length + 512);
+            }
+            buff.append(html, copied, i).append(tag);
+
+            // Skip the low surrogate
+            i++;
+            copied = i + 1;
+        }
+
+        if (buff == null) {
+            return html;
+        }
+
+        buff.append(html, copied, length);
+        return buff.toString();
+    }
+
+    /**
+     * Find the next char that might start an emoji. Most text doesn't contain any, so this is
+     * kept as simple as possible.
+     *
+     * @return The index of the char, or {@code length} if there is none.
+     */
+    private static int findHighSurrogate(String html, int start, int length) {
+        for (int i = start; i < length; i++) {
+            char c = html.charAt(i);
+            if (c >= FIRST_HIGH_SURROGATE && c <= LAST_HIGH_SURROGATE) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Get the tag for the surrogate pair starting at {@code index}.
+     *
+     * @return The tag, or {@code null} if there is no surrogate pair at {@code index} or it
+     *         isn't a known emoji.
+     */
+    private static String getTag(String html, int index) {
+        if (index + 1 == html.length()) {
+            return null;
+        }
+
+        String[] page = TAGS[html.charAt(index) - FIRST_HIGH_SURROGATE];
+        char low = html.charAt(index + 1);
+        if (page == null || !Character.isLowSurrogate(low)) {
+            return null;
+        }
+
+        return page[low - Character.MIN_LOW_SURROGATE];
+    }
+}
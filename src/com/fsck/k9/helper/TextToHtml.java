@@ -0,0 +1,290 @@
+package com.fsck.k9.helper;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Converts plain text to HTML while it is being read.
+ *
+ * <p>
+ * Quoted lines are turned into nested blockquotes, lines of {@code -}, {@code =} or {@code _}
+ * into horizontal rules and URLs into links. The text is processed one line at a time, so
+ * memory use doesn't depend on the size of the text and the HTML of the first lines is written
+ * before the rest of the text has been read.
+ * </p>
+ */
+class TextToHtml {
+    static final String K9MAIL_CSS_CLASS = "k9mail";
+
+    static final String QUOTE_COLOR_DEFAULT = "#ccc";
+    static final String QUOTE_COLOR_LEVEL_1 = "#729fcf";
+    static final String QUOTE_COLOR_LEVEL_2 = "#ad7fa8";
+    static final String QUOTE_COLOR_LEVEL_3 = "#8ae234";
+    static final String QUOTE_COLOR_LEVEL_4 = "#fcaf3e";
+    static final String QUOTE_COLOR_LEVEL_5 = "#e9b96e";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final String HTML_PRE_START = "<pre class=\"" + K9MAIL_CSS_CLASS + "\">";
+    private static final String HTML_PRE_END = "</pre>";
+    private static final String HTML_BLOCKQUOTE_COLOR_TOKEN = "$$COLOR$$";
+    private static final String HTML_BLOCKQUOTE_START = "<blockquote class=\"gmail_quote\" " +
+            "style=\"margin: 0pt 0pt 1ex 0.8ex; border-left: 1px solid $$COLOR$$; padding-left: 1ex;\">";
+    private static final String HTML_BLOCKQUOTE_END = "</blockquote>";
+    private static final String HTML_NEWLINE = "<br />";
+
+    /**
+     * Token for {@code >} that can't occur in converted text. See {@link #appendChar(int)}.
+     */
+    private static final String GREATER_THAN_TOKEN = "<gt>";
+
+    private static final Pattern HORIZONTAL_RULE_PATTERN = Pattern.compile("\\s*([-=_]{30,}+)\\s*");
+    private static final Pattern BITCOIN_URI_PATTERN = Pattern.compile(Regex.BITCOIN_URI_PATTERN);
+
+
+    /**
+     * Convert plain text to HTML.
+     *
+     * @param text
+     *         The plain text. It is read until the end but not closed.
+     * @param html
+     *         Receives the HTML. It is neither flushed nor closed.
+     */
+    static void convert(Reader text, Writer html) throws IOException {
+        new TextToHtml(html).convert(text);
+    }
+
+    /**
+     * Return an HTML hex color string for a given quote level.
+     * @param level Quote level
+     * @return Hex color string with prepended #.
+     */
+    static String getQuoteColor(final int level) {
+        switch(level) {
+            case 1:
+                return QUOTE_COLOR_LEVEL_1;
+            case 2:
+                return QUOTE_COLOR_LEVEL_2;
+            case 3:
+                return QUOTE_COLOR_LEVEL_3;
+            case 4:
+                return QUOTE_COLOR_LEVEL_4;
+            case 5:
+                return QUOTE_COLOR_LEVEL_5;
+            default:
+                return QUOTE_COLOR_DEFAULT;
+        }
+    }
+
+    /**
+     * Searches for link-like text in a string and turn it into a link. Append the result to
+     * <tt>outputBuffer</tt>. <tt>text</tt> is not modified.
+     * @param text Plain text to be linkified.
+     * @param outputBuffer Buffer to append linked text to.
+     */
+    static void linkifyText(final String text, final StringBuffer outputBuffer) {
+        String prepared = BITCOIN_URI_PATTERN.matcher(text).replaceAll("<a href=\"$0\">$0</a>");
+
+        Matcher m = Regex.WEB_URL_PATTERN.matcher(prepared);
+        while (m.find()) {
+            int start = m.start();
+            if (start == 0 || (start != 0 && prepared.charAt(start - 1) != '@')) {
+                if (m.group().indexOf(':') > 0) { // With no URI-schema we may get "http:/" links with the second / missing
+                    m.appendReplacement(outputBuffer, "<a href=\"$0\">$0</a>");
+                } else {
+                    m.appendReplacement(outputBuffer, "<a href=\"http://$0\">$0</a>");
+                }
+            } else {
+                m.appendReplacement(outputBuffer, "$0");
+            }
+        }
+
+        m.appendTail(outputBuffer);
+    }
+
+
+    private final Writer mHtml;
+
+    /**
+     * The HTML of the current line, before links and horizontal rules are added.
+     */
+    private final StringBuilder mLine = new StringBuilder();
+
+    /**
+     * HTML of complete lines that hasn't been written yet because it ends with line breaks.
+     * See {@link #addLine(String)}.
+     */
+    private final StringBuilder mPending = new StringBuilder();
+
+    /**
+     * The number of line breaks at the end of {@link #mPending}.
+     */
+    private int mPendingBreaks;
+
+    private boolean mStartOfLine = true;
+    private int mSpaces;
+    private int mQuotesThisLine;
+    private int mQuoteDepth;
+
+
+    private TextToHtml(Writer html) {
+        mHtml = html;
+    }
+
+    private void convert(Reader text) throws IOException {
+        mHtml.write(HTML_PRE_START);
+
+        char[] buffer = new char[BUFFER_SIZE];
+        int count;
+        while ((count = text.read(buffer)) != -1) {
+            for (int i = 0; i < count; i++) {
+                processChar(buffer[i]);
+            }
+        }
+
+        // The last line isn't terminated by a newline. Close off any quotes we may have opened.
+        for (int i = mQuoteDepth; i > 0; i--) {
+            mLine.append(HTML_BLOCKQUOTE_END);
+        }
+        addLine(mLine.toString());
+
+        mHtml.write(HTML_PRE_END);
+    }
+
+    private void processChar(char c) throws IOException {
+        if (mStartOfLine) {
+            switch (c) {
+                case ' ':
+                    mSpaces++;
+                    return;
+                case '>':
+                    mQuotesThisLine++;
+                    mSpaces = 0;
+                    return;
+                default:
+                    // Quotes and indentation are only known when the content of the line starts
+                    appendBlockquotes();
+                    appendSpaces();
+                    mStartOfLine = false;
+                    break;
+            }
+        }
+
+        appendChar(c);
+
+        if (c == '\n') {
+            mStartOfLine = true;
+            mQuotesThisLine = 0;
+            addLine(mLine.toString());
+            mLine.setLength(0);
+        }
+    }
+
+    private void appendBlockquotes() {
+        // Add/remove blockquotes by comparing this line's quotes to the previous line's quotes.
+        if (mQuotesThisLine > mQuoteDepth) {
+            for (int i = mQuoteDepth; i < mQuotesThisLine; i++) {
+                mLine.append(HTML_BLOCKQUOTE_START.replace(HTML_BLOCKQUOTE_COLOR_TOKEN, getQuoteColor(i + 1)));
+            }
+        } else if (mQuotesThisLine < mQuoteDepth) {
+            for (int i = mQuoteDepth; i > mQuotesThisLine; i--) {
+                mLine.append(HTML_BLOCKQUOTE_END);
+            }
+        }
+        mQuoteDepth = mQuotesThisLine;
+    }
+
+    private void appendSpaces() {
+        while (mSpaces > 0) {
+            mLine.append(' ');
+            mSpaces--;
+        }
+    }
+
+    private void appendChar(int c) {
+        switch (c) {
+        case '&':
+            mLine.append("&amp;");
+            break;
+        case '<':
+            mLine.append("&lt;");
+            break;
+        case '>':
+            // We use a token here which can't occur in htmlified text because &gt; is valid
+            // within links (where > is not), and linkifying links will include it if we
+            // do it here. We'll change this back to &gt; after the linkification is done.
+            mLine.append(GREATER_THAN_TOKEN);
+            break;
+        case '\r':
+            break;
+        case '\n':
+            // pine treats <br> as two newlines, but <br/> as one newline.  Use <br/> so our messages aren't
+            // doublespaced.
+            mLine.append(HTML_NEWLINE);
+            break;
+        default:
+            mLine.append((char)c);
+            break;
+        }
+    }
+
+    /**
+     * Write the HTML of a line.
+     *
+     * <p>
+     * Newlines at the end of blockquotes look nicer when the newlines beyond the first one are
+     * put outside of the blockquote. So lines ending with newlines are held back until it is
+     * known whether the next line ends a blockquote.
+     * </p>
+     */
+    private void addLine(String line) throws IOException {
+        if (mPendingBreaks > 0 && line.equals(HTML_NEWLINE)) {
+            mPending.append(HTML_NEWLINE);
+            mPendingBreaks++;
+            return;
+        }
+
+        if (mPendingBreaks > 1 && line.startsWith(HTML_BLOCKQUOTE_END)) {
+            mPending.setLength(mPending.length() - mPendingBreaks * HTML_NEWLINE.length());
+            mPending.append(HTML_BLOCKQUOTE_END);
+            for (int i = 1; i < mPendingBreaks; i++) {
+                mPending.append(HTML_NEWLINE);
+            }
+            line = line.substring(HTML_BLOCKQUOTE_END.length());
+        }
+
+        if (mPending.length() > 0) {
+            write(mPending.toString());
+            mPending.setLength(0);
+            mPendingBreaks = 0;
+        }
+
+        if (line.endsWith(HTML_NEWLINE)) {
+            mPending.append(line);
+            mPendingBreaks = 1;
+        } else if (line.length() > 0) {
+            write(line);
+        }
+    }
+
+    /**
+     * Add horizontal rules and links to a piece of HTML and write it.
+     *
+     * <p>
+     * Neither can span multiple lines, so {@code html} has to consist of complete lines.
+     * </p>
+     */
+    private void write(String html) throws IOException {
+        // Replace lines of -,= or _ with horizontal rules
+        String text = HORIZONTAL_RULE_PATTERN.matcher(html).replaceAll("<hr />");
+
+        StringBuffer linkified = new StringBuffer(text.length() + 64);
+        linkifyText(text, linkified);
+
+        // Above we replaced > with <gt>, now make it &gt;
+        mHtml.write(linkified.toString().replace(GREATER_THAN_TOKEN, "&gt;"));
+    }
+}
@@ -1,5 +1,8 @@
 package com.fsck.k9.helper.power;
 
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -17,6 +20,13 @@ public class TracingPowerManager {
     private static TracingPowerManager tracingPowerManager;
     private Timer timer = null;
 
+    private static final long ONE_HOUR = 60 * 60 * 1000;
+
+    /**
+     * Times of the wakeups during the last hour, by cause.
+     */
+    private final Map<String, LinkedList<Long>> wakeups = new HashMap<String, LinkedList<Long>>();
+
     public static synchronized TracingPowerManager getPowerManager(Context context) {
         Context appContext = context.getApplicationContext();
         if (tracingPowerManager == null) {
@@ -39,6 +49,56 @@ public class TracingPowerManager {
     public TracingWakeLock newWakeLock(int flags, String tag) {
         return new TracingWakeLock(flags, tag);
     }
+
+    /**
+     * Record that the device was woken up (by an alarm) on our behalf.
+     *
+     * @param cause
+     *         Short description of why we woke up, e.g. "poll" or "pushRefresh".
+     */
+    public void recordWakeup(String cause) {
+        long now = System.currentTimeMillis();
+        synchronized (wakeups) {
+            LinkedList<Long> times = wakeups.get(cause);
+            if (times == null) {
+                times = new LinkedList<Long>();
+                wakeups.put(cause, times);
+            }
+            times.add(now);
+            removeOldWakeups(times, now - ONE_HOUR);
+
+            if (K9.DEBUG) {
+                Log.i(K9.LOG_TAG, "Wakeup for " + cause + ", wakeups during the last hour: " +
+                        getWakeupsPerHour());
+            }
+        }
+    }
+
+    /**
+     * Get the number of wakeups during the last hour, by cause.
+     */
+    public Map<String, Integer> getWakeupsPerHour() {
+        long cutoff = System.currentTimeMillis() - ONE_HOUR;
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        synchronized (wakeups) {
+            for (Map.Entry<String, LinkedList<Long>> entry : wakeups.entrySet()) {
+                LinkedList<Long> times = entry.getValue();
+                removeOldWakeups(times, cutoff);
+                result.put(entry.getKey(), times.size());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Remove the times before {@code cutoff} from the start of {@code times}.
+     */
+    private static void removeOldWakeups(LinkedList<Long> times, long cutoff) {
+        while (!times.isEmpty() && times.getFirst() < cutoff) {
+            times.removeFirst();
+        }
+    }
+
     public class TracingWakeLock {
         final WakeLock wakeLock;
         final int id;
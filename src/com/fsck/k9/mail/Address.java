@@ -252,8 +252,6 @@ public class Address {
         } else if (contacts != null) {
             final String name = contacts.getNameForAddress(mAddress);
 
-            // TODO: The results should probably be cached for performance reasons.
-
             if (name != null) {
                 if (K9.changeContactNameColor()) {
                     final SpannableString coloredName = new SpannableString(name);
@@ -0,0 +1,288 @@
+package com.fsck.k9.mail;
+
+/**
+ * Builds the message summary shown in the message list.
+ *
+ * <p>
+ * This produces exactly the same result as the chain of {@code String.replaceAll()} calls that
+ * {@link Message#calculateContentPreview(String)} used to run, but without compiling any regular
+ * expressions or creating intermediate strings. The text is copied into a {@code char} array
+ * once and every step works in place. No step ever makes the text longer, so each one can write
+ * its output over the input it has already consumed.
+ * </p>
+ */
+public class ContentPreviewExtractor {
+    /**
+     * Only look at the first 8k of a message when calculating the preview. This should avoid
+     * unnecessary memory usage on large messages.
+     */
+    private static final int MAX_INPUT_LENGTH = 8192;
+
+    private static final int MAX_PREVIEW_LENGTH = 512;
+
+    /**
+     * Minimum length of a run of {@code -}, {@code =} or {@code _} to be considered a horizontal
+     * rule.
+     */
+    private static final int MIN_RULE_LENGTH = 30;
+
+
+    private ContentPreviewExtractor() {
+    }
+
+    /**
+     * Takes a plain text message body and returns a message summary suitable for showing in a
+     * message list.
+     *
+     * <p>
+     * Signatures, quoted text, quote headers and horizontal rules are removed, URLs are replaced
+     * with "...", and all whitespace is collapsed.
+     * </p>
+     */
+    public static String extract(String text) {
+        if (text == null) {
+            return null;
+        }
+
+        int length = Math.min(text.length(), MAX_INPUT_LENGTH);
+        char[] chars = new char[length];
+        text.getChars(0, length, chars, 0);
+
+        length = removeSignature(chars, length);
+        length = removeQuotesAndHeaders(chars, length);
+        length = replaceHorizontalRules(chars, length);
+        length = replaceUrls(chars, length);
+        length = collapseWhitespace(chars, length);
+
+        // Same as String.trim()
+        int start = 0;
+        while (start < length && chars[start] <= ' ') {
+            start++;
+        }
+        while (length > start && chars[length - 1] <= ' ') {
+            length--;
+        }
+
+        return new String(chars, start, Math.min(length - start, MAX_PREVIEW_LENGTH));
+    }
+
+    /**
+     * Cut the text at the first line that consists of "-- " and is followed by CR or LF.
+     */
+    private static int removeSignature(char[] chars, int length) {
+        for (int i = 0; i + 3 < length; i++) {
+            if (chars[i] == '-' && chars[i + 1] == '-' && chars[i + 2] == ' ' &&
+                    (chars[i + 3] == '\r' || chars[i + 3] == '\n') && isLineStart(chars, i)) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Empty lines of dashes, quoted lines, "On ... wrote" headers and lines ending in a word
+     * followed by a colon. The line terminators are kept.
+     */
+    private static int removeQuotesAndHeaders(char[] chars, int length) {
+        int read = 0;
+        int write = 0;
+        while (read < length) {
+            if (isLineTerminator(chars[read])) {
+                chars[write++] = chars[read++];
+                continue;
+            }
+
+            int end = read + 1;
+            while (end < length && !isLineTerminator(chars[end])) {
+                end++;
+            }
+
+            if (!isRemovableLine(chars, read, end)) {
+                System.arraycopy(chars, read, chars, write, end - read);
+                write += end - read;
+            }
+            read = end;
+        }
+        return write;
+    }
+
+    private static boolean isRemovableLine(char[] chars, int start, int end) {
+        char first = chars[start];
+        if (first == '#' || first == '>') {
+            return true;
+        }
+
+        int length = end - start;
+        if (length >= 4 && first == '-' && chars[start + 1] == '-' && chars[start + 2] == '-' &&
+                chars[start + 3] == '-') {
+            return true;
+        }
+
+        if (length >= 2 && chars[end - 1] == ':' && isWordChar(chars[end - 2])) {
+            return true;
+        }
+
+        if (length >= 8 && first == 'O' && chars[start + 1] == 'n' && chars[start + 2] == ' ') {
+            // "wrote" may be followed by one more character (code point)
+            if (endsWithWrote(chars, start, end) || endsWithWrote(chars, start, end - 1)) {
+                return true;
+            }
+            if (end - start >= 10 && Character.isHighSurrogate(chars[end - 2]) &&
+                    Character.isLowSurrogate(chars[end - 1]) &&
+                    endsWithWrote(chars, start, end - 2)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Check whether {@code chars[start..end)} ends with "wrote" and there are at least three
+     * characters ("On ") in front of it.
+     */
+    private static boolean endsWithWrote(char[] chars, int start, int end) {
+        return end - start >= 8 && chars[end - 5] == 'w' && chars[end - 4] == 'r' &&
+                chars[end - 3] == 'o' && chars[end - 2] == 't' && chars[end - 1] == 'e';
+    }
+
+    /**
+     * Replace runs of at least {@link #MIN_RULE_LENGTH} {@code -}, {@code =} or {@code _}
+     * characters, together with the whitespace around them, with a single space.
+     */
+    private static int replaceHorizontalRules(char[] chars, int length) {
+        int read = 0;
+        int write = 0;
+        while (read < length) {
+            int ruleStart = read;
+            while (ruleStart < length && isWhitespace(chars[ruleStart])) {
+                ruleStart++;
+            }
+            int ruleEnd = ruleStart;
+            while (ruleEnd < length && isRuleChar(chars[ruleEnd])) {
+                ruleEnd++;
+            }
+
+            if (ruleEnd - ruleStart >= MIN_RULE_LENGTH) {
+                int end = ruleEnd;
+                while (end < length && isWhitespace(chars[end])) {
+                    end++;
+                }
+                chars[write++] = ' ';
+                read = end;
+            } else {
+                // No rule can start anywhere before ruleEnd
+                int end = Math.max(ruleEnd, Math.min(ruleStart + 1, length));
+                System.arraycopy(chars, read, chars, write, end - read);
+                write += end - read;
+                read = end;
+            }
+        }
+        return write;
+    }
+
+    /**
+     * URLs in the preview should just be shown as "..." - They're not clickable and they usually
+     * overwhelm the preview.
+     */
+    private static int replaceUrls(char[] chars, int length) {
+        int read = 0;
+        int write = 0;
+        while (read < length) {
+            int urlEnd = (chars[read] == 'h') ? findUrlEnd(chars, read, length) : -1;
+            if (urlEnd != -1) {
+                chars[write++] = '.';
+                chars[write++] = '.';
+                chars[write++] = '.';
+                read = urlEnd;
+            } else {
+                chars[write++] = chars[read++];
+            }
+        }
+        return write;
+    }
+
+    /**
+     * @return The end of the URL starting at {@code start} or {@code -1} if there is none.
+     */
+    private static int findUrlEnd(char[] chars, int start, int length) {
+        int i = start;
+        if (i + 4 > length || chars[i] != 'h' || chars[i + 1] != 't' || chars[i + 2] != 't' ||
+                chars[i + 3] != 'p') {
+            return -1;
+        }
+        i += 4;
+        if (i < length && chars[i] == 's') {
+            i++;
+        }
+        if (i + 3 > length || chars[i] != ':' || chars[i + 1] != '/' || chars[i + 2] != '/') {
+            return -1;
+        }
+        i += 3;
+        if (i >= length || isWhitespace(chars[i])) {
+            return -1;
+        }
+        while (i < length && !isWhitespace(chars[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Replace every run of whitespace (including line breaks) with a single space.
+     */
+    private static int collapseWhitespace(char[] chars, int length) {
+        int write = 0;
+        boolean inWhitespace = false;
+        for (int read = 0; read < length; read++) {
+            char c = chars[read];
+            if (isWhitespace(c)) {
+                if (!inWhitespace) {
+                    chars[write++] = ' ';
+                    inWhitespace = true;
+                }
+            } else {
+                chars[write++] = c;
+                inWhitespace = false;
+            }
+        }
+        return write;
+    }
+
+    /**
+     * Line start as defined by {@code ^} in {@code java.util.regex.Pattern#MULTILINE} mode.
+     */
+    private static boolean isLineStart(char[] chars, int index) {
+        if (index == 0) {
+            return true;
+        }
+        char previous = chars[index - 1];
+        return isLineTerminator(previous) && !(previous == '\r' && chars[index] == '\n');
+    }
+
+    /**
+     * Line terminators as recognized by {@code java.util.regex.Pattern}.
+     */
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     * Same as {@code \s} in {@code java.util.regex.Pattern}.
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Same as {@code \w} in {@code java.util.regex.Pattern}.
+     */
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+                c == '_';
+    }
+
+    private static boolean isRuleChar(char c) {
+        return c == '-' || c == '=' || c == '_';
+    }
+}
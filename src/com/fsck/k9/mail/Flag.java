@@ -44,6 +44,12 @@ public enum Flag {
      */
     X_DOWNLOADED_PARTIAL,
 
+    /**
+     * Indicates that the viewable text of a message was too long to be stored completely. Such a
+     * message is never marked as {@link #X_DOWNLOADED_FULL}.
+     */
+    X_VIEWABLE_TRUNCATED,
+
     /**
      * Indicates that the copy of a message to the Sent folder has started.
      */
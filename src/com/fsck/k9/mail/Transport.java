@@ -68,6 +68,19 @@ public abstract class Transport {
 
     public abstract void open() throws MessagingException;
 
+    /**
+     * Ask the transport to keep its connection open between calls to
+     * {@link #sendMessage(Message)}, so sending several messages in a row doesn't require a new
+     * connection (and authentication) per message. The caller has to call {@link #close()} when
+     * done.
+     *
+     * <p>
+     * Transports that don't use persistent connections ignore this.
+     * </p>
+     */
+    public void setKeepConnectionOpen(boolean keepConnectionOpen) {
+    }
+
     public abstract void sendMessage(Message message) throws MessagingException;
 
     public abstract void close();
@@ -0,0 +1,208 @@
+package com.fsck.k9.mail.filter;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes Base64-encoded data read from another {@link InputStream}.
+ *
+ * <p>
+ * The decoding is lenient and produces the same output as mime4j's {@code Base64InputStream}:
+ * Characters that are not part of the Base64 alphabet are ignored. The first padding character
+ * ends the data, anything after it is ignored. Incomplete groups at the end of the data are
+ * dropped.
+ * </p>
+ *
+ * <p>
+ * Groups of four characters without line breaks or other characters in between are decoded in a
+ * tight loop, everything else one character at a time.
+ * </p>
+ *
+ * <p>
+ * Like the mime4j decoders, closing this stream does not close the wrapped stream.
+ * </p>
+ */
+public class Base64InputStream extends InputStream {
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final int PAD = '=';
+
+    /**
+     * Maps the characters of the Base64 alphabet to their 6-bit values. All other values are
+     * {@code -1}.
+     */
+    private static final byte[] DECODE_TABLE = new byte[256];
+
+    static {
+        for (int i = 0; i < DECODE_TABLE.length; i++) {
+            DECODE_TABLE[i] = -1;
+        }
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            DECODE_TABLE[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
+
+    private final InputStream mIn;
+    private final byte[] mEncoded;
+    private final byte[] mDecoded;
+    private int mDecodedPos;
+    private int mDecodedLimit;
+
+    /**
+     * Bits of the current incomplete group.
+     */
+    private int mData;
+
+    /**
+     * Number of 6-bit values in {@link #mData}.
+     */
+    private int mSextets;
+
+    private boolean mEof;
+    private boolean mClosed;
+
+
+    public Base64InputStream(InputStream in) {
+        this(in, BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize
+     *         The number of encoded bytes read from {@code in} at a time. Use a small value when
+     *         decoding short strings.
+     */
+    public Base64InputStream(InputStream in, int bufferSize) {
+        mIn = in;
+        mEncoded = new byte[Math.max(bufferSize, 4)];
+        mDecoded = new byte[mEncoded.length / 4 * 3 + 3];
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureDecodedData()) {
+            return -1;
+        }
+        return mDecoded[mDecodedPos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > buffer.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (length == 0) {
+            return 0;
+        }
+        if (!ensureDecodedData()) {
+            return -1;
+        }
+
+        int count = Math.min(length, mDecodedLimit - mDecodedPos);
+        System.arraycopy(mDecoded, mDecodedPos, buffer, offset, count);
+        mDecodedPos += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return mDecodedLimit - mDecodedPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+    }
+
+    /**
+     * @return {@code false} if the end of the data has been reached.
+     */
+    private boolean ensureDecodedData() throws IOException {
+        if (mClosed) {
+            throw new IOException("Stream has been closed");
+        }
+
+        while (mDecodedPos == mDecodedLimit) {
+            if (mEof) {
+                return false;
+            }
+            decodeMore();
+        }
+        return true;
+    }
+
+    private void decodeMore() throws IOException {
+        mDecodedPos = 0;
+        mDecodedLimit = 0;
+
+        int length = mIn.read(mEncoded, 0, mEncoded.length);
+        if (length == -1) {
+            // Incomplete groups at the end of the data are dropped
+            mEof = true;
+            return;
+        }
+
+        byte[] encoded = mEncoded;
+        byte[] decoded = mDecoded;
+        int count = 0;
+        int data = mData;
+        int sextets = mSextets;
+
+        int pos = 0;
+        while (pos < length) {
+            if (sextets == 0) {
+                // Fast path for complete groups
+                while (length - pos >= 4) {
+                    int a = DECODE_TABLE[encoded[pos] & 0xFF];
+                    int b = DECODE_TABLE[encoded[pos + 1] & 0xFF];
+                    int c = DECODE_TABLE[encoded[pos + 2] & 0xFF];
+                    int d = DECODE_TABLE[encoded[pos + 3] & 0xFF];
+                    if ((a | b | c | d) < 0) {
+                        break;
+                    }
+
+                    int bits = (a << 18) | (b << 12) | (c << 6) | d;
+                    decoded[count++] = (byte) (bits >>> 16);
+                    decoded[count++] = (byte) (bits >>> 8);
+                    decoded[count++] = (byte) bits;
+                    pos += 4;
+                }
+                if (pos == length) {
+                    break;
+                }
+            }
+
+            int value = encoded[pos++] & 0xFF;
+            if (value == PAD) {
+                if (sextets == 2) {
+                    decoded[count++] = (byte) (data >>> 4);
+                } else if (sextets == 3) {
+                    decoded[count++] = (byte) (data >>> 10);
+                    decoded[count++] = (byte) (data >>> 2);
+                }
+                sextets = 0;
+                mEof = true;
+                break;
+            }
+
+            int sextet = DECODE_TABLE[value];
+            if (sextet < 0) {
+                continue;
+            }
+
+            data = (data << 6) | sextet;
+            if (++sextets == 4) {
+                decoded[count++] = (byte) (data >>> 16);
+                decoded[count++] = (byte) (data >>> 8);
+                decoded[count++] = (byte) data;
+                data = 0;
+                sextets = 0;
+            }
+        }
+
+        mData = data;
+        mSextets = sextets;
+        mDecodedLimit = count;
+    }
+}
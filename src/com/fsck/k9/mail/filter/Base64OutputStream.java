@@ -31,6 +31,9 @@ import java.io.OutputStream;
  * default behaviour of the Base64InputStream is to DECODE.  But this behaviour
  * can be overridden by using a different constructor.
  * </p><p>
+ * Encoding doesn't go through {@link Base64}. Groups of three input bytes are encoded directly
+ * into a reused output buffer using a lookup table. The output is the same.
+ * </p><p>
  * This class implements section <cite>6.8. Base64 Content-Transfer-Encoding</cite> from RFC 2045 <cite>Multipurpose
  * Internet Mail Extensions (MIME) Part One: Format of Internet Message Bodies</cite> by Freed and Borenstein.
  * </p>
@@ -41,10 +44,51 @@ import java.io.OutputStream;
  * @since 1.0-dev
  */
 public class Base64OutputStream extends FilterOutputStream {
+    /**
+     * Maps 6-bit values to the characters of the Base64 alphabet.
+     */
+    private static final byte[] ENCODE_TABLE = {
+            'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M',
+            'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z',
+            'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm',
+            'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z',
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '+', '/'
+    };
+
+    private static final byte PAD = '=';
+
     private final boolean doEncode;
     private final Base64 base64;
     private final byte[] singleByte = new byte[1];
 
+    private final int lineLength;
+    private final byte[] lineSeparator;
+
+    /**
+     * Input bytes that don't form a complete group yet.
+     */
+    private final byte[] pending = new byte[3];
+    private int pendingCount;
+
+    /**
+     * Number of characters written to the current line.
+     */
+    private int linePos;
+
+    private boolean closed;
+
+    /**
+     * When decoding, input is handed to the codec in chunks of at most this size so the output of
+     * a chunk always fits into {@link #encoded}.
+     */
+    private static final int INPUT_CHUNK_SIZE = 4096;
+
+    /**
+     * Reused output buffer. The codec writes directly into it instead of allocating a buffer for
+     * every call to {@link #write(byte[], int, int)}.
+     */
+    private final byte[] encoded = new byte[8192];
+
     /**
      * Creates a Base64OutputStream such that all data written is Base64-encoded
      * to the original provided OutputStream.
@@ -64,9 +108,7 @@ public class Base64OutputStream extends FilterOutputStream {
      *                 false if we should decode.
      */
     public Base64OutputStream(OutputStream out, boolean doEncode) {
-        super(out);
-        this.doEncode = doEncode;
-        this.base64 = new Base64();
+        this(out, doEncode, Base64.CHUNK_SIZE, Base64.CHUNK_SEPARATOR);
     }
 
     /**
@@ -89,6 +131,8 @@ public class Base64OutputStream extends FilterOutputStream {
         super(out);
         this.doEncode = doEncode;
         this.base64 = new Base64(lineLength, lineSeparator);
+        this.lineLength = lineLength;
+        this.lineSeparator = lineSeparator.clone();
     }
 
     /**
@@ -121,14 +165,101 @@ public class Base64OutputStream extends FilterOutputStream {
             throw new IndexOutOfBoundsException();
         } else if (offset > b.length || offset + len > b.length) {
             throw new IndexOutOfBoundsException();
-        } else if (len > 0) {
-            if (doEncode) {
-                base64.encode(b, offset, len);
-            } else {
-                base64.decode(b, offset, len);
+        } else if (doEncode) {
+            encode(b, offset, len);
+        } else {
+            int end = offset + len;
+            for (int pos = offset; pos < end; pos += INPUT_CHUNK_SIZE) {
+                int chunk = Math.min(INPUT_CHUNK_SIZE, end - pos);
+                base64.setInitialBuffer(encoded, 0, encoded.length);
+                base64.decode(b, pos, chunk);
+                flush(false);
+            }
+        }
+    }
+
+    private void encode(byte[] b, int offset, int len) throws IOException {
+        int pos = offset;
+        int end = offset + len;
+
+        // Complete the group started by a previous call
+        while (pendingCount > 0 && pendingCount < 3 && pos < end) {
+            pending[pendingCount++] = b[pos++];
+        }
+
+        int count = 0;
+        if (pendingCount == 3) {
+            count = encodeGroup(pending, 0, count);
+            pendingCount = 0;
+        }
+
+        // Room needed for one group and a line separator
+        int limit = encoded.length - 4 - lineSeparator.length;
+        while (end - pos >= 3) {
+            if (count > limit) {
+                out.write(encoded, 0, count);
+                count = 0;
             }
-            flush(false);
+            count = encodeGroup(b, pos, count);
+            pos += 3;
+        }
+
+        if (count > 0) {
+            out.write(encoded, 0, count);
+        }
+
+        while (pos < end) {
+            pending[pendingCount++] = b[pos++];
+        }
+    }
+
+    /**
+     * Encode the three bytes at {@code b[pos]} into {@link #encoded} at {@code count}.
+     *
+     * @return The new number of bytes in {@link #encoded}.
+     */
+    private int encodeGroup(byte[] b, int pos, int count) {
+        int bits = ((b[pos] & 0xFF) << 16) | ((b[pos + 1] & 0xFF) << 8) | (b[pos + 2] & 0xFF);
+        byte[] buffer = encoded;
+        buffer[count++] = ENCODE_TABLE[bits >>> 18];
+        buffer[count++] = ENCODE_TABLE[(bits >>> 12) & 0x3F];
+        buffer[count++] = ENCODE_TABLE[(bits >>> 6) & 0x3F];
+        buffer[count++] = ENCODE_TABLE[bits & 0x3F];
+
+        linePos += 4;
+        if (lineLength > 0 && linePos >= lineLength) {
+            System.arraycopy(lineSeparator, 0, buffer, count, lineSeparator.length);
+            count += lineSeparator.length;
+            linePos = 0;
         }
+        return count;
+    }
+
+    /**
+     * Write the remaining input bytes (with padding) followed by a line separator.
+     */
+    private void encodeEnd() throws IOException {
+        int count = 0;
+        if (pendingCount == 1) {
+            int bits = (pending[0] & 0xFF) << 4;
+            encoded[count++] = ENCODE_TABLE[bits >>> 6];
+            encoded[count++] = ENCODE_TABLE[bits & 0x3F];
+            encoded[count++] = PAD;
+            encoded[count++] = PAD;
+        } else if (pendingCount == 2) {
+            int bits = ((pending[0] & 0xFF) << 10) | ((pending[1] & 0xFF) << 2);
+            encoded[count++] = ENCODE_TABLE[bits >>> 12];
+            encoded[count++] = ENCODE_TABLE[(bits >>> 6) & 0x3F];
+            encoded[count++] = ENCODE_TABLE[bits & 0x3F];
+            encoded[count++] = PAD;
+        }
+        pendingCount = 0;
+
+        if (lineLength > 0) {
+            System.arraycopy(lineSeparator, 0, encoded, count, lineSeparator.length);
+            count += lineSeparator.length;
+        }
+        out.write(encoded, 0, count);
     }
 
     /**
@@ -141,13 +272,11 @@ public class Base64OutputStream extends FilterOutputStream {
      * @throws IOException if an I/O error occurs.
      */
     private void flush(boolean propogate) throws IOException {
-        int avail = base64.avail();
-        if (avail > 0) {
-            byte[] buf = new byte[avail];
-            int c = base64.readResults(buf, 0, avail);
-            if (c > 0) {
-                out.write(buf, 0, c);
-            }
+        // If the output didn't fit into our buffer the codec has allocated a larger one, so
+        // we might need more than one round.
+        int c;
+        while (base64.avail() > 0 && (c = base64.readResults(encoded, 0, encoded.length)) > 0) {
+            out.write(encoded, 0, c);
         }
         if (propogate) {
             out.flush();
@@ -171,10 +300,15 @@ public class Base64OutputStream extends FilterOutputStream {
      */
     @Override
     public void close() throws IOException {
-        // Notify encoder of EOF (-1).
+        if (closed) {
+            return;
+        }
+        closed = true;
+
         if (doEncode) {
-            base64.encode(singleByte, 0, -1);
+            encodeEnd();
         } else {
+            // Notify decoder of EOF (-1).
             base64.decode(singleByte, 0, -1);
         }
         flush();
@@ -14,7 +14,7 @@ public class EOLConvertingOutputStream extends FilterOutputStream {
 
     @Override
     public void write(int oneByte) throws IOException {
-        if (!ignoreNextIfLF) {
+        if (!ignoreNextIfLF || oneByte != '\n') {
             if ((oneByte == '\n') && (lastChar != '\r')) {
                 super.write('\r');
             }
@@ -24,6 +24,43 @@ public class EOLConvertingOutputStream extends FilterOutputStream {
         ignoreNextIfLF = false;
     }
 
+    /**
+     * Scans the buffer for bare <LF> characters and writes everything in between with a single
+     * call to the wrapped stream.
+     */
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        if (length <= 0) {
+            return;
+        }
+
+        int start = offset;
+        int end = offset + length;
+        if (ignoreNextIfLF) {
+            ignoreNextIfLF = false;
+            if (buffer[start] == '\n') {
+                start++;
+                if (start == end) {
+                    return;
+                }
+            }
+        }
+
+        int previous = lastChar;
+        int runStart = start;
+        for (int i = start; i < end; i++) {
+            byte current = buffer[i];
+            if (current == '\n' && previous != '\r') {
+                out.write(buffer, runStart, i - runStart);
+                out.write('\r');
+                runStart = i;
+            }
+            previous = current;
+        }
+        out.write(buffer, runStart, end - runStart);
+        lastChar = buffer[end - 1] & 0xFF;
+    }
+
     @Override
     public void flush() throws IOException {
         if (lastChar == '\r') {
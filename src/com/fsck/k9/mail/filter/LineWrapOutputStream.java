@@ -22,41 +22,11 @@ public class LineWrapOutputStream extends FilterOutputStream {
     public void write(int oneByte) throws IOException {
         // Buffer full?
         if (lineLength == buffer.length) {
-            // Usable word-boundary found earlier?
-            if (endOfLastWord > 0) {
-                // Yes, so output everything up to that word-boundary
-                out.write(buffer, bufferStart, endOfLastWord - bufferStart);
-                out.write(CRLF);
-
-                bufferStart = 0;
-
-                // Skip the <SPACE> in the buffer
-                endOfLastWord++;
-                lineLength = buffer.length - endOfLastWord;
-                if (lineLength > 0) {
-                    // Copy rest of the buffer to the front
-                    System.arraycopy(buffer, endOfLastWord + 0, buffer, 0, lineLength);
-                }
-                endOfLastWord = 0;
-            } else {
-                // No word-boundary found, so output whole buffer
-                out.write(buffer, bufferStart, buffer.length - bufferStart);
-                out.write(CRLF);
-                lineLength = 0;
-                bufferStart = 0;
-            }
+            wrapLine();
         }
 
         if ((oneByte == '\n') || (oneByte == '\r')) {
-            // <CR> or <LF> character found, so output buffer ...
-            if (lineLength - bufferStart > 0) {
-                out.write(buffer, bufferStart, lineLength - bufferStart);
-            }
-            // ... and that character
-            out.write(oneByte);
-            lineLength = 0;
-            bufferStart = 0;
-            endOfLastWord = 0;
+            endLine(oneByte);
         } else {
             // Remember this position as last word-boundary if <SPACE> found
             if (oneByte == ' ') {
@@ -69,6 +39,86 @@ public class LineWrapOutputStream extends FilterOutputStream {
         }
     }
 
+    /**
+     * Copies runs of ordinary characters into the line buffer with a single
+     * {@link System#arraycopy(Object, int, Object, int, int)} call instead of going through
+     * {@link #write(int)} for every byte.
+     */
+    @Override
+    public void write(byte[] b, int offset, int length) throws IOException {
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            // Buffer full?
+            if (lineLength == buffer.length) {
+                wrapLine();
+            }
+
+            byte oneByte = b[i];
+            if ((oneByte == '\n') || (oneByte == '\r')) {
+                endLine(oneByte);
+                i++;
+                continue;
+            }
+
+            // Find the end of the run of characters that fits into the buffer
+            int runEnd = Math.min(end, i + buffer.length - lineLength);
+            int j = i;
+            while (j < runEnd) {
+                byte c = b[j];
+                if ((c == '\n') || (c == '\r')) {
+                    break;
+                }
+                if (c == ' ') {
+                    endOfLastWord = lineLength + (j - i);
+                }
+                j++;
+            }
+
+            System.arraycopy(b, i, buffer, lineLength, j - i);
+            lineLength += j - i;
+            i = j;
+        }
+    }
+
+    private void wrapLine() throws IOException {
+        // Usable word-boundary found earlier?
+        if (endOfLastWord > 0) {
+            // Yes, so output everything up to that word-boundary
+            out.write(buffer, bufferStart, endOfLastWord - bufferStart);
+            out.write(CRLF);
+
+            bufferStart = 0;
+
+            // Skip the <SPACE> in the buffer
+            endOfLastWord++;
+            lineLength = buffer.length - endOfLastWord;
+            if (lineLength > 0) {
+                // Copy rest of the buffer to the front
+                System.arraycopy(buffer, endOfLastWord + 0, buffer, 0, lineLength);
+            }
+            endOfLastWord = 0;
+        } else {
+            // No word-boundary found, so output whole buffer
+            out.write(buffer, bufferStart, buffer.length - bufferStart);
+            out.write(CRLF);
+            lineLength = 0;
+            bufferStart = 0;
+        }
+    }
+
+    private void endLine(int lineBreak) throws IOException {
+        // <CR> or <LF> character found, so output buffer ...
+        if (lineLength - bufferStart > 0) {
+            out.write(buffer, bufferStart, lineLength - bufferStart);
+        }
+        // ... and that character
+        out.write(lineBreak);
+        lineLength = 0;
+        bufferStart = 0;
+        endOfLastWord = 0;
+    }
+
     @Override
     public void flush() throws IOException {
         // Buffer empty?
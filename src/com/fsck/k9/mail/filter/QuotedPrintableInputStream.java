@@ -0,0 +1,319 @@
+package com.fsck.k9.mail.filter;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes quoted-printable data read from another {@link InputStream}.
+ *
+ * <p>
+ * The decoding is lenient and produces the same output as mime4j's
+ * {@code QuotedPrintableInputStream}:
+ * </p>
+ * <ul>
+ * <li>Line breaks (CRLF or a bare LF) are written as CRLF.</li>
+ * <li>Whitespace at the end of a line (and at the end of the data) is removed.</li>
+ * <li>{@code "="} followed by whitespace is a soft line break.</li>
+ * <li>Malformed escape sequences are passed through unchanged.</li>
+ * </ul>
+ *
+ * <p>
+ * Runs of characters that don't need any special treatment are copied in a tight loop.
+ * </p>
+ *
+ * <p>
+ * Like the mime4j decoders, closing this stream does not close the wrapped stream.
+ * </p>
+ */
+public class QuotedPrintableInputStream extends InputStream {
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte EQUALS = '=';
+
+    private static final byte TYPE_LITERAL = 0;
+    private static final byte TYPE_BLANK = 1;
+    private static final byte TYPE_CR = 2;
+    private static final byte TYPE_LF = 3;
+    private static final byte TYPE_EQUALS = 4;
+
+    /**
+     * How each byte value has to be treated. Whitespace is what
+     * {@link Character#isWhitespace(int)} considers whitespace.
+     */
+    private static final byte[] TYPES = new byte[256];
+
+    /**
+     * Maps hex digits to their values. All other values are {@code -1}.
+     */
+    private static final byte[] HEX_VALUES = new byte[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            TYPES[i] = Character.isWhitespace(i) ? TYPE_BLANK : TYPE_LITERAL;
+            HEX_VALUES[i] = (byte) Character.digit(i, 16);
+            if (i >= 128) {
+                // Character.digit() also accepts some non-ASCII digits
+                HEX_VALUES[i] = -1;
+            }
+        }
+        TYPES[CR] = TYPE_CR;
+        TYPES[LF] = TYPE_LF;
+        TYPES[EQUALS] = TYPE_EQUALS;
+    }
+
+
+    private final InputStream mIn;
+    private final byte[] mEncoded;
+    private int mEncodedPos;
+    private int mEncodedLimit;
+    private boolean mEof;
+
+    private byte[] mDecoded;
+    private int mDecodedPos;
+    private int mDecodedLimit;
+
+    /**
+     * Whitespace that is only written out if something other than a line break follows. A soft
+     * line break starts with {@code '='}.
+     */
+    private byte[] mBlanks = new byte[16];
+    private int mBlankCount;
+
+    private boolean mLastWasCR;
+    private boolean mClosed;
+
+
+    public QuotedPrintableInputStream(InputStream in) {
+        this(in, BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize
+     *         The number of encoded bytes read from {@code in} at a time. Use a small value when
+     *         decoding short strings.
+     */
+    public QuotedPrintableInputStream(InputStream in, int bufferSize) {
+        mIn = in;
+        mEncoded = new byte[Math.max(bufferSize, 4)];
+        mDecoded = new byte[mEncoded.length];
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureDecodedData()) {
+            return -1;
+        }
+        return mDecoded[mDecodedPos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > buffer.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (length == 0) {
+            return 0;
+        }
+        if (!ensureDecodedData()) {
+            return -1;
+        }
+
+        int count = Math.min(length, mDecodedLimit - mDecodedPos);
+        System.arraycopy(mDecoded, mDecodedPos, buffer, offset, count);
+        mDecodedPos += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return mDecodedLimit - mDecodedPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+    }
+
+    /**
+     * @return {@code false} if the end of the data has been reached.
+     */
+    private boolean ensureDecodedData() throws IOException {
+        if (mClosed) {
+            throw new IOException("Stream has been closed");
+        }
+
+        while (mDecodedPos == mDecodedLimit) {
+            if (mEof && mEncodedPos == mEncodedLimit) {
+                // A CR or whitespace at the very end of the data is dropped
+                return false;
+            }
+            fillBuffer();
+            decode();
+        }
+        return true;
+    }
+
+    private void fillBuffer() throws IOException {
+        if (mEof) {
+            return;
+        }
+
+        // Keep what is left over, i.e. an incomplete escape sequence
+        int remaining = mEncodedLimit - mEncodedPos;
+        System.arraycopy(mEncoded, mEncodedPos, mEncoded, 0, remaining);
+        mEncodedPos = 0;
+        mEncodedLimit = remaining;
+
+        int count = mIn.read(mEncoded, remaining, mEncoded.length - remaining);
+        if (count == -1) {
+            mEof = true;
+        } else {
+            mEncodedLimit += count;
+        }
+    }
+
+    private void decode() {
+        mDecodedPos = 0;
+        mDecodedLimit = 0;
+
+        byte[] encoded = mEncoded;
+        int pos = mEncodedPos;
+        int limit = mEncodedLimit;
+
+        while (pos < limit) {
+            int b = encoded[pos] & 0xFF;
+
+            if (mLastWasCR && b != LF) {
+                // Bare CR, leave it as is
+                append(CR);
+            }
+
+            int type = TYPES[b];
+            if (type == TYPE_CR) {
+                mLastWasCR = true;
+                pos++;
+                continue;
+            }
+            mLastWasCR = false;
+
+            if (type == TYPE_LITERAL) {
+                flushBlanks();
+
+                int end = pos + 1;
+                while (end < limit && TYPES[encoded[end] & 0xFF] == TYPE_LITERAL) {
+                    end++;
+                }
+                append(encoded, pos, end - pos);
+                pos = end;
+            } else if (type == TYPE_LF) {
+                // A hard line break, unless it ends a soft line break. Whitespace before it is
+                // dropped.
+                if (mBlankCount == 0 || mBlanks[0] != EQUALS) {
+                    append(CR);
+                    append(LF);
+                }
+                mBlankCount = 0;
+                pos++;
+            } else if (type == TYPE_BLANK) {
+                appendBlank(b);
+                pos++;
+            } else {
+                // TYPE_EQUALS: We need up to three more bytes to decide what to do
+                if (limit - pos < 4 && !mEof) {
+                    break;
+                }
+                pos = decodeEscape(encoded, pos, limit);
+            }
+        }
+
+        mEncodedPos = pos;
+    }
+
+    /**
+     * Handle the {@code '='} at {@code encoded[pos]}.
+     *
+     * @return The position after the escape sequence.
+     */
+    private int decodeEscape(byte[] encoded, int pos, int limit) {
+        int b2 = (pos + 1 < limit) ? encoded[pos + 1] & 0xFF : -1;
+
+        if (b2 == EQUALS) {
+            // "==" is decoded to "=". If it's followed by a line break, it's also a soft line break.
+            flushBlanks();
+            append(EQUALS);
+            int next1 = (pos + 2 < limit) ? encoded[pos + 2] : -1;
+            int next2 = (pos + 3 < limit) ? encoded[pos + 3] : -1;
+            if (next1 == LF || (next1 == CR && next2 == LF)) {
+                appendBlank(EQUALS);
+            }
+            return pos + 2;
+        }
+
+        if (b2 != -1 && TYPES[b2] != TYPE_LITERAL && TYPES[b2] != TYPE_EQUALS) {
+            // Soft line break
+            flushBlanks();
+            if (b2 != LF) {
+                appendBlank(EQUALS);
+                appendBlank(b2);
+            }
+            return pos + 2;
+        }
+
+        int b3 = (pos + 2 < limit) ? encoded[pos + 2] & 0xFF : -1;
+        int upper = (b2 == -1) ? -1 : HEX_VALUES[b2];
+        int lower = (b3 == -1) ? -1 : HEX_VALUES[b3];
+        if (upper < 0 || lower < 0) {
+            // Malformed escape sequence, leave it as is
+            flushBlanks();
+            append(EQUALS);
+            if (b2 != -1) {
+                append((byte) b2);
+            }
+            if (b3 != -1) {
+                append((byte) b3);
+            }
+        } else {
+            flushBlanks();
+            append((byte) ((upper << 4) | lower));
+        }
+
+        return pos + 1 + ((b2 != -1) ? 1 : 0) + ((b3 != -1) ? 1 : 0);
+    }
+
+    private void flushBlanks() {
+        if (mBlankCount > 0) {
+            append(mBlanks, 0, mBlankCount);
+            mBlankCount = 0;
+        }
+    }
+
+    private void appendBlank(int b) {
+        if (mBlankCount == mBlanks.length) {
+            byte[] blanks = new byte[mBlanks.length * 2];
+            System.arraycopy(mBlanks, 0, blanks, 0, mBlankCount);
+            mBlanks = blanks;
+        }
+        mBlanks[mBlankCount++] = (byte) b;
+    }
+
+    private void append(byte b) {
+        ensureCapacity(1);
+        mDecoded[mDecodedLimit++] = b;
+    }
+
+    private void append(byte[] buffer, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(buffer, offset, mDecoded, mDecodedLimit, length);
+        mDecodedLimit += length;
+    }
+
+    private void ensureCapacity(int length) {
+        if (mDecodedLimit + length > mDecoded.length) {
+            byte[] decoded = new byte[Math.max(mDecoded.length * 2, mDecodedLimit + length)];
+            System.arraycopy(mDecoded, 0, decoded, 0, mDecodedLimit);
+            mDecoded = decoded;
+        }
+    }
+}
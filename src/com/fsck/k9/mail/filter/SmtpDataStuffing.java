@@ -30,4 +30,32 @@ public class SmtpDataStuffing extends FilterOutputStream {
         }
         super.write(oneByte);
     }
+
+    /**
+     * Runs the same state machine as {@link #write(int)} over the buffer, but only writes to the
+     * wrapped stream when a period has to be inserted.
+     */
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        int end = offset + length;
+        int runStart = offset;
+        for (int i = offset; i < end; i++) {
+            byte oneByte = buffer[i];
+            if (oneByte == '\r') {
+                state = STATE_CR;
+            } else if ((state == STATE_CR) && (oneByte == '\n')) {
+                state = STATE_CRLF;
+            } else if ((state == STATE_CRLF) && (oneByte == '.')) {
+                out.write(buffer, runStart, i - runStart);
+                out.write('.');
+                runStart = i;
+                state = STATE_NORMAL;
+            } else {
+                state = STATE_NORMAL;
+            }
+        }
+        if (end > runStart) {
+            out.write(buffer, runStart, end - runStart);
+        }
+    }
 }
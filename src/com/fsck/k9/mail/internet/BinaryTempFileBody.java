@@ -2,7 +2,9 @@ package com.fsck.k9.mail.internet;
 
 import com.fsck.k9.mail.Body;
 import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.filter.Base64InputStream;
 import com.fsck.k9.mail.filter.Base64OutputStream;
+import com.fsck.k9.mail.filter.QuotedPrintableInputStream;
 import org.apache.commons.io.IOUtils;
 import org.apache.james.mime4j.codec.QuotedPrintableOutputStream;
 import org.apache.james.mime4j.util.MimeUtil;
@@ -14,18 +16,58 @@ import java.io.*;
  * the user to write to the temp file. After the write the body is available via getInputStream
  * and writeTo one time. After writeTo is called, or the InputStream returned from
  * getInputStream is closed the file is deleted and the Body should be considered disposed of.
+ *
+ * <p>
+ * Bodies that fit into {@link BodyBufferPool#BUFFER_SIZE} bytes are kept in memory instead, so
+ * parsing a message with many small parts doesn't create (and delete) a temp file per part.
+ * The write starts out in a pooled buffer and only spills to a temp file once it outgrows it.
+ * </p>
+ *
+ * <p>
+ * The data may be stored with its content transfer encoding still applied (see
+ * {@link #setStoredEncoding(String)}). It is then only decoded when it is actually read, and
+ * written out again without decoding and re-encoding it if the encoding hasn't changed.
+ * </p>
  */
 public class BinaryTempFileBody implements Body {
     private static File mTempDirectory;
 
+    /**
+     * Bodies smaller than this are copied out of the pooled buffer so the buffer can be reused
+     * right away.
+     */
+    private static final int COPY_THRESHOLD = BodyBufferPool.BUFFER_SIZE / 4;
+
     private File mFile;
 
+    /**
+     * The body if it is kept in memory. May be a pooled buffer (see {@link #mPooled}).
+     */
+    private byte[] mData;
+    private int mLength;
+    private boolean mPooled;
+
+    /**
+     * Number of input streams that are currently open.
+     */
+    private int mOpenStreams;
+    private boolean mDisposed;
+
     String mEncoding = null;
 
+    /**
+     * The transfer encoding of the stored data. {@code null} if the stored data is decoded.
+     */
+    private String mStoredEncoding = null;
+
     public static void setTempDirectory(File tempDirectory) {
         mTempDirectory = tempDirectory;
     }
 
+    public static File getTempDirectory() {
+        return mTempDirectory;
+    }
+
     public void setEncoding(String encoding) throws MessagingException {
         mEncoding  = encoding;
     }
@@ -37,21 +79,64 @@ public class BinaryTempFileBody implements Body {
         }
     }
 
+    /**
+     * Declare that the data written to {@link #getOutputStream()} still has the given content
+     * transfer encoding applied. Only Base64 and quoted-printable are decoded on the fly; for
+     * other encodings the data is used as it is.
+     */
+    void setStoredEncoding(String encoding) {
+        if (MimeUtil.isBase64Encoding(encoding) || MimeUtil.isQuotedPrintableEncoded(encoding)) {
+            mStoredEncoding = encoding;
+        } else {
+            mStoredEncoding = null;
+        }
+    }
+
     public OutputStream getOutputStream() throws IOException {
-        mFile = File.createTempFile("body", null, mTempDirectory);
-        mFile.deleteOnExit();
-        return new FileOutputStream(mFile);
+        return new BinaryTempFileBodyOutputStream();
     }
 
     public InputStream getInputStream() throws MessagingException {
+        return openStream(true);
+    }
+
+    private InputStream openStream(boolean decode) throws MessagingException {
         try {
-            return new BinaryTempFileBodyInputStream(new FileInputStream(mFile));
+            synchronized (this) {
+                if (mDisposed) {
+                    throw new IOException("Body has already been disposed of");
+                }
+
+                InputStream raw = (mData != null) ?
+                        new ByteArrayInputStream(mData, 0, mLength) : new FileInputStream(mFile);
+                InputStream in = raw;
+                if (decode && mStoredEncoding != null) {
+                    if (MimeUtil.isBase64Encoding(mStoredEncoding)) {
+                        in = new Base64InputStream(raw);
+                    } else {
+                        in = new QuotedPrintableInputStream(raw);
+                    }
+                }
+                mOpenStreams++;
+                return new BinaryTempFileBodyInputStream(in, raw);
+            }
         } catch (IOException ioe) {
             throw new MessagingException("Unable to open body", ioe);
         }
     }
 
     public void writeTo(OutputStream out) throws IOException, MessagingException {
+        if (mStoredEncoding != null && mStoredEncoding.equalsIgnoreCase(mEncoding)) {
+            // The data already has the right encoding, no need to decode and encode it again
+            InputStream in = openStream(false);
+            try {
+                IOUtils.copy(in, out);
+            } finally {
+                in.close();
+            }
+            return;
+        }
+
         InputStream in = getInputStream();
         try {
             boolean closeStream = false;
@@ -75,22 +160,133 @@ public class BinaryTempFileBody implements Body {
         }
     }
 
+    /**
+     * Called when an input stream has been closed.
+     *
+     * <p>
+     * The body is disposed of once the last open stream has been closed with
+     * {@link BinaryTempFileBodyInputStream#close()}. A pooled buffer must not be handed back while
+     * another stream is still reading from it.
+     * </p>
+     */
+    private synchronized void streamClosed(boolean dispose) {
+        mOpenStreams--;
+        if (dispose) {
+            mDisposed = true;
+        }
+        if (!mDisposed || mOpenStreams > 0) {
+            return;
+        }
+
+        if (mData != null) {
+            if (mPooled) {
+                BodyBufferPool.release(mData);
+            }
+            mData = null;
+        }
+        if (mFile != null) {
+            mFile.delete();
+        }
+    }
+
     class BinaryTempFileBodyInputStream extends FilterInputStream {
-        public BinaryTempFileBodyInputStream(InputStream in) {
+        /**
+         * The stream of the stored data. The decoding streams don't close the stream they wrap.
+         */
+        private final InputStream mRaw;
+        private boolean mClosed;
+
+        public BinaryTempFileBodyInputStream(InputStream in, InputStream raw) {
             super(in);
+            mRaw = raw;
         }
 
         @Override
         public void close() throws IOException {
             try {
                 super.close();
+                mRaw.close();
             } finally {
-                mFile.delete();
+                if (!mClosed) {
+                    mClosed = true;
+                    streamClosed(true);
+                }
             }
         }
 
         public void closeWithoutDeleting() throws IOException {
-            super.close();
+            try {
+                super.close();
+                mRaw.close();
+            } finally {
+                if (!mClosed) {
+                    mClosed = true;
+                    streamClosed(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes into a pooled buffer and switches to a temp file if the body doesn't fit.
+     */
+    private class BinaryTempFileBodyOutputStream extends OutputStream {
+        private byte[] mBuffer = BodyBufferPool.acquire();
+        private int mCount;
+        private OutputStream mFileOut;
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            if (mFileOut == null && mCount < mBuffer.length) {
+                mBuffer[mCount++] = (byte) oneByte;
+            } else {
+                spill().write(oneByte);
+            }
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            if (mFileOut == null && mCount + length <= mBuffer.length) {
+                System.arraycopy(buffer, offset, mBuffer, mCount, length);
+                mCount += length;
+            } else {
+                spill().write(buffer, offset, length);
+            }
+        }
+
+        private OutputStream spill() throws IOException {
+            if (mFileOut == null) {
+                mFile = File.createTempFile("body", null, mTempDirectory);
+                mFile.deleteOnExit();
+                mFileOut = new BufferedOutputStream(new FileOutputStream(mFile));
+                mFileOut.write(mBuffer, 0, mCount);
+                BodyBufferPool.release(mBuffer);
+                mBuffer = null;
+            }
+            return mFileOut;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mFileOut != null) {
+                mFileOut.close();
+            } else if (mBuffer != null) {
+                synchronized (BinaryTempFileBody.this) {
+                    if (mCount < COPY_THRESHOLD) {
+                        // Don't tie up a whole pooled buffer for a small body
+                        byte[] data = new byte[mCount];
+                        System.arraycopy(mBuffer, 0, data, 0, mCount);
+                        BodyBufferPool.release(mBuffer);
+                        mData = data;
+                        mPooled = false;
+                    } else {
+                        mData = mBuffer;
+                        mPooled = true;
+                    }
+                    mLength = mCount;
+                }
+                mBuffer = null;
+            }
         }
     }
 }
@@ -0,0 +1,46 @@
+package com.fsck.k9.mail.internet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A small pool of fixed-size byte arrays used by {@link BinaryTempFileBody} to keep small body
+ * parts in memory.
+ *
+ * <p>
+ * Parsing a message creates a body for every leaf part. Reusing the buffers avoids allocating
+ * (and garbage collecting) a new buffer for every part of every message during a sync.
+ * </p>
+ */
+class BodyBufferPool {
+    /**
+     * Size of the pooled buffers. Bodies larger than this are stored in a temp file.
+     */
+    static final int BUFFER_SIZE = 32 * 1024;
+
+    /**
+     * Maximum number of buffers kept for reuse.
+     */
+    private static final int MAX_POOLED_BUFFERS = 4;
+
+    private static final List<byte[]> sBuffers = new ArrayList<byte[]>(MAX_POOLED_BUFFERS);
+
+
+    static byte[] acquire() {
+        synchronized (sBuffers) {
+            int size = sBuffers.size();
+            if (size > 0) {
+                return sBuffers.remove(size - 1);
+            }
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    static void release(byte[] buffer) {
+        synchronized (sBuffers) {
+            if (sBuffers.size() < MAX_POOLED_BUFFERS) {
+                sBuffers.add(buffer);
+            }
+        }
+    }
+}
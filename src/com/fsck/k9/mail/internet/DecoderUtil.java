@@ -5,11 +5,13 @@ import android.util.Log;
 import com.fsck.k9.K9;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.filter.Base64InputStream;
+import com.fsck.k9.mail.filter.QuotedPrintableInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import org.apache.james.mime4j.codec.Base64InputStream;
-import org.apache.james.mime4j.codec.QuotedPrintableInputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import org.apache.james.mime4j.util.CharsetUtil;
 
 
@@ -21,6 +23,29 @@ import org.apache.james.mime4j.util.CharsetUtil;
  * it has to be determined with the sender address, the mailer and so on.
  */
 public class DecoderUtil {
+    /**
+     * Maximum number of decoded encoded words kept in {@link #sDecodedWords}.
+     */
+    private static final int DECODED_WORD_CACHE_SIZE = 256;
+
+    /**
+     * Recently decoded encoded words.
+     *
+     * <p>
+     * The same encoded words (sender names, common subjects) show up in many messages, e.g. in
+     * all messages of a thread. The key contains the Java charset name returned by
+     * {@link MimeUtility#fixupCharset(String, Message)}, so words whose charset depends on the
+     * message are cached separately for each JIS variant.
+     * </p>
+     */
+    private static final Map<String, String> sDecodedWords =
+            new LinkedHashMap<String, String>(DECODED_WORD_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > DECODED_WORD_CACHE_SIZE;
+                }
+            };
+
     /**
      * Decodes an encoded word encoded with the 'B' encoding (described in
      * RFC 2047) found in a header field body.
@@ -37,7 +62,7 @@ public class DecoderUtil {
             return null;
         }
 
-        Base64InputStream is = new Base64InputStream(new ByteArrayInputStream(bytes));
+        Base64InputStream is = new Base64InputStream(new ByteArrayInputStream(bytes), bytes.length);
         try {
             return MimeUtility.readToString(is, charset);
         } catch (IOException e) {
@@ -75,7 +100,8 @@ public class DecoderUtil {
             return null;
         }
 
-        QuotedPrintableInputStream is = new QuotedPrintableInputStream(new ByteArrayInputStream(bytes));
+        QuotedPrintableInputStream is = new QuotedPrintableInputStream(new ByteArrayInputStream(bytes),
+                bytes.length);
         try {
             return MimeUtility.readToString(is, charset);
         } catch (IOException e) {
@@ -99,6 +125,7 @@ public class DecoderUtil {
 
         // ANDROID:  Most strings will not include "=?" so a quick test can prevent unneeded
         // object creation.  This could also be handled via lazy creation of the StringBuilder.
+        // Note: The input is returned unchanged, no copy is made.
         if (body.indexOf("=?") == -1) {
             return body;
         }
@@ -181,13 +208,29 @@ public class DecoderUtil {
             return null;
         }
 
+        String key = charset + body.substring(qm1, end);
+        String decoded;
+        synchronized (sDecodedWords) {
+            decoded = sDecodedWords.get(key);
+        }
+        if (decoded != null) {
+            return decoded;
+        }
+
         if (encoding.equalsIgnoreCase("Q")) {
-            return decodeQ(encodedText, charset);
+            decoded = decodeQ(encodedText, charset);
         } else if (encoding.equalsIgnoreCase("B")) {
-            return DecoderUtil.decodeB(encodedText, charset);
+            decoded = DecoderUtil.decodeB(encodedText, charset);
         } else {
             Log.w(K9.LOG_TAG, "Warning: Unknown encoding in encoded word '" + body.substring(begin, end) + "'");
             return null;
         }
+
+        if (decoded != null) {
+            synchronized (sDecodedWords) {
+                sDecodedWords.put(key, decoded);
+            }
+        }
+        return decoded;
     }
 }
@@ -8,22 +8,29 @@ import com.fsck.k9.R;
 import com.fsck.k9.helper.HtmlConverter;
 import com.fsck.k9.mail.*;
 import com.fsck.k9.mail.Message.RecipientType;
+import com.fsck.k9.mail.filter.Base64InputStream;
+import com.fsck.k9.mail.filter.QuotedPrintableInputStream;
 import com.fsck.k9.mail.internet.BinaryTempFileBody.BinaryTempFileBodyInputStream;
 
 import org.apache.commons.io.IOUtils;
-import org.apache.james.mime4j.codec.Base64InputStream;
-import org.apache.james.mime4j.codec.QuotedPrintableInputStream;
 import org.apache.james.mime4j.util.MimeUtil;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.nio.charset.Charset;
@@ -920,11 +927,43 @@ public class MimeUtility {
         {".*", "US-ASCII"}
     };
 
+    /**
+     * Don't let the charset cache grow without bounds. Charset names come from the messages we
+     * receive.
+     */
+    private static final int MAX_CACHED_CHARSETS = 64;
+
+    /**
+     * Cache of the Java {@link Charset} used to decode text labeled with a given MIME charset name
+     * (after fall-backs have been applied).
+     */
+    private static final Map<String, Charset> sCharsetCache =
+            new ConcurrentHashMap<String, Charset>();
+
     public static String unfold(String s) {
         if (s == null) {
             return null;
         }
-        return s.replaceAll("\r|\n", "");
+
+        // Most header values are never folded. Return those without creating a new string.
+        int length = s.length();
+        int i = 0;
+        while (i < length && s.charAt(i) != '\r' && s.charAt(i) != '\n') {
+            i++;
+        }
+        if (i == length) {
+            return s;
+        }
+
+        StringBuilder sb = new StringBuilder(length);
+        sb.append(s, 0, i);
+        for (; i < length; i++) {
+            char c = s.charAt(i);
+            if (c != '\r' && c != '\n') {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
     }
 
     public static String decode(String s) {
@@ -1036,11 +1075,25 @@ public class MimeUtility {
       * or an error during conversion.
       */
     public static String getTextFromPart(Part part) {
+        return getTextFromPart(part, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #getTextFromPart(Part)} but reads at most {@code maxLength} characters.
+     *
+     * <p>
+     * The body is only replaced by a {@link TextBody} if the whole text could be read.
+     * Otherwise it's left intact so it can be read again later.
+     * </p>
+     */
+    private static String getTextFromPart(Part part, int maxLength) {
         try {
             if ((part != null) && (part.getBody() != null)) {
                 final Body body = part.getBody();
                 if (body instanceof TextBody) {
-                    return ((TextBody)body).getText();
+                    String text = ((TextBody)body).getText();
+                    return (text != null && text.length() > maxLength) ?
+                            text.substring(0, maxLength) : text;
                 }
 
                 final String mimeType = part.getMimeType();
@@ -1090,21 +1143,30 @@ public class MimeUtility {
                      * the stream is now wrapped we'll remove any transfer encoding at this point.
                      */
                     InputStream in = part.getBody().getInputStream();
+                    boolean complete = false;
                     try {
-                        String text = readToString(in, charset);
+                        String text = readToString(in, charset, maxLength);
+                        complete = (text.length() < maxLength);
 
-                        // Replace the body with a TextBody that already contains the decoded text
-                        part.setBody(new TextBody(text));
+                        if (complete) {
+                            // Replace the body with a TextBody that already contains the decoded
+                            // text
+                            part.setBody(new TextBody(text));
+                        }
 
                         return text;
                     } finally {
                         try {
                             /*
-                             * This time we don't care if it's a BinaryTempFileBodyInputStream. We
-                             * replaced the body with a TextBody instance and hence don't need the
-                             * file anymore.
+                             * If we replaced the body with a TextBody instance we don't care if
+                             * it's a BinaryTempFileBodyInputStream because we don't need the file
+                             * anymore. Otherwise the file has to stay around.
                              */
-                            in.close();
+                            if (!complete && in instanceof BinaryTempFileBodyInputStream) {
+                                ((BinaryTempFileBodyInputStream) in).closeWithoutDeleting();
+                            } else {
+                                in.close();
+                            }
                         } catch (IOException e) { /* Ignore */ }
                     }
                 }
@@ -1155,30 +1217,38 @@ public class MimeUtility {
     }
 
     /**
-     * Removes any content transfer encoding from the stream and returns a Body.
+     * Returns a Body with the contents of the stream. Any content transfer encoding is removed
+     * when the body is read.
+     *
+     * <p>
+     * Except for message/rfc822 parts the data is stored as it is and only decoded when
+     * {@link Body#getInputStream()} is called. Parts that are never looked at are never decoded.
+     * </p>
+     *
      * @throws MessagingException
      */
     public static Body decodeBody(InputStream in,
             String contentTransferEncoding, String contentType)
             throws IOException, MessagingException {
-        /*
-         * We'll remove any transfer encoding by wrapping the stream.
-         */
         if (contentTransferEncoding != null) {
             contentTransferEncoding =
                 MimeUtility.getHeaderParameter(contentTransferEncoding, null);
+        }
+
+        BinaryTempFileBody tempBody;
+        if (MimeUtil.isMessage(contentType)) {
+            /*
+             * We'll remove any transfer encoding by wrapping the stream.
+             */
             if (MimeUtil.ENC_QUOTED_PRINTABLE.equalsIgnoreCase(contentTransferEncoding)) {
                 in = new QuotedPrintableInputStream(in);
             } else if (MimeUtil.ENC_BASE64.equalsIgnoreCase(contentTransferEncoding)) {
                 in = new Base64InputStream(in);
             }
-        }
-
-        BinaryTempFileBody tempBody;
-        if (MimeUtil.isMessage(contentType)) {
             tempBody = new BinaryTempFileMessageBody();
         } else {
             tempBody = new BinaryTempFileBody();
+            tempBody.setStoredEncoding(contentTransferEncoding);
         }
         tempBody.setEncoding(contentTransferEncoding);
         OutputStream out = tempBody.getOutputStream();
@@ -1318,6 +1388,26 @@ public class MimeUtility {
         }
     }
 
+    /**
+     * Result of {@link MimeUtility#extractTextAndAttachments(Context, Message, Writer, Writer, int)}.
+     */
+    public static class ExtractedViewables {
+        /**
+         * The parts of the message considered attachments (everything not viewable).
+         */
+        public final List<Part> attachments;
+
+        /**
+         * {@code true} if the viewable text was longer than allowed and has been truncated.
+         */
+        public final boolean truncated;
+
+        ExtractedViewables(List<Part> attachments, boolean truncated) {
+            this.attachments = attachments;
+            this.truncated = truncated;
+        }
+    }
+
     /**
      * Collect attachment parts of a message.
      *
@@ -1383,6 +1473,46 @@ public class MimeUtility {
      */
     public static ViewableContainer extractTextAndAttachments(Context context, Message message)
             throws MessagingException {
+        StringWriter text = new StringWriter();
+        StringWriter html = new StringWriter();
+
+        ExtractedViewables viewables = extractTextAndAttachments(context, message, text, html,
+                Integer.MAX_VALUE);
+
+        return new ViewableContainer(text.toString(), html.toString(), viewables.attachments);
+    }
+
+    /**
+     * Extract the viewable textual parts of a message and return the rest as attachments.
+     *
+     * <p>
+     * The plain text and HTML versions of the viewable parts are written to {@code textWriter}
+     * and {@code htmlWriter} part by part, instead of being assembled in memory first. Text beyond
+     * {@code maxLength} characters is dropped. Message parts are only read as far as needed to
+     * produce that many characters, so the memory used doesn't depend on the size of the message.
+     * The HTML is never cut off inside of a tag or character reference. If the text had to be
+     * truncated, a notice saying so is appended to both writers.
+     * </p>
+     *
+     * @param context
+     *         A {@link Context} instance that will be used to get localized strings.
+     * @param message
+     *         The message to extract the text and attachments from.
+     * @param textWriter
+     *         The {@link Writer} that will receive the viewable text as plain text.
+     * @param htmlWriter
+     *         The {@link Writer} that will receive the viewable text as HTML.
+     * @param maxLength
+     *         The maximum number of characters written to each of the writers.
+     *         {@link Integer#MAX_VALUE} for no limit.
+     *
+     * @return The message parts considered attachments, and whether the text was truncated.
+     *
+     * @throws MessagingException
+     *          In case of an error.
+     */
+    public static ExtractedViewables extractTextAndAttachments(Context context, Message message,
+            Writer textWriter, Writer htmlWriter, int maxLength) throws MessagingException {
         try {
             List<Part> attachments = new ArrayList<Part>();
 
@@ -1396,15 +1526,15 @@ public class MimeUtility {
             // Used to suppress the divider for the first viewable part
             boolean hideDivider = true;
 
-            StringBuilder text = new StringBuilder();
-            StringBuilder html = new StringBuilder();
+            TruncatingWriter text = new TruncatingWriter(textWriter, maxLength);
+            TruncatingWriter html = new TruncatingWriter(htmlWriter, maxLength, true);
 
             for (Viewable viewable : viewables) {
                 if (viewable instanceof Textual) {
                     // This is either a text/plain or text/html part. Fill the variables 'text' and
                     // 'html', converting between plain text and HTML as necessary.
-                    text.append(buildText(viewable, !hideDivider));
-                    html.append(buildHtml(viewable, !hideDivider));
+                    writeText(text, viewable, !hideDivider);
+                    writeHtml(html, viewable, !hideDivider);
                     hideDivider = false;
                 } else if (viewable instanceof MessageHeader) {
                     MessageHeader header = (MessageHeader) viewable;
@@ -1435,21 +1565,42 @@ public class MimeUtility {
                     // Fill the 'text' variable
                     boolean divider = !hideDivider;
                     for (Viewable textViewable : textAlternative) {
-                        text.append(buildText(textViewable, divider));
+                        writeText(text, textViewable, divider);
                         divider = true;
                     }
 
                     // Fill the 'html' variable
                     divider = !hideDivider;
                     for (Viewable htmlViewable : htmlAlternative) {
-                        html.append(buildHtml(htmlViewable, divider));
+                        writeHtml(html, htmlViewable, divider);
                         divider = true;
                     }
                     hideDivider = false;
                 }
             }
 
-            return new ViewableContainer(text.toString(), html.toString(), attachments);
+            text.close();
+            html.close();
+
+            boolean truncated = text.isTruncated() || html.isTruncated();
+            if (truncated) {
+                if (K9.DEBUG) {
+                    Log.d(K9.LOG_TAG, "Viewable text of message " + message.getUid() +
+                            " truncated to " + maxLength + " characters");
+                }
+
+                // Written past the limit so the notice is never cut off itself
+                String notice = context.getString(R.string.message_view_truncated);
+                textWriter.append("\r\n\r\n");
+                textWriter.append(notice);
+                textWriter.append("\r\n");
+
+                htmlWriter.append("<p style=\"margin-top: 2.5em; font-style: italic\">");
+                htmlWriter.append(HtmlConverter.textToHtmlFragment(notice));
+                htmlWriter.append("</p>");
+            }
+
+            return new ExtractedViewables(attachments, truncated);
         } catch (Exception e) {
             throw new MessagingException("Couldn't extract viewable parts", e);
         }
@@ -1717,15 +1868,17 @@ public class MimeUtility {
      * @param context
      *         A {@link Context} instance that will be used to get localized strings.
      * @param text
-     *         The {@link StringBuilder} that will receive the (plain text) output.
+     *         The {@link Writer} that will receive the (plain text) output.
      * @param message
      *         The message to extract the header values from.
      *
      * @throws MessagingException
      *          In case of an error.
+     * @throws IOException
+     *          If writing to {@code text} failed.
      */
-    private static void addMessageHeaderText(Context context, StringBuilder text, Message message)
-            throws MessagingException {
+    private static void addMessageHeaderText(Context context, Writer text, Message message)
+            throws MessagingException, IOException {
         // From: <sender>
         Address[] from = message.getFrom();
         if (from != null && from.length > 0) {
@@ -1780,15 +1933,17 @@ public class MimeUtility {
      * @param context
      *         A {@link Context} instance that will be used to get localized strings.
      * @param html
-     *         The {@link StringBuilder} that will receive the (HTML) output.
+     *         The {@link Writer} that will receive the (HTML) output.
      * @param message
      *         The message to extract the header values from.
      *
      * @throws MessagingException
      *          In case of an error.
+     * @throws IOException
+     *          If writing to {@code html} failed.
      */
-    private static void addMessageHeaderHtml(Context context, StringBuilder html, Message message)
-            throws MessagingException {
+    private static void addMessageHeaderHtml(Context context, Writer html, Message message)
+            throws MessagingException, IOException {
 
         html.append("<table style=\"border: 0\">");
 
@@ -1832,13 +1987,13 @@ public class MimeUtility {
      * Output an HTML table two column row with some hardcoded style.
      *
      * @param html
-     *         The {@link StringBuilder} that will receive the output.
+     *         The {@link Writer} that will receive the output.
      * @param header
      *         The string to be put in the {@code TH} element.
      * @param value
      *         The string to be put in the {@code TD} element.
      */
-    private static void addTableRow(StringBuilder html, String header, String value) {
+    private static void addTableRow(Writer html, String header, String value) throws IOException {
         html.append("<tr><th style=\"text-align: left; vertical-align: top;\">");
         html.append(header);
         html.append("</th>");
@@ -1848,35 +2003,47 @@ public class MimeUtility {
     }
 
     /**
-     * Use the contents of a {@link Viewable} to create the plain text to be displayed.
+     * Use the contents of a {@link Viewable} to write the plain text to be displayed.
      *
      * <p>
      * This will use {@link HtmlConverter#htmlToText(String)} to convert HTML parts to plain text
      * if necessary.
      * </p>
      *
+     * @param text
+     *         The {@link TruncatingWriter} that will receive the output. Parts are only read as
+     *         far as the writer will accept the text.
      * @param viewable
      *         The viewable part to build the text from.
      * @param prependDivider
      *         {@code true}, if the text divider should be inserted as first element.
      *         {@code false}, otherwise.
-     *
-     * @return The contents of the supplied viewable instance as plain text.
      */
-    private static StringBuilder buildText(Viewable viewable, boolean prependDivider)
-    {
-        StringBuilder text = new StringBuilder();
+    private static void writeText(TruncatingWriter text, Viewable viewable, boolean prependDivider)
+            throws IOException {
         if (viewable instanceof Textual) {
             Part part = ((Textual)viewable).getPart();
             addTextDivider(text, part, prependDivider);
 
-            String t = getTextFromPart(part);
+            int remaining = text.getRemaining();
+            if (remaining == 0) {
+                return;
+            }
+
+            String t = getTextFromPart(part, getReadLimit(remaining));
             if (t == null) {
-                t = "";
-            } else if (viewable instanceof Html) {
+                return;
+            }
+
+            boolean cutOff = (t.length() > remaining);
+            if (viewable instanceof Html) {
                 t = HtmlConverter.htmlToText(t);
             }
-            text.append(t);
+            text.write(t);
+
+            if (cutOff) {
+                text.truncate();
+            }
         } else if (viewable instanceof Alternative) {
             // That's odd - an Alternative as child of an Alternative; go ahead and try to use the
             // text/plain child; fall-back to the text/html part.
@@ -1887,12 +2054,23 @@ public class MimeUtility {
 
             boolean divider = prependDivider;
             for (Viewable textViewable : textAlternative) {
-                text.append(buildText(textViewable, divider));
+                writeText(text, textViewable, divider);
                 divider = true;
             }
         }
+    }
 
-        return text;
+    /**
+     * Get the number of characters to read from a part when a {@link TruncatingWriter} accepts
+     * {@code remaining} more characters.
+     *
+     * <p>
+     * One character more is read so a part that doesn't fit can be told apart from one that fits
+     * exactly.
+     * </p>
+     */
+    private static int getReadLimit(int remaining) {
+        return (remaining == Integer.MAX_VALUE) ? remaining : remaining + 1;
     }
 
     /*
@@ -1908,14 +2086,15 @@ public class MimeUtility {
      * Add a plain text divider between two plain text message parts.
      *
      * @param text
-     *         The {@link StringBuilder} to append the divider to.
+     *         The {@link Writer} to append the divider to.
      * @param part
      *         The message part that will follow after the divider. This is used to extract the
      *         part's name.
      * @param prependDivider
      *         {@code true}, if the divider should be appended. {@code false}, otherwise.
      */
-    private static void addTextDivider(StringBuilder text, Part part, boolean prependDivider) {
+    private static void addTextDivider(Writer text, Part part, boolean prependDivider)
+            throws IOException {
         if (prependDivider) {
             String filename = getPartName(part);
 
@@ -1939,35 +2118,49 @@ public class MimeUtility {
     }
 
     /**
-     * Use the contents of a {@link Viewable} to create the HTML to be displayed.
+     * Use the contents of a {@link Viewable} to write the HTML to be displayed.
      *
      * <p>
-     * This will use {@link HtmlConverter#textToHtml(String)} to convert plain text parts
+     * This will use {@link HtmlConverter#textToHtml(Reader, Writer)} to convert plain text parts
      * to HTML if necessary.
      * </p>
      *
+     * @param html
+     *         The {@link TruncatingWriter} that will receive the output. Parts are only read as
+     *         far as the writer will accept the HTML.
      * @param viewable
      *         The viewable part to build the HTML from.
      * @param prependDivider
      *         {@code true}, if the HTML divider should be inserted as first element.
      *         {@code false}, otherwise.
-     *
-     * @return The contents of the supplied viewable instance as HTML.
      */
-    private static StringBuilder buildHtml(Viewable viewable, boolean prependDivider)
-    {
-        StringBuilder html = new StringBuilder();
+    private static void writeHtml(TruncatingWriter html, Viewable viewable, boolean prependDivider)
+            throws IOException {
         if (viewable instanceof Textual) {
             Part part = ((Textual)viewable).getPart();
             addHtmlDivider(html, part, prependDivider);
 
-            String t = getTextFromPart(part);
+            int remaining = html.getRemaining();
+            if (remaining == 0) {
+                return;
+            }
+
+            String t = getTextFromPart(part, getReadLimit(remaining));
             if (t == null) {
-                t = "";
-            } else if (viewable instanceof Text) {
-                t = HtmlConverter.textToHtml(t);
+                return;
+            }
+
+            boolean cutOff = (t.length() > remaining);
+            if (viewable instanceof Text) {
+                // Convert straight into the output instead of building the HTML as a string first
+                HtmlConverter.textToHtml(new StringReader(t), html);
+            } else {
+                html.write(t);
+            }
+
+            if (cutOff) {
+                html.truncate();
             }
-            html.append(t);
         } else if (viewable instanceof Alternative) {
             // That's odd - an Alternative as child of an Alternative; go ahead and try to use the
             // text/html child; fall-back to the text/plain part.
@@ -1978,26 +2171,25 @@ public class MimeUtility {
 
             boolean divider = prependDivider;
             for (Viewable htmlViewable : htmlAlternative) {
-                html.append(buildHtml(htmlViewable, divider));
+                writeHtml(html, htmlViewable, divider);
                 divider = true;
             }
         }
-
-        return html;
     }
 
     /**
      * Add an HTML divider between two HTML message parts.
      *
      * @param html
-     *         The {@link StringBuilder} to append the divider to.
+     *         The {@link Writer} to append the divider to.
      * @param part
      *         The message part that will follow after the divider. This is used to extract the
      *         part's name.
      * @param prependDivider
      *         {@code true}, if the divider should be appended. {@code false}, otherwise.
      */
-    private static void addHtmlDivider(StringBuilder html, Part part, boolean prependDivider) {
+    private static void addHtmlDivider(Writer html, Part part, boolean prependDivider)
+            throws IOException {
         if (prependDivider) {
             String filename = getPartName(part);
 
@@ -2321,6 +2513,15 @@ public class MimeUtility {
     }
 
     public static String readToString(InputStream in, String charset) throws IOException {
+        return readToString(in, charset, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #readToString(InputStream, String)} but stops after {@code maxLength}
+     * characters.
+     */
+    private static String readToString(InputStream in, String charset, int maxLength)
+            throws IOException {
         boolean isIphoneString = false;
 
         // iso-2022-jp variants are supported by no versions as of Dec 2010.
@@ -2341,6 +2542,54 @@ public class MimeUtility {
             charset = "shift_jis";
         }
 
+        /*
+         * Convert and return as new String
+         */
+        Reader reader = new InputStreamReader(in, getJavaCharset(charset));
+        String str = (maxLength == Integer.MAX_VALUE) ?
+                IOUtils.toString(reader) : readAtMost(reader, maxLength);
+
+        if (isIphoneString)
+            str = importStringFromIphone(str);
+        return str;
+    }
+
+    private static String readAtMost(Reader reader, int maxLength) throws IOException {
+        StringBuilder sb = new StringBuilder(Math.min(maxLength, 16 * 1024));
+        char[] buffer = new char[Math.min(maxLength, 4096)];
+        int count;
+        while (sb.length() < maxLength &&
+                (count = reader.read(buffer, 0, Math.min(buffer.length, maxLength - sb.length()))) != -1) {
+            sb.append(buffer, 0, count);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Get the Java charset to use for the MIME charset {@code charset}.
+     *
+     * <p>
+     * Resolving a charset and applying {@link #CHARSET_FALLBACK_MAP} is comparatively expensive
+     * and the same handful of charsets is used over and over again. So the result is cached.
+     * </p>
+     */
+    private static Charset getJavaCharset(String charset) {
+        Charset javaCharset = sCharsetCache.get(charset);
+        if (javaCharset != null) {
+            return javaCharset;
+        }
+
+        javaCharset = resolveCharset(charset);
+
+        if (sCharsetCache.size() >= MAX_CACHED_CHARSETS) {
+            sCharsetCache.clear();
+        }
+        sCharsetCache.put(charset, javaCharset);
+
+        return javaCharset;
+    }
+
+    private static Charset resolveCharset(String charset) {
         /*
          * See if there is conversion from the MIME charset to the Java one.
          * this function may also throw an exception if the charset name is not known
@@ -2369,14 +2618,7 @@ public class MimeUtility {
             }
         }
 
-        /*
-         * Convert and return as new String
-         */
-        String str = IOUtils.toString(in, charset);
-
-        if (isIphoneString)
-            str = importStringFromIphone(str);
-        return str;
+        return Charset.forName(charset);
     }
 
     static private String importStringFromIphone(String str) {
@@ -0,0 +1,225 @@
+package com.fsck.k9.mail.internet;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A {@link Writer} that passes at most a fixed number of characters to another {@code Writer}
+ * and silently drops the rest.
+ *
+ * <p>
+ * A surrogate pair is never split. If only the high surrogate would fit, it is dropped as well.
+ * </p>
+ *
+ * <p>
+ * When writing HTML, tags and character references are held back until they are complete, so
+ * the output is never cut off in the middle of one of them. An unfinished tag or character
+ * reference at the point of truncation is dropped.
+ * </p>
+ *
+ * <p>
+ * Closing this writer writes anything held back and flushes the underlying writer. The
+ * underlying writer is not closed.
+ * </p>
+ */
+class TruncatingWriter extends Writer {
+    /**
+     * Character references longer than this are treated as text, e.g. {@code "&"} followed by a
+     * long word.
+     */
+    private static final int MAX_REFERENCE_LENGTH = 32;
+
+    private static final int STATE_TEXT = 0;
+    private static final int STATE_TAG = 1;
+    private static final int STATE_REFERENCE = 2;
+
+    private final Writer mOut;
+    private final boolean mHtml;
+    private int mRemaining;
+    private boolean mTruncated;
+
+    /**
+     * The unfinished tag or character reference that is held back when writing HTML.
+     */
+    private final StringBuilder mPending = new StringBuilder();
+    private int mState = STATE_TEXT;
+
+
+    /**
+     * @param maxLength
+     *         The maximum number of characters to write to {@code out}. Use
+     *         {@link Integer#MAX_VALUE} for no limit.
+     */
+    TruncatingWriter(Writer out, int maxLength) {
+        this(out, maxLength, false);
+    }
+
+    /**
+     * @param maxLength
+     *         The maximum number of characters to write to {@code out}. Use
+     *         {@link Integer#MAX_VALUE} for no limit.
+     * @param html
+     *         {@code true} if the output is HTML and must not be cut off inside of a tag or a
+     *         character reference.
+     */
+    TruncatingWriter(Writer out, int maxLength, boolean html) {
+        mOut = out;
+        mRemaining = maxLength;
+        mHtml = html;
+    }
+
+    /**
+     * @return The number of characters that can still be written before the output is truncated.
+     */
+    public int getRemaining() {
+        return mRemaining;
+    }
+
+    /**
+     * @return {@code true} if characters have been dropped.
+     */
+    public boolean isTruncated() {
+        return mTruncated;
+    }
+
+    @Override
+    public void write(char[] buffer, int offset, int length) throws IOException {
+        if (mHtml) {
+            writeHtml(buffer, offset, length);
+            return;
+        }
+
+        int count = getWritableCount(length, (length > mRemaining && mRemaining > 0) ?
+                buffer[offset + mRemaining - 1] : 0);
+        if (count > 0) {
+            mOut.write(buffer, offset, count);
+        }
+    }
+
+    @Override
+    public void write(String str, int offset, int length) throws IOException {
+        if (mHtml) {
+            char[] buffer = new char[length];
+            str.getChars(offset, offset + length, buffer, 0);
+            writeHtml(buffer, 0, length);
+            return;
+        }
+
+        int count = getWritableCount(length, (length > mRemaining && mRemaining > 0) ?
+                str.charAt(offset + mRemaining - 1) : 0);
+        if (count > 0) {
+            mOut.write(str, offset, count);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writePending();
+        mOut.flush();
+    }
+
+    /**
+     * @param lastChar
+     *         The last character that would fit if the output has to be truncated.
+     *
+     * @return The number of characters to pass on.
+     */
+    private int getWritableCount(int length, char lastChar) {
+        if (length <= mRemaining) {
+            mRemaining -= length;
+            return length;
+        }
+
+        int count = mRemaining;
+        if (count > 0 && Character.isHighSurrogate(lastChar)) {
+            count--;
+        }
+        mRemaining = 0;
+        mTruncated = true;
+        return count;
+    }
+
+    private void writeHtml(char[] buffer, int offset, int length) throws IOException {
+        int end = offset + length;
+
+        // Start of the text that hasn't been passed on or held back yet
+        int start = offset;
+
+        int i = offset;
+        while (i < end) {
+            char c = buffer[i];
+            if (mRemaining == 0 || (mRemaining == 1 && Character.isHighSurrogate(c))) {
+                mOut.write(buffer, start, i - start);
+                truncate();
+                return;
+            }
+
+            switch (mState) {
+                case STATE_TEXT: {
+                    if (c == '<' || c == '&') {
+                        mOut.write(buffer, start, i - start);
+                        mState = (c == '<') ? STATE_TAG : STATE_REFERENCE;
+                        mPending.append(c);
+                        start = i + 1;
+                    }
+                    break;
+                }
+                case STATE_TAG: {
+                    mPending.append(c);
+                    start = i + 1;
+                    if (c == '>') {
+                        writePending();
+                    }
+                    break;
+                }
+                case STATE_REFERENCE: {
+                    if (c == ';') {
+                        mPending.append(c);
+                        start = i + 1;
+                        writePending();
+                    } else if ((c == '#' || Character.isLetterOrDigit(c)) &&
+                            mPending.length() < MAX_REFERENCE_LENGTH) {
+                        mPending.append(c);
+                        start = i + 1;
+                    } else {
+                        // Not a character reference. Look at this character again as text.
+                        writePending();
+                        continue;
+                    }
+                    break;
+                }
+            }
+
+            mRemaining--;
+            i++;
+        }
+
+        if (mState == STATE_TEXT) {
+            mOut.write(buffer, start, end - start);
+        }
+    }
+
+    private void writePending() throws IOException {
+        if (mPending.length() > 0) {
+            mOut.append(mPending);
+            mPending.setLength(0);
+        }
+        mState = STATE_TEXT;
+    }
+
+    /**
+     * Stop passing on output, e.g. because the input has been cut off before it reached this
+     * writer. An unfinished tag or character reference that is held back is dropped.
+     */
+    void truncate() {
+        mPending.setLength(0);
+        mState = STATE_TEXT;
+        mRemaining = 0;
+        mTruncated = true;
+    }
+}
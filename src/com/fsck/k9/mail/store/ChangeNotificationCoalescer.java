@@ -0,0 +1,97 @@
+package com.fsck.k9.mail.store;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.fsck.k9.Clock;
+
+/**
+ * Coalesces change notifications so listeners are notified at most once per time window.
+ *
+ * <p>
+ * During a sync {@link LocalStore} changes the database many times per second. Every change
+ * notification makes every active {@code CursorLoader} re-run its query. With this class the
+ * first change is delivered right away. Further changes within the window are merged into a
+ * single notification that is delivered as soon as the window has passed, so the final state
+ * always reaches the listener promptly.
+ * </p>
+ *
+ * <p>
+ * Notifications are delivered on a shared background thread.
+ * </p>
+ */
+public class ChangeNotificationCoalescer {
+    public interface ChangeListener {
+        void onChange();
+    }
+
+
+    private static Timer sTimer;
+
+    private static synchronized Timer getTimer() {
+        if (sTimer == null) {
+            sTimer = new Timer("ChangeNotificationCoalescer", true);
+        }
+        return sTimer;
+    }
+
+
+    private final ChangeListener mListener;
+    private final long mWindow;
+    private final Clock mClock;
+    private final Timer mTimer;
+    private long mLastDelivery;
+    private boolean mScheduled;
+
+
+    /**
+     * @param window
+     *         The minimum time (in milliseconds) between two notifications.
+     */
+    public ChangeNotificationCoalescer(long window, ChangeListener listener) {
+        this(window, listener, Clock.INSTANCE, getTimer());
+    }
+
+    /** Constructor for tests */
+    /* package */ ChangeNotificationCoalescer(long window, ChangeListener listener, Clock clock,
+            Timer timer) {
+        mListener = listener;
+        mWindow = window;
+        mClock = clock;
+        mTimer = timer;
+        mLastDelivery = Long.MIN_VALUE / 2;
+    }
+
+    /**
+     * Request a notification.
+     *
+     * <p>
+     * If a notification is already pending this is a no-op because the pending notification will
+     * cover this change, too.
+     * </p>
+     */
+    public synchronized void notifyChange() {
+        if (mScheduled) {
+            return;
+        }
+
+        // Never wait longer than the window, even if the clock has been set back
+        long delay = Math.min(mWindow, Math.max(0, mLastDelivery + mWindow - mClock.getTime()));
+        mScheduled = true;
+        mTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                deliver();
+            }
+        }, delay);
+    }
+
+    private void deliver() {
+        synchronized (this) {
+            mScheduled = false;
+            mLastDelivery = mClock.getTime();
+        }
+
+        mListener.onChange();
+    }
+}
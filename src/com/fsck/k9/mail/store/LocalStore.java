@@ -10,10 +10,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -46,6 +46,9 @@ import com.fsck.k9.Preferences;
 import com.fsck.k9.R;
 import com.fsck.k9.Account.MessageFormat;
 import com.fsck.k9.activity.Search;
+import com.fsck.k9.cache.EmailProviderCache;
+import com.fsck.k9.cache.MessageRenderCache;
+import com.fsck.k9.controller.AdaptivePollScheduler;
 import com.fsck.k9.controller.MessageRemovalListener;
 import com.fsck.k9.controller.MessageRetrievalListener;
 import com.fsck.k9.helper.HtmlConverter;
@@ -69,6 +72,7 @@ import com.fsck.k9.mail.internet.MimeHeader;
 import com.fsck.k9.mail.internet.MimeMessage;
 import com.fsck.k9.mail.internet.MimeMultipart;
 import com.fsck.k9.mail.internet.MimeUtility;
+import com.fsck.k9.mail.internet.MimeUtility.ExtractedViewables;
 import com.fsck.k9.mail.internet.MimeUtility.ViewableContainer;
 import com.fsck.k9.mail.internet.TextBody;
 import com.fsck.k9.mail.store.LockableDatabase.DbCallback;
@@ -146,7 +150,7 @@ public class LocalStore extends Store implements Serializable {
      */
     private static final int THREAD_FLAG_UPDATE_BATCH_SIZE = 500;
 
-    public static final int DB_VERSION = 49;
+    public static final int DB_VERSION = 50;
 
 
     public static String getColumnNameForFlag(Flag flag) {
@@ -178,6 +182,13 @@ public class LocalStore extends Store implements Serializable {
 
     private ContentResolver mContentResolver;
 
+    private ChangeNotificationCoalescer mChangeNotificationCoalescer;
+
+    /**
+     * Changes that haven't been delivered by {@link #mChangeNotificationCoalescer} yet.
+     */
+    private final PendingChanges mPendingChanges = new PendingChanges();
+
     /**
      * local://localhost/path/to/database/uuid.db
      * This constructor is only used by {@link Store#getLocalInstance(Account, Application)}
@@ -191,6 +202,14 @@ public class LocalStore extends Store implements Serializable {
 
         mApplication = application;
         mContentResolver = application.getContentResolver();
+        mChangeNotificationCoalescer = new ChangeNotificationCoalescer(
+                K9.CONTENT_CHANGE_NOTIFICATION_WINDOW,
+                new ChangeNotificationCoalescer.ChangeListener() {
+                    @Override
+                    public void onChange() {
+                        deliverPendingChanges();
+                    }
+                });
         database.setStorageProviderId(account.getLocalStorageProviderId());
         uUid = account.getUuid();
 
@@ -227,6 +246,7 @@ public class LocalStore extends Store implements Serializable {
                                             db.getVersion(), DB_VERSION));
 
             AttachmentProvider.clear(mApplication);
+            MessageRenderCache.getInstance(mApplication).clear();
 
             db.beginTransaction();
             try {
@@ -325,7 +345,7 @@ public class LocalStore extends Store implements Serializable {
 
                     db.execSQL("DROP TABLE IF EXISTS pending_commands");
                     db.execSQL("CREATE TABLE pending_commands " +
-                               "(id INTEGER PRIMARY KEY, command TEXT, arguments TEXT)");
+                               "(id INTEGER PRIMARY KEY, command TEXT, arguments BLOB)");
 
                     db.execSQL("DROP TRIGGER IF EXISTS delete_folder");
                     db.execSQL("CREATE TRIGGER delete_folder BEFORE DELETE ON folders BEGIN DELETE FROM messages WHERE old.id = folder_id; END;");
@@ -703,6 +723,9 @@ public class LocalStore extends Store implements Serializable {
                         db.execSQL("CREATE INDEX IF NOT EXISTS msg_composite ON messages (deleted, empty,folder_id,flagged,read)");
 
                     }
+                    if (db.getVersion() < 50) {
+                        convertPendingCommandArguments(db);
+                    }
                 }
 
                 db.setVersion(DB_VERSION);
@@ -717,6 +740,33 @@ public class LocalStore extends Store implements Serializable {
             }
         }
 
+        /**
+         * Convert the comma-separated, URL-encoded arguments of pending commands to the binary
+         * format written by {@link PendingCommandSerializer}.
+         */
+        private void convertPendingCommandArguments(final SQLiteDatabase db) {
+            Cursor cursor = db.query("pending_commands", new String[] { "id", "arguments" },
+                    null, null, null, null, null);
+            try {
+                ContentValues cv = new ContentValues();
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(0);
+                    String arguments = cursor.getString(1);
+
+                    String[] decodedArguments = arguments.split(",");
+                    for (int i = 0; i < decodedArguments.length; i++) {
+                        decodedArguments[i] = Utility.fastUrlDecode(decodedArguments[i]);
+                    }
+
+                    cv.clear();
+                    cv.put("arguments", PendingCommandSerializer.serialize(decodedArguments));
+                    db.update("pending_commands", cv, "id = ?", new String[] { Long.toString(id) });
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
         private void update41Metadata(final SQLiteDatabase  db, SharedPreferences prefs, int id, String name) {
 
 
@@ -835,6 +885,10 @@ public class LocalStore extends Store implements Serializable {
             }
         });
 
+        // Message and attachment IDs might be reused
+        MessageRenderCache.getInstance(mApplication).clear();
+        AttachmentProvider.clearThumbnails(mApplication);
+
         compact();
 
         if (K9.DEBUG) {
@@ -928,10 +982,14 @@ public class LocalStore extends Store implements Serializable {
 
     public void delete() throws UnavailableStorageException {
         database.delete();
+        MessageRenderCache.getInstance(mApplication).clear();
+        AttachmentProvider.clearThumbnails(mApplication);
     }
 
     public void recreate() throws UnavailableStorageException {
         database.recreate();
+        MessageRenderCache.getInstance(mApplication).clear();
+        AttachmentProvider.clearThumbnails(mApplication);
     }
 
     public void pruneCachedAttachments() throws MessagingException {
@@ -1038,10 +1096,12 @@ public class LocalStore extends Store implements Serializable {
                         PendingCommand command = new PendingCommand();
                         command.mId = cursor.getLong(0);
                         command.command = cursor.getString(1);
-                        String arguments = cursor.getString(2);
-                        command.arguments = arguments.split(",");
-                        for (int i = 0; i < command.arguments.length; i++) {
-                            command.arguments[i] = Utility.fastUrlDecode(command.arguments[i]);
+                        try {
+                            command.arguments = PendingCommandSerializer.deserialize(cursor.getBlob(2));
+                        } catch (IllegalArgumentException e) {
+                            Log.e(K9.LOG_TAG, "Dropping unreadable pending command " + command.command, e);
+                            db.delete("pending_commands", "id = ?", new String[] { Long.toString(command.mId) });
+                            continue;
                         }
                         commands.add(command);
                     }
@@ -1054,23 +1114,16 @@ public class LocalStore extends Store implements Serializable {
     }
 
     public void addPendingCommand(PendingCommand command) throws UnavailableStorageException {
-        try {
-            for (int i = 0; i < command.arguments.length; i++) {
-                command.arguments[i] = URLEncoder.encode(command.arguments[i], "UTF-8");
+        final ContentValues cv = new ContentValues();
+        cv.put("command", command.command);
+        cv.put("arguments", PendingCommandSerializer.serialize(command.arguments));
+        database.execute(false, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
+                db.insert("pending_commands", "command", cv);
+                return null;
             }
-            final ContentValues cv = new ContentValues();
-            cv.put("command", command.command);
-            cv.put("arguments", Utility.combine(command.arguments, ','));
-            database.execute(false, new DbCallback<Void>() {
-                @Override
-                public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
-                    db.insert("pending_commands", "command", cv);
-                    return null;
-                }
-            });
-        } catch (UnsupportedEncodingException uee) {
-            throw new Error("Aparently UTF-8 has been lost to the annals of history.");
-        }
+        });
     }
 
     public void removePendingCommand(final PendingCommand command) throws UnavailableStorageException {
@@ -1324,6 +1377,25 @@ public class LocalStore extends Store implements Serializable {
         return Utility.combine(extraFlags.toArray(EMPTY_FLAG_ARRAY), ',').toUpperCase(Locale.US);
     }
 
+    /**
+     * Get the flags to store for a message.
+     *
+     * @param truncated
+     *         {@code true} if the viewable text of the message had to be truncated. The message is
+     *         then marked with {@link Flag#X_VIEWABLE_TRUNCATED} and as partially downloaded.
+     */
+    private static Flag[] getFlagsToStore(Message message, boolean truncated) {
+        Set<Flag> flags = new HashSet<Flag>(Arrays.asList(message.getFlags()));
+        if (truncated) {
+            flags.add(Flag.X_VIEWABLE_TRUNCATED);
+            flags.remove(Flag.X_DOWNLOADED_FULL);
+            flags.add(Flag.X_DOWNLOADED_PARTIAL);
+        } else {
+            flags.remove(Flag.X_VIEWABLE_TRUNCATED);
+        }
+        return flags.toArray(EMPTY_FLAG_ARRAY);
+    }
+
     public class LocalFolder extends Folder implements Serializable {
         /**
          *
@@ -1748,6 +1820,8 @@ public class LocalStore extends Store implements Serializable {
             editor.remove(id + ".integrate");
 
             editor.commit();
+
+            AdaptivePollScheduler.getInstance(mApplication).forgetFolder(mAccount, mName);
         }
 
         public void save() throws MessagingException {
@@ -2509,6 +2583,7 @@ public class LocalStore extends Store implements Serializable {
                                 List<Part> attachments;
                                 String text;
                                 String html;
+                                boolean truncated = false;
                                 if (isDraft) {
                                     // Don't modify the text/plain or text/html part of our own
                                     // draft messages because this will cause the values stored in
@@ -2520,12 +2595,18 @@ public class LocalStore extends Store implements Serializable {
                                     html = container.html;
                                     attachments = container.attachments;
                                 } else {
-                                    ViewableContainer container =
-                                            MimeUtility.extractTextAndAttachments(mApplication, message);
-
-                                    attachments = container.attachments;
-                                    text = container.text;
-                                    html = HtmlConverter.convertEmoji2Img(container.html);
+                                    StringWriter textWriter = new StringWriter();
+                                    StringWriter htmlWriter = new StringWriter();
+                                    ExtractedViewables viewables =
+                                            MimeUtility.extractTextAndAttachments(mApplication,
+                                                    message, textWriter, htmlWriter,
+                                                    K9.MAX_STORED_VIEWABLE_LENGTH);
+
+                                    attachments = viewables.attachments;
+                                    truncated = viewables.truncated;
+
+                                    text = textWriter.toString();
+                                    html = HtmlConverter.convertEmoji2Img(htmlWriter.toString());
                                 }
 
                                 String preview = Message.calculateContentPreview(text);
@@ -2537,7 +2618,8 @@ public class LocalStore extends Store implements Serializable {
                                     cv.put("sender_list", Address.pack(message.getFrom()));
                                     cv.put("date", message.getSentDate() == null
                                            ? System.currentTimeMillis() : message.getSentDate().getTime());
-                                    cv.put("flags", serializeFlags(message.getFlags()));
+                                    cv.put("flags", serializeFlags(
+                                            getFlagsToStore(message, truncated)));
                                     cv.put("deleted", message.isSet(Flag.DELETED) ? 1 : 0);
                                     cv.put("read", message.isSet(Flag.SEEN) ? 1 : 0);
                                     cv.put("flagged", message.isSet(Flag.FLAGGED) ? 1 : 0);
@@ -2626,12 +2708,15 @@ public class LocalStore extends Store implements Serializable {
                         try {
                             message.buildMimeRepresentation();
 
-                            ViewableContainer container =
-                                    MimeUtility.extractTextAndAttachments(mApplication, message);
+                            StringWriter textWriter = new StringWriter();
+                            StringWriter htmlWriter = new StringWriter();
+                            ExtractedViewables viewables = MimeUtility.extractTextAndAttachments(
+                                    mApplication, message, textWriter, htmlWriter,
+                                    K9.MAX_STORED_VIEWABLE_LENGTH);
+                            List<Part> attachments = viewables.attachments;
 
-                            List<Part> attachments = container.attachments;
-                            String text = container.text;
-                            String html = HtmlConverter.convertEmoji2Img(container.html);
+                            String text = textWriter.toString();
+                            String html = HtmlConverter.convertEmoji2Img(htmlWriter.toString());
 
                             String preview = Message.calculateContentPreview(text);
 
@@ -2649,7 +2734,8 @@ public class LocalStore extends Store implements Serializable {
                                                message.getSentDate() == null ? System
                                                .currentTimeMillis() : message.getSentDate()
                                                .getTime(),
-                                               serializeFlags(message.getFlags()),
+                                               serializeFlags(getFlagsToStore(message,
+                                                       viewables.truncated)),
                                                mFolderId,
                                                Address.pack(message
                                                             .getRecipients(RecipientType.TO)),
@@ -2669,6 +2755,9 @@ public class LocalStore extends Store implements Serializable {
                                                message.mId
                                            });
 
+                                MessageRenderCache.getInstance(mApplication).remove(uUid,
+                                        message.mId);
+
                                 for (int i = 0, count = attachments.size(); i < count; i++) {
                                     Part attachment = attachments.get(i);
                                     saveAttachment(message.mId, attachment, false);
@@ -2863,6 +2952,14 @@ public class LocalStore extends Store implements Serializable {
                             if (attachmentId != -1 && tempAttachmentFile != null) {
                                 File attachmentFile = new File(attachmentDirectory, Long.toString(attachmentId));
                                 tempAttachmentFile.renameTo(attachmentFile);
+
+                                // Replace the thumbnail of an attachment that is updated in place
+                                String thumbnailId = Long.toString(attachmentId);
+                                AttachmentProvider.deleteThumbnail(mApplication, uUid, thumbnailId);
+                                AttachmentProvider.createThumbnailInBackground(mApplication, uUid,
+                                        thumbnailId, attachmentFile,
+                                        MimeUtility.getMimeTypeForViewing(attachment.getMimeType(), name));
+
                                 contentUri = AttachmentProvider.getAttachmentUri(
                                                  mAccount,
                                                  attachmentId);
@@ -2897,6 +2994,9 @@ public class LocalStore extends Store implements Serializable {
                                             cv.put("html_content", newHtmlContent);
                                             db.update("messages", cv, "id = ?", new String[]
                                                       { Long.toString(messageId) });
+
+                                            MessageRenderCache.getInstance(mApplication).remove(
+                                                    uUid, messageId);
                                         }
                                     }
                                 } finally {
@@ -3133,6 +3233,9 @@ public class LocalStore extends Store implements Serializable {
 
                         // Delete attachment metadata from the database
                         db.delete("attachments", "message_id = ?", whereArgs);
+
+                        // The body of the message is deleted or replaced as well
+                        MessageRenderCache.getInstance(context).remove(accountUuid, messageId);
                     } finally {
                         Utility.closeQuietly(attachmentsCursor);
                     }
@@ -3687,6 +3790,12 @@ public class LocalStore extends Store implements Serializable {
                             }
 
                             LocalMessage.super.setFlag(flag, set);
+
+                            // The complete text of this message can't be displayed
+                            if (isSet(Flag.X_VIEWABLE_TRUNCATED)) {
+                                LocalMessage.super.setFlag(Flag.X_DOWNLOADED_FULL, false);
+                                LocalMessage.super.setFlag(Flag.X_DOWNLOADED_PARTIAL, true);
+                            }
                         } catch (MessagingException e) {
                             throw new WrappedException(e);
                         }
@@ -3709,7 +3818,7 @@ public class LocalStore extends Store implements Serializable {
                 throw(MessagingException) e.getCause();
             }
 
-            notifyChange();
+            notifyMessagesChanged(Collections.singletonList(mId), flag, set);
         }
 
         /*
@@ -4196,9 +4305,89 @@ public class LocalStore extends Store implements Serializable {
         return database;
     }
 
+    /**
+     * Notify observers of the account's messages URI.
+     *
+     * <p>
+     * Notifications are coalesced so observers re-query at most once per
+     * {@link K9#CONTENT_CHANGE_NOTIFICATION_WINDOW}.
+     * </p>
+     */
     private void notifyChange() {
-        Uri uri = Uri.withAppendedPath(EmailProvider.CONTENT_URI, "account/" + uUid + "/messages");
-        mContentResolver.notifyChange(uri, null);
+        synchronized (mPendingChanges) {
+            mPendingChanges.fullChange = true;
+        }
+        mChangeNotificationCoalescer.notifyChange();
+    }
+
+    /**
+     * Publish a row-level flag change.
+     *
+     * <p>
+     * The new values are recorded in {@link EmailProviderCache} so existing cursors can display
+     * them right away. Instead of a content change notification that makes every cursor re-query,
+     * a {@link EmailProviderCache#ACTION_MESSAGES_CHANGED} broadcast is sent. If the flag isn't
+     * displayed in the message list or the change can't be recorded this falls back to
+     * {@link #notifyChange()}.
+     * </p>
+     */
+    private void notifyMessagesChanged(List<Long> messageIds, Flag flag, boolean newState) {
+        if (!EmailProviderCache.isCachedFlag(flag)) {
+            notifyChange();
+            return;
+        }
+
+        EmailProviderCache cache = EmailProviderCache.getCache(uUid, mApplication);
+        boolean recorded = cache.recordMessageChanges(messageIds, flag, newState);
+
+        synchronized (mPendingChanges) {
+            if (recorded) {
+                mPendingChanges.messageIds.addAll(messageIds);
+                mPendingChanges.flags.add(flag);
+            } else {
+                mPendingChanges.fullChange = true;
+            }
+        }
+        mChangeNotificationCoalescer.notifyChange();
+    }
+
+    private void deliverPendingChanges() {
+        boolean fullChange;
+        long[] messageIds;
+        Flag[] flags;
+        synchronized (mPendingChanges) {
+            fullChange = mPendingChanges.fullChange;
+            messageIds = new long[mPendingChanges.messageIds.size()];
+            int i = 0;
+            for (Long messageId : mPendingChanges.messageIds) {
+                messageIds[i++] = messageId;
+            }
+            flags = mPendingChanges.flags.toArray(EMPTY_FLAG_ARRAY);
+            mPendingChanges.clear();
+        }
+
+        EmailProviderCache cache = EmailProviderCache.getCache(uUid, mApplication);
+        if (fullChange) {
+            // Everybody re-queries, so recorded row-level changes are no longer needed
+            cache.clearMessageChanges();
+
+            Uri uri = Uri.withAppendedPath(EmailProvider.CONTENT_URI, "account/" + uUid + "/messages");
+            mContentResolver.notifyChange(uri, null);
+        } else if (messageIds.length > 0) {
+            cache.notifyMessagesChanged(messageIds, flags);
+        }
+    }
+
+    private static class PendingChanges {
+        public boolean fullChange;
+        public final Set<Long> messageIds = new HashSet<Long>();
+        public final Set<Flag> flags = new HashSet<Flag>();
+
+        public void clear() {
+            fullChange = false;
+            messageIds.clear();
+            flags.clear();
+        }
     }
 
     /**
@@ -4352,7 +4541,7 @@ public class LocalStore extends Store implements Serializable {
 
             @Override
             public void postDbWork() {
-                notifyChange();
+                notifyMessagesChanged(messageIds, flag, newState);
             }
         }, FLAG_UPDATE_BATCH_SIZE);
     }
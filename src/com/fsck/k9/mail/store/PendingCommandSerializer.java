@@ -0,0 +1,197 @@
+package com.fsck.k9.mail.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary serialization of {@link LocalStore.PendingCommand} arguments.
+ *
+ * <p>
+ * Bulk commands (e.g. setting a flag or moving thousands of messages) carry one argument per
+ * message UID. Those UIDs are almost always numeric and often consecutive, so runs of ascending
+ * numeric arguments are stored as {@code (delta to previous value, run length)} pairs instead of
+ * one string per UID. All other arguments are stored as length-prefixed UTF-8 strings.
+ * </p>
+ *
+ * <pre>
+ * blob     = version entry*
+ * version  = byte (currently {@value #VERSION})
+ * entry    = TYPE_STRING varint(length) utf8-bytes
+ *          | TYPE_NUMBER_RUN varlong(zigzag(first - previous)) varint(count)
+ * </pre>
+ *
+ * <p>
+ * A number run expands to {@code count} arguments {@code first, first + 1, ..., first + count - 1}.
+ * {@code previous} is the last value of the preceding number run (or 0).
+ * </p>
+ */
+public class PendingCommandSerializer {
+    public static final int VERSION = 1;
+
+    private static final int TYPE_STRING = 0;
+    private static final int TYPE_NUMBER_RUN = 1;
+
+    /**
+     * Don't turn arguments with more digits than this into numbers. Longer values might not fit
+     * into a {@code long}.
+     */
+    private static final int MAX_NUMBER_DIGITS = 18;
+
+    private static final String[] EMPTY_STRING_ARRAY = new String[0];
+
+
+    private PendingCommandSerializer() {
+    }
+
+    public static byte[] serialize(String[] arguments) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + arguments.length * 2);
+        out.write(VERSION);
+
+        long previous = 0;
+        int i = 0;
+        while (i < arguments.length) {
+            String argument = arguments[i];
+            if (!isCanonicalNumber(argument)) {
+                out.write(TYPE_STRING);
+                byte[] bytes = toUtf8(argument);
+                writeVarLong(out, bytes.length);
+                out.write(bytes, 0, bytes.length);
+                i++;
+                continue;
+            }
+
+            long first = Long.parseLong(argument);
+            int count = 1;
+            while (i + count < arguments.length && isCanonicalNumber(arguments[i + count]) &&
+                    Long.parseLong(arguments[i + count]) == first + count) {
+                count++;
+            }
+
+            out.write(TYPE_NUMBER_RUN);
+            writeVarLong(out, zigZagEncode(first - previous));
+            writeVarLong(out, count);
+
+            previous = first + count - 1;
+            i += count;
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *         if {@code data} wasn't created by {@link #serialize(String[])} or uses an unknown
+     *         version.
+     */
+    public static String[] deserialize(byte[] data) {
+        if (data == null || data.length == 0) {
+            throw new IllegalArgumentException("Empty pending command arguments");
+        }
+        if (data[0] != VERSION) {
+            throw new IllegalArgumentException("Unknown pending command arguments version " + data[0]);
+        }
+
+        List<String> arguments = new ArrayList<String>();
+        int[] position = { 1 };
+        long previous = 0;
+        try {
+            while (position[0] < data.length) {
+                int type = data[position[0]++];
+                switch (type) {
+                    case TYPE_STRING: {
+                        int length = (int) readVarLong(data, position);
+                        if (length < 0 || position[0] + length > data.length) {
+                            throw new IllegalArgumentException("Truncated string argument");
+                        }
+                        arguments.add(new String(data, position[0], length, "UTF-8"));
+                        position[0] += length;
+                        break;
+                    }
+                    case TYPE_NUMBER_RUN: {
+                        long first = previous + zigZagDecode(readVarLong(data, position));
+                        long count = readVarLong(data, position);
+                        if (count <= 0 || count > Integer.MAX_VALUE) {
+                            throw new IllegalArgumentException("Invalid run length " + count);
+                        }
+                        for (long n = 0; n < count; n++) {
+                            arguments.add(Long.toString(first + n));
+                        }
+                        previous = first + count - 1;
+                        break;
+                    }
+                    default: {
+                        throw new IllegalArgumentException("Unknown argument type " + type);
+                    }
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+
+        return arguments.toArray(EMPTY_STRING_ARRAY);
+    }
+
+    /**
+     * Only numbers that survive a round trip through {@link Long#toString(long)} unchanged can be
+     * stored in a number run. E.g. "007" or "+1" have to be stored as strings.
+     */
+    static boolean isCanonicalNumber(String value) {
+        int length = value.length();
+        if (length == 0 || length > MAX_NUMBER_DIGITS) {
+            return false;
+        }
+        if (length > 1 && value.charAt(0) == '0') {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] toUtf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static long zigZagEncode(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long zigZagDecode(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(byte[] data, int[] position) {
+        long result = 0;
+        int shift = 0;
+        while (shift < 64) {
+            if (position[0] >= data.length) {
+                throw new IllegalArgumentException("Truncated variable-length number");
+            }
+            byte b = data[position[0]++];
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+            shift += 7;
+        }
+        throw new IllegalArgumentException("Malformed variable-length number");
+    }
+}
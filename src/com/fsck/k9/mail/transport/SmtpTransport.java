@@ -7,12 +7,9 @@ import com.fsck.k9.K9;
 import com.fsck.k9.mail.*;
 import com.fsck.k9.mail.Message.RecipientType;
 import com.fsck.k9.mail.filter.Base64;
-import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
-import com.fsck.k9.mail.filter.LineWrapOutputStream;
 import com.fsck.k9.mail.filter.PeekableInputStream;
 import com.fsck.k9.mail.filter.SmtpDataStuffing;
 import com.fsck.k9.mail.internet.MimeUtility;
-import com.fsck.k9.mail.store.LocalStore.LocalMessage;
 import com.fsck.k9.net.ssl.TrustManagerFactory;
 import com.fsck.k9.net.ssl.TrustedSocketFactory;
 
@@ -35,6 +32,12 @@ import java.util.*;
 public class SmtpTransport extends Transport {
     public static final String TRANSPORT_TYPE = "SMTP";
 
+    /**
+     * Number of times we try to send a message before giving up. We only try again if we know
+     * the message hasn't been delivered yet.
+     */
+    private static final int SEND_ATTEMPTS = 2;
+
     /**
      * Decodes a SmtpTransport URI.
      *
@@ -174,6 +177,10 @@ public class SmtpTransport extends Transport {
     PeekableInputStream mIn;
     OutputStream mOut;
     private boolean m8bitEncodingAllowed;
+    private boolean mSizeExtensionSupported;
+    private boolean mKeepConnectionOpen;
+    private boolean mPipeliningSupported;
+    private boolean mChunkingSupported;
     private int mLargestAcceptableMessage;
 
     public SmtpTransport(Account account) throws MessagingException {
@@ -300,7 +307,10 @@ public class SmtpTransport extends Transport {
                 authPlainSupported = saslMech.contains("PLAIN");
                 authCramMD5Supported = saslMech.contains("CRAM-MD5");
             }
-            if (extensions.containsKey("SIZE")) {
+            mPipeliningSupported = extensions.containsKey("PIPELINING");
+            mChunkingSupported = extensions.containsKey("CHUNKING");
+            mSizeExtensionSupported = extensions.containsKey("SIZE");
+            if (mSizeExtensionSupported) {
                 try {
                     mLargestAcceptableMessage = Integer.parseInt(extensions.get("SIZE"));
                 } catch (Exception e) {
@@ -431,6 +441,11 @@ public class SmtpTransport extends Transport {
         return extensions;
     }
 
+    @Override
+    public void setKeepConnectionOpen(boolean keepConnectionOpen) {
+        mKeepConnectionOpen = keepConnectionOpen;
+    }
+
     @Override
     public void sendMessage(Message message) throws MessagingException {
         ArrayList<Address> addresses = new ArrayList<Address>();
@@ -465,61 +480,183 @@ public class SmtpTransport extends Transport {
 
     private void sendMessageTo(ArrayList<String> addresses, Message message)
     throws MessagingException {
-        boolean possibleSend = false;
+        SpooledMessage spooledMessage = null;
+        boolean spooledWith8bit = false;
+        boolean sent = false;
+        try {
+            for (int attempt = 1; ; attempt++) {
+                if (attempt > 1 || !resetSession()) {
+                    close();
+                    open();
+                }
 
-        close();
-        open();
+                if (!m8bitEncodingAllowed) {
+                    message.setUsing7bitTransport();
+                }
 
-        if (!m8bitEncodingAllowed) {
-            message.setUsing7bitTransport();
-        }
-        // If the message has attachments and our server has told us about a limit on
-        // the size of messages, count the message's size before sending it
-        if (mLargestAcceptableMessage > 0 && ((LocalMessage)message).hasAttachments()) {
-            if (message.calculateSize() > mLargestAcceptableMessage) {
-                MessagingException me = new MessagingException("Message too large for server");
-                me.setPermanentFailure(possibleSend);
-                throw me;
-            }
-        }
+                // Render the message once. The same bytes are used to check the size and for
+                // every attempt to send it.
+                if (spooledMessage == null || (spooledWith8bit && !m8bitEncodingAllowed)) {
+                    if (spooledMessage != null) {
+                        spooledMessage.dispose();
+                    }
+                    try {
+                        spooledMessage = SpooledMessage.spool(message);
+                    } catch (IOException e) {
+                        throw new MessagingException("Unable to prepare message for sending", e);
+                    }
+                    spooledWith8bit = m8bitEncodingAllowed;
+                }
 
-        Address[] from = message.getFrom();
-        try {
-            executeSimpleCommand("MAIL FROM:" + "<" + from[0].getAddress() + ">"
-                    + (m8bitEncodingAllowed ? " BODY=8BITMIME" : ""));
-            for (String address : addresses) {
-                executeSimpleCommand("RCPT TO:" + "<" + address + ">");
-            }
-            executeSimpleCommand("DATA");
+                long size = spooledMessage.getSize();
+                if (mLargestAcceptableMessage > 0 && size > mLargestAcceptableMessage) {
+                    MessagingException me = new MessagingException("Message too large for server");
+                    me.setPermanentFailure(false);
+                    throw me;
+                }
 
-            EOLConvertingOutputStream msgOut = new EOLConvertingOutputStream(
-                    new LineWrapOutputStream(new SmtpDataStuffing(mOut), 1000));
+                boolean possibleSend = false;
+                Address[] from = message.getFrom();
+                try {
+                    sendEnvelope("MAIL FROM:" + "<" + from[0].getAddress() + ">"
+                            + (m8bitEncodingAllowed ? " BODY=8BITMIME" : "")
+                            + (mSizeExtensionSupported ? " SIZE=" + size : ""), addresses);
+
+                    if (mChunkingSupported) {
+                        // RFC 3030: The size is announced up front, so no dot-stuffing is
+                        // necessary and the server doesn't have to scan for the end marker.
+                        writeLine("BDAT " + size + " LAST", false, false);
+                        spooledMessage.writeTo(mOut);
+                        mOut.flush();
+
+                        possibleSend = true; // After the data has been sent, we may have sent the message
+                        executeSimpleCommand(null);
+                    } else {
+                        executeSimpleCommand("DATA");
 
-            message.writeTo(msgOut);
+                        SmtpDataStuffing msgOut = new SmtpDataStuffing(mOut);
+                        spooledMessage.writeTo(msgOut);
 
-            // We use BufferedOutputStream. So make sure to call flush() !
-            msgOut.flush();
+                        // We use BufferedOutputStream. So make sure to call flush() !
+                        msgOut.flush();
 
-            possibleSend = true; // After the "\r\n." is attempted, we may have sent the message
-            executeSimpleCommand("\r\n.");
-        } catch (Exception e) {
-            MessagingException me = new MessagingException("Unable to send message", e);
+                        possibleSend = true; // After the "\r\n." is attempted, we may have sent the message
+                        executeSimpleCommand("\r\n.");
+                    }
+                    sent = true;
+                    return;
+                } catch (Exception e) {
+                    // "5xx text" -responses are permanent failures
+                    String msg = e.getMessage();
+                    boolean permanentError = (msg != null && msg.startsWith("5")) ||
+                            (e instanceof NegativeSmtpReplyException &&
+                                    ((NegativeSmtpReplyException) e).getReplyCode() >= 500);
+                    if (permanentError) {
+                        Log.w(K9.LOG_TAG, "handling 5xx SMTP error code as a permanent failure");
+                        possibleSend = false;
+                    } else if (!possibleSend && attempt < SEND_ATTEMPTS &&
+                            isConnectionFailure(e)) {
+                        // Nothing has been delivered yet, so it's safe to try again
+                        Log.w(K9.LOG_TAG, "Unable to send message, trying again", e);
+                        continue;
+                    }
 
-            // "5xx text" -responses are permanent failures
-            String msg = e.getMessage();
-            if (msg != null && msg.startsWith("5")) {
-                Log.w(K9.LOG_TAG, "handling 5xx SMTP error code as a permanent failure");
-                possibleSend = false;
+                    MessagingException me = new MessagingException("Unable to send message", e);
+                    me.setPermanentFailure(possibleSend);
+                    throw me;
+                }
             }
-
-            me.setPermanentFailure(possibleSend);
-            throw me;
         } finally {
-            close();
+            // After a failure we don't know what state the session is in
+            if (!sent || !mKeepConnectionOpen) {
+                close();
+            }
+            if (spooledMessage != null) {
+                spooledMessage.dispose();
+            }
+        }
+    }
+
+    /**
+     * Check whether sending failed because the connection broke, e.g. because the server closed
+     * a connection that was kept open for the next message.
+     *
+     * <p>
+     * Negative replies are not connection failures. A {@code 4xx} reply, e.g. to {@code RCPT}
+     * because of greylisting or a rate limit, would most likely be repeated on a new connection.
+     * </p>
+     */
+    private static boolean isConnectionFailure(Exception e) {
+        if (e instanceof IOException) {
+            return true;
         }
 
+        // Thrown by checkLine() when the connection was closed while waiting for a reply
+        return (e instanceof MessagingException) && !(e instanceof NegativeSmtpReplyException);
+    }
 
+    /**
+     * Prepare an open connection for the next message.
+     *
+     * @return {@code true} if the connection can be used to send another message. {@code false}
+     *         if there is no connection or it is no longer usable.
+     */
+    private boolean resetSession() {
+        if (!mKeepConnectionOpen || mSocket == null || mSocket.isClosed()) {
+            return false;
+        }
 
+        try {
+            executeSimpleCommand("RSET");
+            return true;
+        } catch (Exception e) {
+            if (K9.DEBUG) {
+                Log.d(K9.LOG_TAG, "Connection to SMTP server can't be reused", e);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Send the {@code MAIL FROM} command and a {@code RCPT TO} command for every recipient.
+     *
+     * <p>
+     * If the server supports the PIPELINING extension (RFC 2920) all commands are sent at once
+     * and the replies are read afterwards, so this takes a single round trip no matter how many
+     * recipients there are. {@code DATA}/{@code BDAT} is sent separately, after all recipients
+     * have been accepted.
+     * </p>
+     */
+    private void sendEnvelope(String mailFrom, List<String> addresses)
+            throws IOException, MessagingException {
+        if (!mPipeliningSupported) {
+            executeSimpleCommand(mailFrom);
+            for (String address : addresses) {
+                executeSimpleCommand("RCPT TO:" + "<" + address + ">");
+            }
+            return;
+        }
+
+        writeLine(mailFrom, false, false);
+        for (String address : addresses) {
+            writeLine("RCPT TO:" + "<" + address + ">", false, false);
+        }
+        mOut.flush();
+
+        // Read all replies so the first error is reported, not a follow-up error
+        NegativeSmtpReplyException firstError = null;
+        for (int i = 0, replies = addresses.size() + 1; i < replies; i++) {
+            try {
+                executeSimpleCommand(null);
+            } catch (NegativeSmtpReplyException e) {
+                if (firstError == null) {
+                    firstError = e;
+                }
+            }
+        }
+        if (firstError != null) {
+            throw firstError;
+        }
     }
 
     @Override
@@ -569,6 +706,10 @@ public class SmtpTransport extends Transport {
     }
 
     private void writeLine(String s, boolean sensitive) throws IOException {
+        writeLine(s, sensitive, true);
+    }
+
+    private void writeLine(String s, boolean sensitive, boolean flush) throws IOException {
         if (K9.DEBUG && K9.DEBUG_PROTOCOL_SMTP) {
             final String commandToLog;
             if (sensitive && !K9.DEBUG_SENSITIVE) {
@@ -588,7 +729,9 @@ public class SmtpTransport extends Transport {
          * See issue 799.
          */
         mOut.write(data);
-        mOut.flush();
+        if (flush) {
+            mOut.flush();
+        }
     }
 
     private void checkLine(String line) throws MessagingException {
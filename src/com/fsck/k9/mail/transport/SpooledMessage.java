@@ -0,0 +1,164 @@
+package com.fsck.k9.mail.transport;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
+import com.fsck.k9.mail.filter.LineWrapOutputStream;
+import com.fsck.k9.mail.internet.BinaryTempFileBody;
+
+/**
+ * A message rendered into its final wire format (CRLF line endings, lines wrapped at
+ * {@link #MAX_LINE_LENGTH} characters), but not yet dot-stuffed.
+ *
+ * <p>
+ * The message is encoded exactly once. Its exact size is known before anything is sent to the
+ * server, and the same bytes can be sent again if the first attempt fails. Small messages are
+ * kept in memory, larger ones are spooled to a temp file.
+ * </p>
+ *
+ * <p>
+ * Call {@link #dispose()} when the message is no longer needed.
+ * </p>
+ */
+class SpooledMessage {
+    /**
+     * Maximum line length including CRLF (RFC 5321, section 4.5.3.1.6).
+     */
+    static final int MAX_LINE_LENGTH = 1000;
+
+    /**
+     * Messages up to this size are kept in memory.
+     */
+    private static final int IN_MEMORY_LIMIT = 64 * 1024;
+
+    private static final int BUFFER_SIZE = 8192;
+
+
+    private byte[] mData;
+    private File mFile;
+    private long mSize;
+
+
+    /**
+     * Render {@code message} into a new {@code SpooledMessage}.
+     */
+    static SpooledMessage spool(Message message) throws IOException, MessagingException {
+        SpooledMessage spooledMessage = new SpooledMessage();
+        SpoolOutputStream spoolOut = spooledMessage.new SpoolOutputStream();
+        try {
+            EOLConvertingOutputStream out = new EOLConvertingOutputStream(
+                    new LineWrapOutputStream(spoolOut, MAX_LINE_LENGTH));
+            message.writeTo(out);
+            out.flush();
+            spoolOut.finish();
+        } catch (IOException e) {
+            spoolOut.abort();
+            spooledMessage.dispose();
+            throw e;
+        } catch (MessagingException e) {
+            spoolOut.abort();
+            spooledMessage.dispose();
+            throw e;
+        }
+        return spooledMessage;
+    }
+
+    private SpooledMessage() {
+    }
+
+    /**
+     * @return The size of the message in bytes, as sent to the server before dot-stuffing.
+     */
+    long getSize() {
+        return mSize;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        if (mData != null) {
+            out.write(mData, 0, (int) mSize);
+            return;
+        }
+
+        InputStream in = new FileInputStream(mFile);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    void dispose() {
+        mData = null;
+        if (mFile != null) {
+            mFile.delete();
+            mFile = null;
+        }
+    }
+
+
+    /**
+     * Collects the message in memory and switches to a temp file once it gets too large.
+     */
+    private class SpoolOutputStream extends OutputStream {
+        private ByteArrayOutputStream mMemory = new ByteArrayOutputStream(BUFFER_SIZE);
+        private OutputStream mFileOut;
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            getTarget(1).write(oneByte);
+            mSize++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            getTarget(length).write(buffer, offset, length);
+            mSize += length;
+        }
+
+        private OutputStream getTarget(int length) throws IOException {
+            if (mFileOut != null) {
+                return mFileOut;
+            }
+            if (mSize + length <= IN_MEMORY_LIMIT) {
+                return mMemory;
+            }
+
+            mFile = File.createTempFile("outgoing", null, BinaryTempFileBody.getTempDirectory());
+            mFileOut = new BufferedOutputStream(new FileOutputStream(mFile), BUFFER_SIZE);
+            mMemory.writeTo(mFileOut);
+            mMemory = null;
+            return mFileOut;
+        }
+
+        void finish() throws IOException {
+            if (mFileOut != null) {
+                mFileOut.close();
+            } else {
+                mData = mMemory.toByteArray();
+            }
+        }
+
+        void abort() {
+            if (mFileOut != null) {
+                try {
+                    mFileOut.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+}
@@ -9,10 +9,12 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.util.Log;
 import com.fsck.k9.Account;
 import com.fsck.k9.K9;
 import com.fsck.k9.Preferences;
+import com.fsck.k9.cache.DiskLruCache;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.internet.MimeUtility;
 import com.fsck.k9.mail.store.LocalStore;
@@ -21,6 +23,9 @@ import com.fsck.k9.mail.store.StorageManager;
 
 import java.io.*;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * A simple ContentProvider that allows file access to attachments.
@@ -37,6 +42,50 @@ public class AttachmentProvider extends ContentProvider {
     private static final String FORMAT_VIEW = "VIEW";
     private static final String FORMAT_THUMBNAIL = "THUMBNAIL";
 
+    /**
+     * Name of the directory (inside the app's cache directory) that holds the thumbnails.
+     */
+    private static final String THUMBNAIL_CACHE_DIRECTORY = "thumbnails";
+
+    /**
+     * Maximum size of all thumbnails stored on disk.
+     */
+    private static final long THUMBNAIL_CACHE_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * The sizes (width and height in pixels) thumbnails are created in. A request is served with
+     * the smallest thumbnail that is at least as large as requested, so all requests share a few
+     * cached files.
+     */
+    private static final int[] THUMBNAIL_SIZES = { 64, 128, 256, 512 };
+
+    /**
+     * The size of the thumbnails created in advance. This is what
+     * {@link com.fsck.k9.view.AttachmentView} requests.
+     */
+    private static final int PRECREATED_THUMBNAIL_SIZE = 64;
+
+    /**
+     * Creates thumbnails of newly downloaded attachments, one at a time and with low priority.
+     */
+    private static final ExecutorService THUMBNAIL_EXECUTOR =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "AttachmentThumbnails");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static DiskLruCache sThumbnailCache;
+
     private static final String[] DEFAULT_PROJECTION = new String[] {
         AttachmentProviderColumns._ID,
         AttachmentProviderColumns.DATA,
@@ -90,6 +139,16 @@ public class AttachmentProvider extends ContentProvider {
             } catch (IOException ioe) { /* No need to log failure to log */ }
             file.delete();
         }
+
+        // Attachment IDs might be reused
+        clearThumbnails(context);
+    }
+
+    /**
+     * Delete all thumbnails. Used when attachment IDs might be reused.
+     */
+    public static void clearThumbnails(Context context) {
+        getThumbnailCache(context).clear();
     }
 
     /**
@@ -103,17 +162,153 @@ public class AttachmentProvider extends ContentProvider {
      *         The ID of the attachment the thumbnail was created for.
      */
     public static void deleteThumbnail(Context context, String accountUuid, String attachmentId) {
-        File file = getThumbnailFile(context, accountUuid, attachmentId);
-        if (file.exists()) {
-            file.delete();
+        DiskLruCache cache = getThumbnailCache(context);
+        for (int size : THUMBNAIL_SIZES) {
+            cache.remove(getThumbnailKey(accountUuid, attachmentId, size));
+        }
+    }
+
+    /**
+     * Create the thumbnail of a newly downloaded attachment in a background thread, so it can be
+     * displayed right away when the message is viewed.
+     *
+     * @param context
+     *         The application context.
+     * @param accountUuid
+     *         The UUID of the account the attachment belongs to.
+     * @param attachmentId
+     *         The ID of the attachment.
+     * @param attachmentFile
+     *         The file holding the attachment's data.
+     * @param mimeType
+     *         The MIME type of the attachment, as used for viewing. Thumbnails are only created
+     *         for images.
+     */
+    public static void createThumbnailInBackground(final Context context, final String accountUuid,
+            final String attachmentId, final File attachmentFile, final String mimeType) {
+        if (mimeType == null || !MimeUtility.mimeTypeMatches(mimeType, "image/*")) {
+            return;
+        }
+
+        THUMBNAIL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                getThumbnail(context, accountUuid, attachmentId, attachmentFile, mimeType,
+                        PRECREATED_THUMBNAIL_SIZE);
+            }
+        });
+    }
+
+    private static synchronized DiskLruCache getThumbnailCache(Context context) {
+        if (sThumbnailCache == null) {
+            File directory = new File(context.getCacheDir(), THUMBNAIL_CACHE_DIRECTORY);
+            sThumbnailCache = new DiskLruCache(directory, THUMBNAIL_CACHE_SIZE);
+        }
+        return sThumbnailCache;
+    }
+
+    private static String getThumbnailKey(String accountUuid, String attachmentId, int size) {
+        return accountUuid + "/" + attachmentId + "/" + size;
+    }
+
+    /**
+     * @return The smallest of the {@link #THUMBNAIL_SIZES} that is at least as large as
+     *         {@code size}, or the largest one.
+     */
+    private static int getThumbnailSize(int size) {
+        for (int thumbnailSize : THUMBNAIL_SIZES) {
+            if (thumbnailSize >= size) {
+                return thumbnailSize;
+            }
+        }
+        return THUMBNAIL_SIZES[THUMBNAIL_SIZES.length - 1];
+    }
+
+    /**
+     * Get the thumbnail of an attachment from the cache, creating it if necessary.
+     *
+     * @return The file holding the thumbnail. {@code null} if no thumbnail could be created.
+     */
+    private static File getThumbnail(Context context, String accountUuid, String attachmentId,
+            File attachmentFile, String mimeType, int size) {
+        DiskLruCache cache = getThumbnailCache(context);
+        String key = getThumbnailKey(accountUuid, attachmentId, size);
+
+        File file = cache.get(key);
+        if (file != null) {
+            return file;
         }
+
+        if (!MimeUtility.mimeTypeMatches(mimeType, "image/*")) {
+            return null;
+        }
+
+        Bitmap thumbnail = createImageThumbnail(attachmentFile, size);
+        if (thumbnail == null) {
+            return null;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        thumbnail.compress(Bitmap.CompressFormat.PNG, 100, out);
+        thumbnail.recycle();
+
+        try {
+            cache.put(key, out.toByteArray());
+        } catch (IOException e) {
+            Log.w(K9.LOG_TAG, "Couldn't store thumbnail of attachment " + attachmentId, e);
+            return null;
+        }
+
+        return cache.get(key);
     }
 
-    private static File getThumbnailFile(Context context, String accountUuid,
-            String attachmentId) {
-        String filename = "thmb_" + accountUuid + "_" + attachmentId + ".tmp";
-        File dir = context.getCacheDir();
-        return new File(dir, filename);
+    /**
+     * Create a {@code size} x {@code size} thumbnail of an image.
+     *
+     * <p>
+     * Large images are subsampled while decoding, so they are never held in memory at full
+     * resolution.
+     * </p>
+     */
+    private static Bitmap createImageThumbnail(File file, int size) {
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(file.getPath(), options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+
+            // Use the largest power of two that keeps both dimensions at least 'size' pixels
+            int sampleSize = 1;
+            while (options.outWidth / (sampleSize * 2) >= size &&
+                    options.outHeight / (sampleSize * 2) >= size) {
+                sampleSize *= 2;
+            }
+
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+            if (bitmap == null) {
+                return null;
+            }
+
+            Bitmap thumbnail = Bitmap.createScaledBitmap(bitmap, size, size, true);
+            if (thumbnail != bitmap) {
+                bitmap.recycle();
+            }
+            return thumbnail;
+        } catch (OutOfMemoryError oome) {
+            /*
+             * Improperly downloaded images, corrupt bitmaps and the like can commonly
+             * cause OOME due to invalid allocation sizes. We're happy with a null bitmap in
+             * that case. If the system is really out of memory we'll know about it soon
+             * enough.
+             */
+            return null;
+        } catch (Exception e) {
+            return null;
+        }
     }
 
 
@@ -163,28 +358,12 @@ public class AttachmentProvider extends ContentProvider {
             int width = Integer.parseInt(segments.get(3));
             int height = Integer.parseInt(segments.get(4));
 
-            file = getThumbnailFile(getContext(), accountUuid, attachmentId);
-            if (!file.exists()) {
-                String type = getType(accountUuid, attachmentId, FORMAT_VIEW);
-                try {
-                    FileInputStream in = new FileInputStream(getFile(accountUuid, attachmentId));
-                    try {
-                        Bitmap thumbnail = createThumbnail(type, in);
-                        if (thumbnail != null) {
-                            thumbnail = Bitmap.createScaledBitmap(thumbnail, width, height, true);
-                            FileOutputStream out = new FileOutputStream(file);
-                            try {
-                                thumbnail.compress(Bitmap.CompressFormat.PNG, 100, out);
-                            } finally {
-                                out.close();
-                            }
-                        }
-                    } finally {
-                        try { in.close(); } catch (Throwable ignore) { /* ignore */ }
-                    }
-                } catch (IOException ioe) {
-                    return null;
-                }
+            String type = getType(accountUuid, attachmentId, FORMAT_VIEW);
+            file = getThumbnail(getContext(), accountUuid, attachmentId,
+                    getFile(accountUuid, attachmentId), type,
+                    getThumbnailSize(Math.max(width, height)));
+            if (file == null) {
+                throw new FileNotFoundException("Couldn't create thumbnail");
             }
         } else {
             file = getFile(accountUuid, attachmentId);
@@ -297,28 +476,4 @@ public class AttachmentProvider extends ContentProvider {
 
         return file;
     }
-
-    private Bitmap createThumbnail(String type, InputStream data) {
-        if (MimeUtility.mimeTypeMatches(type, "image/*")) {
-            return createImageThumbnail(data);
-        }
-        return null;
-    }
-
-    private Bitmap createImageThumbnail(InputStream data) {
-        try {
-            Bitmap bitmap = BitmapFactory.decodeStream(data);
-            return bitmap;
-        } catch (OutOfMemoryError oome) {
-            /*
-             * Improperly downloaded images, corrupt bitmaps and the like can commonly
-             * cause OOME due to invalid allocation sizes. We're happy with a null bitmap in
-             * that case. If the system is really out of memory we'll know about it soon
-             * enough.
-             */
-            return null;
-        } catch (Exception e) {
-            return null;
-        }
-    }
 }
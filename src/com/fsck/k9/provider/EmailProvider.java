@@ -256,7 +256,8 @@ public class EmailProvider extends ContentProvider {
                 cursor = new SpecialColumnsCursor(new IdTrickeryCursor(cursor), projection,
                         specialColumns);
 
-                cursor = new EmailProviderCacheCursor(accountUuid, cursor, getContext());
+                cursor = new EmailProviderCacheCursor(accountUuid, cursor, getContext(),
+                        match != MESSAGES_THREADED);
                 break;
             }
             case STATS: {
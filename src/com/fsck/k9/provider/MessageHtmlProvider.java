@@ -0,0 +1,248 @@
+package com.fsck.k9.provider;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import org.apache.commons.io.IOUtils;
+
+import com.fsck.k9.K9;
+
+/**
+ * Serves the HTML documents displayed by {@link com.fsck.k9.view.MessageWebView}.
+ *
+ * <p>
+ * Passing a message to the {@code WebView} with {@code loadDataWithBaseURL()} requires the
+ * complete document as one string, and nothing can be displayed before all of it has been
+ * handed over. Instead a {@link Document} is registered with {@link #putDocument(Document)} and
+ * the {@code WebView} loads the returned URI. The document is written to a pipe by a background
+ * thread while the {@code WebView} reads from the other end, so it can start rendering the first
+ * chunk while the rest is still being produced.
+ * </p>
+ *
+ * <p>
+ * This provider is not exported.
+ * </p>
+ */
+public class MessageHtmlProvider extends ContentProvider {
+    public static final String AUTHORITY = "com.fsck.k9.messagehtmlprovider";
+    public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
+
+    /**
+     * Maximum number of registered documents. Views unregister their document when they are
+     * detached, this only drops documents of views that never got attached.
+     */
+    private static final int MAX_DOCUMENTS = 8;
+
+    /**
+     * Size of the chunks the document is written to the pipe in.
+     */
+    private static final int CHUNK_SIZE = 8192;
+
+    private static final ExecutorService WRITER_EXECUTOR = Executors.newCachedThreadPool();
+
+    private static final Map<String, Document> sDocuments =
+            new LinkedHashMap<String, Document>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Document> eldest) {
+                    return size() > MAX_DOCUMENTS;
+                }
+            };
+    private static long sNextId;
+
+
+    /**
+     * An HTML document that is produced when it is read.
+     */
+    public interface Document {
+        /**
+         * Write the document. This is called from a background thread, possibly more than once.
+         *
+         * @param out
+         *         Receives the document. It must not be closed.
+         *
+         * @throws IOException
+         *         If the document couldn't be written, e.g. because the reader went away.
+         */
+        void writeTo(Writer out) throws IOException;
+    }
+
+
+    /**
+     * Register a document.
+     *
+     * @return The URI the document can be loaded from. It is valid until
+     *         {@link #removeDocument(Uri)} is called.
+     */
+    public static Uri putDocument(Document document) {
+        synchronized (sDocuments) {
+            String id = Long.toString(sNextId++);
+            sDocuments.put(id, document);
+            return Uri.withAppendedPath(CONTENT_URI, id);
+        }
+    }
+
+    /**
+     * Register a document that is stored in a file, e.g. by
+     * {@link com.fsck.k9.cache.MessageRenderCache}.
+     *
+     * @param fallback
+     *         The document to serve instead if the file has been deleted by the time it is read.
+     *
+     * @return The URI the document can be loaded from. It is valid until
+     *         {@link #removeDocument(Uri)} is called.
+     */
+    public static Uri putDocument(File file, Document fallback) {
+        return putDocument(new FileDocument(file, fallback));
+    }
+
+    public static void removeDocument(Uri uri) {
+        synchronized (sDocuments) {
+            sDocuments.remove(uri.getLastPathSegment());
+        }
+    }
+
+    private static Document getDocument(Uri uri) {
+        synchronized (sDocuments) {
+            return sDocuments.get(uri.getLastPathSegment());
+        }
+    }
+
+
+    /**
+     * A document stored in a file. It is passed to the reader without going through a pipe.
+     *
+     * <p>
+     * Cache files can be deleted at any time. Once the file has been opened that doesn't matter
+     * anymore. If it is already gone, the fallback document is served instead.
+     * </p>
+     */
+    private static class FileDocument implements Document {
+        private final File mFile;
+        private final Document mFallback;
+
+        FileDocument(File file, Document fallback) {
+            mFile = file;
+            mFallback = fallback;
+        }
+
+        @Override
+        public void writeTo(Writer out) throws IOException {
+            FileInputStream file;
+            try {
+                file = new FileInputStream(mFile);
+            } catch (FileNotFoundException e) {
+                mFallback.writeTo(out);
+                return;
+            }
+
+            Reader in = new InputStreamReader(file, "UTF-8");
+            try {
+                IOUtils.copy(in, out);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return "text/html";
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        final Document document = getDocument(uri);
+        if (document == null) {
+            throw new FileNotFoundException("Unknown document: " + uri);
+        }
+
+        if (document instanceof FileDocument) {
+            try {
+                return ParcelFileDescriptor.open(((FileDocument) document).mFile,
+                        ParcelFileDescriptor.MODE_READ_ONLY);
+            } catch (FileNotFoundException e) {
+                // The file has been removed from the cache, write the fallback document instead
+            }
+        }
+
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Couldn't create pipe: " + e.getMessage());
+        }
+
+        WRITER_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                Writer out = null;
+                try {
+                    out = new BufferedWriter(new OutputStreamWriter(
+                            new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]), "UTF-8"),
+                            CHUNK_SIZE);
+                    document.writeTo(out);
+                } catch (IOException e) {
+                    // Happens when the WebView stops loading the document
+                    if (K9.DEBUG) {
+                        Log.d(K9.LOG_TAG, "Stopped writing message document", e);
+                    }
+                } finally {
+                    try {
+                        if (out != null) {
+                            out.close();
+                        } else {
+                            pipe[1].close();
+                        }
+                    } catch (IOException ignore) { /* ignore */ }
+                }
+            }
+        });
+
+        return pipe[0];
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        return null;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        return 0;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        return 0;
+    }
+}
@@ -57,6 +57,7 @@ public class BootReceiver extends CoreReceiver {
             String alarmedAction = alarmedIntent.getAction();
             if (K9.DEBUG)
                 Log.i(K9.LOG_TAG, "BootReceiver Got alarm to fire alarmedIntent " + alarmedAction);
+            WakeupCoordinator.wakeupFired(context, alarmedAction);
             alarmedIntent.putExtra(WAKE_LOCK_ID, tmpWakeLockId);
             tmpWakeLockId = null;
             context.startService(alarmedIntent);
@@ -16,16 +16,17 @@ import com.fsck.k9.Account;
 import com.fsck.k9.K9;
 import com.fsck.k9.Preferences;
 import com.fsck.k9.Account.FolderMode;
+import com.fsck.k9.controller.AdaptivePollScheduler;
 import com.fsck.k9.controller.MessagingController;
 import com.fsck.k9.helper.Utility;
 import com.fsck.k9.mail.Pusher;
 
 public class MailService extends CoreService {
-    private static final String ACTION_CHECK_MAIL = "com.fsck.k9.intent.action.MAIL_SERVICE_WAKEUP";
+    static final String ACTION_CHECK_MAIL = "com.fsck.k9.intent.action.MAIL_SERVICE_WAKEUP";
     private static final String ACTION_RESET = "com.fsck.k9.intent.action.MAIL_SERVICE_RESET";
     private static final String ACTION_RESCHEDULE_POLL = "com.fsck.k9.intent.action.MAIL_SERVICE_RESCHEDULE_POLL";
     private static final String ACTION_CANCEL = "com.fsck.k9.intent.action.MAIL_SERVICE_CANCEL";
-    private static final String ACTION_REFRESH_PUSHERS = "com.fsck.k9.intent.action.MAIL_SERVICE_REFRESH_PUSHERS";
+    static final String ACTION_REFRESH_PUSHERS = "com.fsck.k9.intent.action.MAIL_SERVICE_REFRESH_PUSHERS";
     private static final String ACTION_RESTART_PUSHERS = "com.fsck.k9.intent.action.MAIL_SERVICE_RESTART_PUSHERS";
     private static final String CONNECTIVITY_CHANGE = "com.fsck.k9.intent.action.MAIL_SERVICE_CONNECTIVITY_CHANGE";
     private static final String CANCEL_CONNECTIVITY_NOTICE = "com.fsck.k9.intent.action.MAIL_SERVICE_CANCEL_CONNECTIVITY_NOTICE";
@@ -125,6 +126,11 @@ public class MailService extends CoreService {
                 Log.i(K9.LOG_TAG, "***** MailService *****: checking mail");
             if (hasConnectivity && doBackground) {
                 PollService.startService(this);
+
+                // Refresh the pushers now if they'd wake us up again shortly
+                if (WakeupCoordinator.isDueSoon(WakeupCoordinator.Cause.PUSH_REFRESH)) {
+                    refreshPushersInBackground(hasConnectivity, doBackground, null);
+                }
             }
             reschedulePollInBackground(hasConnectivity, doBackground, startId, false);
         } else if (ACTION_CANCEL.equals(intent.getAction())) {
@@ -144,6 +150,12 @@ public class MailService extends CoreService {
                 Log.v(K9.LOG_TAG, "***** MailService *****: rescheduling poll");
             reschedulePollInBackground(hasConnectivity, doBackground, startId, true);
         } else if (ACTION_REFRESH_PUSHERS.equals(intent.getAction())) {
+            // Check mail now if the next poll would wake us up again shortly. PollService will
+            // reschedule the poll when it's done.
+            if (hasConnectivity && doBackground &&
+                    WakeupCoordinator.isDueSoon(WakeupCoordinator.Cause.POLL)) {
+                PollService.startService(this);
+            }
             refreshPushersInBackground(hasConnectivity, doBackground, startId);
         } else if (CONNECTIVITY_CHANGE.equals(intent.getAction())) {
             rescheduleAllInBackground(hasConnectivity, doBackground, startId);
@@ -175,7 +187,7 @@ public class MailService extends CoreService {
         Intent i = new Intent();
         i.setClassName(getApplication().getPackageName(), "com.fsck.k9.service.MailService");
         i.setAction(ACTION_CHECK_MAIL);
-        BootReceiver.cancelIntent(this, i);
+        WakeupCoordinator.cancelWakeup(this, WakeupCoordinator.Cause.POLL, i);
     }
 
     private final static String PREVIOUS_INTERVAL = "MailService.previousInterval";
@@ -264,17 +276,22 @@ public class MailService extends CoreService {
             lastCheckEnd = System.currentTimeMillis();
         }
 
-        int shortestInterval = -1;
+        // Wake up for the account/folder with the shortest (adaptive) poll interval. Other folders
+        // that are almost due will be checked during the same wakeup.
+        AdaptivePollScheduler pollScheduler = AdaptivePollScheduler.getInstance(this);
+        long shortestInterval = -1;
         for (Account account : prefs.getAvailableAccounts()) {
             if (account.getAutomaticCheckIntervalMinutes() != -1 &&
-                    account.getFolderSyncMode() != FolderMode.NONE &&
-                    (account.getAutomaticCheckIntervalMinutes() < shortestInterval ||
-                            shortestInterval == -1)) {
-                shortestInterval = account.getAutomaticCheckIntervalMinutes();
+                    account.getFolderSyncMode() != FolderMode.NONE) {
+                long interval = pollScheduler.getShortestInterval(account);
+                if (interval > 0 && (interval < shortestInterval || shortestInterval == -1)) {
+                    shortestInterval = interval;
+                }
             }
         }
         SharedPreferences.Editor editor = sPrefs.edit();
-        editor.putInt(PREVIOUS_INTERVAL, shortestInterval);
+        editor.putInt(PREVIOUS_INTERVAL,
+                (shortestInterval == -1) ? -1 : (int) (shortestInterval / (60 * 1000)));
         editor.commit();
 
         if (shortestInterval == -1) {
@@ -287,7 +304,7 @@ public class MailService extends CoreService {
             pollingRequested = false;
             cancel();
         } else {
-            long delay = (shortestInterval * (60 * 1000));
+            long delay = shortestInterval;
             long base = (previousInterval == -1 || lastCheckEnd == -1 ||
                     !considerLastCheckEnd ? System.currentTimeMillis() : lastCheckEnd);
             long nextTime = base + delay;
@@ -316,7 +333,8 @@ public class MailService extends CoreService {
             Intent i = new Intent();
             i.setClassName(getApplication().getPackageName(), "com.fsck.k9.service.MailService");
             i.setAction(ACTION_CHECK_MAIL);
-            BootReceiver.scheduleIntent(MailService.this, nextTime, i);
+            WakeupCoordinator.scheduleWakeup(MailService.this, WakeupCoordinator.Cause.POLL,
+                    nextTime, shortestInterval, i);
         }
     }
 
@@ -376,7 +394,11 @@ public class MailService extends CoreService {
                 long lastRefresh = pusher.getLastRefresh();
                 int refreshInterval = pusher.getRefreshInterval();
                 long sinceLast = nowTime - lastRefresh;
-                if (sinceLast + 10000 > refreshInterval) { // Add 10 seconds to keep pushers in sync, avoid drift
+                // Add at least 10 seconds to keep pushers in sync, avoid drift. When we piggyback
+                // on another wakeup, refresh everything that would be due before the next alarm.
+                long slack = Math.max(10000, WakeupCoordinator.getTolerance(
+                        WakeupCoordinator.Cause.PUSH_REFRESH));
+                if (sinceLast + slack > refreshInterval) {
                     if (K9.DEBUG) {
                         Log.d(K9.LOG_TAG, "PUSHREFRESH: refreshing lastRefresh = " + lastRefresh + ", interval = " + refreshInterval
                               + ", nowTime = " + nowTime + ", sinceLast = " + sinceLast);
@@ -422,7 +444,8 @@ public class MailService extends CoreService {
             Intent i = new Intent();
             i.setClassName(getApplication().getPackageName(), "com.fsck.k9.service.MailService");
             i.setAction(ACTION_REFRESH_PUSHERS);
-            BootReceiver.scheduleIntent(MailService.this, nextTime, i);
+            WakeupCoordinator.scheduleWakeup(MailService.this,
+                    WakeupCoordinator.Cause.PUSH_REFRESH, nextTime, minInterval, i);
         }
     }
 
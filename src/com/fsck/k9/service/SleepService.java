@@ -13,7 +13,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 public class SleepService extends CoreService {
 
-    private static String ALARM_FIRED = "com.fsck.k9.service.SleepService.ALARM_FIRED";
+    static final String ALARM_FIRED = "com.fsck.k9.service.SleepService.ALARM_FIRED";
     private static String LATCH_ID = "com.fsck.k9.service.SleepService.LATCH_ID_EXTRA";
 
 
@@ -37,7 +37,8 @@ public class SleepService extends CoreService {
         i.setAction(ALARM_FIRED + "." + id);
         long startTime = System.currentTimeMillis();
         long nextTime = startTime + sleepTime;
-        BootReceiver.scheduleIntent(context, nextTime, i);
+        WakeupCoordinator.scheduleWakeup(context, WakeupCoordinator.Cause.SLEEP, nextTime,
+                sleepTime, i);
         if (wakeLock != null) {
             sleepDatum.wakeLock = wakeLock;
             sleepDatum.timeout = wakeLockTimeout;
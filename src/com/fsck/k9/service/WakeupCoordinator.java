@@ -0,0 +1,211 @@
+package com.fsck.k9.service;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import com.fsck.k9.K9;
+import com.fsck.k9.helper.power.TracingPowerManager;
+
+/**
+ * Coordinates the alarms that wake up the device for background work.
+ *
+ * <p>
+ * Polling, push (IDLE) refreshes and the sleeps of push connections waiting to reconnect all
+ * schedule their own alarms. With several accounts this wakes up the device many times per
+ * interval. All of them are scheduled through this class, which moves a wakeup forward to
+ * coincide with an already scheduled wakeup of another cause if that one is only a little earlier
+ * (see {@link #ALIGNMENT_FRACTION}). When an alarm fires, work of other causes that would be due
+ * soon can be done during the same wakeup (see {@link #isDueSoon(Cause)}).
+ * </p>
+ *
+ * <p>
+ * Pending commands don't have alarms of their own. They are retried whenever mail is checked or
+ * pushers are refreshed, so they already share these wakeups.
+ * </p>
+ *
+ * <p>
+ * Wakeups are tracked per alarm, i.e. per action of the intent that is scheduled, the same way
+ * {@link BootReceiver} identifies alarms. So every sleep has an entry of its own, while polling
+ * and push refreshes only ever have one each.
+ * </p>
+ *
+ * <p>
+ * Every wakeup is reported to {@link TracingPowerManager#recordWakeup(String)}.
+ * </p>
+ */
+public class WakeupCoordinator {
+    public enum Cause {
+        POLL("poll"),
+        PUSH_REFRESH("pushRefresh"),
+        SLEEP("sleep"),
+        OTHER("other");
+
+        private final String mName;
+
+        private Cause(String name) {
+            mName = name;
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    /**
+     * A wakeup may be moved forward by at most this fraction of its interval.
+     */
+    private static final double ALIGNMENT_FRACTION = 0.25;
+
+
+    /**
+     * The scheduled wakeups by the action of their intent.
+     */
+    private static final Map<String, ScheduledWakeup> sScheduled =
+            new HashMap<String, ScheduledWakeup>();
+
+
+    /**
+     * Schedule {@code intent} to be started at (or a little before) {@code atTime}.
+     *
+     * @param interval
+     *         The regular interval of this kind of wakeup. Used to determine how far the wakeup
+     *         may be moved forward.
+     *
+     * @return The time the wakeup has actually been scheduled for.
+     */
+    public static long scheduleWakeup(Context context, Cause cause, long atTime, long interval,
+            Intent intent) {
+
+        long tolerance = (long) (interval * ALIGNMENT_FRACTION);
+        String action = intent.getAction();
+        long alignedTime;
+        synchronized (sScheduled) {
+            alignedTime = align(action, atTime, tolerance);
+            sScheduled.put(action, new ScheduledWakeup(cause, alignedTime, tolerance));
+        }
+
+        if (K9.DEBUG && alignedTime != atTime) {
+            Log.d(K9.LOG_TAG, "Moved " + cause + " wakeup from " + new Date(atTime) + " to " +
+                    new Date(alignedTime) + " to share it with another wakeup");
+        }
+
+        BootReceiver.scheduleIntent(context, alignedTime, intent);
+        return alignedTime;
+    }
+
+    public static void cancelWakeup(Context context, Cause cause, Intent intent) {
+        synchronized (sScheduled) {
+            sScheduled.remove(intent.getAction());
+        }
+
+        BootReceiver.cancelIntent(context, intent);
+    }
+
+    /**
+     * Check whether the next scheduled wakeup for {@code cause} is close enough that its work
+     * should be done during the current wakeup.
+     */
+    public static boolean isDueSoon(Cause cause) {
+        synchronized (sScheduled) {
+            ScheduledWakeup wakeup = getNextWakeup(cause);
+            return wakeup != null &&
+                    wakeup.time - System.currentTimeMillis() <= wakeup.tolerance;
+        }
+    }
+
+    /**
+     * Get the slack that may be applied to work of {@code cause} when it is done early.
+     *
+     * @return The tolerance of the next wakeup for {@code cause} in milliseconds. {@code 0} if
+     *         nothing is scheduled.
+     */
+    public static long getTolerance(Cause cause) {
+        synchronized (sScheduled) {
+            ScheduledWakeup wakeup = getNextWakeup(cause);
+            return (wakeup == null) ? 0 : wakeup.tolerance;
+        }
+    }
+
+    /**
+     * Report that an alarm scheduled via {@link BootReceiver} has fired.
+     */
+    static void wakeupFired(Context context, String alarmedAction) {
+        synchronized (sScheduled) {
+            sScheduled.remove(alarmedAction);
+        }
+
+        Cause cause = getCauseForAction(alarmedAction);
+        TracingPowerManager.getPowerManager(context).recordWakeup(cause.toString());
+    }
+
+    private static Cause getCauseForAction(String action) {
+        if (action == null) {
+            return Cause.OTHER;
+        } else if (action.equals(MailService.ACTION_CHECK_MAIL)) {
+            return Cause.POLL;
+        } else if (action.equals(MailService.ACTION_REFRESH_PUSHERS)) {
+            return Cause.PUSH_REFRESH;
+        } else if (action.startsWith(SleepService.ALARM_FIRED)) {
+            return Cause.SLEEP;
+        }
+        return Cause.OTHER;
+    }
+
+    /**
+     * Get the earliest scheduled wakeup for {@code cause}.
+     *
+     * @return The wakeup or {@code null} if nothing is scheduled for {@code cause}.
+     */
+    private static ScheduledWakeup getNextWakeup(Cause cause) {
+        ScheduledWakeup next = null;
+        for (ScheduledWakeup wakeup : sScheduled.values()) {
+            if (wakeup.cause == cause && (next == null || wakeup.time < next.time)) {
+                next = wakeup;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Find the latest other wakeup that is scheduled in the future, at or before {@code atTime},
+     * and no more than {@code tolerance} earlier.
+     *
+     * @param action
+     *         The action of the alarm being scheduled. Its previous wakeup is ignored because it
+     *         is about to be replaced.
+     */
+    private static long align(String action, long atTime, long tolerance) {
+        long now = System.currentTimeMillis();
+        long alignedTime = atTime;
+        for (Map.Entry<String, ScheduledWakeup> entry : sScheduled.entrySet()) {
+            if (entry.getKey().equals(action)) {
+                continue;
+            }
+
+            long time = entry.getValue().time;
+            if (time > now && time <= atTime && atTime - time <= tolerance &&
+                    (alignedTime == atTime || time > alignedTime)) {
+                alignedTime = time;
+            }
+        }
+        return alignedTime;
+    }
+
+    private static class ScheduledWakeup {
+        public final Cause cause;
+        public final long time;
+        public final long tolerance;
+
+        public ScheduledWakeup(Cause cause, long time, long tolerance) {
+            this.cause = cause;
+            this.time = time;
+            this.tolerance = tolerance;
+        }
+    }
+}
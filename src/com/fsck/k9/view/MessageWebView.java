@@ -3,6 +3,7 @@ package com.fsck.k9.view;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.net.Uri;
 import android.os.Build;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -13,6 +14,12 @@ import android.widget.Toast;
 import com.fsck.k9.K9;
 import com.fsck.k9.R;
 import com.fsck.k9.helper.HtmlConverter;
+import com.fsck.k9.provider.MessageHtmlProvider;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
 
 public class MessageWebView extends RigidWebView {
 
@@ -38,6 +45,12 @@ public class MessageWebView extends RigidWebView {
     }
 
 
+    /**
+     * The URI of the document currently displayed. See {@link MessageHtmlProvider}.
+     */
+    private Uri mDocumentUri;
+
+
     public MessageWebView(Context context) {
         super(context);
     }
@@ -87,6 +100,7 @@ public class MessageWebView extends RigidWebView {
         final WebSettings webSettings = this.getSettings();
 
         webSettings.setCacheMode(WebSettings.LOAD_NO_CACHE);
+        webSettings.setDefaultTextEncodingName("utf-8");
 
         webSettings.setSupportZoom(true);
         webSettings.setBuiltInZoomControls(true);
@@ -148,21 +162,102 @@ public class MessageWebView extends RigidWebView {
      * @param text
      *      The message body to display.  Assumed to be MIME type text/html.
      */
-    public void setText(String text) {
-     // Include a meta tag so the WebView will not use a fixed viewport width of 980 px
-        String content = "<html><head><meta name=\"viewport\" content=\"width=device-width\"/>";
+    public void setText(final String text) {
+        loadDocument(MessageHtmlProvider.putDocument(createDocument(text)));
+    }
+
+    /**
+     * Load a plain text message body into a {@code MessageWebView}
+     *
+     * <p>
+     * The text is converted to HTML while the {@code WebView} is loading it.
+     * </p>
+     *
+     * @param text
+     *      The message body to display.  Assumed to be MIME type text/plain.
+     */
+    public void setPlainText(String text) {
+        loadDocument(MessageHtmlProvider.putDocument(
+                new WrappedDocument(createDocumentHeader(), new PlainTextDocument(text))));
+    }
+
+    /**
+     * Load a complete document, as created by {@link #createDocument(String)}, from a file.
+     *
+     * @param fallback
+     *         The document to display if the file has been deleted before it could be read.
+     */
+    public void setDocument(File file, MessageHtmlProvider.Document fallback) {
+        loadDocument(MessageHtmlProvider.putDocument(file, fallback));
+    }
+
+    /**
+     * Create the document {@link #setText(String)} displays for a message body.
+     *
+     * <p>
+     * The body is wrapped in an HTML header and footer that depend on the display settings,
+     * see {@link #getDisplaySettingsHash()}.
+     * </p>
+     */
+    public static MessageHtmlProvider.Document createDocument(String text) {
+        return new WrappedDocument(createDocumentHeader(), new HtmlDocument(text));
+    }
+
+    /**
+     * @return A hash of the display settings that are part of the documents created by
+     *         {@link #createDocument(String)}.
+     */
+    public static int getDisplaySettingsHash() {
+        return createDocumentHeader().hashCode();
+    }
+
+    private static String createDocumentHeader() {
+        // Include a meta tag so the WebView will not use a fixed viewport width of 980 px
+        String header = "<html><head><meta http-equiv=\"Content-Type\" " +
+                "content=\"text/html; charset=utf-8\"/>" +
+                "<meta name=\"viewport\" content=\"width=device-width\"/>";
         if (K9.getK9MessageViewTheme() == K9.Theme.DARK)  {
-            content += "<style type=\"text/css\">" +
+            header += "<style type=\"text/css\">" +
                    "* { background: black ! important; color: #F3F3F3 !important }" +
                    ":link, :link * { color: #CCFF33 !important }" +
                    ":visited, :visited * { color: #551A8B !important }</style> ";
         }
-        content += HtmlConverter.cssStylePre();
-        content += "</head><body>" + text + "</body></html>";
-        loadDataWithBaseURL("http://", content, "text/html", "utf-8", null);
+        header += HtmlConverter.cssStylePre();
+        header += "</head><body>";
+        return header;
+    }
+
+    private void loadDocument(Uri documentUri) {
+        removeDocument();
+        mDocumentUri = documentUri;
+
+        loadUrl(documentUri.toString());
         resumeTimers();
     }
 
+    /**
+     * Unregister the displayed document so {@link MessageHtmlProvider} doesn't keep the message
+     * text after the view is gone.
+     */
+    private void removeDocument() {
+        if (mDocumentUri != null) {
+            MessageHtmlProvider.removeDocument(mDocumentUri);
+            mDocumentUri = null;
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        removeDocument();
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    public void destroy() {
+        removeDocument();
+        super.destroy();
+    }
+
     /*
      * Emulate the shift key being pressed to trigger the text selection mode
      * of a WebView.
@@ -179,4 +274,56 @@ public class MessageWebView extends RigidWebView {
         }
     }
 
+
+    /**
+     * A message body that already is HTML.
+     */
+    private static class HtmlDocument implements MessageHtmlProvider.Document {
+        private final String mText;
+
+        HtmlDocument(String text) {
+            mText = text;
+        }
+
+        @Override
+        public void writeTo(Writer out) throws IOException {
+            out.write(mText);
+        }
+    }
+
+    /**
+     * A plain text message body that is converted to HTML while it is written.
+     */
+    private static class PlainTextDocument implements MessageHtmlProvider.Document {
+        private final String mText;
+
+        PlainTextDocument(String text) {
+            mText = text;
+        }
+
+        @Override
+        public void writeTo(Writer out) throws IOException {
+            HtmlConverter.textToHtml(new StringReader(mText), out);
+        }
+    }
+
+    /**
+     * Wraps a message body in the HTML header and footer.
+     */
+    private static class WrappedDocument implements MessageHtmlProvider.Document {
+        private final String mHeader;
+        private final MessageHtmlProvider.Document mBody;
+
+        WrappedDocument(String header, MessageHtmlProvider.Document body) {
+            mHeader = header;
+            mBody = body;
+        }
+
+        @Override
+        public void writeTo(Writer out) throws IOException {
+            out.write(mHeader);
+            mBody.writeTo(out);
+            out.write("</body></html>");
+        }
+    }
 }
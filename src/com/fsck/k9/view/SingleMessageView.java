@@ -34,6 +34,7 @@ import android.widget.Toast;
 import com.fsck.k9.Account;
 import com.fsck.k9.K9;
 import com.fsck.k9.R;
+import com.fsck.k9.cache.MessageRenderCache;
 import com.fsck.k9.controller.MessagingController;
 import com.fsck.k9.controller.MessagingListener;
 import com.fsck.k9.crypto.CryptoProvider;
@@ -48,12 +49,15 @@ import com.fsck.k9.mail.internet.MimeUtility;
 import com.fsck.k9.mail.store.LocalStore;
 import com.fsck.k9.mail.store.LocalStore.LocalMessage;
 import com.fsck.k9.provider.AttachmentProvider.AttachmentProviderColumns;
+import com.fsck.k9.provider.MessageHtmlProvider;
 
 import org.apache.commons.io.IOUtils;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.Writer;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLDecoder;
@@ -106,6 +110,10 @@ public class SingleMessageView extends LinearLayout implements OnClickListener,
     private SavedState mSavedState;
     private ClipboardManager mClipboardManager;
     private String mText;
+    private boolean mTextIsPlain;
+    private File mCachedDocument;
+    private LocalMessage mMessage;
+    private MessageRenderCache mRenderCache;
 
 
     public void initialize(Fragment fragment) {
@@ -113,6 +121,7 @@ public class SingleMessageView extends LinearLayout implements OnClickListener,
         mMessageContentView = (MessageWebView) findViewById(R.id.message_content);
         mAccessibleMessageContentView = (AccessibleWebView) findViewById(R.id.accessible_message_content);
         mMessageContentView.configure();
+        mRenderCache = MessageRenderCache.getInstance(activity);
         activity.registerForContextMenu(mMessageContentView);
         mMessageContentView.setOnCreateContextMenuListener(this);
 
@@ -403,7 +412,7 @@ public class SingleMessageView extends LinearLayout implements OnClickListener,
                 // Allow network access first...
                 setLoadPictures(true);
                 // ...then re-populate the WebView with the message text
-                loadBodyFromText(mText);
+                loadBody();
                 break;
             }
         }
@@ -526,7 +535,8 @@ public class SingleMessageView extends LinearLayout implements OnClickListener,
     }
 
     public void setShowDownloadButton(Message message) {
-        if (message.isSet(Flag.X_DOWNLOADED_FULL)) {
+        // Downloading a truncated message again would only truncate it again
+        if (message.isSet(Flag.X_DOWNLOADED_FULL) || message.isSet(Flag.X_VIEWABLE_TRUNCATED)) {
             mDownloadRemainder.setVisibility(View.GONE);
         } else {
             mDownloadRemainder.setEnabled(true);
@@ -551,19 +561,41 @@ public class SingleMessageView extends LinearLayout implements OnClickListener,
         resetView();
 
         String text = null;
+        boolean textIsPlain = false;
         if (pgpData != null) {
             text = pgpData.getDecryptedData();
-            if (text != null) {
-                text = HtmlConverter.textToHtml(text);
-            }
+            // The decrypted text is converted to HTML while it is displayed
+            textIsPlain = (text != null);
+        }
+
+        // Decrypted text is never written to the cache
+        int displaySettingsHash = MessageWebView.getDisplaySettingsHash();
+        MessageRenderCache.Entry cachedDocument = null;
+        if (text == null && !mScreenReaderEnabled) {
+            cachedDocument = mRenderCache.get(account.getUuid(), message.getId(),
+                    displaySettingsHash);
         }
 
-        if (text == null) {
+        boolean storeDocument = false;
+        if (text == null && cachedDocument == null) {
             text = message.getTextForDisplay();
+            storeDocument = (text != null);
+        }
+
+        boolean hasExternalImages = (cachedDocument != null) ?
+                cachedDocument.hasExternalImages :
+                (text != null && !textIsPlain && Utility.hasExternalImages(text));
+
+        if (storeDocument) {
+            mRenderCache.putInBackground(account.getUuid(), message.getId(), displaySettingsHash,
+                    hasExternalImages, MessageWebView.createDocument(text));
         }
 
         // Save the text so we can reset the WebView when the user clicks the "Show pictures" button
         mText = text;
+        mTextIsPlain = textIsPlain;
+        mCachedDocument = (cachedDocument != null) ? cachedDocument.file : null;
+        mMessage = message;
 
         mHasAttachments = message.hasAttachments();
 
@@ -595,11 +627,11 @@ public class SingleMessageView extends LinearLayout implements OnClickListener,
             onShowMessage();
         }
 
-        if (text != null && lookForImages) {
+        if (lookForImages) {
             // If the message contains external pictures and the "Show pictures"
             // button wasn't already pressed, see if the user's preferences has us
             // showing them anyway.
-            if (Utility.hasExternalImages(text) && !showPictures()) {
+            if (hasExternalImages && !showPictures()) {
                 Address[] from = message.getFrom();
                 if ((account.getShowPictures() == Account.ShowPictures.ALWAYS) ||
                         ((account.getShowPictures() == Account.ShowPictures.ONLY_FROM_CONTACTS) &&
@@ -613,8 +645,8 @@ public class SingleMessageView extends LinearLayout implements OnClickListener,
             }
         }
 
-        if (text != null) {
-            loadBodyFromText(text);
+        if (text != null || mCachedDocument != null) {
+            loadBody();
             updateCryptoLayout(account.getCryptoProvider(), pgpData, message);
         } else {
             showStatusMessage(getContext().getString(R.string.webview_empty_message));
@@ -627,6 +659,18 @@ public class SingleMessageView extends LinearLayout implements OnClickListener,
         mCryptoView.hide();
     }
 
+    private void loadBody() {
+        if (mCachedDocument != null) {
+            mMessageContentView.setDocument(mCachedDocument, new MessageTextDocument(mMessage));
+        } else if (!mTextIsPlain) {
+            loadBodyFromText(mText);
+        } else if (mScreenReaderEnabled) {
+            mAccessibleMessageContentView.setText(HtmlConverter.textToHtml(mText));
+        } else {
+            mMessageContentView.setPlainText(mText);
+        }
+    }
+
     private void loadBodyFromText(String emailText) {
         if (mScreenReaderEnabled) {
             mAccessibleMessageContentView.setText(emailText);
@@ -931,4 +975,30 @@ public class SingleMessageView extends LinearLayout implements OnClickListener,
             Toast.makeText(getContext(), text, Toast.LENGTH_LONG).show();
         }
     }
+
+    /**
+     * Renders the text of a message when it is read. Used when a cached document has been
+     * deleted before the {@code WebView} could read it.
+     */
+    private static class MessageTextDocument implements MessageHtmlProvider.Document {
+        private final LocalMessage mMessage;
+
+        MessageTextDocument(LocalMessage message) {
+            mMessage = message;
+        }
+
+        @Override
+        public void writeTo(Writer out) throws IOException {
+            String text;
+            try {
+                text = mMessage.getTextForDisplay();
+            } catch (MessagingException e) {
+                throw new IOException("Couldn't get text of message " + mMessage.getUid());
+            }
+
+            if (text != null) {
+                MessageWebView.createDocument(text).writeTo(out);
+            }
+        }
+    }
 }
@@ -0,0 +1,126 @@
+package com.fsck.k9;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Runs small operations many times and prints the average time and, if the JVM supports it, the
+ * number of bytes allocated per operation.
+ *
+ * <p>
+ * Shared by the benchmarks in this directory. Call {@link #warmUp(Operation)} for all operations
+ * first, so they are compiled before anything is measured, then {@link #report(String, Operation)}
+ * for each of them.
+ * </p>
+ *
+ * <p>
+ * Operations that process a stream of data use {@link #warmUp(StreamOperation)} and
+ * {@link #reportThroughput(String, long, StreamOperation)} instead, which print the throughput.
+ * </p>
+ */
+public class MicroBenchmark {
+    public interface Operation {
+        /**
+         * Run the operation once.
+         *
+         * @param iteration
+         *         The number of the iteration, e.g. to pick one of several inputs.
+         *
+         * @return Any value depending on the result, so the work can't be optimized away.
+         */
+        int run(int iteration);
+    }
+
+    public interface StreamOperation {
+        /**
+         * Process the whole data once.
+         */
+        void run() throws IOException;
+    }
+
+    /**
+     * An {@link OutputStream} that discards everything, to measure the cost of the streams
+     * writing to it.
+     */
+    public static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int oneByte) {
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+        }
+    }
+
+
+    private final int mWarmupIterations;
+    private final int mIterations;
+
+
+    public MicroBenchmark(int warmupIterations, int iterations) {
+        mWarmupIterations = warmupIterations;
+        mIterations = iterations;
+    }
+
+    public void warmUp(Operation operation) {
+        run(operation, mWarmupIterations);
+    }
+
+    public void report(String name, Operation operation) {
+        long allocatedBefore = getAllocatedBytes();
+        long start = System.nanoTime();
+        run(operation, mIterations);
+        long nanos = System.nanoTime() - start;
+        long allocated = getAllocatedBytes() - allocatedBefore;
+
+        System.out.printf("%-25s %8.3f us/op", name, nanos / 1000.0 / mIterations);
+        if (allocatedBefore >= 0) {
+            System.out.printf(" %10d bytes/op", allocated / mIterations);
+        }
+        System.out.println();
+    }
+
+    public void warmUp(StreamOperation operation) throws IOException {
+        run(operation, mWarmupIterations);
+    }
+
+    /**
+     * @param bytes
+     *         The amount of data processed by one run of {@code operation}.
+     */
+    public void reportThroughput(String name, long bytes, StreamOperation operation)
+            throws IOException {
+        long start = System.nanoTime();
+        run(operation, mIterations);
+        long nanos = System.nanoTime() - start;
+
+        double seconds = nanos / 1e9 / mIterations;
+        double megabytes = bytes / (1024.0 * 1024.0);
+        System.out.printf("%-25s %8.1f MiB/s%n", name, megabytes / seconds);
+    }
+
+    private static void run(StreamOperation operation, int iterations) throws IOException {
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+    }
+
+    private static int run(Operation operation, int iterations) {
+        int result = 0;
+        for (int i = 0; i < iterations; i++) {
+            result += operation.run(i);
+        }
+        return result;
+    }
+
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,129 @@
+package com.fsck.k9.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.io.IOUtils;
+
+import junit.framework.TestCase;
+
+public class DiskLruCacheTest extends TestCase {
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        mDirectory = File.createTempFile("DiskLruCacheTest", null);
+        mDirectory.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    public void testPutAndGet() throws Exception {
+        DiskLruCache cache = new DiskLruCache(mDirectory, 1000);
+        byte[] data = createData(100, 1);
+
+        cache.put("key", data);
+
+        assertTrue(Arrays.equals(data, read(cache.get("key"))));
+        assertNull(cache.get("other"));
+        assertEquals(100, cache.size());
+    }
+
+    public void testPutReplacesEntry() throws Exception {
+        DiskLruCache cache = new DiskLruCache(mDirectory, 1000);
+        cache.put("key", createData(100, 1));
+
+        byte[] data = createData(50, 2);
+        cache.put("key", data);
+
+        assertTrue(Arrays.equals(data, read(cache.get("key"))));
+        assertEquals(50, cache.size());
+    }
+
+    public void testOldestEntriesAreEvicted() throws Exception {
+        DiskLruCache cache = new DiskLruCache(mDirectory, 1000);
+        cache.put("a", createData(600, 1));
+        cache.put("b", createData(200, 2));
+        setAge(cache.get("a"), 2);
+        setAge(cache.get("b"), 1);
+
+        cache.put("c", createData(300, 3));
+
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertEquals(500, cache.size());
+    }
+
+    public void testReadEntriesAreKept() throws Exception {
+        DiskLruCache cache = new DiskLruCache(mDirectory, 1000);
+        cache.put("a", createData(200, 1));
+        cache.put("b", createData(600, 2));
+        setAge(cache.get("a"), 2);
+        setAge(cache.get("b"), 1);
+
+        // Reading "a" makes it the most recently used entry
+        cache.get("a");
+        cache.put("c", createData(300, 3));
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+    }
+
+    public void testSizeIsRestoredFromDirectory() throws Exception {
+        DiskLruCache cache = new DiskLruCache(mDirectory, 1000);
+        cache.put("a", createData(300, 1));
+        cache.put("b", createData(200, 2));
+
+        DiskLruCache reopened = new DiskLruCache(mDirectory, 1000);
+
+        assertEquals(500, reopened.size());
+        assertNotNull(reopened.get("a"));
+    }
+
+    public void testRemoveAndClear() throws Exception {
+        DiskLruCache cache = new DiskLruCache(mDirectory, 1000);
+        cache.put("a", createData(300, 1));
+        cache.put("b", createData(200, 2));
+
+        cache.remove("a");
+        assertNull(cache.get("a"));
+        assertEquals(200, cache.size());
+
+        cache.clear();
+        assertNull(cache.get("b"));
+        assertEquals(0, cache.size());
+    }
+
+    private static void setAge(File file, int minutes) {
+        file.setLastModified(System.currentTimeMillis() - minutes * 60 * 1000L);
+    }
+
+    private static byte[] createData(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * seed);
+        }
+        return data;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+}
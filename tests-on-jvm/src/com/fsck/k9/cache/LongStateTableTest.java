@@ -0,0 +1,103 @@
+package com.fsck.k9.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class LongStateTableTest extends TestCase {
+
+    public void testSetAndClearBits() {
+        LongStateTable table = new LongStateTable(64);
+
+        assertEquals(-1, table.getBit(42, 0));
+
+        table.setBit(42, 0, true);
+        table.setBit(42, 2, false);
+
+        assertEquals(1, table.getBit(42, 0));
+        assertEquals(-1, table.getBit(42, 1));
+        assertEquals(0, table.getBit(42, 2));
+        assertEquals(1, table.size());
+
+        table.clearBit(42, 0);
+        assertEquals(-1, table.getBit(42, 0));
+        assertEquals(0, table.getBit(42, 2));
+
+        table.clearBit(42, 2);
+        assertEquals(0, table.size());
+    }
+
+    public void testPayload() {
+        LongStateTable table = new LongStateTable(64);
+
+        table.putPayload(7, 3);
+
+        assertTrue(table.containsPayload(7, 3));
+        assertFalse(table.containsPayload(7, 4));
+
+        table.removePayload(7, 4);
+        assertTrue(table.containsPayload(7, 3));
+
+        table.removePayload(7, 3);
+        assertFalse(table.containsPayload(7, 3));
+    }
+
+    public void testEvictsOldestEntriesWhenFull() {
+        LongStateTable table = new LongStateTable(100);
+
+        for (long i = 0; i < 1000; i++) {
+            table.setBit(i, 1, true);
+        }
+
+        assertTrue(table.size() <= 100);
+        assertEquals(1, table.getBit(999, 1));
+        assertEquals(-1, table.getBit(0, 1));
+    }
+
+    public void testNonEvictingTableKeepsEntriesWhenFull() {
+        LongStateTable table = new LongStateTable(100, false);
+
+        boolean overCapacity = false;
+        for (long i = 0; i < 1000; i++) {
+            overCapacity = table.setBit(i, 1, true);
+        }
+
+        assertTrue(overCapacity);
+        assertEquals(1000, table.size());
+        assertEquals(1, table.getBit(0, 1));
+        assertEquals(1, table.getBit(999, 1));
+
+        for (long i = 0; i < 1000; i++) {
+            table.clearBit(i, 1);
+        }
+        assertEquals(0, table.size());
+        assertFalse(table.setBit(5, 1, true));
+    }
+
+    public void testMatchesHashMapUnderRandomOperations() {
+        LongStateTable table = new LongStateTable(100000);
+        Map<Long, Boolean> reference = new HashMap<Long, Boolean>();
+        Random random = new Random(1);
+
+        for (int i = 0; i < 50000; i++) {
+            long key = random.nextInt(2000) - 1000;
+            if (random.nextBoolean()) {
+                boolean value = random.nextBoolean();
+                table.setBit(key, 3, value);
+                reference.put(key, value);
+            } else {
+                table.clearBit(key, 3);
+                reference.remove(key);
+            }
+        }
+
+        assertEquals(reference.size(), table.size());
+        for (long key = -1000; key < 1000; key++) {
+            Boolean expected = reference.get(key);
+            int expectedBit = (expected == null) ? -1 : (expected ? 1 : 0);
+            assertEquals(expectedBit, table.getBit(key, 3));
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.fsck.k9.helper;
+
+import com.fsck.k9.MicroBenchmark;
+
+/**
+ * Compares {@link EmojiConverter} with the {@code switch} based implementation it replaced.
+ *
+ * <p>
+ * Run with {@code java com.fsck.k9.helper.EmojiConverterBenchmark}. Reports the average time per
+ * message and, if the JVM supports it, the number of bytes allocated per message. Most messages
+ * don't contain any emoji, so both a message without and one with emoji are converted.
+ * </p>
+ */
+public class EmojiConverterBenchmark {
+    private static final int WARMUP_ITERATIONS = 2000;
+    private static final int ITERATIONS = 5000;
+
+    public static void main(String[] args) {
+        String plain = createMessageHtml(false);
+        String withEmoji = createMessageHtml(true);
+
+        MicroBenchmark.Operation oldPlain = convertWithSwitch(plain);
+        MicroBenchmark.Operation oldEmoji = convertWithSwitch(withEmoji);
+        MicroBenchmark.Operation newPlain = convert(plain);
+        MicroBenchmark.Operation newEmoji = convert(withEmoji);
+
+        MicroBenchmark benchmark = new MicroBenchmark(WARMUP_ITERATIONS, ITERATIONS);
+        benchmark.warmUp(oldPlain);
+        benchmark.warmUp(oldEmoji);
+        benchmark.warmUp(newPlain);
+        benchmark.warmUp(newEmoji);
+
+        benchmark.report("switch, no emoji", oldPlain);
+        benchmark.report("EmojiConverter, no emoji", newPlain);
+        benchmark.report("switch, emoji", oldEmoji);
+        benchmark.report("EmojiConverter, emoji", newEmoji);
+    }
+
+    private static MicroBenchmark.Operation convertWithSwitch(final String html) {
+        return new MicroBenchmark.Operation() {
+            @Override
+            public int run(int iteration) {
+                return SwitchEmojiConverter.convertEmoji2Img(html).length();
+            }
+        };
+    }
+
+    private static MicroBenchmark.Operation convert(final String html) {
+        return new MicroBenchmark.Operation() {
+            @Override
+            public int run(int iteration) {
+                return EmojiConverter.convert(html).length();
+            }
+        };
+    }
+
+    /**
+     * A message of about 16 KiB with some non-ASCII text and, optionally, an emoji every few
+     * lines.
+     */
+    private static String createMessageHtml(boolean withEmoji) {
+        StringBuilder sb = new StringBuilder("<html><body>");
+        for (int i = 0; i < 200; i++) {
+            sb.append("<p>Line ").append(i).append(": caf\u00e9, \u65e5\u672c\u8a9e");
+            if (withEmoji && i % 5 == 0) {
+                sb.appendCodePoint(0xFE000 + i);
+            }
+            sb.append("</p>\r\n");
+        }
+        sb.append("</body></html>");
+        return sb.toString();
+    }
+}
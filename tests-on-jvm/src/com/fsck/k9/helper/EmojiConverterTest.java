@@ -0,0 +1,41 @@
+package com.fsck.k9.helper;
+
+import junit.framework.TestCase;
+
+public class EmojiConverterTest extends TestCase {
+    private static final String SUN = "<img src=\"file:///android_asset/emoticons/sun.gif\" alt=\"sun\" />";
+
+    public void testTextWithoutEmojiIsReturnedUnchanged() {
+        String html = "<p>No emoji \u00e4\u00f6\u00fc \ud83d\ude00 here</p>";
+
+        assertSame(html, EmojiConverter.convert(html));
+    }
+
+    public void testEmojiAreReplaced() {
+        String html = "a" + emoji(0xFE000) + "b" + emoji(0xFE000);
+
+        assertEquals("a" + SUN + "b" + SUN, EmojiConverter.convert(html));
+    }
+
+    public void testUnknownAndBrokenSurrogatesAreKept() {
+        String unknown = emoji(0xFE00B);
+        String html = unknown + "\udbb8x\udbb8";
+
+        assertSame(html, EmojiConverter.convert(html));
+    }
+
+    public void testSameResultAsSwitch() {
+        StringBuilder html = new StringBuilder();
+        for (int codePoint = 0xFDFF0; codePoint <= 0xFF010; codePoint++) {
+            html.appendCodePoint(codePoint).append(' ');
+        }
+        html.append('\udbb9');
+
+        assertEquals(SwitchEmojiConverter.convertEmoji2Img(html.toString()),
+                EmojiConverter.convert(html.toString()));
+    }
+
+    private static String emoji(int codePoint) {
+        return new String(Character.toChars(codePoint));
+    }
+}
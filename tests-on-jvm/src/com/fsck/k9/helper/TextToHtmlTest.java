@@ -0,0 +1,146 @@
+package com.fsck.k9.helper;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+public class TextToHtmlTest extends TestCase {
+    private static final String BLOCKQUOTE_1 = "<blockquote class=\"gmail_quote\" " +
+            "style=\"margin: 0pt 0pt 1ex 0.8ex; border-left: 1px solid #729fcf; padding-left: 1ex;\">";
+    private static final String BLOCKQUOTE_2 = "<blockquote class=\"gmail_quote\" " +
+            "style=\"margin: 0pt 0pt 1ex 0.8ex; border-left: 1px solid #ad7fa8; padding-left: 1ex;\">";
+
+    public void testTextQuoteToHtmlBlockquote() throws Exception {
+        String message = "Panama!\r\n" +
+            "\r\n" +
+            "Bob Barker <bob@aol.com> wrote:\r\n" +
+            "> a canal\r\n" +
+            ">\r\n" +
+            "> Dorothy Jo Gideon <dorothy@aol.com> espoused:\r\n" +
+            "> >A man, a plan...\r\n" +
+            "> Too easy!\r\n" +
+            "\r\n" +
+            "Nice job :)\r\n" +
+            ">> Guess!";
+
+        assertEquals("<pre class=\"k9mail\">"
+            + "Panama!<br />"
+            + "<br />"
+            + "Bob Barker &lt;bob@aol.com&gt; wrote:<br />"
+            + BLOCKQUOTE_1
+            +   " a canal<br />"
+            +   "<br />"
+            +   " Dorothy Jo Gideon &lt;dorothy@aol.com&gt; espoused:<br />"
+            +   BLOCKQUOTE_2
+            +     "A man, a plan...<br />"
+            +   "</blockquote>"
+            +     " Too easy!<br />"
+            +   "</blockquote>"
+            +   "<br />"
+            +   "Nice job :)<br />"
+            +   BLOCKQUOTE_1
+            +     BLOCKQUOTE_2
+            +     " Guess!"
+            +   "</blockquote>"
+            + "</blockquote>"
+            + "</pre>", convert(message));
+    }
+
+    public void testNewlinesAtEndOfBlockquoteAreMovedOutside() throws Exception {
+        String message = "> one\r\n" +
+            ">\r\n" +
+            ">\r\n" +
+            "two";
+
+        assertEquals("<pre class=\"k9mail\">"
+            + BLOCKQUOTE_1
+            +   " one"
+            + "</blockquote>"
+            + "<br /><br />"
+            + "two"
+            + "</pre>", convert(message));
+    }
+
+    public void testSingleNewlineAtEndOfBlockquoteStaysInside() throws Exception {
+        String message = "> one\r\n" +
+            "two";
+
+        assertEquals("<pre class=\"k9mail\">"
+            + BLOCKQUOTE_1
+            +   " one<br />"
+            + "</blockquote>"
+            + "two"
+            + "</pre>", convert(message));
+    }
+
+    public void testLinesOfDashesBecomeHorizontalRules() throws Exception {
+        String message = "above\n" +
+            "------------------------------\n" +
+            "below";
+
+        assertEquals("<pre class=\"k9mail\">above<br /><hr /><br />below</pre>", convert(message));
+    }
+
+    public void testLinksAreCreatedOnEveryLine() throws Exception {
+        String message = "http://example.com/a\n" +
+            "see www.example.org>\n";
+
+        assertEquals("<pre class=\"k9mail\">"
+            + "<a href=\"http://example.com/a\">http://example.com/a</a><br />"
+            + "see <a href=\"http://www.example.org\">www.example.org</a>&gt;<br />"
+            + "</pre>", convert(message));
+    }
+
+    public void testLargeTextIsConvertedCompletely() throws Exception {
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            message.append("> quoted line ").append(i).append("\r\n");
+        }
+        message.append("end");
+
+        String html = convert(message.toString());
+
+        assertTrue(html.startsWith("<pre class=\"k9mail\">" + BLOCKQUOTE_1 + " quoted line 0<br />"));
+        assertTrue(html.endsWith(" quoted line 19999<br /></blockquote>end</pre>"));
+    }
+
+    public void testResultDoesNotDependOnReadSize() throws Exception {
+        String message = "Hi,\r\n> > nested\r\n>\r\n>\r\n> http://example.com/\r\n\r\nBye";
+
+        StringWriter html = new StringWriter();
+        TextToHtml.convert(new OneCharReader(message), html);
+
+        assertEquals(convert(message), html.toString());
+    }
+
+    private static String convert(String text) throws IOException {
+        StringWriter html = new StringWriter();
+        TextToHtml.convert(new StringReader(text), html);
+        return html.toString();
+    }
+
+    private static class OneCharReader extends Reader {
+        private final String mText;
+        private int mPosition;
+
+        OneCharReader(String text) {
+            mText = text;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int count) {
+            if (mPosition == mText.length()) {
+                return -1;
+            }
+            buffer[offset] = mText.charAt(mPosition++);
+            return 1;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.fsck.k9.mail;
+
+import com.fsck.k9.MicroBenchmark;
+
+/**
+ * Compares {@link ContentPreviewExtractor} with the regular expressions it replaced.
+ *
+ * <p>
+ * Run with {@code java com.fsck.k9.mail.ContentPreviewBenchmark}. Reports the average time per
+ * preview and, if the JVM supports it, the number of bytes allocated per preview.
+ * </p>
+ */
+public class ContentPreviewBenchmark {
+    private static final int WARMUP_ITERATIONS = 2000;
+    private static final int ITERATIONS = 5000;
+
+    public static void main(String[] args) {
+        final String text = createMessageText();
+
+        MicroBenchmark.Operation regex = new MicroBenchmark.Operation() {
+            @Override
+            public int run(int iteration) {
+                return RegexContentPreview.calculateContentPreview(text).length();
+            }
+        };
+        MicroBenchmark.Operation extractor = new MicroBenchmark.Operation() {
+            @Override
+            public int run(int iteration) {
+                return ContentPreviewExtractor.extract(text).length();
+            }
+        };
+
+        MicroBenchmark benchmark = new MicroBenchmark(WARMUP_ITERATIONS, ITERATIONS);
+        benchmark.warmUp(regex);
+        benchmark.warmUp(extractor);
+
+        benchmark.report("replaceAll()", regex);
+        benchmark.report("ContentPreviewExtractor", extractor);
+    }
+
+    /**
+     * A typical reply: some text, a link, a quote header, quoted text and a signature.
+     */
+    private static String createMessageText() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Hi Alice,\r\n\r\n");
+        for (int i = 0; i < 20; i++) {
+            sb.append("This is line ").append(i).append(" of my answer, see ")
+                    .append("https://example.com/page/").append(i).append(" for details.\r\n");
+        }
+        sb.append("\r\n_______________________________________________\r\n\r\n");
+        sb.append("On Mon, Jan 1, 2013 at 10:00 AM, Alice <alice@example.com> wrote:\r\n");
+        for (int i = 0; i < 100; i++) {
+            sb.append("> Quoted line ").append(i).append(" of the original message.\r\n");
+        }
+        sb.append("\r\n-- \r\nBob\r\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,100 @@
+package com.fsck.k9.mail;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class ContentPreviewExtractorTest extends TestCase {
+    /**
+     * Pairs of input and expected preview.
+     */
+    private static final String[][] GOLDEN = {
+        { null, null },
+        { "", "" },
+        { "  Hello\r\n  world  ", "Hello world" },
+        { "Hi Bob,\r\n\r\nsee you tomorrow.\r\n\r\n-- \r\nAlice\r\nalice@example.com",
+                "Hi Bob, see you tomorrow." },
+        { "Thanks!\n\nOn Mon, Jan 1, 2013 at 10:00 AM, Bob <bob@example.com> wrote:\n> Hello\n> there",
+                "Thanks!" },
+        { "Yes.\n\nOn 01.01.2013 Bob wrote\n>> quoted", "Yes." },
+        { "See http://example.com/foo?bar=1 and https://example.org.", "See ... and ..." },
+        { "http:// is not a URL", "http:// is not a URL" },
+        { "Intro\n" + repeat('=', 40) + "\nBody", "Intro Body" },
+        { "Short " + repeat('-', 29) + " rule", "Short " + repeat('-', 29) + " rule" },
+        { "---- Forwarded message ----\nFrom: Bob\nSubject: Test\n\nText", "From: Bob Subject: Test Text" },
+        { "# comment\nText\n-- not a signature\nMore", "Text -- not a signature More" },
+        { "Line one\u2028> quoted after unicode line separator\u2028Line two", "Line one\u2028\u2028Line two" },
+        { "Dear all:\nNews", "News" },
+    };
+
+    public void testGoldenCorpus() {
+        for (String[] entry : GOLDEN) {
+            String input = entry[0];
+            assertEquals("Input: " + input, entry[1], ContentPreviewExtractor.extract(input));
+            assertEquals("Reference for input: " + input, entry[1],
+                    RegexContentPreview.calculateContentPreview(input));
+        }
+    }
+
+    public void testLongInputIsTruncated() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append("word").append(i).append(' ');
+        }
+        String text = sb.toString();
+
+        String preview = ContentPreviewExtractor.extract(text);
+        assertEquals(512, preview.length());
+        assertEquals(RegexContentPreview.calculateContentPreview(text), preview);
+    }
+
+    /**
+     * Compare against the regular expressions on random text made up of the fragments the
+     * individual steps look for.
+     */
+    public void testSameOutputAsRegularExpressions() {
+        String[] fragments = {
+            "a", "b", "x", " ", "  ", "\t", "\r", "\n", "\r\n", "\u000B", "\f", "\u0085",
+            "\u2028", "\u2029", "\u0001", "-", "--", "-- ", "----", "=", "_", ":", "#", ">",
+            "On ", "wrote", "wrote:", "http://", "https://", "http", "s", "word:",
+            "\uD83D\uDE00", "\uD83D",
+            repeat('-', 30), repeat('=', 31), repeat('_', 29),
+        };
+
+        Random random = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int count = random.nextInt(30);
+            for (int j = 0; j < count; j++) {
+                sb.append(fragments[random.nextInt(fragments.length)]);
+            }
+            String text = sb.toString();
+
+            assertEquals("Input: " + escape(text),
+                    RegexContentPreview.calculateContentPreview(text),
+                    ContentPreviewExtractor.extract(text));
+        }
+    }
+
+
+    private static String repeat(char c, int count) {
+        StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static String escape(String text) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x20 || c > 0x7E) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
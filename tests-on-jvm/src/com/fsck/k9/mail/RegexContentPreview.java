@@ -0,0 +1,31 @@
+package com.fsck.k9.mail;
+
+/**
+ * The regular expression based implementation of {@code Message.calculateContentPreview()}
+ * that has been replaced by {@link ContentPreviewExtractor}. Kept as reference for tests and
+ * benchmarks.
+ */
+class RegexContentPreview {
+    static String calculateContentPreview(String text) {
+        if (text == null) {
+            return null;
+        }
+
+        if (text.length() > 8192) {
+            text = text.substring(0, 8192);
+        }
+
+        text = text.replaceAll("(?ms)^-- [\\r\\n]+.*", "");
+        text = text.replaceAll("(?m)^----.*?$", "");
+        text = text.replaceAll("(?m)^[#>].*$", "");
+        text = text.replaceAll("(?m)^On .*wrote.?$", "");
+        text = text.replaceAll("(?m)^.*\\w+:$", "");
+        text = text.replaceAll("\\s*([-=_]{30,}+)\\s*", " ");
+        text = text.replaceAll("https?://\\S+", "...");
+        text = text.replaceAll("(\\r|\\n)+", " ");
+        text = text.replaceAll("\\s+", " ");
+        text = text.trim();
+
+        return (text.length() <= 512) ? text : text.substring(0, 512);
+    }
+}
@@ -0,0 +1,83 @@
+package com.fsck.k9.mail.filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class Base64InputStreamTest extends TestCase {
+    private static final String ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    public void testDecode() throws IOException {
+        assertEquals("Hello, World!", decode("SGVsbG8sIFdvcmxkIQ=="));
+        assertEquals("Hello, World", decode("SGVsbG8s\r\nIFdvcmxk\r\n"));
+        assertEquals("", decode(""));
+    }
+
+    public void testInvalidCharactersAreIgnored() throws IOException {
+        assertEquals("Hello", decode("SG*Vs bG\t8="));
+    }
+
+    public void testDataAfterPaddingIsIgnored() throws IOException {
+        assertEquals("Hi", decode("SGk=SGVsbG8="));
+    }
+
+    public void testIncompleteGroupIsDropped() throws IOException {
+        assertEquals("Hi!", decode("SGkhS"));
+    }
+
+    public void testLargeData() throws IOException {
+        Random random = new Random(1);
+        byte[] data = new byte[100000];
+        random.nextBytes(data);
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        Base64OutputStream out = new Base64OutputStream(encoded);
+        out.write(data);
+        out.close();
+
+        byte[] decoded = readFully(new Base64InputStream(
+                new ByteArrayInputStream(encoded.toByteArray())), 1000);
+        assertTrue(Arrays.equals(data, decoded));
+    }
+
+    public void testSameOutputAsMime4j() throws IOException {
+        Random random = new Random(42);
+        String characters = ALPHABET + ALPHABET + "=\r\n \t*-";
+        for (int i = 0; i < 20000; i++) {
+            int length = random.nextInt(40);
+            byte[] input = new byte[length];
+            for (int j = 0; j < length; j++) {
+                input[j] = (byte) characters.charAt(random.nextInt(characters.length()));
+            }
+
+            byte[] expected = readFully(new org.apache.james.mime4j.codec.Base64InputStream(
+                    new ByteArrayInputStream(input)), 4096);
+            byte[] actual = readFully(new Base64InputStream(new ByteArrayInputStream(input)),
+                    1 + random.nextInt(8));
+
+            assertTrue(new String(input), Arrays.equals(expected, actual));
+        }
+    }
+
+    private static String decode(String encoded) throws IOException {
+        return new String(readFully(new Base64InputStream(
+                new ByteArrayInputStream(encoded.getBytes("US-ASCII"))), 4096), "ISO-8859-1");
+    }
+
+    static byte[] readFully(InputStream in, int bufferSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[bufferSize];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,73 @@
+package com.fsck.k9.mail.filter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class Base64OutputStreamTest extends TestCase {
+
+    public void testEncode() throws IOException {
+        assertEquals("SGVsbG8sIFdvcmxkIQ==\r\n", encode("Hello, World!".getBytes(), 76, "\r\n"));
+        assertEquals("\r\n", encode(new byte[0], 76, "\r\n"));
+        assertEquals("SGk=", encode("Hi".getBytes(), 0, "\r\n"));
+    }
+
+    public void testSameOutputAsBase64() throws IOException {
+        Random random = new Random(42);
+        int[] lineLengths = { 76, 64, 10, 4, 5, 0, -1 };
+        String[] separators = { "\r\n", "\n" };
+        for (int i = 0; i < 2000; i++) {
+            byte[] data = new byte[random.nextInt(300)];
+            random.nextBytes(data);
+            int lineLength = lineLengths[random.nextInt(lineLengths.length)];
+            String separator = separators[random.nextInt(separators.length)];
+
+            Base64 base64 = new Base64(lineLength, separator.getBytes());
+            base64.encode(data, 0, data.length);
+            base64.encode(data, 0, -1);
+            byte[] expected = new byte[base64.avail()];
+            base64.readResults(expected, 0, expected.length);
+
+            assertEquals(new String(expected), encode(data, lineLength, separator, random));
+        }
+    }
+
+    public void testLargeData() throws IOException {
+        byte[] data = new byte[100000];
+        new Random(1).nextBytes(data);
+
+        String encoded = encode(data, 76, "\r\n");
+
+        assertEquals(new String(Base64.encodeBase64Chunked(data)), encoded);
+    }
+
+    private static String encode(byte[] data, int lineLength, String separator)
+            throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        OutputStream out = new Base64OutputStream(result, true, lineLength, separator.getBytes());
+        out.write(data);
+        out.close();
+        return new String(result.toByteArray());
+    }
+
+    private static String encode(byte[] data, int lineLength, String separator, Random random)
+            throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        OutputStream out = new Base64OutputStream(result, true, lineLength, separator.getBytes());
+        int pos = 0;
+        while (pos < data.length) {
+            int count = Math.min(data.length - pos, random.nextInt(10));
+            if (count == 1) {
+                out.write(data[pos]);
+            } else {
+                out.write(data, pos, count);
+            }
+            pos += count;
+        }
+        out.close();
+        return new String(result.toByteArray());
+    }
+}
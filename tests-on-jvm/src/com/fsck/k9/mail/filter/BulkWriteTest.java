@@ -0,0 +1,131 @@
+package com.fsck.k9.mail.filter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Makes sure the bulk {@code write(byte[], int, int)} implementations of the output filters
+ * produce exactly the same output as writing one byte at a time.
+ */
+public class BulkWriteTest extends TestCase {
+    private static final byte[] ALPHABET = "abc .\r\n\r\n.".getBytes();
+
+    public void testEolConvertingOutputStream() throws IOException {
+        assertSameOutput(new StreamFactory() {
+            @Override
+            public OutputStream create(OutputStream out) {
+                return new EOLConvertingOutputStream(out);
+            }
+        });
+    }
+
+    public void testEolConvertingOutputStreamAfterFlush() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        EOLConvertingOutputStream out = new EOLConvertingOutputStream(bytes);
+        out.write("a\r".getBytes());
+        out.flush();
+        out.write("\nb\rc".getBytes());
+        out.flush();
+        out.write("d".getBytes());
+
+        assertEquals("a\r\nb\rcd", new String(bytes.toByteArray()));
+    }
+
+    public void testLineWrapOutputStream() throws IOException {
+        assertSameOutput(new StreamFactory() {
+            @Override
+            public OutputStream create(OutputStream out) {
+                return new LineWrapOutputStream(out, 12);
+            }
+        });
+    }
+
+    public void testSmtpDataStuffing() throws IOException {
+        assertSameOutput(new StreamFactory() {
+            @Override
+            public OutputStream create(OutputStream out) {
+                return new SmtpDataStuffing(out);
+            }
+        });
+    }
+
+    public void testSmtpTransportChain() throws IOException {
+        assertSameOutput(new StreamFactory() {
+            @Override
+            public OutputStream create(OutputStream out) {
+                return new EOLConvertingOutputStream(
+                        new LineWrapOutputStream(new SmtpDataStuffing(out), 20));
+            }
+        });
+    }
+
+    public void testBase64OutputStream() throws IOException {
+        Random random = new Random(42);
+        byte[] data = new byte[50000];
+        random.nextBytes(data);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        OutputStream out = new Base64OutputStream(expected);
+        for (byte b : data) {
+            out.write(b);
+        }
+        out.close();
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        out = new Base64OutputStream(actual);
+        writeInRandomChunks(out, data, random);
+        out.close();
+
+        assertEquals(new String(expected.toByteArray()), new String(actual.toByteArray()));
+
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        out = new Base64OutputStream(decoded, false);
+        writeInRandomChunks(out, actual.toByteArray(), random);
+        out.close();
+
+        assertTrue(java.util.Arrays.equals(data, decoded.toByteArray()));
+    }
+
+
+    private interface StreamFactory {
+        OutputStream create(OutputStream out);
+    }
+
+    private static void assertSameOutput(StreamFactory factory) throws IOException {
+        Random random = new Random(42);
+        for (int round = 0; round < 50; round++) {
+            byte[] data = new byte[random.nextInt(2000)];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = ALPHABET[random.nextInt(ALPHABET.length)];
+            }
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            OutputStream out = factory.create(expected);
+            for (byte b : data) {
+                out.write(b);
+            }
+            out.flush();
+
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            out = factory.create(actual);
+            writeInRandomChunks(out, data, random);
+            out.flush();
+
+            assertEquals(new String(expected.toByteArray()), new String(actual.toByteArray()));
+        }
+    }
+
+    private static void writeInRandomChunks(OutputStream out, byte[] data, Random random)
+            throws IOException {
+        int offset = 0;
+        while (offset < data.length) {
+            int length = Math.min(data.length - offset, random.nextInt(10000));
+            out.write(data, offset, length);
+            offset += length;
+        }
+    }
+}
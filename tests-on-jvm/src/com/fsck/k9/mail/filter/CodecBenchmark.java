@@ -0,0 +1,133 @@
+package com.fsck.k9.mail.filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.fsck.k9.MicroBenchmark;
+import com.fsck.k9.MicroBenchmark.NullOutputStream;
+
+/**
+ * Measures the throughput of the Base64 and quoted-printable decoders used for message bodies and
+ * of the Base64 encoder used for attachments.
+ *
+ * <p>
+ * Run with {@code java com.fsck.k9.mail.filter.CodecBenchmark}. The decoders are compared to the
+ * mime4j decoders they replaced, the encoder to the {@link Base64}-based implementation it
+ * replaced.
+ * </p>
+ */
+public class CodecBenchmark {
+    private static final int DATA_SIZE = 4 * 1024 * 1024;
+    private static final int BLOCK_SIZE = 8192;
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) throws IOException {
+        final byte[] binary = new byte[DATA_SIZE];
+        for (int i = 0; i < binary.length; i++) {
+            binary[i] = (byte) (i * 31);
+        }
+        final byte[] base64 = encodeBase64(binary);
+        final byte[] quotedPrintable = encodeQuotedPrintable(createText());
+
+        MicroBenchmark.StreamOperation oldBase64Decode = new MicroBenchmark.StreamOperation() {
+            @Override
+            public void run() throws IOException {
+                drain(new org.apache.james.mime4j.codec.Base64InputStream(
+                        new ByteArrayInputStream(base64)));
+            }
+        };
+        MicroBenchmark.StreamOperation base64Decode = new MicroBenchmark.StreamOperation() {
+            @Override
+            public void run() throws IOException {
+                drain(new Base64InputStream(new ByteArrayInputStream(base64)));
+            }
+        };
+        MicroBenchmark.StreamOperation oldQpDecode = new MicroBenchmark.StreamOperation() {
+            @Override
+            public void run() throws IOException {
+                drain(new org.apache.james.mime4j.codec.QuotedPrintableInputStream(
+                        new ByteArrayInputStream(quotedPrintable)));
+            }
+        };
+        MicroBenchmark.StreamOperation qpDecode = new MicroBenchmark.StreamOperation() {
+            @Override
+            public void run() throws IOException {
+                drain(new QuotedPrintableInputStream(new ByteArrayInputStream(quotedPrintable)));
+            }
+        };
+        MicroBenchmark.StreamOperation oldBase64Encode = new MicroBenchmark.StreamOperation() {
+            @Override
+            public void run() throws IOException {
+                byte[] encoded = new Base64(76, "\r\n".getBytes()).encode(binary);
+                new NullOutputStream().write(encoded);
+            }
+        };
+        MicroBenchmark.StreamOperation base64Encode = new MicroBenchmark.StreamOperation() {
+            @Override
+            public void run() throws IOException {
+                OutputStream out = new Base64OutputStream(new NullOutputStream(), true, 76,
+                        "\r\n".getBytes());
+                for (int offset = 0; offset < binary.length; offset += BLOCK_SIZE) {
+                    out.write(binary, offset, Math.min(BLOCK_SIZE, binary.length - offset));
+                }
+                out.close();
+            }
+        };
+
+        MicroBenchmark benchmark = new MicroBenchmark(WARMUP_ROUNDS, ROUNDS);
+        benchmark.warmUp(oldBase64Decode);
+        benchmark.warmUp(base64Decode);
+        benchmark.warmUp(oldQpDecode);
+        benchmark.warmUp(qpDecode);
+        benchmark.warmUp(oldBase64Encode);
+        benchmark.warmUp(base64Encode);
+
+        benchmark.reportThroughput("base64 decode (mime4j)", base64.length, oldBase64Decode);
+        benchmark.reportThroughput("base64 decode", base64.length, base64Decode);
+        benchmark.reportThroughput("qp decode (mime4j)", quotedPrintable.length, oldQpDecode);
+        benchmark.reportThroughput("qp decode", quotedPrintable.length, qpDecode);
+        benchmark.reportThroughput("base64 encode (Base64)", binary.length, oldBase64Encode);
+        benchmark.reportThroughput("base64 encode", binary.length, base64Encode);
+    }
+
+    private static byte[] createText() {
+        // Mostly ASCII text with some Latin-1 characters, like a typical European text message
+        String line = "Gr\u00FC\u00DFe aus M\u00FCnchen, the quick brown fox jumps over the lazy dog.\r\n";
+        StringBuilder text = new StringBuilder(DATA_SIZE);
+        while (text.length() < DATA_SIZE) {
+            text.append(line);
+        }
+        try {
+            return text.toString().getBytes("ISO-8859-1");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] encodeBase64(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Base64OutputStream base64 = new Base64OutputStream(out, true, 76, "\r\n".getBytes());
+        base64.write(data);
+        base64.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] encodeQuotedPrintable(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream qp = new org.apache.james.mime4j.codec.QuotedPrintableOutputStream(out, false);
+        qp.write(data);
+        qp.close();
+        return out.toByteArray();
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[BLOCK_SIZE];
+        while (in.read(buffer) != -1) {
+            // Just read everything
+        }
+    }
+}
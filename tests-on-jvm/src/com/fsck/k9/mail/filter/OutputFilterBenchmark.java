@@ -0,0 +1,73 @@
+package com.fsck.k9.mail.filter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.fsck.k9.MicroBenchmark;
+import com.fsck.k9.MicroBenchmark.NullOutputStream;
+
+/**
+ * Measures the throughput of the output filter chain used by {@code SmtpTransport}.
+ *
+ * <p>
+ * Run with {@code java com.fsck.k9.mail.filter.OutputFilterBenchmark}. It compares writing a
+ * message body one byte at a time (which is what every filter did before they got bulk
+ * {@code write(byte[], int, int)} implementations) with writing it in 8 KiB blocks.
+ * </p>
+ */
+public class OutputFilterBenchmark {
+    private static final int MESSAGE_SIZE = 20 * 1024 * 1024;
+    private static final int BLOCK_SIZE = 8192;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException {
+        byte[] message = createMessage();
+        MicroBenchmark.StreamOperation singleBytes = write(message, true);
+        MicroBenchmark.StreamOperation blocks = write(message, false);
+
+        MicroBenchmark benchmark = new MicroBenchmark(WARMUP_ROUNDS, ROUNDS);
+        benchmark.warmUp(singleBytes);
+        benchmark.warmUp(blocks);
+
+        benchmark.reportThroughput("write(int)", message.length, singleBytes);
+        benchmark.reportThroughput("write(byte[], int, int)", message.length, blocks);
+    }
+
+    private static byte[] createMessage() throws IOException {
+        // A Base64-encoded attachment, the typical reason for large messages
+        byte[] attachment = new byte[MESSAGE_SIZE * 3 / 4];
+        for (int i = 0; i < attachment.length; i++) {
+            attachment[i] = (byte) (i * 31);
+        }
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(MESSAGE_SIZE + MESSAGE_SIZE / 10);
+        Base64OutputStream base64 = new Base64OutputStream(encoded, true, 76, "\n".getBytes());
+        base64.write(attachment);
+        base64.close();
+        return encoded.toByteArray();
+    }
+
+    private static MicroBenchmark.StreamOperation write(final byte[] message,
+            final boolean singleBytes) {
+        return new MicroBenchmark.StreamOperation() {
+            @Override
+            public void run() throws IOException {
+                OutputStream out = new EOLConvertingOutputStream(new LineWrapOutputStream(
+                        new SmtpDataStuffing(new NullOutputStream()), 1000));
+
+                if (singleBytes) {
+                    for (byte b : message) {
+                        out.write(b);
+                    }
+                } else {
+                    for (int offset = 0; offset < message.length; offset += BLOCK_SIZE) {
+                        out.write(message, offset, Math.min(BLOCK_SIZE, message.length - offset));
+                    }
+                }
+                out.flush();
+            }
+        };
+    }
+}
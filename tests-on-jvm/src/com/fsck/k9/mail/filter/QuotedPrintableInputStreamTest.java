@@ -0,0 +1,94 @@
+package com.fsck.k9.mail.filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class QuotedPrintableInputStreamTest extends TestCase {
+
+    public void testDecode() throws IOException {
+        assertEquals("K\u00f6ln", decode("K=F6ln"));
+        assertEquals("a=b", decode("a=3Db"));
+        assertEquals("a=b", decode("a=3db"));
+    }
+
+    public void testSoftLineBreak() throws IOException {
+        assertEquals("foobar", decode("foo=\r\nbar"));
+        assertEquals("foobar", decode("foo=\nbar"));
+        assertEquals("foobar", decode("foo=  \r\nbar"));
+    }
+
+    public void testHardLineBreak() throws IOException {
+        assertEquals("foo\r\nbar", decode("foo\r\nbar"));
+        assertEquals("foo\r\nbar", decode("foo\nbar"));
+    }
+
+    public void testTrailingWhitespaceIsRemoved() throws IOException {
+        assertEquals("foo\r\nbar", decode("foo \t\r\nbar  "));
+        assertEquals("foo bar", decode("foo bar"));
+    }
+
+    public void testMalformedEscapeSequenceIsLeftAsIs() throws IOException {
+        assertEquals("a=XYb", decode("a=XYb"));
+        assertEquals("a=", decode("a="));
+        assertEquals("a=F", decode("a=F"));
+    }
+
+    public void testBareCarriageReturn() throws IOException {
+        assertEquals("a\rb", decode("a\rb"));
+        assertEquals("a\r\r\nb", decode("a\r\r\nb"));
+    }
+
+    public void testLongLiteralRuns() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append("Line ").append(i).append(" =E2=82=AC  \r\n");
+        }
+        String decoded = decode(sb.toString());
+
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            expected.append("Line ").append(i).append(" \u00e2\u0082\u00ac\r\n");
+        }
+        assertEquals(expected.toString(), decoded);
+    }
+
+    public void testSameOutputAsMime4j() throws IOException {
+        // mime4j's handling of a bare CR depends on its buffer boundaries, so CR is only used as
+        // part of CRLF here.
+        String[] tokens = { "a", "b", "Z", "0", "9", "F", "f", "G", "=", "=", "=", " ", "\t",
+                "\u000b", "\r\n", "\n", "\u00e4", "." };
+        Random random = new Random(42);
+        for (int i = 0; i < 50000; i++) {
+            int count = random.nextInt(30);
+            StringBuilder sb = new StringBuilder();
+            for (int j = 0; j < count; j++) {
+                sb.append(tokens[random.nextInt(tokens.length)]);
+            }
+            byte[] input = sb.toString().getBytes("ISO-8859-1");
+
+            byte[] expected = Base64InputStreamTest.readFully(
+                    new org.apache.james.mime4j.codec.QuotedPrintableInputStream(
+                            new ByteArrayInputStream(input)), 4096);
+            byte[] actual = Base64InputStreamTest.readFully(
+                    new QuotedPrintableInputStream(new ByteArrayInputStream(input)),
+                    1 + random.nextInt(8));
+
+            assertTrue(escape(sb.toString()) + " -> " + escape(new String(expected, "ISO-8859-1")) +
+                    " but was " + escape(new String(actual, "ISO-8859-1")),
+                    Arrays.equals(expected, actual));
+        }
+    }
+
+    private static String decode(String encoded) throws IOException {
+        return new String(Base64InputStreamTest.readFully(new QuotedPrintableInputStream(
+                new ByteArrayInputStream(encoded.getBytes("ISO-8859-1"))), 4096), "ISO-8859-1");
+    }
+
+    private static String escape(String s) {
+        return s.replace("\r", "\\r").replace("\n", "\\n").replace("\t", "\\t");
+    }
+}
@@ -0,0 +1,157 @@
+package com.fsck.k9.mail.internet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.apache.commons.io.IOUtils;
+
+import com.fsck.k9.mail.MessagingException;
+
+import junit.framework.TestCase;
+
+public class BinaryTempFileBodyTest extends TestCase {
+    private File mTempDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        mTempDirectory = File.createTempFile("BinaryTempFileBodyTest", null);
+        mTempDirectory.delete();
+        mTempDirectory.mkdir();
+        BinaryTempFileBody.setTempDirectory(mTempDirectory);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : mTempDirectory.listFiles()) {
+            file.delete();
+        }
+        mTempDirectory.delete();
+    }
+
+    public void testSmallBodyIsKeptInMemory() throws Exception {
+        byte[] data = createData(200);
+        BinaryTempFileBody body = createBody(data);
+
+        assertEquals(0, mTempDirectory.listFiles().length);
+        assertTrue(Arrays.equals(data, read(body)));
+    }
+
+    public void testLargeBodySpillsToFile() throws Exception {
+        byte[] data = createData(BodyBufferPool.BUFFER_SIZE * 3 + 17);
+        BinaryTempFileBody body = createBody(data);
+
+        assertEquals(1, mTempDirectory.listFiles().length);
+        assertTrue(Arrays.equals(data, read(body)));
+        assertEquals(0, mTempDirectory.listFiles().length);
+    }
+
+    public void testBodyIsDisposedOfAfterClose() throws Exception {
+        BinaryTempFileBody body = createBody(createData(BodyBufferPool.BUFFER_SIZE / 2));
+        read(body);
+
+        try {
+            body.getInputStream();
+            fail("Expected MessagingException");
+        } catch (MessagingException e) {
+            // expected
+        }
+    }
+
+    public void testCloseWithoutDeletingKeepsBody() throws Exception {
+        byte[] data = createData(BodyBufferPool.BUFFER_SIZE / 2);
+        BinaryTempFileBody body = createBody(data);
+
+        InputStream in = body.getInputStream();
+        ((BinaryTempFileBody.BinaryTempFileBodyInputStream) in).closeWithoutDeleting();
+
+        assertTrue(Arrays.equals(data, read(body)));
+    }
+
+    public void testPooledBufferIsNotReusedWhileStillBeingRead() throws Exception {
+        byte[] data = createData(BodyBufferPool.BUFFER_SIZE / 2);
+        BinaryTempFileBody body = createBody(data);
+
+        InputStream first = body.getInputStream();
+        InputStream second = body.getInputStream();
+        first.close();
+
+        // This body would get the buffer of the first body if it had been released too early
+        createBody(createData(BodyBufferPool.BUFFER_SIZE / 2 + 1));
+
+        byte[] result = IOUtils.toByteArray(second);
+        second.close();
+        assertTrue(Arrays.equals(data, result));
+    }
+
+    public void testEncodedBodyIsDecodedWhenRead() throws Exception {
+        BinaryTempFileBody body = new BinaryTempFileBody();
+        body.setStoredEncoding("base64");
+        body.setEncoding("base64");
+        OutputStream out = body.getOutputStream();
+        out.write("SGVsbG8s\r\nIHdvcmxk\r\n".getBytes("US-ASCII"));
+        out.close();
+
+        InputStream in = body.getInputStream();
+        ((BinaryTempFileBody.BinaryTempFileBodyInputStream) in).closeWithoutDeleting();
+        assertEquals("Hello, world", new String(read(body), "US-ASCII"));
+    }
+
+    public void testEncodedBodyIsWrittenWithoutReencoding() throws Exception {
+        String encoded = "SGVs\r\nbG8=\r\n";
+        BinaryTempFileBody body = new BinaryTempFileBody();
+        body.setStoredEncoding("base64");
+        body.setEncoding("base64");
+        OutputStream out = body.getOutputStream();
+        out.write(encoded.getBytes("US-ASCII"));
+        out.close();
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        body.writeTo(result);
+        assertEquals(encoded, new String(result.toByteArray(), "US-ASCII"));
+    }
+
+    public void testEncodedBodyIsReencodedWhenEncodingChanges() throws Exception {
+        BinaryTempFileBody body = new BinaryTempFileBody();
+        body.setStoredEncoding("quoted-printable");
+        body.setEncoding("base64");
+        OutputStream out = body.getOutputStream();
+        out.write("Hello=3D".getBytes("US-ASCII"));
+        out.close();
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        body.writeTo(result);
+        assertEquals("SGVsbG89", new String(result.toByteArray(), "US-ASCII").trim());
+    }
+
+
+    private static BinaryTempFileBody createBody(byte[] data) throws IOException {
+        BinaryTempFileBody body = new BinaryTempFileBody();
+        OutputStream out = body.getOutputStream();
+        out.write(data, 0, 10);
+        out.write(data[10]);
+        out.write(data, 11, data.length - 11);
+        out.close();
+        return body;
+    }
+
+    private static byte[] read(BinaryTempFileBody body) throws Exception {
+        InputStream in = body.getInputStream();
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] createData(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 7 + length);
+        }
+        return data;
+    }
+}
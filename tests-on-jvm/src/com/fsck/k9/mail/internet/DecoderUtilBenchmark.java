@@ -0,0 +1,63 @@
+package com.fsck.k9.mail.internet;
+
+import com.fsck.k9.MicroBenchmark;
+
+/**
+ * Measures decoding of header values the way it's done during synchronization.
+ *
+ * <p>
+ * Run with {@code java com.fsck.k9.mail.internet.DecoderUtilBenchmark}. Reports the average time
+ * and, if the JVM supports it, the number of bytes allocated per header value for plain ASCII
+ * values, for encoded words that repeat (like the sender names in a thread) and for encoded words
+ * that are all different.
+ * </p>
+ */
+public class DecoderUtilBenchmark {
+    private static final int WARMUP_ITERATIONS = 20000;
+    private static final int ITERATIONS = 50000;
+
+    public static void main(String[] args) {
+        String[] plain = new String[] {
+            "Re: Meeting on Monday",
+            "Alice Example <alice@example.com>",
+            "Your order has been shipped",
+            "report-2013.pdf"
+        };
+        String[] repeated = new String[] {
+            "=?UTF-8?B?QWxpY2UgRXhhbXBsZQ==?= <alice@example.com>",
+            "=?iso-8859-1?q?Re=3A_=DCberweisung?=",
+            "=?utf-8?q?J=C3=B6rg_M=C3=BCller?= <joerg@example.com>",
+            "=?windows-1252?Q?Caf=E9?="
+        };
+        String[] unique = new String[ITERATIONS];
+        for (int i = 0; i < unique.length; i++) {
+            unique[i] = "=?utf-8?q?Ticket_=23" + i + "_=E2=80=93_updated?=";
+        }
+
+        MicroBenchmark.Operation plainOperation = decode(plain);
+        MicroBenchmark.Operation repeatedOperation = decode(repeated);
+        MicroBenchmark.Operation uniqueOperation = decode(unique);
+
+        MicroBenchmark benchmark = new MicroBenchmark(WARMUP_ITERATIONS, ITERATIONS);
+        benchmark.warmUp(plainOperation);
+        benchmark.warmUp(repeatedOperation);
+        benchmark.warmUp(uniqueOperation);
+
+        benchmark.report("plain ASCII", plainOperation);
+        benchmark.report("repeated encoded words", repeatedOperation);
+        benchmark.report("unique encoded words", uniqueOperation);
+    }
+
+    /**
+     * Decode one of {@code values} per iteration.
+     */
+    private static MicroBenchmark.Operation decode(final String[] values) {
+        return new MicroBenchmark.Operation() {
+            @Override
+            public int run(int iteration) {
+                String value = values[iteration % values.length];
+                return DecoderUtil.decodeEncodedWords(MimeUtility.unfold(value), null).length();
+            }
+        };
+    }
+}
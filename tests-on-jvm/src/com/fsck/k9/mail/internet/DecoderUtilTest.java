@@ -108,4 +108,28 @@ public class DecoderUtilTest extends TestCase {
         message = null;
         assertEquals(expect, DecoderUtil.decodeEncodedWords(body, message));
     }
+
+    public void testDecodeEncodedWordsWithoutEncodedWordReturnsInput() {
+        String body = "Re: Meeting on Monday";
+        assertSame(body, DecoderUtil.decodeEncodedWords(body, null));
+    }
+
+    public void testDecodeSameEncodedTextWithDifferentCharsets() {
+        String latin1 = DecoderUtil.decodeEncodedWords("=?iso-8859-1?q?=C3=A4?=", null);
+        String utf8 = DecoderUtil.decodeEncodedWords("=?utf-8?q?=C3=A4?=", null);
+
+        assertEquals("\u00c3\u00a4", latin1);
+        assertEquals("\u00e4", utf8);
+
+        // Decoding again must not mix up the cached results
+        assertEquals(latin1, DecoderUtil.decodeEncodedWords("=?ISO-8859-1?q?=C3=A4?=", null));
+        assertEquals(utf8, DecoderUtil.decodeEncodedWords("=?UTF-8?q?=C3=A4?=", null));
+    }
+
+    public void testDecodeEncodedWordsWithUnknownCharset() {
+        // Unknown charsets fall back to US-ASCII, every time
+        for (int i = 0; i < 2; i++) {
+            assertEquals("abc", DecoderUtil.decodeEncodedWords("=?x-unknown?q?abc?=", null));
+        }
+    }
 }
@@ -144,4 +144,13 @@ public class MimeUtilityTest extends TestCase {
 
     }
 
+
+    public void testUnfold() {
+        String unfolded = "Subject without line breaks";
+        assertSame(unfolded, MimeUtility.unfold(unfolded));
+
+        assertEquals("foo bar baz", MimeUtility.unfold("foo\r\n bar\n baz"));
+        assertEquals("", MimeUtility.unfold("\r\n"));
+        assertNull(MimeUtility.unfold(null));
+    }
 }
@@ -0,0 +1,128 @@
+package com.fsck.k9.mail.internet;
+
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+public class TruncatingWriterTest extends TestCase {
+
+    public void testTextWithinLimitIsPassedOn() throws Exception {
+        StringWriter out = new StringWriter();
+        TruncatingWriter writer = new TruncatingWriter(out, 10);
+
+        writer.write("abc");
+        writer.append("def");
+
+        assertEquals("abcdef", out.toString());
+        assertEquals(4, writer.getRemaining());
+        assertFalse(writer.isTruncated());
+    }
+
+    public void testTextBeyondLimitIsDropped() throws Exception {
+        StringWriter out = new StringWriter();
+        TruncatingWriter writer = new TruncatingWriter(out, 5);
+
+        writer.write("abc");
+        writer.write("defgh".toCharArray());
+        writer.write("ijk");
+
+        assertEquals("abcde", out.toString());
+        assertEquals(0, writer.getRemaining());
+        assertTrue(writer.isTruncated());
+    }
+
+    public void testSurrogatePairIsNotSplit() throws Exception {
+        StringWriter out = new StringWriter();
+        TruncatingWriter writer = new TruncatingWriter(out, 3);
+
+        writer.write("ab\uD83D\uDE00");
+
+        assertEquals("ab", out.toString());
+        assertTrue(writer.isTruncated());
+    }
+
+    public void testHtmlIsNotTruncatedInsideTag() throws Exception {
+        StringWriter out = new StringWriter();
+        TruncatingWriter writer = new TruncatingWriter(out, 12, true);
+
+        writer.write("<p>abc");
+        writer.write("<a href=\"x\">");
+        writer.close();
+
+        assertEquals("<p>abc", out.toString());
+        assertTrue(writer.isTruncated());
+    }
+
+    public void testHtmlIsNotTruncatedInsideCharacterReference() throws Exception {
+        StringWriter out = new StringWriter();
+        TruncatingWriter writer = new TruncatingWriter(out, 8, true);
+
+        writer.write("a&lt;b&am");
+        writer.write("p;c");
+        writer.close();
+
+        assertEquals("a&lt;b", out.toString());
+        assertTrue(writer.isTruncated());
+    }
+
+    public void testHtmlCutOffOneCharacterPastLimitInsideTag() throws Exception {
+        StringWriter out = new StringWriter();
+        TruncatingWriter writer = new TruncatingWriter(out, 10, true);
+
+        writer.write("<p>abc</p><");
+        writer.close();
+
+        assertEquals("<p>abc</p>", out.toString());
+        assertTrue(writer.isTruncated());
+    }
+
+    public void testTruncateDropsHeldBackTag() throws Exception {
+        StringWriter out = new StringWriter();
+        TruncatingWriter writer = new TruncatingWriter(out, 100, true);
+
+        writer.write("<p>abc</p><a hr");
+        writer.truncate();
+        writer.write("ef=\"x\">");
+        writer.close();
+
+        assertEquals("<p>abc</p>", out.toString());
+        assertEquals(0, writer.getRemaining());
+        assertTrue(writer.isTruncated());
+    }
+
+    public void testHtmlAmpersandThatIsNotCharacterReference() throws Exception {
+        StringWriter out = new StringWriter();
+        TruncatingWriter writer = new TruncatingWriter(out, 100, true);
+
+        writer.write("Tom & Jerry<b>");
+        writer.write("&amp;&");
+        writer.close();
+
+        assertEquals("Tom & Jerry<b>&amp;&", out.toString());
+        assertFalse(writer.isTruncated());
+    }
+
+    public void testHtmlSplitAcrossWrites() throws Exception {
+        StringWriter out = new StringWriter();
+        TruncatingWriter writer = new TruncatingWriter(out, 100, true);
+
+        writer.write("<di");
+        writer.write("v>x&g");
+        writer.write("t;</div>");
+
+        assertEquals("<div>x&gt;</div>", out.toString());
+        assertEquals(84, writer.getRemaining());
+    }
+
+    public void testNoLimit() throws Exception {
+        StringWriter out = new StringWriter();
+        TruncatingWriter writer = new TruncatingWriter(out, Integer.MAX_VALUE);
+
+        for (int i = 0; i < 1000; i++) {
+            writer.write("0123456789");
+        }
+
+        assertEquals(10000, out.toString().length());
+        assertFalse(writer.isTruncated());
+    }
+}
@@ -0,0 +1,135 @@
+package com.fsck.k9.mail.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import junit.framework.TestCase;
+
+import com.fsck.k9.Clock;
+
+public class ChangeNotificationCoalescerTest extends TestCase {
+    private MockClock mClock;
+    private MockTimer mTimer;
+    private int mCount;
+    private ChangeNotificationCoalescer mCoalescer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClock = new MockClock();
+        mTimer = new MockTimer(mClock);
+        mCount = 0;
+        mCoalescer = new ChangeNotificationCoalescer(200,
+                new ChangeNotificationCoalescer.ChangeListener() {
+                    @Override
+                    public void onChange() {
+                        mCount++;
+                    }
+                }, mClock, mTimer);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mTimer.cancel();
+        super.tearDown();
+    }
+
+    public void testFirstChangeIsDeliveredImmediately() throws Exception {
+        mCoalescer.notifyChange();
+        mTimer.runDueTasks();
+
+        assertEquals(1, mCount);
+    }
+
+    public void testChangesWithinWindowAreCoalesced() throws Exception {
+        mCoalescer.notifyChange();
+        mTimer.runDueTasks();
+
+        mClock.advance(50);
+        for (int i = 0; i < 100; i++) {
+            mCoalescer.notifyChange();
+        }
+        mTimer.runDueTasks();
+
+        assertEquals(1, mCount);
+
+        // The trailing notification is delivered once the window has passed
+        mClock.advance(149);
+        mTimer.runDueTasks();
+        assertEquals(1, mCount);
+
+        mClock.advance(1);
+        mTimer.runDueTasks();
+        assertEquals(2, mCount);
+    }
+
+    public void testChangeAfterWindowIsDeliveredImmediately() throws Exception {
+        mCoalescer.notifyChange();
+        mTimer.runDueTasks();
+
+        mClock.advance(200);
+        mCoalescer.notifyChange();
+        mTimer.runDueTasks();
+
+        assertEquals(2, mCount);
+    }
+
+    public void testClockSetBackDoesNotDelayNotificationBeyondWindow() throws Exception {
+        mCoalescer.notifyChange();
+        mTimer.runDueTasks();
+
+        mClock.advance(-60 * 60 * 1000);
+        mCoalescer.notifyChange();
+        mClock.advance(200);
+        mTimer.runDueTasks();
+
+        assertEquals(2, mCount);
+    }
+
+
+    private static class MockClock extends Clock {
+        private long mTime = 1000000;
+
+        @Override
+        public long getTime() {
+            return mTime;
+        }
+
+        void advance(long millis) {
+            mTime += millis;
+        }
+    }
+
+    /**
+     * Runs the scheduled tasks on the test thread when {@link #runDueTasks()} is called.
+     */
+    private static class MockTimer extends Timer {
+        private final MockClock mClock;
+        private final List<TimerTask> mTasks = new ArrayList<TimerTask>();
+        private final List<Long> mDueTimes = new ArrayList<Long>();
+
+        MockTimer(MockClock clock) {
+            mClock = clock;
+        }
+
+        @Override
+        public void schedule(TimerTask task, long delay) {
+            mTasks.add(task);
+            mDueTimes.add(mClock.getTime() + delay);
+        }
+
+        void runDueTasks() {
+            for (int i = 0; i < mTasks.size(); ) {
+                if (mDueTimes.get(i) <= mClock.getTime()) {
+                    TimerTask task = mTasks.remove(i);
+                    mDueTimes.remove(i);
+                    task.run();
+                } else {
+                    i++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.fsck.k9.mail.store;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class PendingCommandSerializerTest extends TestCase {
+
+    public void testRoundTripMixedArguments() {
+        String[] arguments = { "INBOX", "true", "SEEN", "", "Ordner mit Ümlaut,und Komma",
+                "1", "2", "3", "10", "007", "-5", "0", "abc:def", "99999999999999999999" };
+
+        assertRoundTrip(arguments);
+    }
+
+    public void testRoundTripEmpty() {
+        assertRoundTrip(new String[0]);
+    }
+
+    public void testRoundTripDescendingAndGaps() {
+        assertRoundTrip(new String[] { "500", "499", "1000", "1", "2", "4", "5", "6" });
+    }
+
+    public void testConsecutiveUidsAreCompressed() {
+        String[] arguments = new String[10002];
+        arguments[0] = "INBOX";
+        arguments[1] = "true";
+        for (int i = 0; i < 10000; i++) {
+            arguments[i + 2] = Integer.toString(100000 + i);
+        }
+
+        byte[] data = PendingCommandSerializer.serialize(arguments);
+
+        assertTrue("Serialized size was " + data.length, data.length < 32);
+        assertTrue(Arrays.equals(arguments, PendingCommandSerializer.deserialize(data)));
+    }
+
+    public void testUnknownVersionIsRejected() {
+        byte[] data = PendingCommandSerializer.serialize(new String[] { "INBOX" });
+        data[0] = (byte) (PendingCommandSerializer.VERSION + 1);
+
+        try {
+            PendingCommandSerializer.deserialize(data);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testTruncatedDataIsRejected() {
+        byte[] data = PendingCommandSerializer.serialize(new String[] { "INBOX" });
+
+        try {
+            PendingCommandSerializer.deserialize(Arrays.copyOf(data, data.length - 1));
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private void assertRoundTrip(String[] arguments) {
+        byte[] data = PendingCommandSerializer.serialize(arguments);
+        String[] result = PendingCommandSerializer.deserialize(data);
+
+        assertTrue(Arrays.toString(result), Arrays.equals(arguments, result));
+    }
+}
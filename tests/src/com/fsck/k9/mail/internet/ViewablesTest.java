@@ -1,5 +1,6 @@
 package com.fsck.k9.mail.internet;
 
+import java.io.StringWriter;
 import java.util.Date;
 import java.util.Locale;
 import java.util.TimeZone;
@@ -9,6 +10,7 @@ import com.fsck.k9.activity.K9ActivityCommon;
 import com.fsck.k9.mail.Address;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.Message.RecipientType;
+import com.fsck.k9.mail.internet.MimeUtility.ExtractedViewables;
 import com.fsck.k9.mail.internet.MimeUtility.ViewableContainer;
 
 public class ViewablesTest extends AndroidTestCase {
@@ -58,6 +60,35 @@ public class ViewablesTest extends AndroidTestCase {
         assertEquals(expectedHtml, container.html);
     }
 
+    public void testHtmlMessageLongerThanLimitEndingInsideTag() throws MessagingException {
+        K9ActivityCommon.setLanguage(getContext(), "en");
+
+        String bodyText = "<p>K-9 Mail</p><a href=\"http://k9mail.example/\">rocks</a>";
+
+        // Create text/html body
+        TextBody body = new TextBody(bodyText);
+
+        // Create message
+        MimeMessage message = new MimeMessage();
+        message.setHeader("Content-Type", "text/html");
+        message.setBody(body);
+
+        // Extract text, cutting off the HTML inside of the <a> tag
+        StringWriter text = new StringWriter();
+        StringWriter html = new StringWriter();
+        ExtractedViewables viewables = MimeUtility.extractTextAndAttachments(getContext(),
+                message, text, html, 20);
+
+        String expectedHtml =
+                "<p>K-9 Mail</p>" +
+                "<p style=\"margin-top: 2.5em; font-style: italic\">" +
+                "This message is too long to be displayed completely." +
+                "</p>";
+
+        assertTrue(viewables.truncated);
+        assertEquals(expectedHtml, html.toString());
+    }
+
     public void testMultipartPlainTextMessage() throws MessagingException {
         String bodyText1 = "text body 1";
         String bodyText2 = "text body 2";